@@ -6,6 +6,7 @@
 Usage:
   corfu_sequencer [-i <stream-id>] -c <config> [-e [-u <keystore> -f <keystore_password_file>] [-r <truststore> -w <truststore_password_file>] [-g -o <username_file> -j <password_file>]] latest
   corfu_sequencer [-i <stream-id>] -c <config> [-e [-u <keystore> -f <keystore_password_file>] [-r <truststore> -w <truststore_password_file>] [-g -o <username_file> -j <password_file>]] next-token <num-tokens>
+  corfu_sequencer -c <config> [-e [-u <keystore> -f <keystore_password_file>] [-r <truststore> -w <truststore_password_file>] [-g -o <username_file> -j <password_file>]] stats
 Options:
   -i <stream-id>, --stream-id <stream-id>                                                ID or name of the stream to work with.
   -c <config>, --config <config>                                                         Configuration string to use.
@@ -34,11 +35,19 @@ Options:
                                                    (java.util.Collections/singleton stream)) num-tokens))
            (getToken))))
 
+; print the counters of each sequencer of the layout
+(defn print-stats [] (doseq [endpoint (.. (.. (get-layout-view) (getLayout)) (getSequencers))]
+                       (println (format "Sequencer %s:" endpoint))
+                       (get-router endpoint localcmd)
+                       (pprint-json (.. (new com.google.gson.Gson)
+                                        (toJson (.. (.. (get-sequencer-client) (getStats)) (get)))))))
+
 (get-runtime (.. localcmd (get "--config")) localcmd)
 (connect-runtime)
 ; determine what to do
 (cond (.. localcmd (get "latest")) (get-token stream 0)
   (.. localcmd (get "next-token")) (get-token stream (Integer/parseInt (.. localcmd (get "<num-tokens>"))))
+  (.. localcmd (get "stats")) (print-stats)
   :else (println "Unknown arguments.")
   )
 
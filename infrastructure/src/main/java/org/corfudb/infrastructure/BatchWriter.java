@@ -2,37 +2,124 @@ package org.corfudb.infrastructure;
 
 import com.github.benmanes.caffeine.cache.CacheWriter;
 import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 import org.corfudb.infrastructure.log.LogAddress;
 import org.corfudb.infrastructure.log.StreamLog;
+import org.corfudb.infrastructure.log.StreamLogFiles;
 import org.corfudb.protocols.wireprotocol.LogData;
 import org.corfudb.runtime.exceptions.OverwriteException;
+import org.corfudb.runtime.exceptions.TrimmedException;
 
 import javax.annotation.Nonnull;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Objects;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * BatchWriter is a class that will intercept write-through calls to batch and
  * sync writes.
+ * <p>
+ * Writes are group committed: the stream log is synced once per batch, and the
+ * writes of a batch are only acknowledged after the sync. A batch is closed when
+ * it reaches a maximum number of operations or bytes, or when no new write arrives
+ * within the maximum batch wait, which is measured from the first write of the batch.
+ * A maximum wait of 0 closes a batch as soon as the write queue is empty.
+ * <p>
+ * Writes can be spread over several independent write pipelines, each with its own
+ * queue, writer thread and group commit. Writes are assigned to a pipeline by log
+ * segment, so all writes to a given segment (and thus to a given address) are
+ * processed, in order, by a single pipeline.
  */
 @Slf4j
 public class BatchWriter <K, V> implements CacheWriter<K, V>, AutoCloseable {
 
     static final int BATCH_SIZE = 50;
+    static final long BATCH_BYTES = 4 * 1024 * 1024;
+    static final long BATCH_WAIT_MICROS = 0;
+    static final int WRITERS = 1;
+
     private StreamLog streamLog;
-    private BlockingQueue<WriteOperation> writeQueue;
-    final ExecutorService writerService = Executors.newSingleThreadExecutor(new ThreadFactoryBuilder()
-            .setDaemon(false)
-            .setNameFormat("LogUnit-Write-Processor-%d")
-            .build());
+    private final List<BlockingQueue<WriteOperation>> writeQueues;
+    final ExecutorService writerService;
+
+    /**
+     * The maximum number of operations in a batch.
+     */
+    private final int maxBatchOps;
+
+    /**
+     * The maximum number of bytes in a batch.
+     */
+    private final long maxBatchBytes;
+
+    /**
+     * The maximum time to wait for more writes before syncing a batch, in microseconds.
+     */
+    private final long maxBatchWaitMicros;
+
+    /**
+     * The number of batches synced.
+     */
+    @Getter
+    private final AtomicLong syncCount = new AtomicLong();
+
+    /**
+     * The number of operations synced in batches.
+     */
+    @Getter
+    private final AtomicLong syncedOps = new AtomicLong();
+
+    /**
+     * The number of bytes synced in batches.
+     */
+    @Getter
+    private final AtomicLong syncedBytes = new AtomicLong();
+
+    /**
+     * The largest batch synced, in operations.
+     */
+    @Getter
+    private final AtomicLong maxSyncedBatchOps = new AtomicLong();
 
     public BatchWriter(StreamLog streamLog) {
+        this(streamLog, BATCH_SIZE, BATCH_BYTES, BATCH_WAIT_MICROS, WRITERS);
+    }
+
+    /**
+     * Create a batch writer.
+     *
+     * @param streamLog          The stream log to write to.
+     * @param maxBatchOps        The maximum number of operations in a batch.
+     * @param maxBatchBytes      The maximum number of bytes in a batch.
+     * @param maxBatchWaitMicros The maximum time to wait for more writes before syncing a batch.
+     * @param writers            The number of independent write pipelines.
+     */
+    public BatchWriter(StreamLog streamLog, int maxBatchOps, long maxBatchBytes, long maxBatchWaitMicros,
+                       int writers) {
         this.streamLog = streamLog;
-        writeQueue = new LinkedBlockingQueue<>();
-        writerService.submit(this::batchWriteProcessor);
+        this.maxBatchOps = maxBatchOps;
+        this.maxBatchBytes = maxBatchBytes;
+        this.maxBatchWaitMicros = maxBatchWaitMicros;
+
+        writerService = Executors.newFixedThreadPool(writers, new ThreadFactoryBuilder()
+                .setDaemon(false)
+                .setNameFormat("LogUnit-Write-Processor-%d")
+                .build());
+
+        writeQueues = new ArrayList<>(writers);
+        for (int i = 0; i < writers; i++) {
+            BlockingQueue<WriteOperation> writeQueue = new LinkedBlockingQueue<>();
+            writeQueues.add(writeQueue);
+            writerService.submit(() -> batchWriteProcessor(writeQueue));
+        }
     }
 
     @Override
@@ -44,6 +131,8 @@ public class BatchWriter <K, V> implements CacheWriter<K, V>, AutoCloseable {
 
             if(e.getCause() instanceof OverwriteException) {
                 throw new OverwriteException();
+            } else if (e.getCause() instanceof TrimmedException) {
+                throw new TrimmedException();
             } else {
                 throw new RuntimeException(e);
             }
@@ -53,81 +142,109 @@ public class BatchWriter <K, V> implements CacheWriter<K, V>, AutoCloseable {
     @Override
     public void delete(K key, V value, RemovalCause removalCause) {}
 
-    private CompletableFuture<Void> submitWrite(LogAddress address, LogData logData) {
+    /**
+     * Queue a write to the pipeline of its segment.
+     *
+     * @return A future completed once the write is synced.
+     */
+    @VisibleForTesting
+    CompletableFuture<Void> submitWrite(LogAddress address, LogData logData) {
         CompletableFuture<Void> cf = new CompletableFuture();
-        writeQueue.add(new WriteOperation(address, logData,cf));
+        getWriteQueue(address).add(new WriteOperation(address, logData,cf));
         return cf;
     }
 
-    private void batchWriteProcessor() {
-        try {
-            WriteOperation lastOp = null;
+    /**
+     * Get the queue of the write pipeline which owns the segment of an address.
+     */
+    private BlockingQueue<WriteOperation> getWriteQueue(LogAddress address) {
+        if (writeQueues.size() == 1) {
+            return writeQueues.get(0);
+        }
 
-            int processed = 0;
+        long segment = address.getAddress() / StreamLogFiles.RECORDS_PER_LOG_FILE;
+        return writeQueues.get(Math.floorMod(Objects.hash(address.getStream(), segment), writeQueues.size()));
+    }
+
+    /**
+     * The average number of operations in a synced batch.
+     */
+    public double getAverageBatchOps() {
+        long syncs = syncCount.get();
+        return syncs == 0 ? 0 : (double) syncedOps.get() / syncs;
+    }
 
+    private void batchWriteProcessor(BlockingQueue<WriteOperation> writeQueue) {
+        try {
             List<CompletableFuture> ack = new LinkedList();
             List<CompletableFuture> err = new LinkedList();
+            List<LogAddress> written = new ArrayList<>();
 
             while (true) {
-                WriteOperation currOp;
-
-                if (lastOp == null) {
-                    currOp = writeQueue.take();
-                } else {
-                    currOp = writeQueue.poll();
+                // Wait for the first operation of the next batch.
+                WriteOperation currOp = writeQueue.take();
+                long batchDeadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(maxBatchWaitMicros);
+                int batchOps = 0;
+                long batchBytes = 0;
 
-                    if (currOp == null || processed == BATCH_SIZE || currOp.getFlush() || currOp == WriteOperation.SHUTDOWN) {
-                        streamLog.sync();
-                        log.trace("Sync'd {} writes", processed);
+                while (true) {
+                    if (currOp == WriteOperation.SHUTDOWN) {
+                        syncBatch(written, ack, err, batchOps, batchBytes);
+                        log.trace("Shutting down the write processor");
+                        return;
+                    }
 
-                        for(CompletableFuture cf : ack) {
-                            cf.complete(null);
-                        }
+                    if (currOp.getFlush()) {
+                        syncBatch(written, ack, err, batchOps, batchBytes);
+                        batchOps = 0;
+                        batchBytes = 0;
 
-                        for(CompletableFuture cf : err) {
-                            cf.completeExceptionally(new OverwriteException());
+                        log.trace("Flushing all pending writes");
+                        if (currOp.getLogAddress() == null && currOp.getLogData() == null) {
+                            currOp.getFuture().complete(null);
+                        } else {
+                            try {
+                                streamLog.append(currOp.getLogAddress(), currOp.getLogData());
+                                streamLog.sync(Collections.singletonList(currOp.getLogAddress()));
+                                currOp.getFuture().complete(null);
+                            } catch (OverwriteException e) {
+                                currOp.getFuture().completeExceptionally(new OverwriteException());
+                            } catch (TrimmedException e) {
+                                currOp.getFuture().completeExceptionally(new TrimmedException());
+                            }
                         }
+                        break;
+                    }
 
-                        ack.clear();
-                        err.clear();
-                        processed = 0;
+                    try {
+                        streamLog.append(currOp.getLogAddress(), currOp.getLogData());
+                        written.add(currOp.getLogAddress());
+                        ack.add(currOp.getFuture());
+                    } catch (OverwriteException e) {
+                        err.add(currOp.getFuture());
+                    } catch (TrimmedException e) {
+                        // Nothing was written, so there is nothing to sync before failing the write.
+                        currOp.getFuture().completeExceptionally(new TrimmedException());
                     }
-                }
 
-                if (currOp == WriteOperation.SHUTDOWN) {
-                    log.trace("Shutting down the write processor");
-                    break;
-                }
-                if (currOp == null) {
-                    lastOp = null;
-                    continue;
-                }
+                    batchOps++;
+                    batchBytes += currOp.getLogData().getSizeEstimate();
 
-                if (currOp.getFlush()) {
-                    log.trace("Flushing all pending writes");
-                    if (currOp.getLogAddress() == null && currOp.getLogData() == null) {
-                        currOp.getFuture().complete(null);
-                    } else {
-                        try {
-                            streamLog.append(currOp.getLogAddress(), currOp.getLogData());
-                            currOp.getFuture().complete(null);
-                        } catch (OverwriteException e) {
-                            currOp.getFuture().completeExceptionally(new OverwriteException());
-                        }
+                    if (batchOps >= maxBatchOps || batchBytes >= maxBatchBytes) {
+                        break;
                     }
-                    lastOp = currOp;
-                    continue;
-                }
 
-                try {
-                    streamLog.append(currOp.getLogAddress(), currOp.getLogData());
-                    ack.add(currOp.getFuture());
-                } catch (OverwriteException e) {
-                    err.add(currOp.getFuture());
+                    long remainingWait = batchDeadline - System.nanoTime();
+                    currOp = remainingWait > 0
+                            ? writeQueue.poll(remainingWait, TimeUnit.NANOSECONDS)
+                            : writeQueue.poll();
+
+                    if (currOp == null) {
+                        break;
+                    }
                 }
 
-                processed++;
-                lastOp = currOp;
+                syncBatch(written, ack, err, batchOps, batchBytes);
             }
         } catch (Exception e) {
             log.error("Caught exception in the write processor {}", e);
@@ -135,12 +252,52 @@ public class BatchWriter <K, V> implements CacheWriter<K, V>, AutoCloseable {
     }
 
     /**
-     * Issues a flush message to the writeQueue and waits for it to be processed.
+     * Sync the writes of a batch to the stream log and complete the operations of the batch.
+     *
+     * @param written    The addresses written by the batch.
+     * @param ack        The futures of the operations to acknowledge.
+     * @param err        The futures of the operations which failed with an overwrite.
+     * @param batchOps   The number of operations in the batch.
+     * @param batchBytes The number of bytes in the batch.
+     */
+    private void syncBatch(List<LogAddress> written, List<CompletableFuture> ack, List<CompletableFuture> err,
+                           int batchOps, long batchBytes) throws IOException {
+        if (batchOps == 0) {
+            return;
+        }
+
+        streamLog.sync(written);
+        log.trace("Sync'd {} writes ({} bytes)", batchOps, batchBytes);
+
+        syncCount.incrementAndGet();
+        syncedOps.addAndGet(batchOps);
+        syncedBytes.addAndGet(batchBytes);
+        maxSyncedBatchOps.accumulateAndGet(batchOps, Math::max);
+
+        for(CompletableFuture cf : ack) {
+            cf.complete(null);
+        }
+
+        for(CompletableFuture cf : err) {
+            cf.completeExceptionally(new OverwriteException());
+        }
+
+        written.clear();
+        ack.clear();
+        err.clear();
+    }
+
+    /**
+     * Issues a flush message to every write queue and waits for them to be processed.
      */
     void flushPendingWrites() {
-        CompletableFuture cf = new CompletableFuture();
-        WriteOperation flushOperation = new WriteOperation(null, null, cf, true);
-        writeQueue.add(flushOperation);
+        List<CompletableFuture> flushes = new ArrayList<>();
+        for (BlockingQueue<WriteOperation> writeQueue : writeQueues) {
+            CompletableFuture flush = new CompletableFuture();
+            writeQueue.add(new WriteOperation(null, null, flush, true));
+            flushes.add(flush);
+        }
+        CompletableFuture cf = CompletableFuture.allOf(flushes.toArray(new CompletableFuture[flushes.size()]));
         // Wait for flush to complete.
         // Periodically check if a shutdown trigger is invoked to avoid deadlock.
         while (true) {
@@ -160,7 +317,9 @@ public class BatchWriter <K, V> implements CacheWriter<K, V>, AutoCloseable {
 
     @Override
     public void close() {
-        writeQueue.add(WriteOperation.SHUTDOWN);
+        for (BlockingQueue<WriteOperation> writeQueue : writeQueues) {
+            writeQueue.add(WriteOperation.SHUTDOWN);
+        }
         writerService.shutdown();
     }
 
@@ -0,0 +1,226 @@
+package org.corfudb.infrastructure;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lombok.Getter;
+
+/**
+ * A bounded table of the latest global address at which each conflict key of a stream was
+ * updated, used by the sequencer to resolve transactions.
+ * <p>
+ * Keys are 64-bit hashes of (stream, conflict parameter), stored with their address in
+ * primitive arrays. A key is placed in the first free slot of a short probe window starting
+ * at its hash. When the window is full, the key with the oldest update in the window is
+ * evicted, and the eviction wildcard of its stream, the latest update of the evicted keys of
+ * the stream, is raised to its address. Updates of other streams are not affected by it.
+ * <p>
+ * Two keys with the same hash share their updates, which can only cause false conflicts.
+ * <p>
+ * The table is not thread-safe: it is only accessed by the sequencer writer.
+ */
+public class ConflictTable {
+
+    /**
+     * The number of slots probed for a key.
+     */
+    static public int PROBE_WINDOW = 8;
+
+    /**
+     * The value of an empty slot.
+     */
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    private final int mask;
+    private final long[] keys;
+    private final long[] addresses;
+    private final long[] streamMsbs;
+    private final long[] streamLsbs;
+
+    /**
+     * The eviction wildcard of each stream with evicted keys.
+     */
+    private final Map<UUID, Long> wildcards = new HashMap<>();
+
+    /**
+     * The wildcard of every stream, raised when the table is lost.
+     */
+    @Getter
+    private long globalWildcard = -1L;
+
+    /**
+     * The number of keys in the table.
+     */
+    @Getter
+    private int size;
+
+    /**
+     * The number of keys evicted.
+     */
+    @Getter
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Create a conflict table.
+     *
+     * @param maxKeys The number of keys the table holds, rounded up to a power of two.
+     */
+    public ConflictTable(int maxKeys) {
+        int capacity = Integer.highestOneBit(Math.max(maxKeys, PROBE_WINDOW) - 1) << 1;
+        mask = capacity - 1;
+        keys = new long[capacity];
+        addresses = new long[capacity];
+        streamMsbs = new long[capacity];
+        streamLsbs = new long[capacity];
+        Arrays.fill(addresses, EMPTY);
+    }
+
+    /**
+     * Get the 64-bit hash of a conflict key.
+     *
+     * @param streamID      The stream ID.
+     * @param conflictParam The conflict parameter.
+     * @return The hash of the conflict key.
+     */
+    public static long hash(UUID streamID, int conflictParam) {
+        long h = mix(streamID.getMostSignificantBits());
+        h = mix(h ^ streamID.getLeastSignificantBits());
+        return mix(h ^ conflictParam);
+    }
+
+    /**
+     * The finalizer of MurmurHash3.
+     */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Get the latest update of a conflict key.
+     *
+     * @param streamID      The stream of the key.
+     * @param conflictParam The conflict parameter of the key.
+     * @return The global address of the latest update of the key, or, if it is not in the
+     * table, the eviction wildcard of its stream, -1L if the stream has none.
+     */
+    public long get(UUID streamID, int conflictParam) {
+        long address = find(streamID, conflictParam);
+        return address == -1L ? getWildcard(streamID) : Math.max(address, globalWildcard);
+    }
+
+    /**
+     * Get the latest update of a conflict key held in the table, ignoring the wildcards.
+     *
+     * @param streamID      The stream of the key.
+     * @param conflictParam The conflict parameter of the key.
+     * @return The global address of the latest update of the key, -1L if it is not in the table.
+     */
+    public long find(UUID streamID, int conflictParam) {
+        long key = hash(streamID, conflictParam);
+        for (int i = 0; i < PROBE_WINDOW; i++) {
+            int slot = ((int) key + i) & mask;
+            if (addresses[slot] == EMPTY) {
+                break;
+            }
+            if (keys[slot] == key) {
+                return addresses[slot];
+            }
+        }
+        return -1L;
+    }
+
+    /**
+     * Record an update of a conflict key.
+     *
+     * @param streamID      The stream of the key.
+     * @param conflictParam The conflict parameter of the key.
+     * @param address       The global address of the update.
+     */
+    public void put(UUID streamID, int conflictParam, long address) {
+        long key = hash(streamID, conflictParam);
+        int oldest = -1;
+        for (int i = 0; i < PROBE_WINDOW; i++) {
+            int slot = ((int) key + i) & mask;
+            if (addresses[slot] == EMPTY) {
+                size++;
+                set(slot, key, streamID, address);
+                return;
+            }
+            if (keys[slot] == key) {
+                addresses[slot] = Math.max(addresses[slot], address);
+                return;
+            }
+            if (oldest == -1 || addresses[slot] < addresses[oldest]) {
+                oldest = slot;
+            }
+        }
+
+        wildcards.merge(new UUID(streamMsbs[oldest], streamLsbs[oldest]), addresses[oldest], Math::max);
+        evictions.incrementAndGet();
+        set(oldest, key, streamID, address);
+    }
+
+    private void set(int slot, long key, UUID streamID, long address) {
+        keys[slot] = key;
+        addresses[slot] = address;
+        streamMsbs[slot] = streamID.getMostSignificantBits();
+        streamLsbs[slot] = streamID.getLeastSignificantBits();
+    }
+
+    /**
+     * Get the eviction wildcard of a stream.
+     *
+     * @param streamID The stream.
+     * @return The latest update of the evicted keys of the stream, -1L if none.
+     */
+    public long getWildcard(UUID streamID) {
+        return Math.max(wildcards.getOrDefault(streamID, -1L), globalWildcard);
+    }
+
+    /**
+     * Get the eviction wildcards of the streams with evicted keys.
+     */
+    public Map<UUID, Long> getWildcards() {
+        return new HashMap<>(wildcards);
+    }
+
+    /**
+     * Raise the eviction wildcards of streams.
+     *
+     * @param streamWildcards The wildcard of each stream.
+     */
+    public void raiseWildcards(Map<UUID, Long> streamWildcards) {
+        streamWildcards.forEach((id, wildcard) -> wildcards.merge(id, wildcard, Math::max));
+    }
+
+    /**
+     * Raise the wildcard of every stream, for when the updates up to an address are lost.
+     *
+     * @param wildcard The latest address of the lost updates.
+     */
+    public void raiseGlobalWildcard(long wildcard) {
+        globalWildcard = Math.max(globalWildcard, wildcard);
+    }
+
+    /**
+     * Get the number of keys the table holds.
+     */
+    public int getCapacity() {
+        return keys.length;
+    }
+
+    /**
+     * Get the fraction of the slots of the table holding a key.
+     */
+    public double getOccupancy() {
+        return (double) size / keys.length;
+    }
+}
@@ -98,7 +98,7 @@ public class CorfuServer {
             "Corfu Server, the server for the Corfu Infrastructure.\n"
                     + "\n"
                     + "Usage:\n"
-                    + "\tcorfu_server (-l <path>|-m) [-nsQ] [-a <address>] [-t <token>] [-c <size>] [-k seconds] [-d <level>] [-p <seconds>] [-M <address>:<port>] [-e [-u <keystore> -f <keystore_password_file>] [-r <truststore> -w <truststore_password_file>] [-b] [-g -o <username_file> -j <password_file>] [-x <ciphers>] [-z <tls-protocols>]] <port>\n"
+                    + "\tcorfu_server (-l <path>|-m) [-nsQ] [-a <address>] [-t <token>] [--checkpoint-interval=<ms>] [--conflict-table-size=<count>] [--sequencer-shard] [-c <size>] [--memory-log-size=<size>] [--max-off-heap-cache=<size>] [--mapped-segments=<count>] [--compress-segments] [--max-read-ahead=<count>] [--max-stream-index=<count>] [--batch-max-ops=<count>] [--batch-max-bytes=<size>] [--batch-max-wait=<us>] [--log-writers=<count>] [-k seconds] [-d <level>] [-p <seconds>] [-M <address>:<port>] [-e [-u <keystore> -f <keystore_password_file>] [-r <truststore> -w <truststore_password_file>] [-b] [-g -o <username_file> -j <password_file>] [-x <ciphers>] [-z <tls-protocols>]] <port>\n"
                     + "\n"
                     + "Options:\n"
                     + " -l <path>, --log-path=<path>                                                           Set the path to the storage file for the log unit.\n"
@@ -107,11 +107,37 @@ public class CorfuServer {
                     + " -a <address>, --address=<address>                                                      IP address to advertise to external clients [default: localhost].\n"
                     + " -m, --memory                                                                           Run the unit in-memory (non-persistent).\n"
                     + "                                                                                        Data will be lost when the server exits!\n"
-                    + " -c <size>, --max-cache=<size>                                                          The size of the in-memory cache to serve requests from -\n"
-                    + "                                                                                        If there is no log, then this is the max size of the log unit\n"
-                    + "                                                                                        evicted entries will be auto-trimmed. [default: 1000000000].\n"
+                    + " -c <size>, --max-cache=<size>                                                          The size of the in-memory cache to serve requests from\n"
+                    + "                                                                                        [default: 1000000000].\n"
+                    + " --memory-log-size=<size>                                                               The size of the in-memory log of a unit run with --memory,\n"
+                    + "                                                                                        the oldest entries are auto-trimmed when it is full\n"
+                    + "                                                                                        [default: 1000000000].\n"
+                    + " --max-off-heap-cache=<size>                                                            The size of the off-heap cache which holds the entries evicted\n"
+                    + "                                                                                        from the in-memory cache, 0 disables it [default: 0].\n"
+                    + " --mapped-segments=<count>                                                              The number of sealed log segments to keep memory-mapped\n"
+                    + "                                                                                        for reads, 0 disables mapped reads [default: 0].\n"
+                    + " --compress-segments                                                                    Compress full log segments older than the tail segment into\n"
+                    + "                                                                                        Deflate blocks in the background.\n"
+                    + " --max-read-ahead=<count>                                                               The maximum number of addresses the log unit prefetches ahead\n"
+                    + "                                                                                        of a sequential scan, 0 disables read-ahead [default: 256].\n"
+                    + " --max-stream-index=<count>                                                             The maximum number of stream entry addresses the log unit\n"
+                    + "                                                                                        indexes for stream scans [default: 1000000].\n"
+                    + " --batch-max-ops=<count>                                                                The maximum number of writes the log unit syncs as one batch\n"
+                    + "                                                                                        [default: 50].\n"
+                    + " --batch-max-bytes=<size>                                                               The maximum number of bytes the log unit syncs as one batch\n"
+                    + "                                                                                        [default: 4194304].\n"
+                    + " --batch-max-wait=<us>                                                                  The maximum time in microseconds the log unit waits for more\n"
+                    + "                                                                                        writes before syncing a batch [default: 0].\n"
+                    + " --log-writers=<count>                                                                  The number of independent write pipelines of the log unit,\n"
+                    + "                                                                                        writes are assigned to a pipeline by log segment [default: 1].\n"
                     + " -t <token>, --initial-token=<token>                                                    The first token the sequencer will issue, or -1 to recover\n"
-                    + "                                                                                        from the log. [default: -1].\n"
+                    + "                                                                                        from its checkpoint and the log [default: -1].\n"
+                    + " --checkpoint-interval=<ms>                                                             The interval in milliseconds between checkpoints of the\n"
+                    + "                                                                                        sequencer state, 0 disables periodic checkpoints [default: 1000].\n"
+                    + " --conflict-table-size=<count>                                                          The number of transaction conflict keys the sequencer tracks,\n"
+                    + "                                                                                        rounded up to a power of two [default: 262144].\n"
+                    + " --sequencer-shard                                                                      Serve a shard of the streams, taking global addresses in blocks\n"
+                    + "                                                                                        from the primary sequencer of the layout.\n"
                     + " -p <seconds>, --compact=<seconds>                                                      The rate the log unit should compact entries (find the,\n"
                     + "                                                                                        contiguous tail) in seconds [default: 60].\n"
                     + " -d <level>, --log-level=<level>                                                        Set the logging level, valid levels are: \n"
@@ -8,9 +8,13 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
@@ -26,6 +30,7 @@ import java.util.Map;
  * In this scheme, the key for each value is also the name of the file where the value is stored.
  * The key is determined as (prefix + "_" + key).
  * The cache here serves mostly for easily managed synchronization of in-memory/file.
+ * A value is synced to disk before {@link #put} returns, and replaces the previous value atomically.
  * <p>
  * If 'opts' either has '--memory=true' or a log-path for storing files is not provided,
  * the store is just an in memory cache.
@@ -84,8 +89,19 @@ public class DataStore implements IDataStore {
                     @Override
                     public synchronized void write(@Nonnull String key, @Nonnull String value) {
                         try {
+                            // Write a temporary file and rename it, so that a crash leaves either the
+                            // old or the new value, and sync it first, so that the new value is durable.
                             Path path = Paths.get(logDir + File.separator + key);
-                            Files.write(path, value.getBytes());
+                            Path tmpPath = Paths.get(logDir + File.separator + key + ".tmp");
+                            try (FileChannel out = FileChannel.open(tmpPath, StandardOpenOption.CREATE,
+                                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                                ByteBuffer buf = ByteBuffer.wrap(value.getBytes());
+                                while (buf.hasRemaining()) {
+                                    out.write(buf);
+                                }
+                                out.force(true);
+                            }
+                            Files.move(tmpPath, path, StandardCopyOption.ATOMIC_MOVE);
                         } catch (IOException e) {
                             throw new RuntimeException(e);
                         }
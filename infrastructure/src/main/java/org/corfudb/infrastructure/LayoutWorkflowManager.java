@@ -212,11 +212,13 @@ public class LayoutWorkflowManager {
      * @return new layout
      */
     public Layout build() {
-        return new Layout(
+        Layout newLayout = new Layout(
                 layout.getLayoutServers(),
                 layout.getSequencers(),
                 layout.getSegments(),
                 this.epoch);
+        newLayout.setSequencerShards(layout.getSequencerShards());
+        return newLayout;
     }
 
 }
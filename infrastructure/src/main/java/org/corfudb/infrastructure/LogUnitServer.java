@@ -2,17 +2,22 @@ package org.corfudb.infrastructure;
 
 import java.io.File;
 import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
-import java.util.SortedSet;
-import java.util.TreeSet;
+import java.util.NavigableMap;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ScheduledExecutorService;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 
+import com.github.benmanes.caffeine.cache.CacheLoader;
 import com.github.benmanes.caffeine.cache.Caffeine;
 import com.github.benmanes.caffeine.cache.LoadingCache;
 import com.github.benmanes.caffeine.cache.RemovalCause;
@@ -24,7 +29,6 @@ import io.netty.channel.ChannelHandlerContext;
 
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
-import lombok.val;
 
 import org.corfudb.infrastructure.log.InMemoryStreamLog;
 import org.corfudb.infrastructure.log.LogAddress;
@@ -39,14 +43,16 @@ import org.corfudb.protocols.wireprotocol.IMetadata;
 import org.corfudb.protocols.wireprotocol.LogData;
 import org.corfudb.protocols.wireprotocol.ReadRequest;
 import org.corfudb.protocols.wireprotocol.ReadResponse;
+import org.corfudb.protocols.wireprotocol.StreamAddressRequest;
+import org.corfudb.protocols.wireprotocol.StreamAddressResponse;
 import org.corfudb.protocols.wireprotocol.TrimRequest;
 import org.corfudb.protocols.wireprotocol.WriteMode;
 import org.corfudb.protocols.wireprotocol.WriteRequest;
 import org.corfudb.runtime.exceptions.DataCorruptionException;
+import org.corfudb.runtime.exceptions.OutOfSpaceException;
 import org.corfudb.runtime.exceptions.OverwriteException;
+import org.corfudb.runtime.exceptions.TrimmedException;
 import org.corfudb.util.Utils;
-import org.corfudb.util.retry.IRetry;
-import org.corfudb.util.retry.IntervalAndSentinelRetry;
 
 import static org.corfudb.infrastructure.ServerContext.SMALL_INTERVAL;
 
@@ -66,6 +72,25 @@ import static org.corfudb.infrastructure.ServerContext.SMALL_INTERVAL;
 @Slf4j
 public class LogUnitServer extends AbstractServer {
 
+    private static final String PREFIX_LOGUNIT = "LOGUNIT";
+    private static final String KEY_TRIM_MARK = "TRIM_MARK";
+
+    /**
+     * The maximum number of log segments reclaimed or compressed by a garbage collection pass,
+     * so that reclaiming a large trimmed prefix is spread over time.
+     */
+    static public int GC_SEGMENTS_PER_PASS = 10;
+
+    /**
+     * The maximum number of prefetches waiting to be loaded, further prefetches are dropped.
+     */
+    static public int PREFETCH_QUEUE_SIZE = 16;
+
+    /**
+     * The maximum number of addresses returned by a stream address request.
+     */
+    static public int MAX_STREAM_ADDRESSES = 16384;
+
     private final ServerContext serverContext;
 
     /**
@@ -80,12 +105,9 @@ public class LogUnitServer extends AbstractServer {
                             .build());
 
     /**
-     * GC parameters
-     * TODO: entire GC handling needs updating, currently not being activated
+     * The periodic garbage collection task, which reclaims the trimmed prefix of the log.
      */
-    private final Thread gcThread = null;
-    private IntervalAndSentinelRetry gcRetry;
-    private AtomicBoolean running = new AtomicBoolean(true);
+    private ScheduledFuture<?> gcTask;
 
     /**
      * The options map.
@@ -108,6 +130,35 @@ public class LogUnitServer extends AbstractServer {
     private final LoadingCache<LogAddress, LogData> dataCache;
     private final long maxCacheSize;
 
+    /**
+     * An optional second cache tier, kept outside of the heap, which holds the entries
+     * evicted from the data cache. It is null if disabled.
+     */
+    private final OffHeapDataCache offHeapCache;
+
+    /**
+     * Prefetches the addresses about to be read by sequential scans into the data cache.
+     * It is null if disabled.
+     */
+    private final ReadAheadPrefetcher prefetcher;
+
+    /**
+     * The executor the prefetches are loaded on, which drops prefetches when it is busy.
+     */
+    private final ThreadPoolExecutor prefetchExecutor =
+            new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(PREFETCH_QUEUE_SIZE),
+                    new ThreadFactoryBuilder()
+                            .setDaemon(true)
+                            .setNameFormat("LogUnit-Prefetch-%d")
+                            .build(),
+                    new ThreadPoolExecutor.DiscardPolicy());
+
+    /**
+     * Indexes the global addresses of the entries of each stream, as they are written.
+     */
+    private final StreamAddressIndex streamIndex;
+
     private final StreamLog streamLog;
 
     private final BatchWriter<LogAddress, LogData> batchWriter;
@@ -118,32 +169,71 @@ public class LogUnitServer extends AbstractServer {
         maxCacheSize = Utils.parseLong(opts.get("--max-cache"));
 
         if ((Boolean) opts.get("--memory")) {
+            long memoryLogSize = Utils.getOption(opts, "--memory-log-size", Long.class,
+                    InMemoryStreamLog.DEFAULT_CAPACITY);
             log.warn("Log unit opened in-memory mode (Maximum size={}). " +
                     "This should be run for testing purposes only. " +
                     "If you exceed the maximum size of the unit, old entries will be AUTOMATICALLY trimmed. " +
-                    "The unit WILL LOSE ALL DATA if it exits.", Utils.convertToByteStringRepresentation(maxCacheSize));
-            streamLog = new InMemoryStreamLog();
+                    "The unit WILL LOSE ALL DATA if it exits.", Utils.convertToByteStringRepresentation(memoryLogSize));
+            streamLog = new InMemoryStreamLog(memoryLogSize);
         } else {
             String logdir = opts.get("--log-path") + File.separator + "log";
             File dir = new File(logdir);
             if (!dir.exists()) {
                 dir.mkdir();
             }
-            streamLog = new StreamLogFiles(logdir, (Boolean) opts.get("--no-verify"));
+            streamLog = new StreamLogFiles(logdir, (Boolean) opts.get("--no-verify"),
+                    Utils.getOption(opts, "--mapped-segments", Integer.class, 0),
+                    Utils.getOption(opts, "--compress-segments", Boolean.class, false));
         }
 
-        batchWriter = new BatchWriter(streamLog);
+        batchWriter = new BatchWriter(streamLog,
+                Utils.getOption(opts, "--batch-max-ops", Integer.class, BatchWriter.BATCH_SIZE),
+                Utils.getOption(opts, "--batch-max-bytes", Long.class, BatchWriter.BATCH_BYTES),
+                Utils.getOption(opts, "--batch-max-wait", Long.class, BatchWriter.BATCH_WAIT_MICROS),
+                Utils.getOption(opts, "--log-writers", Integer.class, BatchWriter.WRITERS));
+
+        long maxOffHeapCacheSize = Utils.getOption(opts, "--max-off-heap-cache", Long.class, 0L);
+        offHeapCache = maxOffHeapCacheSize > 0
+                ? new OffHeapDataCache(maxOffHeapCacheSize, OffHeapDataCache.SLAB_SIZE) : null;
 
         dataCache = Caffeine.<LogAddress, LogData>newBuilder()
                 .<LogAddress, LogData>weigher((k, v) -> v.getData() == null ? 1 : v.getData().length)
                 .maximumWeight(maxCacheSize)
                 .removalListener(this::handleEviction)
                 .writer(batchWriter)
-                .build(this::handleRetrieval);
+                .build(new CacheLoader<LogAddress, LogData>() {
+                    @Override
+                    public LogData load(LogAddress key) {
+                        return handleRetrieval(key);
+                    }
+
+                    @Override
+                    public Map<LogAddress, LogData> loadAll(Iterable<? extends LogAddress> keys) {
+                        return handleRetrievalAll(keys);
+                    }
+                });
+
+        int maxReadAhead = Utils.getOption(opts, "--max-read-ahead", Integer.class,
+                ReadAheadPrefetcher.MAX_WINDOW);
+        prefetcher = maxReadAhead > 0
+                ? new ReadAheadPrefetcher(dataCache.asMap()::containsKey, this::prefetch, prefetchExecutor,
+                maxReadAhead) : null;
+
+        streamIndex = new StreamAddressIndex(Utils.getOption(opts, "--max-stream-index", Long.class,
+                StreamAddressIndex.MAX_ADDRESSES));
 
         // Trim map is set to empty on start
         // TODO: persist trim map - this is optional since trim is just a hint.
         trimMap = new ConcurrentHashMap<>();
+
+        // The prefix trim mark is persisted, and the log is trimmed again on start.
+        Long trimMark = serverContext.getDataStore().get(Long.class, PREFIX_LOGUNIT, KEY_TRIM_MARK);
+        if (trimMark != null) {
+            streamLog.prefixTrim(trimMark);
+        }
+
+        scheduleGC(SMALL_INTERVAL.toMillis());
     }
 
     /**
@@ -167,7 +257,13 @@ public class LogUnitServer extends AbstractServer {
         msg.getPayload().clearCommit();
         try {
             if (msg.getPayload().getWriteMode() != WriteMode.REPLEX_STREAM) {
+                if (msg.getPayload().getGlobalAddress() < streamLog.getTrimMark()) {
+                    r.sendResponse(ctx, msg, CorfuMsgType.ERROR_TRIMMED.msg());
+                    return;
+                }
                 dataCache.put(new LogAddress(msg.getPayload().getGlobalAddress(), null), msg.getPayload().getData());
+                streamIndex.add(msg.getPayload().getGlobalAddress(), msg.getPayload().getData().getStreams(),
+                        msg.getPayload().getData().getBackpointerMap());
                 r.sendResponse(ctx, msg, CorfuMsgType.WRITE_OK.msg());
                 return;
             } else {
@@ -182,6 +278,10 @@ public class LogUnitServer extends AbstractServer {
                 r.sendResponse(ctx, msg, CorfuMsgType.ERROR_OVERWRITE.msg());
             else
                 r.sendResponse(ctx, msg, CorfuMsgType.ERROR_REPLEX_OVERWRITE.msg());
+        } catch (TrimmedException ex) {
+            r.sendResponse(ctx, msg, CorfuMsgType.ERROR_TRIMMED.msg());
+        } catch (OutOfSpaceException ex) {
+            r.sendResponse(ctx, msg, CorfuMsgType.ERROR_OOS.msg());
         }
     }
 
@@ -197,6 +297,9 @@ public class LogUnitServer extends AbstractServer {
             if (entry == null) {
                 r.sendResponse(ctx, msg, CorfuMsgType.ERROR_NOENTRY.msg());
                 return;
+            } else if (entry.isTrimmed()) {
+                r.sendResponse(ctx, msg, CorfuMsgType.ERROR_TRIMMED.msg());
+                return;
             } else {
                 entry.getMetadataMap().put(IMetadata.LogUnitMetadataType.COMMIT, msg.getPayload().getCommit());
             }
@@ -221,17 +324,32 @@ public class LogUnitServer extends AbstractServer {
                         ? "global" : msg.getPayload().getStreamID(),
                 msg.getPayload().getRange());
         ReadResponse rr = new ReadResponse();
+        long trimMark = msg.getPayload().getStreamID() == null ? streamLog.getTrimMark() : 0L;
+        if (prefetcher != null) {
+            prefetcher.onRead(msg.getClientID(), msg.getPayload().getStreamID(),
+                    msg.getPayload().getRange().lowerEndpoint(), msg.getPayload().getRange().upperEndpoint());
+        }
         try {
+            List<LogAddress> addresses = new ArrayList<>();
             for (Long l = msg.getPayload().getRange().lowerEndpoint();
                  l < msg.getPayload().getRange().upperEndpoint() + 1L; l++) {
-                LogAddress logAddress = new LogAddress(l, msg.getPayload().getStreamID());
-                LogData e = dataCache.get(logAddress);
+                if (l < trimMark) {
+                    rr.put(l, LogData.TRIMMED);
+                } else {
+                    addresses.add(new LogAddress(l, msg.getPayload().getStreamID()));
+                }
+            }
+
+            // Load all the addresses missing from the cache at once.
+            Map<LogAddress, LogData> entries = dataCache.getAll(addresses);
+            for (LogAddress logAddress : addresses) {
+                LogData e = entries.get(logAddress);
                 if (e == null) {
-                    rr.put(l, LogData.EMPTY);
+                    rr.put(logAddress.getAddress(), LogData.EMPTY);
                 } else if (e.getType() == DataType.HOLE) {
-                    rr.put(l, LogData.HOLE);
+                    rr.put(logAddress.getAddress(), LogData.HOLE);
                 } else {
-                    rr.put(l, e);
+                    rr.put(logAddress.getAddress(), e);
                 }
             }
             r.sendResponse(ctx, msg, CorfuMsgType.READ_RESPONSE.payloadMsg(rr));
@@ -240,15 +358,36 @@ public class LogUnitServer extends AbstractServer {
         }
     }
 
+    /**
+     * Service an incoming request for the addresses of a stream in a range of the global log,
+     * answered from the stream address index. At most {@link #MAX_STREAM_ADDRESSES} addresses
+     * are returned, the client requests the rest of the range again.
+     */
+    @ServerHandler(type = CorfuMsgType.STREAM_ADDRESS_REQUEST)
+    private void streamAddresses(CorfuPayloadMsg<StreamAddressRequest> msg, ChannelHandlerContext ctx,
+                                 IServerRouter r) {
+        long start = Math.max(msg.getPayload().getRange().lowerEndpoint(), streamLog.getTrimMark());
+        long end = msg.getPayload().getRange().upperEndpoint();
+        log.trace("stream addresses: {} [{}, {}]", msg.getPayload().getStreamID(), start, end);
+
+        NavigableMap<Long, Long> addresses = streamIndex.getAddresses(msg.getPayload().getStreamID(), start, end,
+                MAX_STREAM_ADDRESSES);
+        if (addresses.size() >= MAX_STREAM_ADDRESSES) {
+            end = addresses.lastKey();
+        }
+        r.sendResponse(ctx, msg, CorfuMsgType.STREAM_ADDRESS_RESPONSE.payloadMsg(
+                new StreamAddressResponse(addresses, end)));
+    }
+
     @ServerHandler(type = CorfuMsgType.GC_INTERVAL)
     private void setGcInterval(CorfuPayloadMsg<Long> msg, ChannelHandlerContext ctx, IServerRouter r) {
-        gcRetry.setRetryInterval(msg.getPayload());
+        scheduleGC(msg.getPayload());
         r.sendResponse(ctx, msg, CorfuMsgType.ACK.msg());
     }
 
     @ServerHandler(type = CorfuMsgType.FORCE_GC)
     private void forceGc(CorfuMsg msg, ChannelHandlerContext ctx, IServerRouter r) {
-        gcThread.interrupt();
+        scheduler.execute(this::runGC);
         r.sendResponse(ctx, msg, CorfuMsgType.ACK.msg());
     }
 
@@ -260,6 +399,8 @@ public class LogUnitServer extends AbstractServer {
 
         } catch (OverwriteException e) {
             r.sendResponse(ctx, msg, CorfuMsgType.ERROR_OVERWRITE.msg());
+        } catch (TrimmedException e) {
+            r.sendResponse(ctx, msg, CorfuMsgType.ERROR_TRIMMED.msg());
         }
     }
 
@@ -270,6 +411,19 @@ public class LogUnitServer extends AbstractServer {
         r.sendResponse(ctx, msg, CorfuMsgType.ACK.msg());
     }
 
+    /**
+     * Service an incoming prefix trim request. The trim mark is persisted before it is
+     * acknowledged, the space of the trimmed prefix is reclaimed in the background.
+     */
+    @ServerHandler(type = CorfuMsgType.PREFIX_TRIM)
+    private synchronized void prefixTrim(CorfuPayloadMsg<Long> msg, ChannelHandlerContext ctx, IServerRouter r) {
+        long trimMark = Math.max(msg.getPayload(), streamLog.getTrimMark());
+        log.info("Prefix trim: trim mark {}", trimMark);
+        serverContext.getDataStore().put(Long.class, PREFIX_LOGUNIT, KEY_TRIM_MARK, trimMark);
+        streamLog.prefixTrim(trimMark);
+        r.sendResponse(ctx, msg, CorfuMsgType.ACK.msg());
+    }
+
     @ServerHandler(type = CorfuMsgType.FLUSH_LOGUNIT)
     private void flushRequest(CorfuMsg msg, ChannelHandlerContext ctx, IServerRouter r) {
         flush();
@@ -285,75 +439,125 @@ public class LogUnitServer extends AbstractServer {
      * the read() and append(). Any address that cannot be retrieved should be returned as
      * unwritten (null).
      */
-    public synchronized LogData handleRetrieval(LogAddress logAddress) {
+    public LogData handleRetrieval(LogAddress logAddress) {
+        if (offHeapCache != null) {
+            LogData entry = offHeapCache.get(logAddress);
+            if (entry != null) {
+                log.trace("Retrieved[{}] from off-heap cache", logAddress);
+                return entry;
+            }
+        }
+
         LogData entry = streamLog.read(logAddress);
         log.trace("Retrieved[{} : {}]", logAddress, entry);
         return entry;
     }
 
+    /**
+     * Retrieve the LogUnitEntries of several addresses, reading the addresses of the
+     * same log segment together.
+     *
+     * @param logAddresses The addresses to retrieve the entries from.
+     * @return The log unit entries of the addresses which are written.
+     */
+    public Map<LogAddress, LogData> handleRetrievalAll(Iterable<? extends LogAddress> logAddresses) {
+        Map<LogAddress, LogData> entries = new HashMap<>();
+        List<LogAddress> missing = new ArrayList<>();
+
+        for (LogAddress logAddress : logAddresses) {
+            LogData entry = offHeapCache == null ? null : offHeapCache.get(logAddress);
+            if (entry != null) {
+                entries.put(logAddress, entry);
+            } else {
+                missing.add(logAddress);
+            }
+        }
+
+        if (!missing.isEmpty()) {
+            entries.putAll(streamLog.readAll(missing));
+        }
+        log.trace("Retrieved[{} entries of {}]", entries.size(), logAddresses);
+        return entries;
+    }
+
+
+    /**
+     * Load the entries of addresses about to be read into the cache, skipping the trimmed addresses.
+     *
+     * @param logAddresses The addresses to load.
+     * @return The entries loaded.
+     */
+    private Map<LogAddress, LogData> prefetch(List<LogAddress> logAddresses) {
+        long trimMark = streamLog.getTrimMark();
+        List<LogAddress> addresses = new ArrayList<>();
+        for (LogAddress logAddress : logAddresses) {
+            if (logAddress.getStream() != null || logAddress.getAddress() >= trimMark) {
+                addresses.add(logAddress);
+            }
+        }
+        return dataCache.getAll(addresses);
+    }
 
     public synchronized void handleEviction(LogAddress address, LogData entry, RemovalCause cause) {
         log.trace("Eviction[{}]: {}", address, cause);
+        if (offHeapCache != null && cause.wasEvicted() && entry != null && !entry.isTrimmed()) {
+            offHeapCache.put(address, entry);
+        }
         streamLog.release(address, entry);
     }
 
 
-    public void runGC() {
-        Thread.currentThread().setName("LogUnit-GC");
-        val retry = IRetry.build(IntervalAndSentinelRetry.class, this::handleGC)
-                .setOptions(x -> x.setSentinelReference(running))
-                .setOptions(x -> x.setRetryInterval(SMALL_INTERVAL.toMillis()));
-
-        gcRetry = (IntervalAndSentinelRetry) retry;
-
-        retry.runForever();
+    /**
+     * (Re)schedule the periodic garbage collection task.
+     *
+     * @param intervalMillis The interval between garbage collection passes, in milliseconds.
+     */
+    private synchronized void scheduleGC(long intervalMillis) {
+        if (gcTask != null) {
+            gcTask.cancel(false);
+        }
+        gcTask = scheduler.scheduleWithFixedDelay(this::runGC, intervalMillis, intervalMillis,
+                TimeUnit.MILLISECONDS);
     }
 
-    @SuppressWarnings("unchecked")
-    public boolean handleGC() {
-        log.info("Garbage collector starting...");
-        long freedEntries = 0;
-
-        /* Pick a non-compacted region or just scan the cache */
-        Map<LogAddress, LogData> map = dataCache.asMap();
-        SortedSet<LogAddress> addresses = new TreeSet<>(map.keySet());
-        for (LogAddress address : addresses) {
-            LogData buffer = dataCache.getIfPresent(address);
-            if (buffer != null) {
-                Set<UUID> streams = buffer.getStreams();
-                // this is a normal entry
-                if (streams.size() > 0) {
-                    boolean trimmable = true;
-                    for (java.util.UUID stream : streams) {
-                        Long trimMark = trimMap.getOrDefault(stream, null);
-                        // if the stream has not been trimmed, or has not been trimmed to this point
-                        if (trimMark == null || address.getAddress() > trimMark) {
-                            trimmable = false;
-                            break;
-                        }
-                        // it is not trimmable.
-                    }
-                    if (trimmable) {
-                        log.trace("Trimming entry at {}", address);
-                        trimEntry(address.getAddress(), streams, buffer);
-                        freedEntries++;
-                    }
-                } else {
-                    //this is an entry which belongs in all streams
-                }
-            }
+    private void runGC() {
+        try {
+            handleGC();
+        } catch (Exception e) {
+            // Don't let a failed pass cancel the periodic task.
+            log.error("Garbage collection pass failed", e);
         }
-
-        log.info("Garbage collection pass complete. Freed {} entries", freedEntries);
-        return true;
     }
 
-    public void trimEntry(long address, Set<java.util.UUID> streams, LogData entry) {
-        // Add this entry to the trimmed range map.
-        //trimRange.add(Range.closed(address, address));
-        // Invalidate this entry from the cache. This will cause the CacheLoader to free the entry from the disk
-        // assuming the entry is back by disk
-        dataCache.invalidate(address);
+    /**
+     * Run a garbage collection pass: drop the trimmed entries from the cache, and
+     * reclaim or compress at most {@link #GC_SEGMENTS_PER_PASS} log segments.
+     *
+     * @return The number of log segments reclaimed or compressed.
+     */
+    public int handleGC() {
+        log.debug("Garbage collector starting...");
+        long trimMark = streamLog.getTrimMark();
+
+        dataCache.asMap().keySet().removeIf(address -> address.getStream() == null
+                && address.getAddress() < trimMark);
+        if (offHeapCache != null) {
+            offHeapCache.invalidateIf(address -> address.getStream() == null
+                    && address.getAddress() < trimMark);
+            log.debug("Off-heap cache: {} entries, hit rate {}, {} evictions", offHeapCache.size(),
+                    offHeapCache.getHitRate(), offHeapCache.getEvictions().get());
+        }
+        streamIndex.compact(trimMark);
+        log.debug("Stream address index: {} addresses of {} streams", streamIndex.getSize().get(),
+                streamIndex.getStreamCount());
+        if (prefetcher != null) {
+            log.debug("Read-ahead: {} prefetches, {} hits, {} wasted", prefetcher.getPrefetches().get(),
+                    prefetcher.getPrefetchHits().get(), prefetcher.getWastedPrefetches().get());
+        }
+        int freedSegments = streamLog.compact(GC_SEGMENTS_PER_PASS);
+
+        log.debug("Garbage collection pass complete. Freed {} segments", freedSegments);
+        return freedSegments;
     }
 
     /**
@@ -362,9 +566,30 @@ public class LogUnitServer extends AbstractServer {
     @Override
     public void shutdown() {
         scheduler.shutdownNow();
+        prefetchExecutor.shutdownNow();
         batchWriter.close();
     }
 
+    @VisibleForTesting
+    BatchWriter<LogAddress, LogData> getBatchWriter() {
+        return batchWriter;
+    }
+
+    @VisibleForTesting
+    OffHeapDataCache getOffHeapCache() {
+        return offHeapCache;
+    }
+
+    @VisibleForTesting
+    ReadAheadPrefetcher getPrefetcher() {
+        return prefetcher;
+    }
+
+    @VisibleForTesting
+    StreamAddressIndex getStreamIndex() {
+        return streamIndex;
+    }
+
     @VisibleForTesting
     LoadingCache<LogAddress, LogData> getDataCache() {
         return dataCache;
@@ -0,0 +1,224 @@
+package org.corfudb.infrastructure;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Predicate;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+
+import lombok.Data;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import org.corfudb.infrastructure.log.LogAddress;
+import org.corfudb.protocols.wireprotocol.LogData;
+
+/**
+ * A size-bounded cache of log entries which keeps the serialized entries in direct memory,
+ * outside of the Java heap, so that a large cache does not add to garbage collection pauses.
+ * <p>
+ * The memory of the cache is divided into fixed-size slabs, which are filled one after the
+ * other like a ring. When all the slabs are full, the oldest slab is recycled, evicting all the
+ * entries it holds at once. Only the index from address to slab location is kept on the heap.
+ * <p>
+ * Entries are served as new {@link LogData} objects deserialized from the slab, so the only heap
+ * allocation of a hit is the short-lived copy of the entry.
+ */
+@Slf4j
+public class OffHeapDataCache {
+
+    /**
+     * The default size of a slab, in bytes.
+     */
+    static public int SLAB_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * The location of a serialized entry.
+     */
+    @Data
+    static class Location {
+        final int slab;
+        final long generation;
+        final int offset;
+        final int length;
+    }
+
+    /**
+     * A slab of direct memory, the generation of a slab is incremented every time it is recycled.
+     */
+    static class Slab {
+        ByteBuffer buffer;
+        volatile long generation;
+        int position;
+        final List<LogAddress> addresses = new ArrayList<>();
+        final ReadWriteLock lock = new ReentrantReadWriteLock();
+    }
+
+    private final Map<LogAddress, Location> index = new ConcurrentHashMap<>();
+    private final Slab[] slabs;
+    private final int slabSize;
+    private int currentSlab = 0;
+
+    /**
+     * The number of reads served from the cache.
+     */
+    @Getter
+    private final AtomicLong hits = new AtomicLong();
+
+    /**
+     * The number of reads not served from the cache.
+     */
+    @Getter
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * The number of entries evicted by recycling a slab.
+     */
+    @Getter
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Create an off-heap cache.
+     *
+     * @param maxSize  The maximum number of bytes of direct memory used by the cache.
+     * @param slabSize The size of a slab, entries larger than a slab are not cached.
+     */
+    public OffHeapDataCache(long maxSize, int slabSize) {
+        if (maxSize < slabSize) {
+            slabSize = (int) maxSize;
+        }
+        this.slabSize = slabSize;
+        this.slabs = new Slab[(int) Math.max(1, maxSize / slabSize)];
+        for (int i = 0; i < slabs.length; i++) {
+            slabs[i] = new Slab();
+        }
+    }
+
+    /**
+     * Get an entry from the cache.
+     *
+     * @param address The address of the entry.
+     * @return The entry, or null if it is not cached.
+     */
+    public LogData get(LogAddress address) {
+        Location location = index.get(address);
+        if (location != null) {
+            Slab slab = slabs[location.getSlab()];
+            slab.lock.readLock().lock();
+            try {
+                // The slab may have been recycled since the location was indexed.
+                if (slab.generation == location.getGeneration()) {
+                    ByteBuffer entry = slab.buffer.duplicate();
+                    entry.limit(location.getOffset() + location.getLength());
+                    entry.position(location.getOffset());
+                    hits.incrementAndGet();
+                    return new LogData(Unpooled.wrappedBuffer(entry));
+                }
+            } finally {
+                slab.lock.readLock().unlock();
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Put an entry in the cache, replacing any entry cached at the same address.
+     *
+     * @param address The address of the entry.
+     * @param entry   The entry to cache.
+     */
+    public void put(LogAddress address, LogData entry) {
+        ByteBuf serialized = PooledByteBufAllocator.DEFAULT.directBuffer();
+        try {
+            entry.doSerialize(serialized);
+            int length = serialized.readableBytes();
+            if (length > slabSize) {
+                log.trace("Not caching entry of {} bytes at {}, larger than a slab", length, address);
+                index.remove(address);
+                return;
+            }
+
+            synchronized (this) {
+                Slab slab = slabs[currentSlab];
+                if (slab.buffer == null) {
+                    recycle(currentSlab, slab);
+                } else if (slab.position + length > slabSize) {
+                    currentSlab = (currentSlab + 1) % slabs.length;
+                    slab = slabs[currentSlab];
+                    recycle(currentSlab, slab);
+                }
+
+                ByteBuffer target = slab.buffer.duplicate();
+                target.limit(slab.position + length);
+                target.position(slab.position);
+                serialized.readBytes(target);
+                index.put(address, new Location(currentSlab, slab.generation, slab.position, length));
+                slab.addresses.add(address);
+                slab.position += length;
+            }
+        } finally {
+            serialized.release();
+        }
+    }
+
+    /**
+     * Empty a slab for reuse, evicting all of its entries.
+     */
+    private void recycle(int slabNumber, Slab slab) {
+        slab.lock.writeLock().lock();
+        try {
+            if (slab.buffer == null) {
+                slab.buffer = ByteBuffer.allocateDirect(slabSize);
+            }
+            long evicted = slab.generation;
+            slab.generation++;
+            slab.position = 0;
+
+            for (LogAddress address : slab.addresses) {
+                // The address may have been cached again in another slab since.
+                Location location = index.get(address);
+                if (location != null && location.getSlab() == slabNumber
+                        && location.getGeneration() == evicted && index.remove(address, location)) {
+                    evictions.incrementAndGet();
+                }
+            }
+            slab.addresses.clear();
+        } finally {
+            slab.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Remove the entries whose address matches a predicate from the cache.
+     *
+     * @param predicate The predicate selecting the addresses to remove.
+     */
+    public void invalidateIf(Predicate<LogAddress> predicate) {
+        index.keySet().removeIf(predicate);
+    }
+
+    /**
+     * @return The number of cached entries.
+     */
+    public int size() {
+        return index.size();
+    }
+
+    /**
+     * @return The fraction of reads served from the cache.
+     */
+    public double getHitRate() {
+        long hits = this.hits.get();
+        long total = hits + misses.get();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+}
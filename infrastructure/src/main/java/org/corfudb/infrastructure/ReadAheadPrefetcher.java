@@ -0,0 +1,240 @@
+package org.corfudb.infrastructure;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.function.Predicate;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+
+import lombok.Data;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import org.corfudb.infrastructure.log.LogAddress;
+
+/**
+ * Detects the sequential and strided scans of the log unit's clients, and prefetches the
+ * addresses a scan is about to read into the cache, so that a client catching up on the log
+ * does not wait on the storage for every read.
+ * <p>
+ * A scan is tracked per client and stream. Once a scan reads three times in a row with the
+ * same positive stride, the next window of addresses following the stride is loaded in the
+ * background. The window starts at {@link #MIN_WINDOW} addresses, doubles every time the scan
+ * reads prefetched addresses, up to the maximum window, and shrinks back when the scan breaks.
+ * <p>
+ * Prefetched addresses are remembered until they are read, or until they expire, in which case
+ * the prefetch is counted as wasted.
+ */
+@Slf4j
+public class ReadAheadPrefetcher {
+
+    /**
+     * The initial number of addresses prefetched for a scan.
+     */
+    static public int MIN_WINDOW = 8;
+
+    /**
+     * The default maximum number of addresses prefetched for a scan.
+     */
+    static public int MAX_WINDOW = 256;
+
+    /**
+     * The maximum number of scans tracked at once.
+     */
+    static public int MAX_SCANS = 1024;
+
+    /**
+     * The maximum number of prefetched addresses remembered until they are read.
+     */
+    static public int MAX_PREFETCHED = 100_000;
+
+    /**
+     * The time after which a prefetched address which was not read is counted as wasted, in milliseconds.
+     */
+    static public long PREFETCH_EXPIRY_MILLIS = 60_000L;
+
+    /**
+     * Identifies a scan, by the client reading and the stream read (null for the global log).
+     */
+    @Data
+    static class ScanKey {
+        final UUID clientId;
+        final UUID streamId;
+    }
+
+    /**
+     * The access pattern of a scan.
+     */
+    static class Scan {
+        long lastStart = Long.MIN_VALUE;
+        long stride;
+        int sequentialReads;
+        int window = MIN_WINDOW;
+        long prefetchedUpTo = Long.MIN_VALUE;
+    }
+
+    private final Cache<ScanKey, Scan> scans;
+    private final Cache<LogAddress, Boolean> prefetched;
+    private final Predicate<LogAddress> isCached;
+    private final Function<List<LogAddress>, Map<LogAddress, ?>> loader;
+    private final Executor executor;
+    private final int maxWindow;
+
+    /**
+     * The number of addresses prefetched.
+     */
+    @Getter
+    private final AtomicLong prefetches = new AtomicLong();
+
+    /**
+     * The number of prefetched addresses which were read.
+     */
+    @Getter
+    private final AtomicLong prefetchHits = new AtomicLong();
+
+    /**
+     * The number of prefetched addresses which expired before they were read.
+     */
+    @Getter
+    private final AtomicLong wastedPrefetches = new AtomicLong();
+
+    /**
+     * Create a prefetcher.
+     *
+     * @param isCached  Whether an address is already cached, and should not be prefetched.
+     * @param loader    Loads addresses into the cache, returning the addresses which were written.
+     * @param executor  The executor the addresses are loaded on.
+     * @param maxWindow The maximum number of addresses prefetched ahead of a scan.
+     */
+    public ReadAheadPrefetcher(Predicate<LogAddress> isCached, Function<List<LogAddress>, Map<LogAddress, ?>> loader,
+                               Executor executor, int maxWindow) {
+        this.isCached = isCached;
+        this.loader = loader;
+        this.executor = executor;
+        this.maxWindow = maxWindow;
+        this.scans = Caffeine.newBuilder()
+                .maximumSize(MAX_SCANS)
+                .expireAfterAccess(PREFETCH_EXPIRY_MILLIS, TimeUnit.MILLISECONDS)
+                .build();
+        this.prefetched = Caffeine.newBuilder()
+                .maximumSize(MAX_PREFETCHED)
+                .expireAfterWrite(PREFETCH_EXPIRY_MILLIS, TimeUnit.MILLISECONDS)
+                .<LogAddress, Boolean>removalListener((k, v, cause) -> {
+                    if (cause.wasEvicted()) {
+                        wastedPrefetches.incrementAndGet();
+                    }
+                })
+                .build();
+    }
+
+    /**
+     * Record a read, and prefetch the addresses following it if it continues a scan.
+     *
+     * @param clientId The client reading.
+     * @param streamId The stream read, or null for the global log.
+     * @param start    The first address read.
+     * @param end      The last address read, inclusive.
+     */
+    public void onRead(UUID clientId, UUID streamId, long start, long end) {
+        int hits = 0;
+        for (long address = start; address <= end; address++) {
+            if (prefetched.asMap().remove(new LogAddress(address, streamId)) != null) {
+                hits++;
+            }
+        }
+        prefetchHits.addAndGet(hits);
+
+        Scan scan = scans.get(new ScanKey(clientId, streamId), k -> new Scan());
+        List<LogAddress> addresses;
+        synchronized (scan) {
+            addresses = nextWindow(scan, streamId, start, end, hits > 0);
+        }
+
+        if (!addresses.isEmpty()) {
+            try {
+                executor.execute(() -> prefetch(addresses));
+            } catch (RejectedExecutionException e) {
+                // Read-ahead is best effort, drop the prefetch if the prefetcher is busy.
+                log.trace("Dropped prefetch of {} addresses", addresses.size());
+            }
+        }
+    }
+
+    /**
+     * Update the access pattern of a scan with a read.
+     *
+     * @return The addresses to prefetch, if any.
+     */
+    private List<LogAddress> nextWindow(Scan scan, UUID streamId, long start, long end, boolean hit) {
+        long stride = start - scan.lastStart;
+        if (scan.lastStart != Long.MIN_VALUE && stride > 0 && stride == scan.stride) {
+            scan.sequentialReads++;
+            if (hit) {
+                scan.window = Math.min(maxWindow, scan.window * 2);
+            }
+        } else {
+            scan.sequentialReads = 0;
+            scan.window = Math.min(maxWindow, MIN_WINDOW);
+            scan.prefetchedUpTo = end;
+        }
+        scan.stride = stride;
+        scan.lastStart = start;
+
+        if (scan.sequentialReads == 0) {
+            return Collections.emptyList();
+        }
+
+        long span = end - start + 1;
+        List<LogAddress> addresses = new ArrayList<>();
+        for (long next = start + stride; addresses.size() < scan.window
+                && next <= start + stride * scan.window; next += stride) {
+            for (long address = Math.max(next, scan.prefetchedUpTo + 1);
+                 address < next + span && addresses.size() < scan.window; address++) {
+                addresses.add(new LogAddress(address, streamId));
+                scan.prefetchedUpTo = address;
+            }
+        }
+        return addresses;
+    }
+
+    private void prefetch(List<LogAddress> addresses) {
+        try {
+            List<LogAddress> missing = new ArrayList<>();
+            for (LogAddress address : addresses) {
+                if (!isCached.test(address)) {
+                    missing.add(address);
+                }
+            }
+            if (missing.isEmpty()) {
+                return;
+            }
+
+            Map<LogAddress, ?> loaded = loader.apply(missing);
+            for (LogAddress address : loaded.keySet()) {
+                prefetched.put(address, true);
+            }
+            prefetches.addAndGet(loaded.size());
+            log.trace("Prefetched {} of {} addresses", loaded.size(), missing.size());
+        } catch (Exception e) {
+            log.debug("Prefetch of {} addresses failed: {}", addresses.size(), e.toString());
+        }
+    }
+
+    /**
+     * @return The fraction of the prefetched addresses which were read.
+     */
+    public double getHitRate() {
+        long hits = prefetchHits.get();
+        long total = hits + wastedPrefetches.get();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+}
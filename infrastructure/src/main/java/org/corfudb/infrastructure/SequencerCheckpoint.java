@@ -0,0 +1,30 @@
+package org.corfudb.infrastructure;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * A checkpoint of the state of the {@link SequencerServer}, persisted in the data store.
+ * <p>
+ * Besides the tails at the time of the checkpoint, the checkpoint reserves the addresses up to
+ * {@link #reservedTail}: the sequencer doesn't issue tokens past it before persisting a new
+ * checkpoint, so after a restart, only the entries between the two tails have to be read
+ * from the log to rebuild the state of the sequencer.
+ */
+@Data
+@AllArgsConstructor
+class SequencerCheckpoint {
+    /** The global log tail, the first address not issued yet. */
+    long globalLogTail;
+    /** The first address the sequencer may not have issued before the next checkpoint. */
+    long reservedTail;
+    /** The last local address issued to each stream. */
+    Map<UUID, Long> streamTails;
+    /** The last global address issued to each stream. */
+    Map<UUID, Long> streamBackpointers;
+    /** The conflict wildcard of each stream, the latest update of its evicted conflict keys. */
+    Map<UUID, Long> conflictWildcards;
+}
@@ -0,0 +1,206 @@
+package org.corfudb.infrastructure;
+
+import lombok.Data;
+import org.corfudb.protocols.wireprotocol.SequencerStats;
+import org.corfudb.protocols.wireprotocol.SequencerStats.AbortReason;
+import org.corfudb.protocols.wireprotocol.SequencerStats.RequestType;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The counters of the {@link SequencerServer}: the number and latency of the requests of
+ * each type, the transactions aborted by reason, and the hottest streams and conflict keys.
+ * <p>
+ * The counters are {@link LongAdder}s, updated by any thread without contention. The hot
+ * streams and conflict keys are only updated by the writer, with the Space-Saving algorithm:
+ * {@link #TOP_K} times {@link #TOP_K_TRACKING} entries are counted, and a new entry replaces
+ * the entry with the lowest count, starting from it, so an entry counted more often than
+ * the lowest count is never missed.
+ */
+class SequencerMetrics {
+
+    /**
+     * The number of hot streams and conflict keys reported.
+     */
+    static public int TOP_K = 10;
+
+    /**
+     * The number of entries counted for each hot entry reported.
+     */
+    static public int TOP_K_TRACKING = 4;
+
+    private final LongAdder[] counts = newAdders(RequestType.values().length);
+    private final LongAdder[] totalLatencies = newAdders(RequestType.values().length);
+    private final LongAdder[][] latencyBuckets = new LongAdder[RequestType.values().length][];
+    private final LongAdder[] aborts = newAdders(AbortReason.values().length);
+    private final LongAdder tokensIssued = new LongAdder();
+
+    /**
+     * A conflict key.
+     */
+    @Data
+    static class ConflictKey {
+        final UUID streamID;
+        final int conflictParam;
+    }
+
+    private final TopK<UUID> hotStreams = new TopK<>(TOP_K * TOP_K_TRACKING);
+    private final TopK<ConflictKey> hotConflictKeys = new TopK<>(TOP_K * TOP_K_TRACKING);
+
+    SequencerMetrics() {
+        for (int i = 0; i < latencyBuckets.length; i++) {
+            latencyBuckets[i] = newAdders(SequencerStats.LATENCY_BUCKETS);
+        }
+    }
+
+    private static LongAdder[] newAdders(int size) {
+        LongAdder[] adders = new LongAdder[size];
+        for (int i = 0; i < size; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    /**
+     * Record a request answered.
+     *
+     * @param type         The type of the request.
+     * @param receivedTime The time the request was received, in nanoseconds.
+     */
+    void recordRequest(RequestType type, long receivedTime) {
+        long latency = Math.max(0L, System.nanoTime() - receivedTime);
+        long micros = TimeUnit.NANOSECONDS.toMicros(latency);
+        int bucket = Math.min(64 - Long.numberOfLeadingZeros(micros), SequencerStats.LATENCY_BUCKETS - 1);
+        counts[type.ordinal()].increment();
+        totalLatencies[type.ordinal()].add(latency);
+        latencyBuckets[type.ordinal()][bucket].increment();
+    }
+
+    /**
+     * Record a transaction aborted.
+     *
+     * @param reason        The reason of the abort.
+     * @param streamID      The stream of the conflict.
+     * @param conflictParam The conflict parameter of the conflict, null if the conflict is on
+     *                      the stream.
+     */
+    void recordAbort(AbortReason reason, UUID streamID, Integer conflictParam) {
+        aborts[reason.ordinal()].increment();
+        if (conflictParam != null) {
+            hotConflictKeys.add(new ConflictKey(streamID, conflictParam), 1L);
+        }
+    }
+
+    /**
+     * Record tokens issued.
+     *
+     * @param numTokens The number of tokens.
+     */
+    void recordTokens(long numTokens) {
+        tokensIssued.add(numTokens);
+    }
+
+    /**
+     * Record tokens issued to a stream. Must be called by the writer.
+     *
+     * @param streamID  The stream.
+     * @param numTokens The number of tokens.
+     */
+    void recordStreamTokens(UUID streamID, long numTokens) {
+        hotStreams.add(streamID, numTokens);
+    }
+
+    /**
+     * Fill statistics with the counters.
+     *
+     * @param stats The statistics to fill.
+     * @return The statistics.
+     */
+    SequencerStats fill(SequencerStats stats) {
+        Map<RequestType, SequencerStats.RequestStats> requests = new EnumMap<>(RequestType.class);
+        for (RequestType type : RequestType.values()) {
+            SequencerStats.RequestStats requestStats = new SequencerStats.RequestStats();
+            requestStats.setCount(counts[type.ordinal()].sum());
+            requestStats.setTotalLatencyNs(totalLatencies[type.ordinal()].sum());
+            for (int i = 0; i < SequencerStats.LATENCY_BUCKETS; i++) {
+                requestStats.getLatencyBuckets()[i] = latencyBuckets[type.ordinal()][i].sum();
+            }
+            requests.put(type, requestStats);
+        }
+        stats.setRequests(requests);
+
+        Map<AbortReason, Long> abortCounts = new EnumMap<>(AbortReason.class);
+        for (AbortReason reason : AbortReason.values()) {
+            abortCounts.put(reason, aborts[reason.ordinal()].sum());
+        }
+        stats.setAborts(abortCounts);
+        stats.setTokensIssued(tokensIssued.sum());
+
+        List<SequencerStats.HotStream> streams = new ArrayList<>();
+        hotStreams.top(TOP_K).forEach((id, count) -> streams.add(new SequencerStats.HotStream(id, count)));
+        stats.setHotStreams(streams);
+
+        List<SequencerStats.HotConflictKey> keys = new ArrayList<>();
+        hotConflictKeys.top(TOP_K).forEach((key, count) -> keys.add(
+                new SequencerStats.HotConflictKey(key.getStreamID(), key.getConflictParam(), count)));
+        stats.setHotConflictKeys(keys);
+        return stats;
+    }
+
+    /**
+     * The entries counted the most, with the Space-Saving algorithm. Updated by a single
+     * thread, and read under its lock.
+     */
+    static class TopK<K> {
+        private final int capacity;
+        private final Map<K, long[]> counters = new HashMap<>();
+
+        TopK(int capacity) {
+            this.capacity = capacity;
+        }
+
+        synchronized void add(K key, long count) {
+            long[] counter = counters.get(key);
+            if (counter != null) {
+                counter[0] += count;
+                return;
+            }
+            if (counters.size() < capacity) {
+                counters.put(key, new long[]{count});
+                return;
+            }
+
+            // Replace the entry with the lowest count, which bounds the count of the new entry.
+            K lowest = null;
+            long lowestCount = Long.MAX_VALUE;
+            for (Map.Entry<K, long[]> entry : counters.entrySet()) {
+                if (entry.getValue()[0] < lowestCount) {
+                    lowest = entry.getKey();
+                    lowestCount = entry.getValue()[0];
+                }
+            }
+            counters.remove(lowest);
+            counters.put(key, new long[]{lowestCount + count});
+        }
+
+        /**
+         * Get the entries counted the most, in decreasing order of count.
+         */
+        synchronized Map<K, Long> top(int k) {
+            Map<K, Long> top = new LinkedHashMap<>();
+            counters.entrySet().stream()
+                    .sorted((a, b) -> Long.compare(b.getValue()[0], a.getValue()[0]))
+                    .limit(k)
+                    .forEach(e -> top.put(e.getKey(), e.getValue()[0]));
+            return top;
+        }
+    }
+}
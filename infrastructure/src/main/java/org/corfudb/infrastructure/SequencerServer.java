@@ -1,15 +1,22 @@
 package org.corfudb.infrastructure;
 
-import com.github.benmanes.caffeine.cache.Cache;
-import com.github.benmanes.caffeine.cache.Caffeine;
-import com.github.benmanes.caffeine.cache.RemovalCause;
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Range;
+import com.google.common.collect.RangeSet;
+import com.google.common.collect.TreeRangeSet;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import io.netty.channel.ChannelHandlerContext;
 import lombok.Data;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 import org.corfudb.protocols.wireprotocol.*;
 import org.corfudb.protocols.wireprotocol.CorfuMsgType;
+import org.corfudb.protocols.wireprotocol.SequencerStats.AbortReason;
+import org.corfudb.protocols.wireprotocol.SequencerStats.RequestType;
+import org.corfudb.runtime.CorfuRuntime;
+import org.corfudb.runtime.exceptions.OverwriteException;
+import org.corfudb.util.CFUtils;
 import org.corfudb.util.Utils;
 
 import java.lang.invoke.MethodHandles;
@@ -27,6 +34,11 @@ import static org.corfudb.infrastructure.ServerContext.NON_LOG_ADDR_MAGIC;
  * It currently supports a single operation, which is a incoming request:
  * <p>
  * TOKEN_REQ - Request the next address.
+ * TOKEN_BATCH_REQ - Request the next addresses of a batch of requests coalesced by a client.
+ * STREAM_TAIL_SUBSCRIBE - Subscribe to notifications of the tails of a set of streams.
+ * ADDRESS_BLOCK_REQ - Request a block of global addresses for a sequencer shard.
+ * SHARD_REQ - Lock or commit the streams of a token request spanning several shards.
+ * SEQUENCER_STATS_REQUEST - Request the counters of the sequencer.
  *
  * <p>
  * The sequencer server maintains the current tail of the log, the current
@@ -58,6 +70,42 @@ import static org.corfudb.infrastructure.ServerContext.NON_LOG_ADDR_MAGIC;
  * commits, the sequencer updates the tails of all the streams and the cache
  * of conflict parameters.
  *
+ * Queries are answered without locking: the state is only modified by one
+ * thread at a time, which applies batches of token requests between two
+ * increments of a version counter, and a query retries until it reads a
+ * stable, even, version, so it observes the state between two batches.
+ *
+ * Every other token request is queued, and the thread which handled it then
+ * tries to take the writer role. The writer drains the queue, allocates the
+ * tokens of up to {@link #TOKEN_BATCH_SIZE} requests in queue order, publishes
+ * them, and only then responds, so responses stay linearizable. Threads which
+ * find the writer role taken return at once, their requests are allocated by
+ * the current writer.
+ *
+ * The tails of the log and of the streams, and the conflict wildcard, are periodically
+ * checkpointed to the data store. A checkpoint reserves the next
+ * {@link #CHECKPOINT_RESERVATION} addresses, and the writer checkpoints again before
+ * issuing tokens past the reservation. When started with no initial token, the sequencer
+ * loads the last checkpoint and, unless it was shut down cleanly, reads the reserved suffix
+ * of the log to rebuild the tails past it. Token requests are queued until it has.
+ *
+ * Clients may subscribe to the tails of a set of streams. Once a batch of token requests
+ * is allocated and answered, the writer pushes to each subscriber one notification of the
+ * new tails of its streams which the batch advanced.
+ *
+ * The layout may shard the streams across several sequencers. The primary sequencer then
+ * allocates the global log: a shard, started with --sequencer-shard, takes the addresses of
+ * each batch of token requests as one block from it, and reports the block applied once the
+ * batch is published. Queries of the global tail wait for the blocks outstanding when they
+ * arrive, and never return an address past an outstanding block, so a snapshot never misses
+ * an address issued below it. A token request spanning several shards locks its streams on
+ * each shard for up to {@link #SHARD_LOCK_TIMEOUT_MS}, and the requests on locked streams are
+ * held back until the lock is committed or expires.
+ *
+ * The sequencer counts the requests of each type and their latency from their arrival to
+ * their response, the transactions it aborts by reason, and the streams and conflict keys
+ * which are issued the most tokens and abort the most transactions, in {@link SequencerMetrics}.
+ *
  * Created by mwei on 12/8/15.
  */
 @Slf4j
@@ -67,6 +115,44 @@ public class SequencerServer extends AbstractServer {
      * key-name for storing {@link SequencerServer} state in {@link ServerContext::getDataStore()}.
      */
     private static final String PREFIX_SEQUENCER = "SEQUENCER";
+    private static final String KEY_CHECKPOINT = "CHECKPOINT";
+
+    /**
+     * The number of addresses a checkpoint reserves past the global log tail.
+     */
+    static public long CHECKPOINT_RESERVATION = 100_000L;
+
+    /**
+     * The number of addresses read at once while recovering the suffix of the log.
+     */
+    static public int RECOVERY_SCAN_BATCH = 1_000;
+
+    /**
+     * The default number of conflict keys the sequencer keeps track of.
+     */
+    static public int CONFLICT_TABLE_SIZE = 1 << 18;
+
+    /**
+     * The maximum number of token requests allocated and published as one batch.
+     */
+    static public int TOKEN_BATCH_SIZE = 512;
+
+    /**
+     * The time in milliseconds a shard holds the streams of a lock. Address blocks which are
+     * not reported applied are dropped after twice as long.
+     */
+    static public long SHARD_LOCK_TIMEOUT_MS = 1_000L;
+
+    /**
+     * A token request, or a batch of token requests, waiting to be allocated by the writer.
+     */
+    @Data
+    static class PendingRequest {
+        final CorfuPayloadMsg<?> msg;
+        final ChannelHandlerContext ctx;
+        final IServerRouter router;
+        final long receivedTime = System.nanoTime();
+    }
 
     /**
      * Inherit from CorfuServer a server context
@@ -87,11 +173,10 @@ public class SequencerServer extends AbstractServer {
      *      a map of per-streams tail. points to per-streams first available position.
      *  - {@link SequencerServer::streamTailToGlobalTailMap}:
      *      per streams map to last issued global-log position. used for backpointers.
-     *  - {@link SequencerServer::conflictToGlobalTailCache}:
-     *      a cache of recent conflict keys and their latest global-log position
-     *  - {@link SequencerServer::maxConflictWildcard} :
-     *      a "wildcard" representing the maximal update timestamp of
-     *      all the confict keys which were evicted from the cache
+     *  - {@link SequencerServer::conflictTable}:
+     *      a table of recent conflict keys and their latest global-log position,
+     *      with a per-stream "wildcard" representing the maximal update timestamp
+     *      of the conflict keys of the stream which were evicted from the table
      *
      * Every append to the log updates the information in these maps.
      */
@@ -100,15 +185,136 @@ public class SequencerServer extends AbstractServer {
     private final ConcurrentHashMap<UUID, Long> streamTailMap = new ConcurrentHashMap<>();
     private final ConcurrentHashMap<UUID, Long> streamTailToGlobalTailMap = new ConcurrentHashMap<>();
 
-    private final long maxConflictCacheSize = 10_000;
-    private long maxConflictWildcard = -1L;
-    private final Cache<Integer, Long>
-            conflictToGlobalTailCache = Caffeine.newBuilder()
-            .maximumSize(maxConflictCacheSize)
-            .removalListener((Integer K, Long V, RemovalCause cause) -> {
-                maxConflictWildcard = Math.max(V, maxConflictWildcard);
-            })
-            .build();
+    @Getter
+    private final ConflictTable conflictTable;
+
+    /**
+     * The first address which may not be issued before the next checkpoint.
+     */
+    private volatile long reservedTail;
+
+    /**
+     * Whether the sequencer is rebuilding its state from the log. The writer role is
+     * held while it does, and queries are queued like the other token requests.
+     */
+    private volatile boolean recovering;
+
+    /**
+     * A scheduler, which is used to checkpoint the sequencer periodically.
+     */
+    private final ScheduledExecutorService scheduler =
+            Executors.newScheduledThreadPool(
+                    1,
+                    new ThreadFactoryBuilder()
+                            .setDaemon(true)
+                            .setNameFormat("Sequencer-Checkpoint-%d")
+                            .build());
+
+    /**
+     * The token requests waiting to be allocated.
+     */
+    private final Queue<PendingRequest> pendingRequests = new ConcurrentLinkedQueue<>();
+
+    /**
+     * Whether a thread holds the writer role, and is allocating tokens.
+     */
+    private final AtomicBoolean writer = new AtomicBoolean();
+
+    /**
+     * The version of the state, odd while the writer applies a batch.
+     */
+    private final AtomicLong stateVersion = new AtomicLong();
+
+    /**
+     * The number of batches of token requests allocated.
+     */
+    @Getter
+    private final AtomicLong tokenBatches = new AtomicLong();
+
+    /**
+     * The counters of the requests, aborts and hot spots of the sequencer.
+     */
+    @Getter
+    private final SequencerMetrics metrics = new SequencerMetrics();
+
+    /**
+     * A client subscribed to the tails of a set of streams.
+     */
+    @Data
+    static class Subscriber {
+        final CorfuMsg msg;
+        final ChannelHandlerContext ctx;
+        final IServerRouter router;
+        final Set<UUID> streams;
+    }
+
+    /**
+     * The subscribers, by client ID.
+     */
+    private final Map<UUID, Subscriber> subscribers = new ConcurrentHashMap<>();
+
+    /**
+     * The IDs of the clients subscribed to each stream.
+     */
+    private final Map<UUID, Set<UUID>> streamSubscribers = new ConcurrentHashMap<>();
+
+    /**
+     * The number of stream tail notifications pushed to subscribers.
+     */
+    @Getter
+    private final AtomicLong tailNotifications = new AtomicLong();
+
+    /**
+     * Whether this sequencer is a shard, which takes its addresses from the primary sequencer.
+     */
+    private final boolean shard;
+
+    /**
+     * The next address, and the end, of the block of addresses of the batch a shard allocates.
+     */
+    private long blockNext;
+    private long blockEnd;
+
+    /**
+     * The runtime a shard reaches the primary sequencer and the log units with.
+     */
+    private CorfuRuntime shardRuntime;
+
+    /**
+     * The blocks of addresses handed to shards and not reported applied yet, by first
+     * address, with the time in nanoseconds after which they are dropped.
+     */
+    private final ConcurrentSkipListMap<Long, Long> outstandingBlocks = new ConcurrentSkipListMap<>();
+
+    /**
+     * A query of the global tail, waiting for the blocks outstanding when it arrived.
+     */
+    @Data
+    static class WaitingQuery {
+        final PendingRequest request;
+        final long lastBlock;
+    }
+
+    private final List<WaitingQuery> waitingQueries = new ArrayList<>();
+
+    /**
+     * The streams of a token request spanning several shards, locked on this shard.
+     */
+    @Data
+    static class ShardLock {
+        final UUID lockId;
+        final TokenRequest request;
+        final Set<UUID> streams;
+        final long deadline;
+    }
+
+    /**
+     * The locks held, by lock ID, the lock of each locked stream, and the requests held back
+     * on locked streams. Only the writer accesses the last two.
+     */
+    private final Map<UUID, ShardLock> shardLocks = new ConcurrentHashMap<>();
+    private final Map<UUID, UUID> lockedStreams = new HashMap<>();
+    private final List<PendingRequest> deferredRequests = new ArrayList<>();
 
     /** Handler for this server */
     @Getter
@@ -118,23 +324,262 @@ public class SequencerServer extends AbstractServer {
     public SequencerServer(ServerContext serverContext) {
         this.serverContext = serverContext;
         this.opts = serverContext.getServerConfig();
+        conflictTable = new ConflictTable(Utils.getOption(opts, "--conflict-table-size", Integer.class,
+                CONFLICT_TABLE_SIZE));
+        shard = Utils.getOption(opts, "--sequencer-shard", Boolean.class, false);
 
         long initialToken = Utils.parseLong(opts.get("--initial-token"));
-        if (initialToken == NON_LOG_ADDR_MAGIC) {
-            globalLogTail.set(0L);
+        SequencerCheckpoint checkpoint = initialToken == NON_LOG_ADDR_MAGIC
+                ? serverContext.getDataStore().get(SequencerCheckpoint.class, PREFIX_SEQUENCER, KEY_CHECKPOINT)
+                : null;
+        if (checkpoint != null) {
+            restore(checkpoint);
         } else {
-            globalLogTail.set(initialToken);
+            globalLogTail.set(initialToken == NON_LOG_ADDR_MAGIC ? 0L : initialToken);
+            persistCheckpoint(getReservedTail(CHECKPOINT_RESERVATION));
+        }
+
+        long checkpointInterval = Utils.getOption(opts, "--checkpoint-interval", Long.class, 1_000L);
+        if (checkpointInterval > 0) {
+            scheduler.scheduleWithFixedDelay(this::runCheckpoint, checkpointInterval, checkpointInterval,
+                    TimeUnit.MILLISECONDS);
+        }
+        scheduler.scheduleWithFixedDelay(this::runExpiry, SHARD_LOCK_TIMEOUT_MS / 2, SHARD_LOCK_TIMEOUT_MS / 2,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Restore the state of a checkpoint. If the sequencer was not shut down cleanly, tokens
+     * may have been issued up to the reserved tail, so the sequencer holds the writer role
+     * until it has read the entries written there.
+     *
+     * @param checkpoint The last checkpoint persisted.
+     */
+    private void restore(SequencerCheckpoint checkpoint) {
+        globalLogTail.set(checkpoint.getGlobalLogTail());
+        streamTailMap.putAll(checkpoint.getStreamTails());
+        streamTailToGlobalTailMap.putAll(checkpoint.getStreamBackpointers());
+        // The conflict table is not checkpointed, so the updates of any conflict key may have
+        // been lost: transactions which read a snapshot before the checkpoint abort.
+        conflictTable.raiseWildcards(checkpoint.getConflictWildcards());
+        conflictTable.raiseGlobalWildcard(checkpoint.getGlobalLogTail() - 1);
+        reservedTail = checkpoint.getReservedTail();
+        log.info("Restored sequencer checkpoint at tail {}, {} streams", checkpoint.getGlobalLogTail(),
+                checkpoint.getStreamTails().size());
+
+        if (checkpoint.getReservedTail() > checkpoint.getGlobalLogTail()) {
+            writer.set(true);
+            recovering = true;
+            scheduler.execute(() -> recover(checkpoint.getGlobalLogTail(), checkpoint.getReservedTail()));
         }
     }
 
+    /**
+     * Rebuild the tails from the entries written between the tail of the checkpoint and
+     * its reservation, then resume serving token requests. Retried until it succeeds.
+     */
+    private void recover(long start, long end) {
+        long tail;
+        try {
+            tail = scanLog(start, end);
+        } catch (Exception e) {
+            log.error("Failed to recover the sequencer from the log, retrying", e);
+            scheduler.schedule(() -> recover(start, end), 1, TimeUnit.SECONDS);
+            return;
+        }
+
+        // Tokens may have been issued anywhere up to the reservation, and the addresses
+        // left unwritten were hole filled by the scan. Transactions which read a snapshot before
+        // the restart abort, since the conflict keys updated since the checkpoint are lost.
+        globalLogTail.set(tail);
+        conflictTable.raiseGlobalWildcard(tail - 1);
+        persistCheckpoint(getReservedTail(CHECKPOINT_RESERVATION));
+        log.info("Recovered sequencer from the log up to {}, {} streams", tail, streamTailMap.size());
+
+        recovering = false;
+        writer.set(false);
+        drainPendingRequests();
+    }
+
+    /**
+     * Read the entries of a range of the log, and rebuild the tails of their streams.
+     * The unwritten addresses are hole filled, so that a client which was issued one of
+     * them before the restart, and writes it after the scan, fails with an overwrite and
+     * retries with a new token, instead of writing an entry the tails don't include.
+     *
+     * @param start The first address to read.
+     * @param end   The address to read up to, exclusive, or Long.MAX_VALUE to read up to the
+     *              tail of the primary sequencer.
+     * @return The address read up to.
+     */
+    private long scanLog(long start, long end) {
+        CorfuRuntime runtime = connectRuntime();
+        try {
+            if (end == Long.MAX_VALUE) {
+                end = runtime.getSequencerView().nextToken(Collections.emptySet(), 0).getToken() + 1;
+            }
+            for (long address = start; address < end; address += RECOVERY_SCAN_BATCH) {
+                RangeSet<Long> batch = TreeRangeSet.create();
+                batch.add(Range.closedOpen(address, Math.min(end, address + RECOVERY_SCAN_BATCH)));
+                for (Map.Entry<Long, ILogData> entry : runtime.getAddressSpaceView().read(batch).entrySet()) {
+                    ILogData data = entry.getValue();
+                    if (data.getType() == DataType.EMPTY) {
+                        try {
+                            runtime.getAddressSpaceView().fillHole(entry.getKey());
+                            continue;
+                        } catch (OverwriteException oe) {
+                            // Written after it was read.
+                            data = runtime.getAddressSpaceView().read(entry.getKey());
+                        }
+                    }
+                    if (data.getType() == DataType.DATA) {
+                        recordRecoveredEntry(entry.getKey(), data);
+                    }
+                }
+            }
+            return end;
+        } finally {
+            runtime.shutdown();
+        }
+    }
+
+    /**
+     * Merge an entry read while recovering into the tails of its streams.
+     */
+    private void recordRecoveredEntry(long address, ILogData entry) {
+        Map<UUID, Long> streamAddresses = entry.getLogicalAddresses();
+        for (UUID id : entry.getStreams()) {
+            streamTailToGlobalTailMap.merge(id, address, Math::max);
+            Long streamAddress = streamAddresses.get(id);
+            if (streamAddress != null) {
+                streamTailMap.merge(id, streamAddress, Math::max);
+            }
+        }
+    }
+
+    /**
+     * Connect a runtime to the layout server of this server.
+     */
+    private CorfuRuntime connectRuntime() {
+        CorfuRuntime runtime = new CorfuRuntime();
+        if (Utils.getOption(opts, "--enable-tls", Boolean.class, false)) {
+            runtime.enableTls((String) opts.get("--keystore"),
+                    (String) opts.get("--keystore-password-file"),
+                    (String) opts.get("--truststore"),
+                    (String) opts.get("--truststore-password-file"));
+            if (Utils.getOption(opts, "--enable-sasl-plain-text-auth", Boolean.class, false)) {
+                runtime.enableSaslPlainText(
+                        (String) opts.get("--sasl-plain-text-username-file"),
+                        (String) opts.get("--sasl-plain-text-password-file"));
+            }
+        }
+        runtime.setCacheDisabled(true);
+        runtime.addLayoutServer(opts.get("--address") + ":" + opts.get("<port>"));
+        runtime.connect();
+        return runtime;
+    }
+
+    /**
+     * Get the runtime of a shard, connecting it the first time.
+     */
+    private synchronized CorfuRuntime getShardRuntime() {
+        if (shardRuntime == null) {
+            shardRuntime = connectRuntime();
+        }
+        return shardRuntime;
+    }
+
+    private void runCheckpoint() {
+        try {
+            checkpoint(CHECKPOINT_RESERVATION);
+            log.debug("Conflict table: {} of {} keys, {} evictions", conflictTable.getSize(),
+                    conflictTable.getCapacity(), conflictTable.getEvictions().get());
+        } catch (Exception e) {
+            // Don't let a failed checkpoint cancel the periodic task.
+            log.error("Sequencer checkpoint failed", e);
+        }
+    }
+
+    /**
+     * Checkpoint the state of the sequencer, reserving a number of addresses past the tail.
+     *
+     * @param reservation The number of addresses reserved.
+     * @return False if the sequencer is recovering, and its state was not checkpointed.
+     */
+    @VisibleForTesting
+    boolean checkpoint(long reservation) {
+        while (!writer.compareAndSet(false, true)) {
+            if (recovering) {
+                return false;
+            }
+            Thread.yield();
+        }
+        try {
+            persistCheckpoint(getReservedTail(reservation));
+        } finally {
+            writer.set(false);
+        }
+        drainPendingRequests();
+        return true;
+    }
+
+    /**
+     * Get the reserved tail of a checkpoint reserving a number of addresses past the tail.
+     * A shard takes its addresses from the primary sequencer, so it can't bound them: until
+     * it shuts down cleanly, it reserves the rest of the log, and recovers up to the tail of
+     * the primary sequencer.
+     */
+    private long getReservedTail(long reservation) {
+        return shard && reservation > 0 ? Long.MAX_VALUE : globalLogTail.get() + reservation;
+    }
+
+    /**
+     * Persist a checkpoint of the current state. Must be called by the writer.
+     *
+     * @param reservedTail The first address which may not be issued before the next checkpoint.
+     */
+    private void persistCheckpoint(long reservedTail) {
+        SequencerCheckpoint checkpoint = new SequencerCheckpoint(globalLogTail.get(), reservedTail,
+                new HashMap<>(streamTailMap), new HashMap<>(streamTailToGlobalTailMap), conflictTable.getWildcards());
+        serverContext.getDataStore().put(SequencerCheckpoint.class, PREFIX_SEQUENCER, KEY_CHECKPOINT, checkpoint);
+        this.reservedTail = reservedTail;
+        log.trace("Checkpointed sequencer at tail {}, reserved up to {}", checkpoint.getGlobalLogTail(), reservedTail);
+    }
+
+    /**
+     * Extend the global log tail by a number of tokens, within the reservation of the last
+     * checkpoint, or, on a shard, take them from the block of the batch. Must be called by
+     * the writer, which reserves the tokens of the batch before allocating it.
+     *
+     * @param numTokens The number of tokens.
+     * @return The first token issued.
+     */
+    private long issueTokens(long numTokens) {
+        if (shard) {
+            metrics.recordTokens(numTokens);
+            if (blockNext + numTokens > blockEnd) {
+                throw new IllegalStateException("Address block of the batch exhausted");
+            }
+            long token = blockNext;
+            blockNext += numTokens;
+            globalLogTail.accumulateAndGet(blockNext, Math::max);
+            return token;
+        }
+        metrics.recordTokens(numTokens);
+        if (globalLogTail.get() + numTokens > reservedTail) {
+            throw new IllegalStateException("Addresses reserved for the batch exhausted");
+        }
+        return globalLogTail.getAndAdd(numTokens);
+    }
+
     /** Get the conflict hash code for a stream ID and conflict param.
      *
      * @param streamID          The stream ID.
      * @param conflictParam     The conflict parameter.
      * @return                  A conflict hash code.
      */
-    public int getConflictHashCode(UUID streamID, int conflictParam) {
-            return Objects.hash(streamID, conflictParam);
+    public long getConflictHashCode(UUID streamID, int conflictParam) {
+            return ConflictTable.hash(streamID, conflictParam);
     }
 
     /**
@@ -150,101 +595,586 @@ public class SequencerServer extends AbstractServer {
     public boolean txnCanCommit(TxResolutionInfo txData) {
         log.trace("txn resolution, timestamp: {}, streams: {}", txData.getSnapshotTimestamp(), txData.getConflictSet());
 
-        AtomicBoolean commit = new AtomicBoolean(true);
         for (Map.Entry<UUID, Set<Integer>> entry : txData.getConflictSet().entrySet()) {
-            if (!commit.get())
-                break;
+            UUID streamID = entry.getKey();
 
             // if conflict-parameters are present, check for conflict based on conflict-parameter updates
             Set<Integer> conflictParamSet = entry.getValue();
             if (conflictParamSet != null && conflictParamSet.size() > 0) {
                 // for each key pair, check for conflict;
-                // if not present, check against the wildcard
-                conflictParamSet.forEach(conflictParam -> {
-                    int conflictKeyHash = getConflictHashCode(entry.getKey(),
-                            conflictParam);
-                    Long v = conflictToGlobalTailCache.getIfPresent
-                            (conflictKeyHash);
-                    log.trace("txn resolution for conflictparam {}, last update {}",
-                            conflictKeyHash, v);
-                    if ((v != null && v > txData.getSnapshotTimestamp()) ||
-                            (maxConflictWildcard > txData.getSnapshotTimestamp()) ) {
+                // if not present, the table checks against the wildcard of the stream
+                for (Integer conflictParam : conflictParamSet) {
+                    long v = conflictTable.get(streamID, conflictParam);
+                    log.trace("txn resolution for conflictparam {} on stream {}, last update {}",
+                            conflictParam, streamID, v);
+                    if (v > txData.getSnapshotTimestamp()) {
+                        AbortReason reason = conflictTable.find(streamID, conflictParam) > txData.getSnapshotTimestamp()
+                                ? AbortReason.CONFLICT_KEY : AbortReason.WILDCARD;
                         log.debug("Rejecting request due to update-timestamp " +
-                                        "> {} on conflictKeyPair {}",
-                                txData.getSnapshotTimestamp(), conflictKeyHash);
-                        commit.set(false);
+                                        "{} > {} on conflictparam {} of stream {} ({})",
+                                v, txData.getSnapshotTimestamp(), conflictParam, streamID, reason);
+                        metrics.recordAbort(reason, streamID, conflictParam);
+                        return false;
                     }
-                });
+                }
             }
 
             // otherwise, check for conflict based on streams updates
             else {
-                UUID streamID = entry.getKey();
-                streamTailToGlobalTailMap.compute(streamID, (k, v) -> {
-                    if (v == null) {
-                        return null;
-                    } else {
-                        if (v > txData.getSnapshotTimestamp()) {
-                            log.debug("Rejecting request due to {} > {} on streams {}",
-                                    v, txData.getSnapshotTimestamp(), streamID);
-                            commit.set(false);
-                        }
-                    }
-                    return v;
-                });
+                Long v = streamTailToGlobalTailMap.get(streamID);
+                if (v != null && v > txData.getSnapshotTimestamp()) {
+                    log.debug("Rejecting request due to {} > {} on streams {}",
+                            v, txData.getSnapshotTimestamp(), streamID);
+                    metrics.recordAbort(AbortReason.STREAM_TAIL, streamID, null);
+                    return false;
+                }
             }
         }
 
-        return commit.get();
+        return true;
     }
 
+    /**
+     * Answer a query of the log tail and of stream tails, without locking. The tails
+     * are read again if a batch of token requests was applied while they were read.
+     */
     public void handleTokenQuery(CorfuPayloadMsg<TokenRequest> msg,
                                  ChannelHandlerContext ctx, IServerRouter r) {
-        TokenRequest req = msg.getPayload();
+        TokenResponse response;
+        long version;
+        do {
+            version = stateVersion.get();
+            response = queryTails(msg.getPayload());
+        } while ((version & 1L) != 0L || stateVersion.get() != version);
+
+        r.sendResponse(ctx, msg, CorfuMsgType.TOKEN_RES.payloadMsg(response));
+    }
 
+    private TokenResponse queryTails(TokenRequest req) {
         long maxStreamGlobalTails = -1L;
 
         // Collect the latest local offset for every streams in the request.
         ImmutableMap.Builder<UUID, Long> responseStreamTails = ImmutableMap.builder();
 
         for (UUID id : req.getStreams()) {
-            streamTailMap.compute(id, (k, v) -> {
-                if (v == null) {
-                    responseStreamTails.put(k, -1L);
-                    return null;
-                }
-                responseStreamTails.put(k, v);
-                return v;
-            });
+            responseStreamTails.put(id, streamTailMap.getOrDefault(id, -1L));
             // Compute the latest global offset across all streams.
             Long lastIssued = streamTailToGlobalTailMap.get(id);
             maxStreamGlobalTails = Math.max(maxStreamGlobalTails, lastIssued == null ? Long.MIN_VALUE : lastIssued);
         }
 
-        // If no streams are specified in the request, this value returns the last global token issued.
-        long responseGlobalTail = (req.getStreams().size() == 0) ? globalLogTail.get() - 1 : maxStreamGlobalTails;
-        r.sendResponse(ctx, msg, CorfuMsgType.TOKEN_RES.payloadMsg(
-                new TokenResponse(responseGlobalTail, Collections.emptyMap(), responseStreamTails.build())));
+        // If no streams are specified in the request, this value returns the last global token issued,
+        // below the blocks of addresses outstanding on shards.
+        long responseGlobalTail = (req.getStreams().size() == 0) ? getGlobalTail() : maxStreamGlobalTails;
+        return new TokenResponse(responseGlobalTail, Collections.emptyMap(), responseStreamTails.build());
+    }
+
+    /**
+     * Get the last address of the global log below which every address issued is published:
+     * the last address issued, or the last address before the first outstanding block.
+     */
+    private long getGlobalTail() {
+        Map.Entry<Long, Long> block = outstandingBlocks.firstEntry();
+        return block == null ? globalLogTail.get() - 1 : block.getKey() - 1;
     }
 
     /**
      * Service an incoming token request.
      */
     @ServerHandler(type=CorfuMsgType.TOKEN_REQ)
-    public synchronized void tokenRequest(CorfuPayloadMsg<TokenRequest> msg,
-                                          ChannelHandlerContext ctx, IServerRouter r) {
-        TokenRequest req = msg.getPayload();
-
-        if (req.getReqType() == TokenRequest.TK_QUERY) {
+    public void tokenRequest(CorfuPayloadMsg<TokenRequest> msg,
+                             ChannelHandlerContext ctx, IServerRouter r) {
+        // Queries of the global tail wait for the outstanding blocks, which the writer tracks.
+        if (msg.getPayload().getReqType() == TokenRequest.TK_QUERY && !recovering
+                && (!msg.getPayload().getStreams().isEmpty() || outstandingBlocks.isEmpty())) {
+            long receivedTime = System.nanoTime();
             handleTokenQuery(msg, ctx, r);
+            metrics.recordRequest(RequestType.QUERY, receivedTime);
+            return;
+        }
+
+        enqueue(new PendingRequest(msg, ctx, r));
+    }
+
+    /**
+     * Service a request of a block of addresses by a shard.
+     */
+    @ServerHandler(type=CorfuMsgType.ADDRESS_BLOCK_REQ)
+    public void addressBlockRequest(CorfuPayloadMsg<AddressBlockRequest> msg,
+                                    ChannelHandlerContext ctx, IServerRouter r) {
+        enqueue(new PendingRequest(msg, ctx, r));
+    }
+
+    /**
+     * Service a lock or a commit of a token request spanning several shards.
+     */
+    @ServerHandler(type=CorfuMsgType.SHARD_REQ)
+    public void shardRequest(CorfuPayloadMsg<ShardRequest> msg,
+                             ChannelHandlerContext ctx, IServerRouter r) {
+        enqueue(new PendingRequest(msg, ctx, r));
+    }
+
+    /**
+     * Service an incoming batch of token requests.
+     */
+    @ServerHandler(type=CorfuMsgType.TOKEN_BATCH_REQ)
+    public void tokenBatchRequest(CorfuPayloadMsg<TokenBatchRequest> msg,
+                                  ChannelHandlerContext ctx, IServerRouter r) {
+        enqueue(new PendingRequest(msg, ctx, r));
+    }
+
+    /**
+     * Service a request of the counters of the sequencer. The counters are read without
+     * waiting for the writer, so they may miss the batch being allocated.
+     */
+    @ServerHandler(type=CorfuMsgType.SEQUENCER_STATS_REQUEST)
+    public void statsRequest(CorfuMsg msg, ChannelHandlerContext ctx, IServerRouter r) {
+        SequencerStats stats = new SequencerStats();
+        stats.setGlobalTail(getGlobalTail());
+        stats.setTokenBatches(tokenBatches.get());
+        stats.setConflictTableSize(conflictTable.getSize());
+        stats.setConflictTableCapacity(conflictTable.getCapacity());
+        stats.setConflictTableEvictions(conflictTable.getEvictions().get());
+        r.sendResponse(ctx, msg, new JSONPayloadMsg<>(metrics.fill(stats), CorfuMsgType.SEQUENCER_STATS_RESPONSE));
+    }
+
+    /**
+     * Service a subscription to the tails of a set of streams. The subscription replaces the
+     * previous subscription of the client, and is answered with the current tails.
+     */
+    @ServerHandler(type=CorfuMsgType.STREAM_TAIL_SUBSCRIBE)
+    public void streamTailSubscribe(CorfuPayloadMsg<StreamTailSubscription> msg,
+                                    ChannelHandlerContext ctx, IServerRouter r) {
+        UUID clientId = msg.getClientID();
+        Set<UUID> streams = msg.getPayload().getStreams();
+        Subscriber subscriber = new Subscriber(msg, ctx, r, streams);
+
+        // Register the subscriber before reading the tails, so no advance is missed.
+        unsubscribe(clientId, subscribers.remove(clientId));
+        if (!streams.isEmpty()) {
+            subscribers.put(clientId, subscriber);
+            streams.forEach(id -> streamSubscribers.computeIfAbsent(id, k -> ConcurrentHashMap.newKeySet())
+                    .add(clientId));
+            if (ctx != null && ctx.channel() != null) {
+                ctx.channel().closeFuture().addListener(f -> {
+                    if (subscribers.remove(clientId, subscriber)) {
+                        unsubscribe(clientId, subscriber);
+                    }
+                });
+            }
+        }
+
+        StreamTailNotification tails;
+        long version;
+        do {
+            version = stateVersion.get();
+            tails = getTails(streams);
+        } while ((version & 1L) != 0L || stateVersion.get() != version);
+
+        r.sendResponse(ctx, msg, CorfuMsgType.STREAM_TAILS.payloadMsg(tails));
+    }
+
+    private void unsubscribe(UUID clientId, Subscriber subscriber) {
+        if (subscriber != null) {
+            subscriber.getStreams().forEach(id -> {
+                Set<UUID> clients = streamSubscribers.get(id);
+                if (clients != null) {
+                    clients.remove(clientId);
+                }
+            });
+        }
+    }
+
+    private StreamTailNotification getTails(Set<UUID> streams) {
+        Map<UUID, Long> globalTails = new HashMap<>();
+        Map<UUID, Long> streamTails = new HashMap<>();
+        for (UUID id : streams) {
+            globalTails.put(id, streamTailToGlobalTailMap.getOrDefault(id, -1L));
+            streamTails.put(id, streamTailMap.getOrDefault(id, -1L));
+        }
+        return new StreamTailNotification(globalTails, streamTails);
+    }
+
+    /**
+     * Push the tails of the streams a batch of token requests advanced to their subscribers.
+     * Must be called by the writer.
+     *
+     * @param batch     The batch of token requests.
+     * @param responses The responses to the requests.
+     */
+    private void notifySubscribers(List<PendingRequest> batch, TokenResponse[] responses) {
+        Set<UUID> advanced = new HashSet<>();
+        for (int i = 0; i < batch.size(); i++) {
+            Object payload = batch.get(i).getMsg().getPayload();
+            if (responses[i] == null || responses[i].getToken() < 0) {
+                continue;
+            }
+            // The responses to allocations hold the local tail of each stream they advanced.
+            boolean query = payload instanceof TokenRequest
+                    && ((TokenRequest) payload).getReqType() == TokenRequest.TK_QUERY;
+            boolean lock = payload instanceof ShardRequest
+                    && ((ShardRequest) payload).getType() == ShardRequest.SHARD_LOCK;
+            if (!query && !lock) {
+                advanced.addAll(responses[i].getStreamAddresses().keySet());
+            }
+        }
+
+        Map<UUID, Set<UUID>> notifications = new HashMap<>();
+        for (UUID id : advanced) {
+            Set<UUID> clients = streamSubscribers.get(id);
+            if (clients != null) {
+                clients.forEach(clientId -> notifications.computeIfAbsent(clientId, k -> new HashSet<>()).add(id));
+            }
+        }
+
+        notifications.forEach((clientId, streams) -> {
+            Subscriber subscriber = subscribers.get(clientId);
+            if (subscriber != null) {
+                subscriber.getRouter().sendResponse(subscriber.getCtx(), subscriber.getMsg(),
+                        CorfuMsgType.STREAM_TAIL_NOTIFICATION.payloadMsg(getTails(streams)));
+                tailNotifications.incrementAndGet();
+            }
+        });
+    }
+
+    private void enqueue(PendingRequest request) {
+        pendingRequests.add(request);
+        drainPendingRequests();
+    }
+
+    private void drainPendingRequests() {
+        // Allocate the pending requests, unless another thread is already doing so. The queue
+        // is checked again once the writer role is released, so no request is left behind.
+        while (!pendingRequests.isEmpty() && writer.compareAndSet(false, true)) {
+            try {
+                allocateBatch();
+            } finally {
+                writer.set(false);
+            }
+        }
+    }
+
+    /**
+     * Allocate the tokens of a batch of pending requests, publish them, and respond.
+     * Must be called by the writer.
+     */
+    private void allocateBatch() {
+        List<PendingRequest> batch = new ArrayList<>();
+        PendingRequest pending;
+        while (batch.size() < TOKEN_BATCH_SIZE && (pending = pendingRequests.poll()) != null) {
+            batch.add(pending);
+        }
+
+        // A shard takes the addresses of the batch from the primary sequencer, and the primary
+        // sequencer checkpoints if the batch may exceed its reservation, before publishing
+        // anything, so queries don't wait for either.
+        long numTokens = batch.stream().mapToLong(p -> getNumTokens(p.getMsg().getPayload())).sum();
+        long block = -1L;
+        if (shard) {
+            if (numTokens > 0) {
+                block = fetchAddressBlock(batch, numTokens);
+                if (block < 0) {
+                    return;
+                }
+            }
+        } else if (globalLogTail.get() + numTokens > reservedTail) {
+            persistCheckpoint(globalLogTail.get() + numTokens + CHECKPOINT_RESERVATION);
+        }
+
+        TokenResponse[] responses = new TokenResponse[batch.size()];
+        stateVersion.incrementAndGet();
+        try {
+            if (!outstandingBlocks.isEmpty() || !shardLocks.isEmpty()) {
+                expire();
+            }
+            for (int i = 0; i < batch.size(); i++) {
+                PendingRequest p = batch.get(i);
+                try {
+                    Object payload = p.getMsg().getPayload();
+                    if (isLocked(payload)) {
+                        deferredRequests.add(p);
+                    } else if (isGlobalTailQuery(payload) && !outstandingBlocks.isEmpty()) {
+                        waitingQueries.add(new WaitingQuery(p, outstandingBlocks.lastKey()));
+                    } else {
+                        responses[i] = allocatePayload(payload);
+                    }
+                } catch (RuntimeException e) {
+                    log.error("Error allocating token request {}", p.getMsg(), e);
+                }
+            }
+        } finally {
+            stateVersion.incrementAndGet();
+        }
+        tokenBatches.incrementAndGet();
+
+        if (block >= 0) {
+            reportAddressBlock(block);
+        }
+
+        for (int i = 0; i < batch.size(); i++) {
+            if (responses[i] != null) {
+                PendingRequest p = batch.get(i);
+                p.getRouter().sendResponse(p.getCtx(), p.getMsg(), CorfuMsgType.TOKEN_RES.payloadMsg(responses[i]));
+                metrics.recordRequest(getRequestType(p.getMsg().getPayload()), p.getReceivedTime());
+            }
+        }
+
+        answerWaitingQueries();
+        if (!subscribers.isEmpty()) {
+            notifySubscribers(batch, responses);
+        }
+    }
+
+    /**
+     * Get the number of addresses a pending request may be issued.
+     */
+    private static long getNumTokens(Object payload) {
+        if (payload instanceof TokenBatchRequest) {
+            return ((TokenBatchRequest) payload).getRequests().stream().mapToLong(TokenRequest::getNumTokens).sum();
+        }
+        if (payload instanceof TokenRequest && ((TokenRequest) payload).getReqType() != TokenRequest.TK_QUERY) {
+            return ((TokenRequest) payload).getNumTokens();
+        }
+        if (payload instanceof AddressBlockRequest) {
+            return Math.max(0L, ((AddressBlockRequest) payload).getNumTokens());
+        }
+        return 0L;
+    }
+
+    /**
+     * Whether a request is a query of the global tail.
+     */
+    private static boolean isGlobalTailQuery(Object payload) {
+        return payload instanceof TokenRequest
+                && ((TokenRequest) payload).getReqType() == TokenRequest.TK_QUERY
+                && ((TokenRequest) payload).getStreams().isEmpty();
+    }
+
+    /**
+     * Get the streams a token request writes to or resolves conflicts on.
+     */
+    private static Set<UUID> getRequestStreams(TokenRequest req) {
+        Set<UUID> streams = new HashSet<>();
+        if (req.getStreams() != null) {
+            streams.addAll(req.getStreams());
+        }
+        if (req.getTxnResolution() != null) {
+            streams.addAll(req.getTxnResolution().getConflictSet().keySet());
+            streams.addAll(req.getTxnResolution().getWriteConflictParams().keySet());
+        }
+        return streams;
+    }
+
+    /**
+     * Whether a request is on streams locked by a request spanning several shards, and must
+     * be held back until the lock is released. Must be called by the writer.
+     */
+    private boolean isLocked(Object payload) {
+        if (lockedStreams.isEmpty()) {
+            return false;
+        }
+
+        Set<UUID> streams = new HashSet<>();
+        if (payload instanceof TokenBatchRequest) {
+            ((TokenBatchRequest) payload).getRequests().forEach(req -> streams.addAll(req.getStreams()));
+        } else if (payload instanceof TokenRequest
+                && ((TokenRequest) payload).getReqType() != TokenRequest.TK_QUERY) {
+            streams.addAll(getRequestStreams((TokenRequest) payload));
+        } else if (payload instanceof ShardRequest
+                && ((ShardRequest) payload).getType() == ShardRequest.SHARD_LOCK) {
+            streams.addAll(getRequestStreams(((ShardRequest) payload).getRequest()));
+        }
+        return streams.stream().anyMatch(lockedStreams::containsKey);
+    }
+
+    /**
+     * Take a block of addresses for a batch from the primary sequencer. If the sequencer can't
+     * be reached, the requests of the batch are answered with SEQUENCER_UNAVAILABLE, so their
+     * clients retry them. If the block took so long the primary sequencer may have dropped it,
+     * the block is filled and the batch retried.
+     *
+     * @param batch     The batch of token requests.
+     * @param numTokens The number of addresses of the block.
+     * @return The first address of the block, or -1L if the batch isn't allocated.
+     */
+    private long fetchAddressBlock(List<PendingRequest> batch, long numTokens) {
+        long start = System.nanoTime();
+        final long block;
+        try {
+            block = CFUtils.getUninterruptibly(getShardRuntime().getLayoutView().getLayout().getSequencer(0)
+                    .allocateAddressBlock(numTokens, -1L)).getToken();
+        } catch (RuntimeException e) {
+            log.error("Failed to take an address block from the primary sequencer, rejecting {} requests",
+                    batch.size(), e);
+            for (PendingRequest p : batch) {
+                p.getRouter().sendResponse(p.getCtx(), p.getMsg(), CorfuMsgType.SEQUENCER_UNAVAILABLE.msg());
+            }
+            return -1L;
+        }
+
+        if (System.nanoTime() - start > TimeUnit.MILLISECONDS.toNanos(SHARD_LOCK_TIMEOUT_MS)) {
+            log.warn("Address block {} took too long, filling it and retrying {} requests", block, batch.size());
+            scheduler.execute(() -> fillHoles(block, block + numTokens));
+            pendingRequests.addAll(batch);
+            return -1L;
+        }
+
+        blockNext = block;
+        blockEnd = block + numTokens;
+        return block;
+    }
+
+    /**
+     * Report the block of a batch applied to the primary sequencer, once the batch is
+     * published, and fill the addresses of the block left unissued, by aborted transactions
+     * and held back requests.
+     */
+    private void reportAddressBlock(long block) {
+        getShardRuntime().getLayoutView().getLayout().getSequencer(0).allocateAddressBlock(0L, block);
+        if (blockNext < blockEnd) {
+            final long start = blockNext;
+            final long end = blockEnd;
+            scheduler.execute(() -> fillHoles(start, end));
+        }
+        blockNext = blockEnd;
+    }
+
+    private void fillHoles(long start, long end) {
+        try {
+            for (long address = start; address < end; address++) {
+                try {
+                    getShardRuntime().getAddressSpaceView().fillHole(address);
+                } catch (OverwriteException oe) {
+                    // Filled already.
+                }
+            }
+        } catch (RuntimeException e) {
+            log.error("Failed to fill the unissued addresses {} to {}", start, end, e);
+        }
+    }
+
+    /**
+     * Answer the queries of the global tail which no longer wait for an outstanding block.
+     * Must be called by the writer.
+     */
+    private void answerWaitingQueries() {
+        if (waitingQueries.isEmpty()) {
+            return;
+        }
+
+        Map.Entry<Long, Long> first = outstandingBlocks.firstEntry();
+        Iterator<WaitingQuery> queries = waitingQueries.iterator();
+        while (queries.hasNext()) {
+            WaitingQuery query = queries.next();
+            if (first == null || query.getLastBlock() < first.getKey()) {
+                PendingRequest p = query.getRequest();
+                p.getRouter().sendResponse(p.getCtx(), p.getMsg(),
+                        CorfuMsgType.TOKEN_RES.payloadMsg(queryTails((TokenRequest) p.getMsg().getPayload())));
+                metrics.recordRequest(RequestType.QUERY, p.getReceivedTime());
+                queries.remove();
+            }
+        }
+    }
+
+    /**
+     * Drop the outstanding blocks and release the locks past their deadline. Must be called
+     * by the writer, while the state version is odd.
+     */
+    private void expire() {
+        long now = System.nanoTime();
+        outstandingBlocks.entrySet().removeIf(block -> {
+            if (now - block.getValue() > 0) {
+                log.warn("Address block {} was not reported applied, dropping it", block.getKey());
+                return true;
+            }
+            return false;
+        });
+
+        Iterator<ShardLock> locks = shardLocks.values().iterator();
+        while (locks.hasNext()) {
+            ShardLock lock = locks.next();
+            if (now - lock.getDeadline() > 0) {
+                log.debug("Shard lock {} expired", lock.getLockId());
+                locks.remove();
+                release(lock);
+            }
+        }
+    }
+
+    private void runExpiry() {
+        if ((outstandingBlocks.isEmpty() && shardLocks.isEmpty()) || !writer.compareAndSet(false, true)) {
+            // Otherwise the writer expires them with its next batch.
             return;
         }
+        try {
+            stateVersion.incrementAndGet();
+            try {
+                expire();
+            } finally {
+                stateVersion.incrementAndGet();
+            }
+            answerWaitingQueries();
+        } finally {
+            writer.set(false);
+        }
+        drainPendingRequests();
+    }
+
+    /**
+     * Allocate a pending request. Must be called by the writer.
+     */
+    private TokenResponse allocatePayload(Object payload) {
+        if (payload instanceof TokenBatchRequest) {
+            return allocate((TokenBatchRequest) payload);
+        } else if (payload instanceof AddressBlockRequest) {
+            return allocate((AddressBlockRequest) payload);
+        } else if (payload instanceof ShardRequest) {
+            ShardRequest req = (ShardRequest) payload;
+            return req.getType() == ShardRequest.SHARD_LOCK ? lock(req) : commit(req);
+        }
+        return allocate((TokenRequest) payload);
+    }
+
+    /**
+     * Get the type of a pending request, to count it under.
+     */
+    private static RequestType getRequestType(Object payload) {
+        if (payload instanceof TokenBatchRequest) {
+            return RequestType.BATCH;
+        } else if (payload instanceof AddressBlockRequest) {
+            return RequestType.ADDRESS_BLOCK;
+        } else if (payload instanceof ShardRequest) {
+            return ((ShardRequest) payload).getType() == ShardRequest.SHARD_LOCK
+                    ? RequestType.SHARD_LOCK : RequestType.SHARD_COMMIT;
+        }
+        switch (((TokenRequest) payload).getReqType()) {
+            case TokenRequest.TK_QUERY:
+                return RequestType.QUERY;
+            case TokenRequest.TK_RAW:
+                return RequestType.RAW;
+            case TokenRequest.TK_TX:
+                return RequestType.TX;
+            default:
+                return RequestType.MULTI_STREAM;
+        }
+    }
+
+    /**
+     * Allocate the tokens of a request. Must be called by the writer.
+     *
+     * @param req The token request.
+     * @return The token response.
+     */
+    private TokenResponse allocate(TokenRequest req) {
+        // queries are only queued while recovering
+        if (req.getReqType() == TokenRequest.TK_QUERY) {
+            return queryTails(req);
+        }
 
         // for raw log implementation, simply extend the global log tail and return the global-log token
         if (req.getReqType() == TokenRequest.TK_RAW) {
-            r.sendResponse(ctx, msg, CorfuMsgType.TOKEN_RES.payloadMsg(
-                    new TokenResponse(globalLogTail.getAndAdd(req.getNumTokens()), Collections.emptyMap(), Collections.emptyMap())));
-            return;
+            return new TokenResponse(issueTokens(req.getNumTokens()), Collections.emptyMap(),
+                    Collections.emptyMap());
         }
 
         // in the TK_TX request type, the sequencer is utilized for transaction conflict-resolution.
@@ -254,15 +1184,23 @@ public class SequencerServer extends AbstractServer {
 
             if (!txnCanCommit(req.getTxnResolution())) {
                 // If the txn aborts, then DO NOT hand out a token.
-                r.sendResponse(ctx, msg, CorfuMsgType.TOKEN_RES.payloadMsg(
-                        new TokenResponse(-1L, Collections.emptyMap(), Collections.emptyMap())));
-                return;
+                return new TokenResponse(-1L, Collections.emptyMap(), Collections.emptyMap());
             }
         }
 
         // extend the tail of the global log by the requested # of tokens
         // currentTail is the first available position in the global log
-        long currentTail = globalLogTail.getAndAdd(req.getNumTokens());
+        return applyTokens(req, issueTokens(req.getNumTokens()));
+    }
+
+    /**
+     * Advance the streams of a request to the tokens issued to it. Must be called by the writer.
+     *
+     * @param req         The token request.
+     * @param currentTail The first token issued to the request.
+     * @return The token response.
+     */
+    private TokenResponse applyTokens(TokenRequest req, long currentTail) {
         long newTail = currentTail + req.getNumTokens();
 
         // for each streams:
@@ -274,34 +1212,27 @@ public class SequencerServer extends AbstractServer {
         for (UUID id : req.getStreams()) {
 
             // step 1. and 2. (comment above)
-            streamTailToGlobalTailMap.compute(id, (k, v) -> {
-                if (v == null) {
-                    backPointerMap.put(k, -1L);
-                    return newTail-1;
-                } else {
-                    backPointerMap.put(k, v);
-
-                    // legacy code, addition sanity check instead:
-                    //return Math.max(newTail - 1, v);
-                    if (newTail-1 < v)
-                        log.error("backpointer {} is already greater than newTail-1 {}", v, newTail-1);
-
-                    return newTail-1;
-                }
-            });
+            Long backpointer = streamTailToGlobalTailMap.put(id, newTail - 1);
+            if (backpointer == null) {
+                backPointerMap.put(id, -1L);
+            } else {
+                backPointerMap.put(id, backpointer);
+
+                // legacy code, addition sanity check instead:
+                //return Math.max(newTail - 1, v);
+                if (newTail-1 < backpointer)
+                    log.error("backpointer {} is already greater than newTail-1 {}", backpointer, newTail-1);
+            }
 
             // step 3. (comment above)
-            streamTailMap.compute(id, (k, v) -> {
-                if (v == null) {
-                    requestStreamTokens.put(k, req.getNumTokens() - 1L);
-                    return req.getNumTokens() - 1L;
-                }
-                requestStreamTokens.put(k, v + req.getNumTokens());
-                return v + req.getNumTokens();
-            });
+            Long streamTail = streamTailMap.get(id);
+            long newStreamTail = streamTail == null ? req.getNumTokens() - 1L : streamTail + req.getNumTokens();
+            streamTailMap.put(id, newStreamTail);
+            requestStreamTokens.put(id, newStreamTail);
+            metrics.recordStreamTokens(id, req.getNumTokens());
         }
 
-        // update the cache of conflict parameters
+        // update the table of conflict parameters
         if (req.getTxnResolution() != null)
             req.getTxnResolution().getWriteConflictParams().entrySet()
                 .stream()
@@ -310,18 +1241,149 @@ public class SequencerServer extends AbstractServer {
                         // and for each conflict param
                             txEntry.getValue().stream().forEach(conflictParam ->
                                     // insert an entry with the new timestamp
-                                    // using the hash code based on the param
-                                    // and the stream id.
-                                    conflictToGlobalTailCache.put(
-                                            getConflictHashCode(txEntry
-                                                    .getKey(), conflictParam),
-                                            newTail - 1)));
+                                    // for the param of the stream id.
+                                    conflictTable.put(txEntry.getKey(),
+                                            conflictParam, newTail - 1)));
 
         log.debug("token {} backpointers {} stream-tokens {}", currentTail, backPointerMap.build(), requestStreamTokens.build());
         // return the token response with the new global tail, new streams tails, and the streams backpointers
-        r.sendResponse(ctx, msg, CorfuMsgType.TOKEN_RES.payloadMsg(
-                new TokenResponse(currentTail,
+        return new TokenResponse(currentTail,
                         backPointerMap.build(),
-                        requestStreamTokens.build())));
+                        requestStreamTokens.build());
+    }
+
+    /**
+     * Hand a block of addresses to a shard, after dropping the block it reports applied.
+     * Must be called by the writer.
+     *
+     * @param req The address block request.
+     * @return The first address of the block, or -1L if none was requested.
+     */
+    private TokenResponse allocate(AddressBlockRequest req) {
+        if (req.getAppliedBlock() >= 0) {
+            outstandingBlocks.remove(req.getAppliedBlock());
+        }
+        if (req.getNumTokens() <= 0) {
+            return new TokenResponse(-1L, Collections.emptyMap(), Collections.emptyMap());
+        }
+
+        long block = issueTokens(req.getNumTokens());
+        outstandingBlocks.put(block, System.nanoTime() + 2 * TimeUnit.MILLISECONDS.toNanos(SHARD_LOCK_TIMEOUT_MS));
+        log.trace("address block {} of {} tokens", block, req.getNumTokens());
+        return new TokenResponse(block, Collections.emptyMap(), Collections.emptyMap());
+    }
+
+    /**
+     * Lock the streams of the part of a request spanning several shards on this shard, once
+     * the part of its transaction on them can commit. Must be called by the writer.
+     *
+     * @param shardReq The lock request.
+     * @return The last global and local addresses issued to each stream of the request, or a
+     * token of -1L if its transaction aborts.
+     */
+    private TokenResponse lock(ShardRequest shardReq) {
+        TokenRequest req = shardReq.getRequest();
+        if (req.getReqType() == TokenRequest.TK_TX && !txnCanCommit(req.getTxnResolution())) {
+            return new TokenResponse(-1L, Collections.emptyMap(), Collections.emptyMap());
+        }
+
+        ShardLock lock = new ShardLock(shardReq.getLockId(), req, getRequestStreams(req),
+                System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(SHARD_LOCK_TIMEOUT_MS));
+        shardLocks.put(lock.getLockId(), lock);
+        lock.getStreams().forEach(id -> lockedStreams.put(id, lock.getLockId()));
+
+        Map<UUID, Long> backPointerMap = new HashMap<>();
+        Map<UUID, Long> streamTails = new HashMap<>();
+        for (UUID id : req.getStreams()) {
+            backPointerMap.put(id, streamTailToGlobalTailMap.getOrDefault(id, -1L));
+            streamTails.put(id, streamTailMap.getOrDefault(id, -1L));
+        }
+        return new TokenResponse(0L, backPointerMap, streamTails);
+    }
+
+    /**
+     * Release a lock, and commit the addresses of its request to its streams, unless the
+     * commit releases it. Must be called by the writer.
+     *
+     * @param shardReq The commit request.
+     * @return The token response of the part of the request on this shard, or a token of
+     * -1L if the lock is released without committing.
+     */
+    private TokenResponse commit(ShardRequest shardReq) {
+        ShardLock lock = shardLocks.remove(shardReq.getLockId());
+        if (lock == null) {
+            log.debug("Shard lock {} expired before its commit", shardReq.getLockId());
+            return new TokenResponse(-1L, Collections.emptyMap(), Collections.emptyMap());
+        }
+        release(lock);
+        if (shardReq.getAddress() < 0) {
+            return new TokenResponse(-1L, Collections.emptyMap(), Collections.emptyMap());
+        }
+
+        globalLogTail.accumulateAndGet(shardReq.getAddress() + lock.getRequest().getNumTokens(), Math::max);
+        return applyTokens(lock.getRequest(), shardReq.getAddress());
+    }
+
+    /**
+     * Unlock the streams of a lock, and queue the requests held back again. Must be called by
+     * the writer.
+     */
+    private void release(ShardLock lock) {
+        lock.getStreams().forEach(id -> lockedStreams.remove(id, lock.getLockId()));
+        pendingRequests.addAll(deferredRequests);
+        deferredRequests.clear();
+    }
+
+    /**
+     * Allocate one contiguous block to a batch of stream token requests, in order.
+     * Must be called by the writer.
+     *
+     * @param batch The batch of token requests.
+     * @return The first address of the block, and the last global and local addresses
+     * issued to each stream of the batch before it.
+     */
+    private TokenResponse allocate(TokenBatchRequest batch) {
+        long numTokens = 0L;
+        Map<UUID, Long> backPointerMap = new HashMap<>();
+        Map<UUID, Long> streamTails = new HashMap<>();
+        for (TokenRequest req : batch.getRequests()) {
+            numTokens += req.getNumTokens();
+            for (UUID id : req.getStreams()) {
+                backPointerMap.putIfAbsent(id, streamTailToGlobalTailMap.getOrDefault(id, -1L));
+                streamTails.putIfAbsent(id, streamTailMap.getOrDefault(id, -1L));
+            }
+        }
+
+        long currentTail = issueTokens(numTokens);
+        long tail = currentTail;
+        for (TokenRequest req : batch.getRequests()) {
+            tail += req.getNumTokens();
+            for (UUID id : req.getStreams()) {
+                streamTailToGlobalTailMap.put(id, tail - 1);
+                streamTailMap.put(id, streamTailMap.getOrDefault(id, -1L) + req.getNumTokens());
+                metrics.recordStreamTokens(id, req.getNumTokens());
+            }
+        }
+
+        log.debug("token batch {} of {} requests, {} tokens", currentTail, batch.getRequests().size(), numTokens);
+        return new TokenResponse(currentTail, backPointerMap, streamTails);
+    }
+
+    /**
+     * Shutdown the server, checkpointing its state without a reservation, so that it
+     * recovers without reading the log.
+     */
+    @Override
+    public void shutdown() {
+        super.shutdown();
+        scheduler.shutdownNow();
+        if (checkpoint(0L)) {
+            log.info("Sequencer shut down at tail {}", globalLogTail.get());
+        }
+        synchronized (this) {
+            if (shardRuntime != null) {
+                shardRuntime.shutdown();
+            }
+        }
     }
 }
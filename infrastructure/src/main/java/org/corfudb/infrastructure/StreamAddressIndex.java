@@ -0,0 +1,167 @@
+package org.corfudb.infrastructure;
+
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import org.corfudb.protocols.wireprotocol.StreamAddressResponse;
+
+/**
+ * An in-memory index of the global addresses of the entries of each stream, built as entries
+ * are appended to the log unit, so that a client can learn the entries of a stream in a range
+ * of the log without reading the entries one backpointer at a time.
+ * <p>
+ * Each address is indexed with the backpointer of its entry for the stream, so a client can
+ * check that the addresses it was given form an unbroken chain of backpointers, and only read
+ * the entries of the parts of the stream the index doesn't know, like the entries appended
+ * before the log unit started or dropped from the index.
+ * <p>
+ * The index holds at most {@link #MAX_ADDRESSES} addresses. Once it is full, the addresses of
+ * the oldest part of the log are dropped, along with the trimmed addresses, by {@link #compact(long)}.
+ */
+@Slf4j
+public class StreamAddressIndex {
+
+    /**
+     * The default maximum number of addresses indexed.
+     */
+    static public long MAX_ADDRESSES = 1_000_000L;
+
+    private final Map<UUID, ConcurrentNavigableMap<Long, Long>> streams = new ConcurrentHashMap<>();
+    private final long maxAddresses;
+
+    /**
+     * The highest global address indexed.
+     */
+    private final AtomicLong maxAddress = new AtomicLong(-1L);
+
+    /**
+     * The global address below which addresses are not indexed anymore.
+     */
+    private volatile long floor = 0L;
+
+    /**
+     * The number of addresses indexed, counting an address once for each of its streams.
+     */
+    @Getter
+    private final AtomicLong size = new AtomicLong();
+
+    public StreamAddressIndex() {
+        this(MAX_ADDRESSES);
+    }
+
+    /**
+     * Create a stream address index.
+     *
+     * @param maxAddresses The maximum number of addresses indexed.
+     */
+    public StreamAddressIndex(long maxAddresses) {
+        this.maxAddresses = maxAddresses;
+    }
+
+    /**
+     * Index an entry appended to the global log.
+     *
+     * @param address      The global address of the entry.
+     * @param streamIds    The streams of the entry.
+     * @param backpointers The backpointers of the entry.
+     */
+    public void add(long address, Set<UUID> streamIds, Map<UUID, Long> backpointers) {
+        if (address < floor) {
+            return;
+        }
+
+        for (UUID streamId : streamIds) {
+            Long backpointer = backpointers == null ? null : backpointers.get(streamId);
+            if (streams.computeIfAbsent(streamId, k -> new ConcurrentSkipListMap<>())
+                    .put(address, backpointer == null ? StreamAddressResponse.NO_BACKPOINTER : backpointer) == null) {
+                size.incrementAndGet();
+            }
+        }
+        maxAddress.accumulateAndGet(address, Math::max);
+    }
+
+    /**
+     * Get the addresses of a stream within a range of the global log.
+     *
+     * @param streamId     The stream.
+     * @param start        The first global address of the range.
+     * @param end          The last global address of the range, inclusive.
+     * @param maxAddresses The maximum number of addresses returned.
+     * @return The lowest addresses of the stream in the range, in ascending order,
+     * each mapped to the backpointer of its entry.
+     */
+    public NavigableMap<Long, Long> getAddresses(UUID streamId, long start, long end, int maxAddresses) {
+        NavigableMap<Long, Long> addresses = new TreeMap<>();
+        ConcurrentNavigableMap<Long, Long> stream = streams.get(streamId);
+        if (stream == null || start > end) {
+            return addresses;
+        }
+
+        for (Map.Entry<Long, Long> entry : stream.subMap(start, true, end, true).entrySet()) {
+            if (addresses.size() >= maxAddresses) {
+                break;
+            }
+            addresses.put(entry.getKey(), entry.getValue());
+        }
+        return addresses;
+    }
+
+    /**
+     * Drop the addresses below the trim mark, and, if the index holds more than its maximum
+     * number of addresses, the addresses of the oldest half of the indexed log until it doesn't.
+     *
+     * @param trimMark The prefix trim mark of the global log.
+     * @return The number of addresses dropped.
+     */
+    public synchronized long compact(long trimMark) {
+        long dropped = dropBelow(trimMark);
+        while (size.get() > maxAddresses && floor <= maxAddress.get()) {
+            dropped += dropBelow(floor + (maxAddress.get() - floor) / 2 + 1);
+        }
+
+        if (dropped > 0) {
+            log.debug("Stream address index dropped {} addresses below {}, {} addresses indexed",
+                    dropped, floor, size.get());
+        }
+        return dropped;
+    }
+
+    private long dropBelow(long address) {
+        if (address <= floor) {
+            return 0L;
+        }
+        floor = address;
+
+        long dropped = 0;
+        for (Map.Entry<UUID, ConcurrentNavigableMap<Long, Long>> stream : streams.entrySet()) {
+            Map<Long, Long> head = stream.getValue().headMap(address);
+            int count = head.size();
+            head.clear();
+            dropped += count;
+            if (stream.getValue().isEmpty()) {
+                // An address indexed concurrently may be lost with the stream, which is safe
+                // since clients don't rely on the index holding every address.
+                streams.remove(stream.getKey(), stream.getValue());
+            }
+        }
+        size.addAndGet(-dropped);
+        return dropped;
+    }
+
+    /**
+     * Get the number of streams indexed.
+     */
+    public int getStreamCount() {
+        return streams.size();
+    }
+}
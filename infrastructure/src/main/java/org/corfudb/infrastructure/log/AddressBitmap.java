@@ -0,0 +1,159 @@
+package org.corfudb.infrastructure.log;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import lombok.Getter;
+
+/**
+ * A fixed-size, lock-free bitmap of the addresses written in a dense range of
+ * addresses, such as the addresses of a log segment. Marking an address is an
+ * atomic test-and-set, so it can be used directly for overwrite checks.
+ */
+public class AddressBitmap {
+
+    /**
+     * The first address covered by the bitmap.
+     */
+    @Getter
+    private final long firstAddress;
+
+    /**
+     * The number of addresses covered by the bitmap.
+     */
+    @Getter
+    private final int capacity;
+
+    private final AtomicLongArray words;
+
+    private final AtomicInteger size = new AtomicInteger();
+
+    public AddressBitmap(long firstAddress, int capacity) {
+        this.firstAddress = firstAddress;
+        this.capacity = capacity;
+        this.words = new AtomicLongArray(getWordCount(capacity));
+    }
+
+    /**
+     * Get the number of 64-bit words needed for a bitmap.
+     *
+     * @param capacity The number of addresses covered by the bitmap.
+     * @return The number of words.
+     */
+    public static int getWordCount(int capacity) {
+        return (capacity + Long.SIZE - 1) / Long.SIZE;
+    }
+
+    /**
+     * Atomically mark an address as written.
+     *
+     * @param address The address to mark.
+     * @return True, if the address was not marked before, false if it was already marked.
+     */
+    public boolean testAndSet(long address) {
+        int bit = getBit(address);
+        int index = bit / Long.SIZE;
+        long mask = 1L << (bit % Long.SIZE);
+
+        while (true) {
+            long word = words.get(index);
+            if ((word & mask) != 0) {
+                return false;
+            }
+            if (words.compareAndSet(index, word, word | mask)) {
+                size.incrementAndGet();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Atomically unmark an address, i.e. when its write failed.
+     *
+     * @param address The address to unmark.
+     */
+    public void clear(long address) {
+        int bit = getBit(address);
+        int index = bit / Long.SIZE;
+        long mask = 1L << (bit % Long.SIZE);
+
+        while (true) {
+            long word = words.get(index);
+            if ((word & mask) == 0) {
+                return;
+            }
+            if (words.compareAndSet(index, word, word & ~mask)) {
+                size.decrementAndGet();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Check whether an address is marked as written.
+     *
+     * @param address The address to check.
+     * @return True, if the address is marked.
+     */
+    public boolean contains(long address) {
+        long bit = address - firstAddress;
+        if (bit < 0 || bit >= capacity) {
+            return false;
+        }
+        return (words.get((int) bit / Long.SIZE) & (1L << (bit % Long.SIZE))) != 0;
+    }
+
+    /**
+     * Check whether an address is in the range covered by the bitmap.
+     *
+     * @param address The address to check.
+     * @return True, if the address is covered.
+     */
+    public boolean covers(long address) {
+        return address >= firstAddress && address - firstAddress < capacity;
+    }
+
+    /**
+     * @return The number of addresses marked as written.
+     */
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * Get a snapshot of the words of the bitmap.
+     *
+     * @return The words of the bitmap, the first address being the lowest bit of the first word.
+     */
+    public long[] getWords() {
+        long[] snapshot = new long[words.length()];
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = words.get(i);
+        }
+        return snapshot;
+    }
+
+    /**
+     * Mark all the addresses of a word of the bitmap, i.e. when loading a saved bitmap.
+     *
+     * @param index The index of the word.
+     * @param word  The addresses to mark.
+     */
+    public void setWord(int index, long word) {
+        while (true) {
+            long current = words.get(index);
+            if (words.compareAndSet(index, current, current | word)) {
+                size.addAndGet(Long.bitCount(word & ~current));
+                return;
+            }
+        }
+    }
+
+    private int getBit(long address) {
+        if (!covers(address)) {
+            throw new IllegalArgumentException("Address " + address + " is out of the range ["
+                    + firstAddress + ", " + (firstAddress + capacity) + ")");
+        }
+        return (int) (address - firstAddress);
+    }
+}
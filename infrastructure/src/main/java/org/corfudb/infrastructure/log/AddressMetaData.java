@@ -0,0 +1,20 @@
+package org.corfudb.infrastructure.log;
+
+import lombok.Data;
+
+/**
+ * The location of a log record within a log file, as kept in the
+ * per-segment index of {@link StreamLogFiles}.
+ */
+@Data
+public class AddressMetaData {
+    /**
+     * The offset of the record (starting at its delimiter) in the log file.
+     */
+    final long offset;
+
+    /**
+     * The length of the whole record, including the delimiter and metadata.
+     */
+    final int length;
+}
@@ -0,0 +1,339 @@
+package org.corfudb.infrastructure.log;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import lombok.Data;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import org.corfudb.runtime.exceptions.DataCorruptionException;
+
+/**
+ * A sealed log segment rewritten into Deflate-compressed blocks. Each block holds a run of
+ * whole records, in the record format of the log file they were copied from, so a read only
+ * decompresses the block holding the requested address.
+ * <p>
+ * CompressedSegment: {
+ * blocks (Deflate-compressed runs of records)
+ * record version 4 bytes
+ * record count 4 bytes
+ * block count 4 bytes
+ * records (record count * 20 bytes, as address, block, offset in block and length)
+ * blocks (block count * 16 bytes, as file offset, compressed length and uncompressed length)
+ * checksum 4 bytes (of the index, from the record version on)
+ * index offset 8 bytes
+ * }
+ */
+@Slf4j
+public class CompressedSegment {
+
+    static public final String COMPRESSED_FILE_EXTENSION = ".zlog";
+
+    /**
+     * The target uncompressed size of a block, records larger than a block get a block of their own.
+     */
+    static public int BLOCK_SIZE = 64 * 1024;
+
+    static private final int RECORD_ENTRY_SIZE = Long.BYTES + Integer.BYTES * 3;
+    static private final int BLOCK_ENTRY_SIZE = Long.BYTES + Integer.BYTES * 2;
+    static private final int INDEX_HEADER_SIZE = Integer.BYTES * 3;
+
+    /**
+     * The location of a record within the blocks.
+     */
+    @Data
+    static class RecordLocation {
+        final int block;
+        final int offset;
+        final int length;
+    }
+
+    /**
+     * The location of a compressed block in the file.
+     */
+    @Data
+    static class BlockLocation {
+        final long offset;
+        final int compressedLength;
+        final int length;
+    }
+
+    /**
+     * Identifies a decompressed block in a cache shared by several segments.
+     */
+    @Data
+    static class BlockKey {
+        final String fileName;
+        final int block;
+    }
+
+    @Getter
+    private final String fileName;
+
+    /**
+     * The version of the records held by the segment.
+     */
+    @Getter
+    private final int version;
+
+    private final FileChannel channel;
+    private final Map<Long, RecordLocation> records;
+    private final List<BlockLocation> blocks;
+
+    private CompressedSegment(String fileName, int version, FileChannel channel,
+                              Map<Long, RecordLocation> records, List<BlockLocation> blocks) {
+        this.fileName = fileName;
+        this.version = version;
+        this.channel = channel;
+        this.records = records;
+        this.blocks = blocks;
+    }
+
+    /**
+     * Rewrite the records of a log file into a compressed segment file. The file is written
+     * under a temporary name, synced, and then atomically renamed, so a compressed segment
+     * file is always complete.
+     *
+     * @param fileName   The name of the compressed segment file.
+     * @param logChannel The channel of the log file to read the records from.
+     * @param index      The index of the log file.
+     * @param version    The version of the records of the log file.
+     */
+    static void write(String fileName, FileChannel logChannel, Map<Long, AddressMetaData> index, int version)
+            throws IOException {
+        List<Map.Entry<Long, AddressMetaData>> entries = new ArrayList<>(index.entrySet());
+        entries.sort((a, b) -> Long.compare(a.getValue().getOffset(), b.getValue().getOffset()));
+
+        Map<Long, RecordLocation> records = new HashMap<>();
+        List<BlockLocation> blocks = new ArrayList<>();
+        Path tmpPath = Paths.get(fileName + ".tmp");
+
+        try (FileChannel out = FileChannel.open(tmpPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteArrayOutputStream block = new ByteArrayOutputStream(BLOCK_SIZE);
+
+            for (Map.Entry<Long, AddressMetaData> entry : entries) {
+                AddressMetaData metaData = entry.getValue();
+                if (block.size() > 0 && block.size() + metaData.getLength() > BLOCK_SIZE) {
+                    writeBlock(out, block, blocks);
+                }
+
+                ByteBuffer record = ByteBuffer.allocate(metaData.getLength());
+                StreamLogFiles.readFully(logChannel, record, metaData.getOffset());
+                if (record.hasRemaining()) {
+                    throw new IOException("Log file truncated at offset " + metaData.getOffset());
+                }
+
+                records.put(entry.getKey(), new RecordLocation(blocks.size(), block.size(), metaData.getLength()));
+                block.write(record.array());
+            }
+
+            if (block.size() > 0) {
+                writeBlock(out, block, blocks);
+            }
+
+            long indexOffset = out.position();
+            ByteBuffer indexBuf = ByteBuffer.allocate(INDEX_HEADER_SIZE + records.size() * RECORD_ENTRY_SIZE
+                    + blocks.size() * BLOCK_ENTRY_SIZE + Integer.BYTES + Long.BYTES);
+            indexBuf.putInt(version);
+            indexBuf.putInt(records.size());
+            indexBuf.putInt(blocks.size());
+            for (Map.Entry<Long, RecordLocation> record : records.entrySet()) {
+                indexBuf.putLong(record.getKey());
+                indexBuf.putInt(record.getValue().getBlock());
+                indexBuf.putInt(record.getValue().getOffset());
+                indexBuf.putInt(record.getValue().getLength());
+            }
+            for (BlockLocation location : blocks) {
+                indexBuf.putLong(location.getOffset());
+                indexBuf.putInt(location.getCompressedLength());
+                indexBuf.putInt(location.getLength());
+            }
+            indexBuf.putInt(StreamLogFiles.getChecksum(ByteBuffer.wrap(indexBuf.array(), 0, indexBuf.position())));
+            indexBuf.putLong(indexOffset);
+            indexBuf.flip();
+
+            while (indexBuf.hasRemaining()) {
+                out.write(indexBuf);
+            }
+            out.force(true);
+        }
+
+        Files.move(tmpPath, Paths.get(fileName), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void writeBlock(FileChannel out, ByteArrayOutputStream block, List<BlockLocation> blocks)
+            throws IOException {
+        byte[] data = block.toByteArray();
+        Deflater deflater = new Deflater();
+        try {
+            deflater.setInput(data);
+            deflater.finish();
+
+            ByteArrayOutputStream compressed = new ByteArrayOutputStream(data.length / 2);
+            byte[] buf = new byte[BLOCK_SIZE];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buf);
+                compressed.write(buf, 0, n);
+            }
+
+            ByteBuffer compressedBuf = ByteBuffer.wrap(compressed.toByteArray());
+            blocks.add(new BlockLocation(out.position(), compressedBuf.remaining(), data.length));
+            while (compressedBuf.hasRemaining()) {
+                out.write(compressedBuf);
+            }
+        } finally {
+            deflater.end();
+        }
+        block.reset();
+    }
+
+    /**
+     * Open a compressed segment file, and load its index.
+     *
+     * @param fileName The name of the compressed segment file.
+     * @return The compressed segment.
+     * @throws DataCorruptionException If the index of the file is corrupt.
+     */
+    static CompressedSegment open(String fileName) throws IOException {
+        FileChannel fc = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ);
+        try {
+            long size = fc.size();
+            if (size < Long.BYTES) {
+                throw new DataCorruptionException();
+            }
+
+            ByteBuffer offsetBuf = ByteBuffer.allocate(Long.BYTES);
+            StreamLogFiles.readFully(fc, offsetBuf, size - Long.BYTES);
+            offsetBuf.flip();
+            long indexOffset = offsetBuf.getLong();
+            long indexSize = size - Long.BYTES - indexOffset;
+
+            if (indexOffset < 0 || indexSize < INDEX_HEADER_SIZE + Integer.BYTES || indexSize > Integer.MAX_VALUE) {
+                throw new DataCorruptionException();
+            }
+
+            ByteBuffer indexBuf = ByteBuffer.allocate((int) indexSize);
+            StreamLogFiles.readFully(fc, indexBuf, indexOffset);
+            indexBuf.flip();
+
+            int checksum = indexBuf.getInt(indexBuf.limit() - Integer.BYTES);
+            if (checksum != StreamLogFiles.getChecksum(ByteBuffer.wrap(indexBuf.array(), 0,
+                    indexBuf.limit() - Integer.BYTES))) {
+                throw new DataCorruptionException();
+            }
+
+            int version = indexBuf.getInt();
+            int recordCount = indexBuf.getInt();
+            int blockCount = indexBuf.getInt();
+            if ((long) recordCount * RECORD_ENTRY_SIZE + (long) blockCount * BLOCK_ENTRY_SIZE
+                    != indexSize - INDEX_HEADER_SIZE - Integer.BYTES) {
+                throw new DataCorruptionException();
+            }
+
+            Map<Long, RecordLocation> records = new HashMap<>();
+            for (int i = 0; i < recordCount; i++) {
+                records.put(indexBuf.getLong(), new RecordLocation(indexBuf.getInt(), indexBuf.getInt(),
+                        indexBuf.getInt()));
+            }
+
+            List<BlockLocation> blocks = new ArrayList<>(blockCount);
+            for (int i = 0; i < blockCount; i++) {
+                blocks.add(new BlockLocation(indexBuf.getLong(), indexBuf.getInt(), indexBuf.getInt()));
+            }
+
+            return new CompressedSegment(fileName, version, fc, records, blocks);
+        } catch (IOException | RuntimeException e) {
+            fc.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Check whether the segment holds a record for an address.
+     */
+    public boolean contains(long address) {
+        return records.containsKey(address);
+    }
+
+    /**
+     * Get the location of the record of an address.
+     *
+     * @param address The address of the record.
+     * @return The location of the record, or null if the segment holds no record for the address.
+     */
+    RecordLocation getRecordLocation(long address) {
+        return records.get(address);
+    }
+
+    /**
+     * Read and decompress a block.
+     *
+     * @param block The number of the block.
+     * @return A buffer holding the decompressed records of the block.
+     * @throws DataCorruptionException If the block can't be decompressed.
+     */
+    ByteBuffer readBlock(int block) {
+        BlockLocation location = blocks.get(block);
+        Inflater inflater = new Inflater();
+        try {
+            ByteBuffer compressed = ByteBuffer.allocate(location.getCompressedLength());
+            StreamLogFiles.readFully(channel, compressed, location.getOffset());
+            inflater.setInput(compressed.array());
+
+            byte[] data = new byte[location.getLength()];
+            int length = 0;
+            while (length < data.length && !inflater.finished()) {
+                int n = inflater.inflate(data, length, data.length - length);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                length += n;
+            }
+
+            if (length != data.length) {
+                log.error("Block {} of {} is truncated", block, fileName);
+                throw new DataCorruptionException();
+            }
+            return ByteBuffer.wrap(data).asReadOnlyBuffer();
+        } catch (IOException e) {
+            log.error("Error reading block {} of {}", block, fileName, e);
+            throw new RuntimeException(e);
+        } catch (DataFormatException e) {
+            log.error("Block {} of {} is corrupt", block, fileName, e);
+            throw new DataCorruptionException();
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * Get the compressed size of the segment, in bytes.
+     */
+    public long size() throws IOException {
+        return channel.size();
+    }
+
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.warn("Error closing compressed segment {}: {}", fileName, e.toString());
+        }
+    }
+}
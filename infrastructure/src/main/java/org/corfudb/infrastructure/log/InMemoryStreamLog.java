@@ -1,65 +1,302 @@
 package org.corfudb.infrastructure.log;
 
-import java.util.HashMap;
+import java.nio.ByteBuffer;
 import java.util.Map;
+import java.util.Queue;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import lombok.Data;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
 
 import org.corfudb.protocols.wireprotocol.LogData;
+import org.corfudb.runtime.exceptions.OutOfSpaceException;
 import org.corfudb.runtime.exceptions.OverwriteException;
+import org.corfudb.runtime.exceptions.TrimmedException;
 
 /**
- * This class implements the StreamLog interface using a Java hash map. The stream log is only stored in-memory and not
- * persisted and thus should only be used for testing.
- *
+ * This class implements the StreamLog interface in memory. The stream log is not persisted and thus
+ * should only be used for testing, or for ephemeral deployments.
+ * <p>
+ * The entries are serialized into a ring of fixed-size chunks of direct memory, which are allocated
+ * on first use and then reused every time the ring wraps around, so the log never holds more than its
+ * capacity. When the ring wraps around onto a chunk, the entries of that chunk are evicted and the log
+ * is automatically prefix trimmed up to the highest address evicted, so older addresses read as
+ * {@link LogData#TRIMMED}.
+ * <p>
+ * Appends reserve space in the ring with a CAS on the tail of the ring, and only share a read lock
+ * with the readers of the chunk they write into; a chunk is exclusively locked only while it is
+ * recycled. Entries larger than a chunk are kept on the heap, but still reserve as many whole
+ * chunks of the ring as their size, so the space they take is evicted like any other; entries
+ * larger than the ring are rejected.
+ * <p>
  * Created by maithem on 7/21/16.
  */
+@Slf4j
 public class InMemoryStreamLog implements StreamLog {
 
-    private Map<Long, LogData> logCache;
-    private Map<UUID, Map<Long, LogData>> streamCache;
+    /**
+     * The size of a chunk of the ring, in bytes.
+     */
+    static public int CHUNK_SIZE = 1024 * 1024;
+
+    /**
+     * The default capacity of the log, in bytes.
+     */
+    static public final long DEFAULT_CAPACITY = 1_000_000_000L;
+
+    /**
+     * The location of an entry in the ring.
+     */
+    @Data
+    static class Location {
+        final int chunk;
+        final long generation;
+        final int offset;
+        final int length;
+
+        /**
+         * The entry itself, if it was too large for a chunk.
+         */
+        final LogData entry;
+    }
+
+    /**
+     * A chunk of the ring, its generation is the lap of the ring its entries were appended in.
+     */
+    static class Chunk {
+        ByteBuffer buffer;
+        volatile long generation = -1L;
+        final Queue<LogAddress> addresses = new ConcurrentLinkedQueue<>();
+        final ReadWriteLock lock = new ReentrantReadWriteLock();
+    }
+
+    private final Map<LogAddress, Location> index = new ConcurrentHashMap<>();
+    private final Chunk[] chunks;
+    private final long ringSize;
+
+    /**
+     * The position in the ring, counted in bytes since the log was created, of the next append.
+     */
+    private final AtomicLong tail = new AtomicLong();
+
+    private final AtomicLong trimMark = new AtomicLong();
+    private final Map<UUID, Long> streamTrimMarks = new ConcurrentHashMap<>();
+
+    /**
+     * The number of entries evicted when the ring wrapped around.
+     */
+    @Getter
+    private final AtomicLong evictions = new AtomicLong();
 
     public InMemoryStreamLog() {
-        logCache = new ConcurrentHashMap();
-        streamCache = new HashMap();
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Create an in-memory stream log.
+     *
+     * @param capacity The maximum number of bytes of direct memory used by the log.
+     */
+    public InMemoryStreamLog(long capacity) {
+        chunks = new Chunk[(int) Math.max(2, capacity / CHUNK_SIZE)];
+        for (int i = 0; i < chunks.length; i++) {
+            chunks[i] = new Chunk();
+        }
+        ringSize = (long) chunks.length * CHUNK_SIZE;
     }
 
     @Override
-    public synchronized void append(LogAddress logAddress, LogData entry) {
-        if (logAddress.getStream() == null) {
-            if(logCache.containsKey(logAddress.address)) {
-                throw new OverwriteException();
+    public void append(LogAddress logAddress, LogData entry) {
+        if (isTrimmed(logAddress)) {
+            throw new TrimmedException();
+        }
+
+        if (index.containsKey(logAddress)) {
+            throw new OverwriteException();
+        }
+
+        ByteBuf serialized = Unpooled.buffer();
+        entry.doSerialize(serialized);
+        int length = serialized.readableBytes() > CHUNK_SIZE ? 0 : serialized.readableBytes();
+        // An entry kept on the heap is charged the whole chunks its size spans.
+        long charge = length == 0
+                ? (serialized.readableBytes() + CHUNK_SIZE - 1L) / CHUNK_SIZE * CHUNK_SIZE
+                : length;
+        if (charge > ringSize) {
+            log.warn("append: entry of {} bytes at {} is larger than the log", serialized.readableBytes(),
+                    logAddress);
+            throw new OutOfSpaceException();
+        }
+
+        while (true) {
+            long position = reserve(charge);
+            long lap = position / ringSize;
+            int chunkNumber = (int) ((position / CHUNK_SIZE) % chunks.length);
+            Chunk chunk = chunks[chunkNumber];
+            recycleSpan(position, charge);
+
+            if (!lockChunk(chunkNumber, chunk, lap)) {
+                // The ring wrapped around onto the reserved space before it was written.
+                continue;
+            }
+
+            try {
+                int offset = (int) (position % CHUNK_SIZE);
+                Location location;
+                if (length == 0) {
+                    location = new Location(chunkNumber, lap, offset, length, entry);
+                } else {
+                    ByteBuffer target = chunk.buffer.duplicate();
+                    target.limit(offset + length);
+                    target.position(offset);
+                    serialized.readBytes(target);
+                    location = new Location(chunkNumber, lap, offset, length, null);
+                }
+
+                chunk.addresses.add(logAddress);
+                if (index.putIfAbsent(logAddress, location) != null) {
+                    throw new OverwriteException();
+                }
+                return;
+            } finally {
+                chunk.lock.readLock().unlock();
             }
-            logCache.put(logAddress.address, entry);
-        } else {
+        }
+    }
 
-            Map<Long, LogData> stream = streamCache.get(logAddress.getStream());
-            if(stream == null) {
-                stream = new HashMap();
-                streamCache.put(logAddress.getStream(), stream);
+    /**
+     * Reserve space in the ring, so that an entry never spans two chunks.
+     *
+     * @param length The length of the entry.
+     * @return The position of the reserved space.
+     */
+    private long reserve(long length) {
+        while (true) {
+            long current = tail.get();
+            long offset = current % CHUNK_SIZE;
+            long start = offset != 0 && offset + length > CHUNK_SIZE ? current - offset + CHUNK_SIZE : current;
+            if (tail.compareAndSet(current, start + length)) {
+                return start;
             }
+        }
+    }
 
-            if(stream.containsKey(logAddress.address)) {
-                throw new OverwriteException();
-            } else {
-                stream.put(logAddress.address, entry);
+    /**
+     * Recycle the chunks after the first one of the space reserved for an entry kept on the heap,
+     * evicting the entries they held. No lock is held while doing so, since chunks are recycled
+     * under their write lock.
+     *
+     * @param position The position of the reserved space.
+     * @param length   The length of the reserved space.
+     */
+    private void recycleSpan(long position, long length) {
+        for (long next = position + CHUNK_SIZE; next < position + length; next += CHUNK_SIZE) {
+            int chunkNumber = (int) ((next / CHUNK_SIZE) % chunks.length);
+            Chunk chunk = chunks[chunkNumber];
+            if (lockChunk(chunkNumber, chunk, next / ringSize)) {
+                chunk.lock.readLock().unlock();
             }
         }
     }
 
+    /**
+     * Acquire the read lock of a chunk for a lap of the ring, recycling the chunk if it
+     * still holds the entries of an older lap.
+     *
+     * @return True, if the read lock is held, false if the chunk is already used by a later lap.
+     */
+    private boolean lockChunk(int chunkNumber, Chunk chunk, long lap) {
+        if (chunk.generation < lap) {
+            chunk.lock.writeLock().lock();
+            try {
+                if (chunk.generation < lap) {
+                    recycle(chunkNumber, chunk, lap);
+                }
+            } finally {
+                chunk.lock.writeLock().unlock();
+            }
+        }
+
+        chunk.lock.readLock().lock();
+        if (chunk.generation != lap) {
+            chunk.lock.readLock().unlock();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Evict the entries of a chunk, trimming the log up to the highest evicted address.
+     */
+    private void recycle(int chunkNumber, Chunk chunk, long lap) {
+        if (chunk.buffer == null) {
+            chunk.buffer = ByteBuffer.allocateDirect(CHUNK_SIZE);
+        }
+
+        LogAddress address;
+        while ((address = chunk.addresses.poll()) != null) {
+            Location location = index.get(address);
+            if (location != null && location.getChunk() == chunkNumber
+                    && location.getGeneration() == chunk.generation && index.remove(address, location)) {
+                evictions.incrementAndGet();
+                if (address.getStream() == null) {
+                    trimMark.accumulateAndGet(address.address + 1, Math::max);
+                } else {
+                    streamTrimMarks.merge(address.getStream(), address.address + 1, Math::max);
+                }
+            }
+        }
+
+        log.trace("Recycled chunk {} for lap {}, trim mark is {}", chunkNumber, lap, trimMark.get());
+        chunk.generation = lap;
+    }
+
     @Override
     public LogData read(LogAddress logAddress) {
-        if (logAddress.getStream() == null) {
-            return logCache.get(logAddress.address);
-        } else {
-
-            Map<Long, LogData> stream = streamCache.get(logAddress.getStream());
-            if (stream == null) {
-                return null;
-            } else {
-                return stream.get(logAddress.address);
+        if (isTrimmed(logAddress)) {
+            return LogData.TRIMMED;
+        }
+
+        Location location = index.get(logAddress);
+        if (location == null) {
+            return isTrimmed(logAddress) ? LogData.TRIMMED : null;
+        }
+
+        Chunk chunk = chunks[location.getChunk()];
+        chunk.lock.readLock().lock();
+        try {
+            if (chunk.generation != location.getGeneration()) {
+                // The entry was evicted since it was looked up.
+                return LogData.TRIMMED;
+            }
+
+            if (location.getEntry() != null) {
+                return location.getEntry();
             }
+
+            ByteBuffer entry = chunk.buffer.duplicate();
+            entry.limit(location.getOffset() + location.getLength());
+            entry.position(location.getOffset());
+            return new LogData(Unpooled.wrappedBuffer(entry));
+        } finally {
+            chunk.lock.readLock().unlock();
+        }
+    }
+
+    private boolean isTrimmed(LogAddress logAddress) {
+        if (logAddress.getStream() == null) {
+            return logAddress.address < trimMark.get();
         }
+        return logAddress.address < streamTrimMarks.getOrDefault(logAddress.getStream(), 0L);
     }
 
     @Override
@@ -67,10 +304,30 @@ public class InMemoryStreamLog implements StreamLog {
         //no-op
     }
 
+    @Override
+    public void prefixTrim(long address) {
+        trimMark.accumulateAndGet(address, Math::max);
+    }
+
+    @Override
+    public long getTrimMark() {
+        return trimMark.get();
+    }
+
+    @Override
+    public int compact(int maxSegments) {
+        // The space of trimmed entries is reused when the ring wraps around, only the index is cleaned up.
+        long mark = trimMark.get();
+        index.keySet().removeIf(a -> a.getStream() == null && a.address < mark);
+        return 0;
+    }
+
     @Override
     public void close() {
-        logCache = new HashMap();
-        streamCache = new HashMap();
+        index.clear();
+        for (Chunk chunk : chunks) {
+            chunk.addresses.clear();
+        }
     }
 
     @Override
@@ -3,6 +3,9 @@ package org.corfudb.infrastructure.log;
 import org.corfudb.protocols.wireprotocol.LogData;
 
 import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * An interface definition that specifies an api to interact with a StreamLog.
@@ -26,11 +29,66 @@ public interface StreamLog {
      */
     LogData read(LogAddress address);
 
+    /**
+     * Given several addresses, read the corresponding stream entries.
+     * Implementations can read the entries of neighbouring addresses together.
+     *
+     * @param addresses The addresses to read.
+     * @return The stream entries of the addresses which exist.
+     */
+    default Map<LogAddress, LogData> readAll(Collection<LogAddress> addresses) {
+        Map<LogAddress, LogData> entries = new HashMap<>();
+        for (LogAddress address : addresses) {
+            LogData entry = read(address);
+            if (entry != null) {
+                entries.put(address, entry);
+            }
+        }
+        return entries;
+    }
+
     /**
      * Sync the stream log file to secondary storage.
      */
     void sync() throws IOException;
 
+    /**
+     * Sync the stream log files holding the given addresses to secondary storage.
+     * Only the calling writer's own appends need to be made durable, so implementations
+     * can avoid syncing files written by other writers.
+     *
+     * @param addresses The addresses appended by the caller.
+     */
+    default void sync(Collection<LogAddress> addresses) throws IOException {
+        sync();
+    }
+
+    /**
+     * Prefix trim the global log: global addresses below the trim mark are read as
+     * {@link LogData#TRIMMED} and can't be appended to anymore. The space they use
+     * is only reclaimed by {@link #compact(int)}.
+     *
+     * @param address The global address to trim the log up to (exclusive).
+     */
+    void prefixTrim(long address);
+
+    /**
+     * Get the prefix trim mark of the global log.
+     *
+     * @return The first global address which is not trimmed.
+     */
+    long getTrimMark();
+
+    /**
+     * Reclaim the space used by addresses below the trim mark, and, if the implementation
+     * supports it, compress sealed parts of the log.
+     *
+     * @param maxSegments The maximum number of log segments to reclaim in this call,
+     *                    which bounds the work done by a single call.
+     * @return The number of log segments reclaimed or compressed.
+     */
+    int compact(int maxSegments);
+
     /**
      * Close the stream log.
      */
@@ -3,18 +3,25 @@ package org.corfudb.infrastructure.log;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.BufferUnderflowException;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.hash.Hasher;
 import com.google.common.hash.Hashing;
 import com.google.protobuf.AbstractMessage;
 import com.google.protobuf.ByteString;
@@ -23,6 +30,7 @@ import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 
 import lombok.Data;
+import lombok.Getter;
 import lombok.NonNull;
 import lombok.extern.slf4j.Slf4j;
 
@@ -35,6 +43,7 @@ import org.corfudb.protocols.wireprotocol.IMetadata;
 import org.corfudb.protocols.wireprotocol.LogData;
 import org.corfudb.runtime.exceptions.DataCorruptionException;
 import org.corfudb.runtime.exceptions.OverwriteException;
+import org.corfudb.runtime.exceptions.TrimmedException;
 
 /**
  * This class implements the StreamLog by persisting the stream log as records in multiple files.
@@ -48,14 +57,85 @@ import org.corfudb.runtime.exceptions.OverwriteException;
  * <p>
  * LogRecords: LogRecord || LogRecord LogRecords
  * <p>
- * LogRecord: {
+ * LogRecord (version 1): {
  * delimiter 2 bytes
- * checksum 4 bytes
+ * Metadata (checksum and length, protobuf)
+ * LogEntry (protobuf)
+ * }
+ * <p>
+ * LogRecord (version 2): {
+ * delimiter 2 bytes
+ * checksum 4 bytes (of the record body)
+ * length 4 bytes (of the record body)
+ * data type 1 byte
+ * commit 1 byte
+ * address 8 bytes
+ * rank 8 bytes
+ * stream count 4 bytes
+ * logical address count 4 bytes
+ * backpointer count 4 bytes
+ * payload size 4 bytes
+ * streams (stream count * 16 bytes, as UUID msb/lsb)
+ * logical addresses (logical address count * 24 bytes, as UUID msb/lsb and address)
+ * backpointers (backpointer count * 24 bytes, as UUID msb/lsb and address)
+ * payload
+ * }
+ * <p>
+ * New log files are written in the current version, while log files of older versions
+ * are still read, and appended to, in their own version.
+ * <p>
+ * Log files are preallocated with zeros ahead of their last record, in chunks sized from the
+ * average record size of the file (at most {@link #PREALLOCATION_SIZE}), so that appends don't grow
+ * the file and a sync only has to flush data ({@code force(false)}), not file metadata. The end of the
+ * last record (the tail of the file) is kept in memory and saved in the bitmap on close. After a
+ * crash, the tail is found again from the index, or a scan of the file which stops at the first
+ * record which is missing or torn, and anything after it is zeroed before the file is appended to.
+ * <p>
+ * Every log file has an index file next to it (same name, ".idx" extension) which maps each
+ * address in the log file to the offset and length of its record, so that a read is a single
+ * positional read instead of a scan of the whole log file. The index is not synced with the log
+ * file, it is rebuilt from a scan of the log file whenever it is missing, corrupt or does not
+ * cover the whole log file.
+ * <p>
+ * Optionally, sealed log files (files which have all of their addresses written, or global log
+ * files older than the tail segment) can be served from read-only memory mappings, a bounded
+ * number of which are kept around, so that hot historical reads are served from the page cache
+ * without a syscall per read.
+ * <p>
+ * IndexEntry: {
  * address 8 bytes
- * LogData size 4 bytes
- * LogData
+ * offset 8 bytes
+ * length 4 bytes
+ * checksum 4 bytes
+ * }
+ * <p>
+ * When a log file is closed, a bitmap of the addresses written in it is saved next to it
+ * (same name, ".bitmap" extension), along with the tail of the log file it describes.
+ * When the log file is reopened, a valid bitmap is loaded instead of the index, and the
+ * index is only loaded on the first read from the file.
+ * <p>
+ * Bitmap: {
+ * log file tail 8 bytes
+ * first address 8 bytes
+ * word count 4 bytes
+ * words (word count * 8 bytes)
+ * checksum 4 bytes
  * }
  * <p>
+ * The global log can be prefix trimmed. Global addresses below the trim mark are read as trimmed
+ * right away, while the files of global segments which are entirely below the trim mark (log,
+ * index and bitmap) are only deleted by {@link #compact(int)}, a bounded number at a time.
+ * <p>
+ * Optionally, {@link #compact(int)} also rewrites full global segments older than the tail segment
+ * into block-compressed files (see {@link CompressedSegment}), which replace their log, index and
+ * bitmap files. A read from a compressed segment decompresses only the block holding the address,
+ * and decompressed blocks are kept in a bounded cache shared by all the compressed segments.
+ * <p>
+ * At most {@link #MAX_OPEN_SEGMENTS} log files are kept open. Every read, append or sync pins the file
+ * handle of its segment for its duration, and when too many segments are open, the least recently used
+ * segments which are not pinned are closed (saving their bitmap, as on {@link #close()}). A closed
+ * segment is reopened on its next access.
+ * <p>
  * Created by maithem on 10/28/16.
  */
 
@@ -63,7 +143,8 @@ import org.corfudb.runtime.exceptions.OverwriteException;
 public class StreamLogFiles implements StreamLog {
 
     static public final short RECORD_DELIMITER = 0x4C45;
-    static public int VERSION = 1;
+    static public int VERSION = 2;
+    static public final int MIN_SUPPORTED_VERSION = 1;
     static public int RECORDS_PER_LOG_FILE = 10000;
 
     static public final int METADATA_SIZE = Metadata.newBuilder()
@@ -71,79 +152,264 @@ public class StreamLogFiles implements StreamLog {
             .setLength(-1)
             .build()
             .getSerializedSize();
+
+    static public final int RECORD_HEADER_SIZE = Short.BYTES // Delimiter
+            + Integer.BYTES // Checksum
+            + Integer.BYTES; // Length
+
+    static public final int RECORD_BODY_HEADER_SIZE = Byte.BYTES // Data type
+            + Byte.BYTES // Commit
+            + Long.BYTES // Address
+            + Long.BYTES // Rank
+            + Integer.BYTES * 4; // Stream, logical address, backpointer and payload sizes
+
+    static private final int UUID_SIZE = Long.BYTES * 2;
+
+    /**
+     * The largest region of a log file read in one pass by a bulk read.
+     */
+    static public int MAX_BULK_READ_SIZE = 16 * 1024 * 1024;
+
+    /**
+     * The maximum size of the cache of decompressed blocks of compressed segments, in bytes.
+     */
+    static public long COMPRESSED_BLOCK_CACHE_SIZE = 64 * 1024 * 1024;
+
+    /**
+     * The maximum number of log files kept open, each open log file holding two file descriptors.
+     */
+    static public int MAX_OPEN_SEGMENTS = 256;
+
+    /**
+     * The maximum number of bytes a log file is grown by at once, 0 disables preallocation.
+     */
+    static public int PREALLOCATION_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * The minimum number of bytes a log file is grown by at once, when preallocation is enabled.
+     */
+    static public int MIN_PREALLOCATION_SIZE = 64 * 1024;
+
+    static private final ByteBuffer ZEROS = ByteBuffer.allocateDirect(64 * 1024).asReadOnlyBuffer();
+
+    static public final String INDEX_FILE_EXTENSION = ".idx";
+    static public final String BITMAP_FILE_EXTENSION = ".bitmap";
+    static public final int INDEX_ENTRY_SIZE = Long.BYTES // Address
+            + Long.BYTES // Offset
+            + Integer.BYTES // Length
+            + Integer.BYTES; // Checksum
+
     private final boolean noVerify;
     public final String logDir;
     private Map<String, FileHandle> writeChannels;
     private Set<FileChannel> channelsToSync;
 
+    private final int maxOpenSegments;
+
+    /**
+     * Orders the accesses to file handles, to find the least recently used ones.
+     */
+    private final AtomicLong accessClock = new AtomicLong();
+
+    private final Object evictionLock = new Object();
+
+    /**
+     * The number of times a log file was opened.
+     */
+    @Getter
+    private final AtomicLong handleOpens = new AtomicLong();
+
+    /**
+     * The number of times a log file which already existed was opened, i.e. after its handle was evicted.
+     */
+    @Getter
+    private final AtomicLong handleReopens = new AtomicLong();
+
+    /**
+     * The number of idle file handles closed to stay within the maximum number of open log files.
+     */
+    @Getter
+    private final AtomicLong handleEvictions = new AtomicLong();
+
+    /**
+     * The highest global log segment, global segments below it are sealed.
+     */
+    private final AtomicLong globalTailSegment = new AtomicLong(-1L);
+
+    /**
+     * The prefix trim mark, global addresses below it are trimmed.
+     */
+    private final AtomicLong trimMark = new AtomicLong(0L);
+
+    /**
+     * Read-only mappings of sealed log files, or null if mapped reads are disabled.
+     */
+    private final Cache<String, MappedByteBuffer> mappedSegments;
+
+    /**
+     * Whether compaction compresses sealed segments.
+     */
+    private final boolean compressSegments;
+
+    /**
+     * The compressed global segments, by segment number.
+     */
+    private final Map<Long, CompressedSegment> compressedSegments = new ConcurrentHashMap<>();
+
+    /**
+     * The decompressed blocks of compressed segments.
+     */
+    private final Cache<CompressedSegment.BlockKey, ByteBuffer> blockCache = Caffeine.newBuilder()
+            .<CompressedSegment.BlockKey, ByteBuffer>weigher((k, v) -> v.capacity())
+            .maximumWeight(COMPRESSED_BLOCK_CACHE_SIZE)
+            .build();
+
     public StreamLogFiles(String logDir, boolean noVerify) {
+        this(logDir, noVerify, 0);
+    }
+
+    public StreamLogFiles(String logDir, boolean noVerify, int maxMappedSegments) {
+        this(logDir, noVerify, maxMappedSegments, false);
+    }
+
+    /**
+     * Create a stream log backed by files.
+     *
+     * @param logDir            The directory of the log files.
+     * @param noVerify          Whether checksum computation and verification is disabled.
+     * @param maxMappedSegments The maximum number of sealed log files to keep memory-mapped
+     *                          for reads, or 0 to disable mapped reads.
+     * @param compressSegments  Whether compaction compresses full sealed segments.
+     */
+    public StreamLogFiles(String logDir, boolean noVerify, int maxMappedSegments, boolean compressSegments) {
         this.logDir = logDir;
-        writeChannels = new HashMap<>();
-        channelsToSync = new HashSet<>();
+        writeChannels = new ConcurrentHashMap<>();
+        channelsToSync = ConcurrentHashMap.newKeySet();
         this.noVerify = noVerify;
+        this.compressSegments = compressSegments;
+        this.maxOpenSegments = MAX_OPEN_SEGMENTS;
+
+        if (maxMappedSegments > 0) {
+            mappedSegments = Caffeine.newBuilder()
+                    .maximumSize(maxMappedSegments)
+                    .build();
+        } else {
+            mappedSegments = null;
+        }
 
         verifyLogs();
+        loadCompressedSegments();
     }
 
+    /**
+     * Verify the headers of all the log files, in parallel.
+     */
     private void verifyLogs() {
         String[] extension = {"log"};
         File dir = new File(logDir);
 
         if (dir.exists()) {
             Collection<File> files = FileUtils.listFiles(dir, extension, true);
+            new ArrayList<>(files).parallelStream().forEach(this::verifyLogFile);
+        }
+    }
 
-            for (File file : files) {
-                try {
-                    FileInputStream fIn = new FileInputStream(file);
-                    FileChannel fc = fIn.getChannel();
+    private void verifyLogFile(File file) {
+        try {
+            FileInputStream fIn = new FileInputStream(file);
+            FileChannel fc = fIn.getChannel();
 
 
-                    ByteBuffer metadataBuf = ByteBuffer.allocate(METADATA_SIZE);
-                    fc.read(metadataBuf);
-                    metadataBuf.flip();
+            ByteBuffer metadataBuf = ByteBuffer.allocate(METADATA_SIZE);
+            fc.read(metadataBuf);
+            metadataBuf.flip();
 
-                    Metadata metadata = Metadata.parseFrom(metadataBuf.array());
+            Metadata metadata = Metadata.parseFrom(metadataBuf.array());
 
-                    ByteBuffer headerBuf = ByteBuffer.allocate(metadata.getLength());
-                    fc.read(headerBuf);
-                    headerBuf.flip();
+            ByteBuffer headerBuf = ByteBuffer.allocate(metadata.getLength());
+            fc.read(headerBuf);
+            headerBuf.flip();
 
-                    LogHeader header = LogHeader.parseFrom(headerBuf.array());
+            LogHeader header = LogHeader.parseFrom(headerBuf.array());
 
-                    fc.close();
-                    fIn.close();
+            fc.close();
+            fIn.close();
 
-                    if(metadata.getChecksum() != getChecksum(header.toByteArray())) {
-                        log.error("Checksum mismatch detected while trying to read header for logfile {}", file);
-                        throw new DataCorruptionException();
-                    }
+            if(metadata.getChecksum() != getChecksum(header.toByteArray())) {
+                log.error("Checksum mismatch detected while trying to read header for logfile {}", file);
+                throw new DataCorruptionException();
+            }
 
-                    if (header.getVersion() != VERSION) {
-                        String msg = String.format("Log version {} for {} should match the logunit log version {}",
-                                header.getVersion(), file.getAbsoluteFile(), VERSION);
-                        throw new RuntimeException(msg);
-                    }
+            if (header.getVersion() < MIN_SUPPORTED_VERSION || header.getVersion() > VERSION) {
+                String msg = String.format("Log version {} for {} is not supported by the logunit log "
+                                + "version {}", header.getVersion(), file.getAbsoluteFile(), VERSION);
+                throw new RuntimeException(msg);
+            }
 
-                    if (noVerify == false && header.getVerifyChecksum() == false) {
-                        String msg = String.format("Log file {} not generated with checksums, can't verify!",
-                                file.getAbsoluteFile());
-                        throw new RuntimeException(msg);
-                    }
+            if (noVerify == false && header.getVerifyChecksum() == false) {
+                String msg = String.format("Log file {} not generated with checksums, can't verify!",
+                        file.getAbsoluteFile());
+                throw new RuntimeException(msg);
+            }
 
-                } catch (IOException e) {
-                    throw new RuntimeException(e.getMessage(), e.getCause());
-                }
+            String segment = file.getName().substring(0, file.getName().length() - ".log".length());
+            if (segment.matches("[0-9]+")) {
+                globalTailSegment.accumulateAndGet(Long.parseLong(segment), Math::max);
             }
+
+        } catch (IOException e) {
+            throw new RuntimeException(e.getMessage(), e.getCause());
         }
     }
 
     @Override
     public void sync() throws IOException {
+        int synced = 0;
         for (FileChannel ch : channelsToSync) {
-            ch.force(true);
+            // Remove the channel before forcing it, so that a concurrent write
+            // marks it for the next sync again.
+            channelsToSync.remove(ch);
+            try {
+                // Log files are preallocated, the file metadata doesn't change on append.
+                ch.force(false);
+            } catch (ClosedChannelException e) {
+                // The segment was closed, and synced, after it was written.
+                continue;
+            }
+            synced++;
+        }
+        log.debug("Sync'd {} channels", synced);
+    }
+
+    @Override
+    public void sync(Collection<LogAddress> addresses) throws IOException {
+        // File handles are mutable, compare them by identity.
+        Set<FileHandle> handles = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        try {
+            for (LogAddress address : addresses) {
+                // The file of a trimmed or compressed address may already be deleted, don't create it again.
+                if (!isDeleted(address)) {
+                    FileHandle fh;
+                    try {
+                        fh = acquireFileHandle(address);
+                    } catch (TrimmedException e) {
+                        // Deleted after it was checked.
+                        continue;
+                    }
+                    if (!handles.add(fh)) {
+                        releaseFileHandle(fh);
+                    }
+                }
+            }
+
+            for (FileHandle fh : handles) {
+                fh.getChannel().force(false);
+            }
+        } finally {
+            handles.forEach(this::releaseFileHandle);
         }
-        log.debug("Sync'd {} channels", channelsToSync.size());
-        channelsToSync.clear();
+        log.debug("Sync'd {} channels for {} addresses", handles.size(), addresses.size());
     }
 
     /**
@@ -211,7 +477,7 @@ public class StreamLogFiles implements StreamLog {
     }
 
     /**
-     * Find a log entry in a file.
+     * Read a log entry from a file, using the index of the file to locate its record.
      *
      * @param fh      The file handle to use.
      * @param address The address of the entry.
@@ -219,190 +485,1072 @@ public class StreamLogFiles implements StreamLog {
      */
     private LogData readRecord(FileHandle fh, long address)
             throws IOException {
+        AddressMetaData metaData = getAddressIndex(fh).get(address);
 
-        // A channel lock is required to read the file size because the channel size can change
-        // when it is written to, so when we read the size we need to guarantee that the size only
-        // includes fully written records.
-        long logFileSize;
-
-        synchronized (fh.lock) {
-            logFileSize = fh.channel.size();
+        if (metaData == null) {
+            return null;
         }
 
-        FileChannel fc = getChannel(fh.fileName, true);
+        ByteBuffer record = getMappedRecord(fh, metaData);
 
-        if (fc == null) {
-            return null;
+        if (record == null) {
+            record = ByteBuffer.allocate(metaData.getLength());
+            readFully(fh.getChannel(), record, metaData.getOffset());
+            record.flip();
         }
 
-        // Skip the header
-        ByteBuffer headerMetadataBuf = ByteBuffer.allocate(METADATA_SIZE);
-        fc.read(headerMetadataBuf);
-        headerMetadataBuf.flip();
+        return parseIndexedRecord(fh.getFileName(), fh.getVersion(), record, address);
+    }
 
-        Metadata headerMetadata = Metadata.parseFrom(headerMetadataBuf.array());
+    /**
+     * Read the records of several addresses of a log file. The records which are close enough
+     * to each other are read with a single positional read of the region holding them.
+     *
+     * @param fh        The file handle of the log file.
+     * @param addresses The addresses to read, which all belong to the log file.
+     * @param entries   The map to put the log data of the addresses which are written into.
+     */
+    private void readRecords(FileHandle fh, List<LogAddress> addresses, Map<LogAddress, LogData> entries)
+            throws IOException {
+        Map<Long, AddressMetaData> index = getAddressIndex(fh);
+        List<LogAddress> written = new ArrayList<>();
 
-        fc.position(fc.position() + headerMetadata.getLength());
-        ByteBuffer o = ByteBuffer.allocate((int) logFileSize - (int) fc.position());
-        fc.read(o);
-        fc.close();
-        o.flip();
+        for (LogAddress address : addresses) {
+            if (index.containsKey(address.address)) {
+                written.add(address);
+            }
+        }
 
-        while (o.hasRemaining()) {
+        if (written.isEmpty()) {
+            return;
+        }
 
-            short magic = o.getShort();
+        written.sort(Comparator.comparingLong(a -> index.get(a.address).getOffset()));
+        long start = index.get(written.get(0).address).getOffset();
+        long end = start;
+        for (LogAddress address : written) {
+            AddressMetaData metaData = index.get(address.address);
+            end = Math.max(end, metaData.getOffset() + metaData.getLength());
+        }
 
-            if (magic != RECORD_DELIMITER) {
-                return null;
+        if (written.size() == 1 || end - start > MAX_BULK_READ_SIZE || (mappedSegments != null && isSealed(fh))) {
+            // Too sparse for a single read, or already served from a mapping.
+            for (LogAddress address : written) {
+                LogData entry = readRecord(fh, address.address);
+                if (entry != null) {
+                    entries.put(address, entry);
+                }
             }
+            return;
+        }
 
-            byte[] metadataBuf = new byte[METADATA_SIZE];
-            o.get(metadataBuf);
+        ByteBuffer region = ByteBuffer.allocate((int) (end - start));
+        readFully(fh.getChannel(), region, start);
 
-            try {
-                Metadata metadata = Metadata.parseFrom(metadataBuf);
+        for (LogAddress address : written) {
+            AddressMetaData metaData = index.get(address.address);
+            ByteBuffer record = region.duplicate();
+            record.limit((int) (metaData.getOffset() - start) + metaData.getLength());
+            record.position((int) (metaData.getOffset() - start));
+            entries.put(address, parseIndexedRecord(fh.getFileName(), fh.getVersion(), record.slice(),
+                    address.address));
+        }
+        log.debug("Read {} entries of {} in one pass (size={}).", written.size(), fh.getFileName(), end - start);
+    }
+
+    /**
+     * Parse a record located through the index of a log file.
+     *
+     * @param fileName The name of the file the record was read from.
+     * @param version  The version of the record.
+     * @param record   A buffer holding only the record.
+     * @param address  The address of the record.
+     * @return The log data of the record.
+     * @throws DataCorruptionException If the record is not a valid record for the address.
+     */
+    private LogData parseIndexedRecord(String fileName, int version, ByteBuffer record, long address) {
+        int length = record.remaining();
+        LogData logData = parseRecord(record, address, version);
 
-                byte[] logEntryBuf = new byte[metadata.getLength()];
+        if (logData == null || logData.getGlobalAddress() != address) {
+            log.error("Index of {} points to an invalid record for address {}", fileName, address);
+            throw new DataCorruptionException();
+        }
 
-                o.get(logEntryBuf);
+        log.debug("Entry at {} hit, reading (size={}).", address, length);
+        return logData;
+    }
 
-                LogEntry entry = LogEntry.parseFrom(logEntryBuf);
+    /**
+     * Read the record of an address from a compressed segment, decompressing its block
+     * unless the block is cached.
+     *
+     * @param cs      The compressed segment.
+     * @param address The address to read.
+     * @return The log data of the address, or NULL if the address is not written.
+     */
+    private LogData readCompressedRecord(CompressedSegment cs, long address) {
+        CompressedSegment.RecordLocation location = cs.getRecordLocation(address);
 
-                if (!noVerify) {
-                    if (metadata.getChecksum() != getChecksum(entry.toByteArray())) {
-                        log.error("Checksum mismatch detected while trying to read address {}", address);
-                        throw new DataCorruptionException();
-                    }
-                }
+        if (location == null) {
+            return null;
+        }
 
-                if (address == -1) {
-                    //Todo(Maithem) : maybe we can move this to getChannelForAddress
-                    fh.knownAddresses.add(entry.getGlobalAddress());
-                } else if (entry.getGlobalAddress() != address) {
-                    log.trace("Read address {}, not match {}, skipping. (remain={})", entry.getGlobalAddress(), address);
-                } else {
-                    log.debug("Entry at {} hit, reading (size={}).", address, metadata.getLength());
+        ByteBuffer block = blockCache.get(new CompressedSegment.BlockKey(cs.getFileName(), location.getBlock()),
+                k -> cs.readBlock(k.getBlock()));
+        ByteBuffer record = block.duplicate();
+        record.limit(location.getOffset() + location.getLength());
+        record.position(location.getOffset());
+        return parseIndexedRecord(cs.getFileName(), cs.getVersion(), record.slice(), address);
+    }
 
-                    return getLogData(entry);
-                }
-            } catch (InvalidProtocolBufferException e) {
-                throw new DataCorruptionException();
-            }
+    /**
+     * Check whether a log file is sealed, i.e. it will not be appended to
+     * anymore under normal operation.
+     *
+     * @param fh The file handle to check.
+     * @return True, if all the addresses of the file are written, or the file is a global
+     * log file older than the tail segment.
+     */
+    private boolean isSealed(FileHandle fh) {
+        return fh.getKnownAddresses().size() >= RECORDS_PER_LOG_FILE
+                || (fh.getStream() == null && fh.getSegment() < globalTailSegment.get());
+    }
+
+    /**
+     * Get a record from the memory mapping of a sealed log file.
+     *
+     * @param fh       The file handle of the log file.
+     * @param metaData The location of the record.
+     * @return A buffer holding only the record, or NULL if the record can't be read from a mapping.
+     */
+    private ByteBuffer getMappedRecord(FileHandle fh, AddressMetaData metaData) {
+        if (mappedSegments == null || !isSealed(fh)
+                || metaData.getOffset() + metaData.getLength() > Integer.MAX_VALUE) {
+            return null;
+        }
+
+        MappedByteBuffer mapping = mappedSegments.get(fh.fileName, this::mapLogFile);
+
+        if (mapping != null && metaData.getOffset() + metaData.getLength() > mapping.capacity()) {
+            // The file was appended to (i.e. a hole was filled) after it was mapped.
+            mappedSegments.invalidate(fh.fileName);
+            mapping = mappedSegments.get(fh.fileName, this::mapLogFile);
+        }
+
+        if (mapping == null || metaData.getOffset() + metaData.getLength() > mapping.capacity()) {
+            return null;
         }
-        return null;
+
+        ByteBuffer record = mapping.duplicate();
+        record.position((int) metaData.getOffset());
+        record.limit((int) metaData.getOffset() + metaData.getLength());
+        return record.slice();
     }
 
-    private FileChannel getChannel(String filePath, boolean readOnly) throws IOException {
+    private MappedByteBuffer mapLogFile(String fileName) {
         try {
+            FileChannel fc = getChannel(fileName, true);
 
-            if (readOnly) {
-                if (!new File(filePath).exists()) {
-                    return null;
-                } else {
-                    return FileChannel.open(FileSystems.getDefault().getPath(filePath),
-                            EnumSet.of(StandardOpenOption.READ));
+            if (fc == null || fc.size() > Integer.MAX_VALUE) {
+                if (fc != null) {
+                    fc.close();
                 }
-            } else {
-                return FileChannel.open(FileSystems.getDefault().getPath(filePath),
-                        EnumSet.of(StandardOpenOption.APPEND, StandardOpenOption.WRITE,
-                                StandardOpenOption.CREATE, StandardOpenOption.SPARSE));
+                return null;
+            }
+
+            try {
+                log.trace("Mapping log file {}", fileName);
+                return fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+            } finally {
+                fc.close();
             }
         } catch (IOException e) {
-            log.error("Error opening file {}", filePath, e);
+            log.error("Error mapping file {}", fileName, e);
             throw new RuntimeException(e);
         }
-
     }
 
     /**
-     * Gets the file channel for a particular address, creating it
-     * if is not present in the map.
+     * Parse the record at the current position of a buffer, leaving the buffer
+     * positioned at the start of the next record.
      *
-     * @param logAddress The address to open.
-     * @return The FileChannel for that address.
+     * @param o       The buffer to parse the record from.
+     * @param address The address the record is read for, used for logging.
+     * @param version The version of the log file the record is read from.
+     * @return The log data of the record, or NULL if the buffer does not start with a record.
      */
-    private synchronized FileHandle getFileHandleForAddress(LogAddress logAddress) {
-        String filePath = logDir + File.separator;
-        long segment = logAddress.address / RECORDS_PER_LOG_FILE;
+    private LogData parseRecord(ByteBuffer o, long address, int version) {
+        if (version == 1) {
+            LogEntry entry = parseRecordV1(o, address);
+            return entry == null ? null : getLogData(entry);
+        }
 
-        if (logAddress.getStream() == null) {
-            filePath += segment;
-        } else {
-            filePath += logAddress.getStream().toString() + "-" + segment;
+        if (o.remaining() < RECORD_HEADER_SIZE) {
+            return null;
         }
 
-        filePath += ".log";
+        short magic = o.getShort();
 
-        return writeChannels.computeIfAbsent(filePath, a -> {
+        if (magic != RECORD_DELIMITER) {
+            return null;
+        }
 
-            try {
-                FileChannel fc = getChannel(a, false);
+        int checksum = o.getInt();
+        int length = o.getInt();
 
-                boolean verify = true;
+        if (length < RECORD_BODY_HEADER_SIZE || length > o.remaining()) {
+            log.error("Truncated record detected while trying to read address {}", address);
+            throw new DataCorruptionException();
+        }
 
-                if (noVerify) {
-                    verify = false;
-                }
+        ByteBuffer body = o.slice();
+        body.limit(length);
+        o.position(o.position() + length);
 
-                writeHeader(fc, VERSION, verify);
-                log.trace("Opened new log file at {}", a);
-                FileHandle fh = new FileHandle(fc, a);
-                // The first time we open a file we should read to the end, to load the
-                // map of entries we already have.
-                readRecord(fh, -1);
-                return fh;
-            } catch (IOException e) {
-                log.error("Error opening file {}", a, e);
-                throw new RuntimeException(e);
+        if (!noVerify) {
+            if (checksum != getChecksum(body)) {
+                log.error("Checksum mismatch detected while trying to read address {}", address);
+                throw new DataCorruptionException();
             }
-        });
-    }
-
-    Map<String, Long> getStrLongMap(Map<UUID, Long> uuidLongMap) {
-        Map<String, Long> stringLongMap = new HashMap();
-
-        for(Map.Entry<UUID, Long> entry : uuidLongMap.entrySet()) {
-            stringLongMap.put(entry.getKey().toString(), entry.getValue());
         }
 
-        return stringLongMap;
+        try {
+            return getLogData(body);
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            log.error("Malformed record detected while trying to read address {}", address);
+            throw new DataCorruptionException();
+        }
     }
 
-    Map<UUID, Long> getUUIDLongMap(Map<String, Long> stringLongMap) {
-        Map<UUID, Long> uuidLongMap = new HashMap();
+    /**
+     * Decode the body of a version 2 record.
+     *
+     * @param body A buffer holding exactly the record body.
+     * @return The log data of the record.
+     */
+    private LogData getLogData(ByteBuffer body) {
+        org.corfudb.protocols.wireprotocol.DataType dataType =
+                org.corfudb.protocols.wireprotocol.DataType.typeMap.get(body.get());
+        boolean commit = body.get() != 0;
+        long address = body.getLong();
+        long rank = body.getLong();
+        int streamCount = body.getInt();
+        int logicalAddressCount = body.getInt();
+        int backpointerCount = body.getInt();
+        int payloadSize = body.getInt();
+
+        if (dataType == null || streamCount < 0 || logicalAddressCount < 0 || backpointerCount < 0
+                || payloadSize != body.remaining() - (long) streamCount * UUID_SIZE
+                - ((long) logicalAddressCount + backpointerCount) * (UUID_SIZE + Long.BYTES)) {
+            throw new IllegalArgumentException("Invalid record sizes");
+        }
 
-        for(Map.Entry<String, Long> entry : stringLongMap.entrySet()) {
-            uuidLongMap.put(UUID.fromString(entry.getKey()), entry.getValue());
+        Set<UUID> streams = new HashSet<>();
+        for (int i = 0; i < streamCount; i++) {
+            streams.add(new UUID(body.getLong(), body.getLong()));
         }
 
-        return uuidLongMap;
-    }
+        Map<UUID, Long> logicalAddresses = getUUIDLongMap(body, logicalAddressCount);
+        Map<UUID, Long> backpointers = getUUIDLongMap(body, backpointerCount);
 
+        LogData logData = new LogData(dataType, Unpooled.wrappedBuffer(body.slice()));
+        logData.setBackpointerMap(backpointers);
+        logData.setGlobalAddress(address);
+        if (!logicalAddresses.isEmpty()) {
+            logData.setLogicalAddresses(logicalAddresses);
+        }
+        logData.setStreams(streams);
+        logData.setRank(rank);
 
-    Set<String> getStrUUID(Set<UUID> uuids) {
-        Set<String> strUUIds = new HashSet();
+        logData.clearCommit();
 
-        for(UUID uuid : uuids) {
-            strUUIds.add(uuid.toString());
+        if (commit) {
+            logData.setCommit();
         }
 
-        return strUUIds;
+        return logData;
     }
 
-    LogEntry getLogEntry(long address, LogData entry) {
-        byte[] data = new byte[0];
-
-        if (entry.getData() != null) {
-            data = entry.getData();
+    private Map<UUID, Long> getUUIDLongMap(ByteBuffer body, int count) {
+        Map<UUID, Long> map = new HashMap<>();
+        for (int i = 0; i < count; i++) {
+            map.put(new UUID(body.getLong(), body.getLong()), body.getLong());
         }
+        return map;
+    }
 
-        boolean setCommit = false;
-        Object val = entry.getMetadataMap().get(IMetadata.LogUnitMetadataType.COMMIT);
-        if(val != null) {
-            setCommit = (boolean) val;
+    private LogEntry parseRecordV1(ByteBuffer o, long address) {
+        if (o.remaining() < Short.BYTES + METADATA_SIZE) {
+            return null;
         }
 
-        LogEntry logEntry = LogEntry.newBuilder()
+        short magic = o.getShort();
+
+        if (magic != RECORD_DELIMITER) {
+            return null;
+        }
+
+        byte[] metadataBuf = new byte[METADATA_SIZE];
+        o.get(metadataBuf);
+
+        try {
+            Metadata metadata = Metadata.parseFrom(metadataBuf);
+
+            if (metadata.getLength() < 0 || metadata.getLength() > o.remaining()) {
+                log.error("Truncated record detected while trying to read address {}", address);
+                throw new DataCorruptionException();
+            }
+
+            byte[] logEntryBuf = new byte[metadata.getLength()];
+
+            o.get(logEntryBuf);
+
+            LogEntry entry = LogEntry.parseFrom(logEntryBuf);
+
+            if (!noVerify) {
+                if (metadata.getChecksum() != getChecksum(entry.toByteArray())) {
+                    log.error("Checksum mismatch detected while trying to read address {}", address);
+                    throw new DataCorruptionException();
+                }
+            }
+
+            return entry;
+        } catch (InvalidProtocolBufferException e) {
+            throw new DataCorruptionException();
+        }
+    }
+
+    /**
+     * Scan a whole log file and build the index of the records it contains.
+     *
+     * @param fc          A read channel for the log file.
+     * @param logFileSize The size of the log file to scan up to.
+     * @param version     The version of the log file.
+     * @param findTail    Whether the tail of the log file is unknown, in which case the scan stops
+     *                    at a last record which was only partially written before a crash.
+     * @return A map of the addresses found in the log file to the location of their records.
+     */
+    private Map<Long, AddressMetaData> scanLogFile(FileChannel fc, long logFileSize, int version,
+                                                   boolean findTail) throws IOException {
+        Map<Long, AddressMetaData> index = new HashMap<>();
+        long dataOffset = getDataOffset(fc);
+
+        ByteBuffer o = ByteBuffer.allocate((int) (logFileSize - dataOffset));
+        readFully(fc, o, dataOffset);
+        o.flip();
+
+        while (o.hasRemaining()) {
+            int recordStart = o.position();
+            LogData logData;
+            try {
+                logData = parseRecord(o, -1, version);
+            } catch (DataCorruptionException e) {
+                if (!findTail || !isPartialRecord(o, recordStart, version)) {
+                    throw e;
+                }
+                log.warn("Partial record found at offset {} of a log file", dataOffset + recordStart);
+                break;
+            }
+
+            if (logData == null) {
+                break;
+            }
+
+            index.put(logData.getGlobalAddress(),
+                    new AddressMetaData(dataOffset + recordStart, o.position() - recordStart));
+        }
+
+        return index;
+    }
+
+    /**
+     * Check whether a corrupt record is the last thing written to a buffer, i.e. a record
+     * which was only partially written before a crash, as opposed to a corrupt record
+     * followed by more records.
+     *
+     * @param o           A buffer holding the records of a log file.
+     * @param recordStart The position of the corrupt record in the buffer.
+     * @param version     The version of the log file.
+     * @return True, if the buffer only holds zeros after the record.
+     */
+    private boolean isPartialRecord(ByteBuffer o, int recordStart, int version) {
+        if (version == 1) {
+            return false;
+        }
+
+        int length = o.getInt(recordStart + Short.BYTES + Integer.BYTES);
+        long end = length < 0 ? o.limit() : Math.min(o.limit(), (long) recordStart + RECORD_HEADER_SIZE + length);
+        for (int i = (int) end; i < o.limit(); i++) {
+            if (o.get(i) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Read the index file of a log file.
+     *
+     * @param fc          A read channel for the log file.
+     * @param indexFc     The channel of the index file.
+     * @param logFileSize The size of the log file, up to its tail if the tail is known.
+     * @param version     The version of the log file.
+     * @param findTail    Whether the tail of the log file is unknown, in which case the index must
+     *                    cover all the records before the preallocated space, and every record it
+     *                    points to must be written.
+     * @return A map of the addresses in the log file to the location of their records,
+     * or NULL if the index is corrupt or does not cover the whole log file.
+     */
+    private Map<Long, AddressMetaData> readIndex(FileChannel fc, FileChannel indexFc, long logFileSize,
+                                                 int version, boolean findTail) throws IOException {
+        long indexSize = indexFc.size();
+
+        if (indexSize % INDEX_ENTRY_SIZE != 0) {
+            return null;
+        }
+
+        ByteBuffer o = ByteBuffer.allocate((int) indexSize);
+        readFully(indexFc, o, 0);
+        o.flip();
+
+        Map<Long, AddressMetaData> index = new HashMap<>();
+        long dataOffset = getDataOffset(fc);
+        long indexedSize = dataOffset;
+        byte[] entryBuf = new byte[INDEX_ENTRY_SIZE - Integer.BYTES];
+
+        while (o.hasRemaining()) {
+            o.get(entryBuf);
+            int checksum = o.getInt();
+
+            if (checksum != getChecksum(entryBuf)) {
+                return null;
+            }
+
+            ByteBuffer entry = ByteBuffer.wrap(entryBuf);
+            long address = entry.getLong();
+            AddressMetaData metaData = new AddressMetaData(entry.getLong(), entry.getInt());
+
+            if (metaData.getOffset() < dataOffset
+                    || metaData.getOffset() + metaData.getLength() > logFileSize) {
+                return null;
+            }
+
+            index.put(address, metaData);
+            indexedSize = Math.max(indexedSize, metaData.getOffset() + metaData.getLength());
+        }
+
+        if (findTail) {
+            // Anything after the last indexed record is a record missing from the index.
+            if (!isZero(fc, indexedSize, Math.min(logFileSize, indexedSize + RECORD_HEADER_SIZE))) {
+                return null;
+            }
+            // The index is not synced with the log file, so after a crash it may point to records
+            // which never reached the disk, and were left zeroed by the preallocation.
+            if (!hasIndexedRecords(fc, index, dataOffset, indexedSize, version)) {
+                return null;
+            }
+        } else if (indexedSize != logFileSize) {
+            return null;
+        }
+
+        return index;
+    }
+
+    /**
+     * Check that the records of an index are all written in a log file.
+     *
+     * @param fc          A read channel for the log file.
+     * @param index       The index of the log file.
+     * @param dataOffset  The offset of the first record of the log file.
+     * @param indexedSize The end of the last indexed record.
+     * @param version     The version of the log file.
+     * @return True, if every indexed record is a valid record of its address.
+     */
+    private boolean hasIndexedRecords(FileChannel fc, Map<Long, AddressMetaData> index, long dataOffset,
+                                      long indexedSize, int version) throws IOException {
+        ByteBuffer o = ByteBuffer.allocate((int) (indexedSize - dataOffset));
+        readFully(fc, o, dataOffset);
+        o.flip();
+
+        for (Map.Entry<Long, AddressMetaData> entry : index.entrySet()) {
+            ByteBuffer record = o.duplicate();
+            record.position((int) (entry.getValue().getOffset() - dataOffset));
+            record.limit(record.position() + entry.getValue().getLength());
+            try {
+                LogData logData = parseRecord(record, entry.getKey(), version);
+                if (logData == null || record.hasRemaining() || logData.getGlobalAddress() != entry.getKey()) {
+                    log.warn("Indexed record of address {} is missing from its log file", entry.getKey());
+                    return false;
+                }
+            } catch (DataCorruptionException e) {
+                log.warn("Indexed record of address {} is corrupt in its log file", entry.getKey());
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Rewrite the index file of a log file from scratch.
+     *
+     * @param indexFc The channel of the index file.
+     * @param index   The index to write.
+     */
+    private void writeIndex(FileChannel indexFc, Map<Long, AddressMetaData> index) throws IOException {
+        indexFc.truncate(0);
+        ByteBuffer buf = ByteBuffer.allocate(index.size() * INDEX_ENTRY_SIZE);
+
+        for (Map.Entry<Long, AddressMetaData> entry : index.entrySet()) {
+            buf.put(getIndexEntry(entry.getKey(), entry.getValue()));
+        }
+
+        buf.flip();
+        indexFc.write(buf, 0);
+        indexFc.force(true);
+    }
+
+    /**
+     * Load the index of a log file into its file handle, rebuilding it if
+     * it is missing, corrupt or does not cover the whole log file.
+     *
+     * @param fh The file handle to load the index for.
+     */
+    private void loadIndex(FileHandle fh) throws IOException {
+        // Appends are blocked while the index is loaded, so that the index file
+        // and the log file can't grow while they are checked against each other.
+        synchronized (fh.lock) {
+            FileChannel fc = fh.getChannel();
+            // The tail is unknown if the file was not closed cleanly.
+            boolean recoverTail = fh.getTail() < 0;
+            long logFileSize = recoverTail ? fc.size() : fh.getTail();
+
+            Map<Long, AddressMetaData> index = readIndex(fc, fh.indexChannel, logFileSize, fh.getVersion(), recoverTail);
+
+            if (index == null) {
+                log.info("Index for log file {} is missing or invalid, rebuilding it", fh.fileName);
+                index = scanLogFile(fc, logFileSize, fh.getVersion(), recoverTail);
+                writeIndex(fh.indexChannel, index);
+            }
+
+            if (recoverTail) {
+                recoverTail(fh, index);
+            }
+
+            for (long address : index.keySet()) {
+                fh.getKnownAddresses().testAndSet(address);
+            }
+            fh.indexChannel.position(fh.indexChannel.size());
+            fh.setAddressIndex(new ConcurrentHashMap<>(index));
+        }
+    }
+
+    /**
+     * Set the tail of a log file which was not closed cleanly to the end of its last indexed
+     * record, and zero anything written after it, i.e. a torn record.
+     *
+     * @param fh    The file handle of the log file.
+     * @param index The index of the log file.
+     */
+    private void recoverTail(FileHandle fh, Map<Long, AddressMetaData> index) throws IOException {
+        FileChannel fc = fh.getChannel();
+        long tail = getDataOffset(fc);
+        for (AddressMetaData metaData : index.values()) {
+            tail = Math.max(tail, metaData.getOffset() + metaData.getLength());
+        }
+
+        long size = fc.size();
+        if (!isZero(fc, tail, size)) {
+            log.warn("Log file {} has a partial record at offset {}, clearing it", fh.getFileName(), tail);
+            fillZeros(fc, tail, size);
+            fc.force(false);
+        }
+        fh.setTail(tail);
+    }
+
+    /**
+     * Get the index of a log file, loading it if it was not loaded when the file was opened.
+     *
+     * @param fh The file handle of the log file.
+     * @return A map of the addresses in the log file to the location of their records.
+     */
+    private Map<Long, AddressMetaData> getAddressIndex(FileHandle fh) throws IOException {
+        Map<Long, AddressMetaData> index = fh.getAddressIndex();
+
+        if (index == null) {
+            synchronized (fh.lock) {
+                if (fh.getAddressIndex() == null) {
+                    loadIndex(fh);
+                }
+                index = fh.getAddressIndex();
+            }
+        }
+
+        return index;
+    }
+
+    /**
+     * Save the bitmap of the addresses written in a log file.
+     *
+     * @param fh The file handle of the log file.
+     */
+    private void writeBitmap(FileHandle fh) throws IOException {
+        long[] words = fh.getKnownAddresses().getWords();
+
+        ByteBuffer buf = ByteBuffer.allocate(Long.BYTES * 2 + Integer.BYTES
+                + words.length * Long.BYTES + Integer.BYTES);
+        buf.putLong(fh.getTail());
+        buf.putLong(fh.getKnownAddresses().getFirstAddress());
+        buf.putInt(words.length);
+        for (long word : words) {
+            buf.putLong(word);
+        }
+        buf.putInt(getChecksum(Arrays.copyOf(buf.array(), buf.position())));
+        buf.flip();
+
+        try (FileChannel fc = FileChannel.open(FileSystems.getDefault().getPath(getBitmapFileName(fh.getFileName())),
+                EnumSet.of(StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING))) {
+            fc.write(buf);
+            fc.force(true);
+        }
+    }
+
+    /**
+     * Load the saved bitmap of the addresses written in a log file into its file handle.
+     *
+     * @param fh The file handle of the log file.
+     * @return True, if the bitmap was loaded, false if it is missing, corrupt or does not
+     * match the log file.
+     */
+    private boolean loadBitmap(FileHandle fh) throws IOException {
+        File bitmapFile = new File(getBitmapFileName(fh.getFileName()));
+        int wordCount = AddressBitmap.getWordCount(RECORDS_PER_LOG_FILE);
+        int size = Long.BYTES * 2 + Integer.BYTES + wordCount * Long.BYTES + Integer.BYTES;
+
+        if (!bitmapFile.exists() || bitmapFile.length() != size) {
+            return false;
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        try (FileChannel fc = FileChannel.open(bitmapFile.toPath(), EnumSet.of(StandardOpenOption.READ))) {
+            readFully(fc, buf, 0);
+        }
+        buf.flip();
+
+        if (buf.getInt(size - Integer.BYTES) != getChecksum(Arrays.copyOf(buf.array(), size - Integer.BYTES))) {
+            log.warn("Checksum mismatch in the bitmap of log file {}", fh.getFileName());
+            return false;
+        }
+
+        long firstAddress = fh.getSegment() * RECORDS_PER_LOG_FILE;
+        long tail = buf.getLong();
+        long logFileSize = fh.getChannel().size();
+        if (tail < getDataOffset(fh.getChannel()) || tail > logFileSize || buf.getLong() != firstAddress
+                || buf.getInt() != wordCount) {
+            return false;
+        }
+
+        // Records appended after the bitmap was saved are not in the bitmap.
+        if (!isZero(fh.getChannel(), tail, Math.min(logFileSize, tail + RECORD_HEADER_SIZE))) {
+            return false;
+        }
+
+        for (int w = 0; w < wordCount; w++) {
+            fh.getKnownAddresses().setWord(w, buf.getLong());
+        }
+        fh.setTail(tail);
+
+        return true;
+    }
+
+    static ByteBuffer getIndexEntry(long address, AddressMetaData metaData) {
+        ByteBuffer buf = ByteBuffer.allocate(INDEX_ENTRY_SIZE);
+        buf.putLong(address);
+        buf.putLong(metaData.getOffset());
+        buf.putInt(metaData.getLength());
+        buf.putInt(getChecksum(Arrays.copyOf(buf.array(), INDEX_ENTRY_SIZE - Integer.BYTES)));
+        buf.flip();
+        return buf;
+    }
+
+    /**
+     * Get the offset of the first record in a log file, i.e. the size of its header.
+     *
+     * @param fc A read channel for the log file.
+     * @return The offset of the first record.
+     */
+    static long getDataOffset(FileChannel fc) throws IOException {
+        return METADATA_SIZE + getHeaderMetadata(fc).getLength();
+    }
+
+    /**
+     * Read the header of a log file.
+     *
+     * @param fc A read channel for the log file.
+     * @return The header of the log file.
+     */
+    static LogHeader readHeader(FileChannel fc) throws IOException {
+        Metadata headerMetadata = getHeaderMetadata(fc);
+        ByteBuffer headerBuf = ByteBuffer.allocate(headerMetadata.getLength());
+        readFully(fc, headerBuf, METADATA_SIZE);
+        headerBuf.flip();
+
+        return LogHeader.parseFrom(headerBuf.array());
+    }
+
+    static private Metadata getHeaderMetadata(FileChannel fc) throws IOException {
+        ByteBuffer headerMetadataBuf = ByteBuffer.allocate(METADATA_SIZE);
+        readFully(fc, headerMetadataBuf, 0);
+        headerMetadataBuf.flip();
+
+        return Metadata.parseFrom(headerMetadataBuf.array());
+    }
+
+    static void readFully(FileChannel fc, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            if (fc.read(buf, position + buf.position()) < 0) {
+                break;
+            }
+        }
+    }
+
+    static void writeFully(FileChannel fc, ByteBuffer buf, long position) throws IOException {
+        while (buf.hasRemaining()) {
+            position += fc.write(buf, position);
+        }
+    }
+
+    /**
+     * Write zeros over a region of a file.
+     */
+    static private void fillZeros(FileChannel fc, long from, long to) throws IOException {
+        long position = from;
+        while (position < to) {
+            ByteBuffer zeros = ZEROS.duplicate();
+            zeros.limit((int) Math.min(zeros.capacity(), to - position));
+            position += fc.write(zeros, position);
+        }
+    }
+
+    /**
+     * Check whether a region of a file only holds zeros, i.e. it is preallocated space.
+     */
+    static private boolean isZero(FileChannel fc, long from, long to) throws IOException {
+        if (from >= to) {
+            return true;
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate((int) Math.min(ZEROS.capacity(), to - from));
+        for (long position = from; position < to; position += buf.capacity()) {
+            buf.clear();
+            buf.limit((int) Math.min(buf.capacity(), to - position));
+            readFully(fc, buf, position);
+            buf.flip();
+            while (buf.hasRemaining()) {
+                if (buf.get() != 0) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Make sure a log file is allocated up to an offset, growing it by a chunk estimated from
+     * the average size of its records, so that it doesn't grow on every append.
+     *
+     * @param fh  The file handle of the log file, whose lock must be held.
+     * @param end The offset the file must be allocated up to.
+     */
+    private void preallocate(FileHandle fh, long end) throws IOException {
+        if (PREALLOCATION_SIZE <= 0 || end <= fh.getAllocated()) {
+            return;
+        }
+
+        int records = Math.max(1, fh.getKnownAddresses().size());
+        long estimate = end / records * (RECORDS_PER_LOG_FILE - records);
+        long size = end + Math.max(MIN_PREALLOCATION_SIZE, Math.min(PREALLOCATION_SIZE, estimate));
+
+        fillZeros(fh.getChannel(), fh.getAllocated(), size);
+        // The file size is synced once per preallocation, instead of on every sync.
+        fh.getChannel().force(true);
+        fh.setAllocated(size);
+        log.trace("Preallocated log file {} up to {} bytes", fh.getFileName(), size);
+    }
+
+    private FileChannel getChannel(String filePath, boolean readOnly) throws IOException {
+        try {
+
+            if (readOnly) {
+                if (!new File(filePath).exists()) {
+                    return null;
+                } else {
+                    return FileChannel.open(FileSystems.getDefault().getPath(filePath),
+                            EnumSet.of(StandardOpenOption.READ));
+                }
+            } else {
+                return FileChannel.open(FileSystems.getDefault().getPath(filePath),
+                        EnumSet.of(StandardOpenOption.READ, StandardOpenOption.WRITE,
+                                StandardOpenOption.CREATE));
+            }
+        } catch (IOException e) {
+            log.error("Error opening file {}", filePath, e);
+            throw new RuntimeException(e);
+        }
+
+    }
+
+    /**
+     * Gets the file channel for a particular address, creating it
+     * if is not present in the map.
+     *
+     * @param logAddress The address to open.
+     * @return The FileChannel for that address.
+     */
+    private FileHandle getFileHandleForAddress(LogAddress logAddress) {
+        long segment = logAddress.address / RECORDS_PER_LOG_FILE;
+        String filePath = getLogFileName(segment, logAddress.getStream());
+
+        return writeChannels.computeIfAbsent(filePath, a -> {
+
+            try {
+                FileChannel fc = getChannel(a, false);
+
+                boolean verify = true;
+
+                if (noVerify) {
+                    verify = false;
+                }
+
+                int version = VERSION;
+                boolean newFile = fc.size() == 0;
+
+                if (newFile) {
+                    writeHeader(fc, VERSION, verify);
+                    log.trace("Opened new log file at {}", a);
+                } else {
+                    version = readHeader(fc).getVersion();
+                    handleReopens.incrementAndGet();
+                }
+                handleOpens.incrementAndGet();
+
+                FileChannel indexFc = FileChannel.open(FileSystems.getDefault().getPath(getIndexFileName(a)),
+                        EnumSet.of(StandardOpenOption.READ, StandardOpenOption.WRITE,
+                                StandardOpenOption.CREATE));
+                FileHandle fh = new FileHandle(fc, indexFc, a, segment, logAddress.getStream(), version,
+                        new AddressBitmap(segment * RECORDS_PER_LOG_FILE, RECORDS_PER_LOG_FILE));
+                fh.setAllocated(fc.size());
+
+                if (newFile) {
+                    fh.setTail(fc.size());
+                } else if (!loadBitmap(fh)) {
+                    // The first time we open a file we should load the set of entries we already
+                    // have, from its bitmap if the file was closed cleanly, or else from its index.
+                    loadIndex(fh);
+                }
+                return fh;
+            } catch (IOException e) {
+                log.error("Error opening file {}", a, e);
+                throw new RuntimeException(e);
+            }
+        });
+    }
+
+    /**
+     * Get the file handle of an address, opening its files if needed, and pin it so that
+     * its files are not closed until it is released.
+     *
+     * @param logAddress The address to open.
+     * @return The pinned file handle.
+     * @throws TrimmedException If the files of the address were deleted by a trim or a compression.
+     */
+    @VisibleForTesting
+    FileHandle acquireFileHandle(LogAddress logAddress) {
+        while (true) {
+            // Don't create the files of a deleted segment again.
+            if (isDeleted(logAddress)) {
+                throw new TrimmedException();
+            }
+
+            FileHandle fh = getFileHandleForAddress(logAddress);
+            boolean pinned = false;
+            synchronized (fh.lock) {
+                if (!fh.isClosed()) {
+                    fh.refCount++;
+                    fh.lastAccess = accessClock.incrementAndGet();
+                    pinned = true;
+                }
+            }
+
+            if (pinned) {
+                // The segment may have been deleted after it was checked, before the handle was pinned.
+                if (fh.isDeleted() || isDeleted(logAddress)) {
+                    releaseFileHandle(fh);
+                    throw new TrimmedException();
+                }
+                return fh;
+            }
+            // The handle was evicted after it was looked up, open the files again.
+        }
+    }
+
+    /**
+     * @return True, if the log files of an address are deleted, or will be, because it was trimmed
+     * or its segment was compressed.
+     */
+    private boolean isDeleted(LogAddress logAddress) {
+        return isTrimmed(logAddress) || getCompressedSegment(logAddress) != null;
+    }
+
+    /**
+     * Unpin a file handle, and close the least recently used idle file handles
+     * if too many log files are open.
+     *
+     * @param fh The file handle to release.
+     */
+    @VisibleForTesting
+    void releaseFileHandle(FileHandle fh) {
+        synchronized (fh.lock) {
+            fh.refCount--;
+            if (fh.refCount == 0 && fh.isDeleted() && !fh.isClosed()) {
+                // The last operation using the files of a deleted segment closes them.
+                closeFileHandle(fh, false);
+            }
+        }
+
+        if (writeChannels.size() > maxOpenSegments) {
+            evictIdleFileHandles();
+        }
+    }
+
+    private void evictIdleFileHandles() {
+        synchronized (evictionLock) {
+            while (writeChannels.size() > maxOpenSegments) {
+                FileHandle lru = null;
+                for (FileHandle fh : writeChannels.values()) {
+                    if (fh.refCount == 0 && !fh.isClosed() && (lru == null || fh.lastAccess < lru.lastAccess)) {
+                        lru = fh;
+                    }
+                }
+
+                if (lru == null) {
+                    // All the open log files are in use.
+                    return;
+                }
+
+                synchronized (lru.lock) {
+                    if (lru.refCount == 0 && !lru.isClosed()) {
+                        log.trace("Closing idle log file {}", lru.getFileName());
+                        closeFileHandle(lru, true);
+                        handleEvictions.incrementAndGet();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Close the files of a file handle, and forget it. The caller must hold the lock of the handle.
+     *
+     * @param fh   The file handle to close.
+     * @param save Whether to sync the files and save the bitmap, so that the file can be reopened quickly.
+     */
+    private void closeFileHandle(FileHandle fh, boolean save) {
+        fh.closed = true;
+        try {
+            channelsToSync.remove(fh.getChannel());
+            if (save) {
+                fh.getChannel().force(true);
+                writeBitmap(fh);
+                fh.getIndexChannel().force(true);
+            }
+            fh.getChannel().close();
+            fh.getIndexChannel().close();
+        } catch (IOException e) {
+            log.warn("Error closing fh {}: {}", fh.getFileName(), e.toString());
+        } finally {
+            writeChannels.remove(fh.getFileName(), fh);
+        }
+    }
+
+    /**
+     * @return The number of open log files.
+     */
+    public int getOpenHandles() {
+        return writeChannels.size();
+    }
+
+    private String getLogFileName(long segment, UUID stream) {
+        String filePath = logDir + File.separator;
+
+        if (stream == null) {
+            filePath += segment;
+        } else {
+            filePath += stream.toString() + "-" + segment;
+        }
+
+        return filePath + ".log";
+    }
+
+    static String getIndexFileName(String logFileName) {
+        return logFileName.substring(0, logFileName.length() - ".log".length()) + INDEX_FILE_EXTENSION;
+    }
+
+    static String getCompressedFileName(String logFileName) {
+        return logFileName.substring(0, logFileName.length() - ".log".length())
+                + CompressedSegment.COMPRESSED_FILE_EXTENSION;
+    }
+
+    static String getBitmapFileName(String logFileName) {
+        return logFileName.substring(0, logFileName.length() - ".log".length()) + BITMAP_FILE_EXTENSION;
+    }
+
+    Map<String, Long> getStrLongMap(Map<UUID, Long> uuidLongMap) {
+        Map<String, Long> stringLongMap = new HashMap();
+
+        for(Map.Entry<UUID, Long> entry : uuidLongMap.entrySet()) {
+            stringLongMap.put(entry.getKey().toString(), entry.getValue());
+        }
+
+        return stringLongMap;
+    }
+
+    Map<UUID, Long> getUUIDLongMap(Map<String, Long> stringLongMap) {
+        Map<UUID, Long> uuidLongMap = new HashMap();
+
+        for(Map.Entry<String, Long> entry : stringLongMap.entrySet()) {
+            uuidLongMap.put(UUID.fromString(entry.getKey()), entry.getValue());
+        }
+
+        return uuidLongMap;
+    }
+
+
+    Set<String> getStrUUID(Set<UUID> uuids) {
+        Set<String> strUUIds = new HashSet();
+
+        for(UUID uuid : uuids) {
+            strUUIds.add(uuid.toString());
+        }
+
+        return strUUIds;
+    }
+
+    LogEntry getLogEntry(long address, LogData entry) {
+        byte[] data = new byte[0];
+
+        if (entry.getData() != null) {
+            data = entry.getData();
+        }
+
+        boolean setCommit = false;
+        Object val = entry.getMetadataMap().get(IMetadata.LogUnitMetadataType.COMMIT);
+        if(val != null) {
+            setCommit = (boolean) val;
+        }
+
+        LogEntry logEntry = LogEntry.newBuilder()
                 .setDataType(DataType.forNumber(entry.getType().ordinal()))
                 .setData(ByteString.copyFrom(data))
                 .setGlobalAddress(address)
@@ -417,13 +1565,81 @@ public class StreamLogFiles implements StreamLog {
     }
 
     static int getChecksum(byte[] bytes) {
-        Hasher hasher = Hashing.crc32c().newHasher();
+        return Hashing.crc32c().hashBytes(bytes).asInt();
+    }
+
+    static int getChecksum(ByteBuffer buf) {
+        if (buf.hasArray()) {
+            return Hashing.crc32c().hashBytes(buf.array(), buf.arrayOffset() + buf.position(),
+                    buf.remaining()).asInt();
+        }
+
+        byte[] bytes = new byte[buf.remaining()];
+        buf.duplicate().get(bytes);
+        return getChecksum(bytes);
+    }
+
+    /**
+     * Encode a log entry as a version 2 record.
+     *
+     * @param address The address of the entry.
+     * @param entry   The entry to encode.
+     * @return A buffer holding the whole record.
+     */
+    static ByteBuffer getRecord(long address, LogData entry) {
+        byte[] data = entry.getData() == null ? new byte[0] : entry.getData();
+
+        boolean commit = false;
+        Object val = entry.getMetadataMap().get(IMetadata.LogUnitMetadataType.COMMIT);
+        if (val != null) {
+            commit = (boolean) val;
+        }
 
-        for(byte a : bytes) {
-            hasher.putByte(a);
+        Set<UUID> streams = entry.getStreams();
+        Map<UUID, Long> logicalAddresses = entry.getLogicalAddresses();
+        Map<UUID, Long> backpointers = entry.getBackpointerMap();
+
+        int bodySize = RECORD_BODY_HEADER_SIZE
+                + streams.size() * UUID_SIZE
+                + (logicalAddresses.size() + backpointers.size()) * (UUID_SIZE + Long.BYTES)
+                + data.length;
+
+        ByteBuffer buf = ByteBuffer.allocate(RECORD_HEADER_SIZE + bodySize);
+        buf.putShort(RECORD_DELIMITER);
+        // The checksum is filled in once the body is written
+        buf.putInt(0);
+        buf.putInt(bodySize);
+
+        buf.put((byte) entry.getType().ordinal());
+        buf.put((byte) (commit ? 1 : 0));
+        buf.putLong(address);
+        buf.putLong(entry.getRank());
+        buf.putInt(streams.size());
+        buf.putInt(logicalAddresses.size());
+        buf.putInt(backpointers.size());
+        buf.putInt(data.length);
+
+        for (UUID stream : streams) {
+            buf.putLong(stream.getMostSignificantBits());
+            buf.putLong(stream.getLeastSignificantBits());
         }
 
-        return hasher.hash().asInt();
+        putUUIDLongMap(buf, logicalAddresses);
+        putUUIDLongMap(buf, backpointers);
+        buf.put(data);
+
+        buf.putInt(Short.BYTES, Hashing.crc32c()
+                .hashBytes(buf.array(), RECORD_HEADER_SIZE, bodySize).asInt());
+        buf.flip();
+        return buf;
+    }
+
+    static private void putUUIDLongMap(ByteBuffer buf, Map<UUID, Long> map) {
+        for (Map.Entry<UUID, Long> e : map.entrySet()) {
+            buf.putLong(e.getKey().getMostSignificantBits());
+            buf.putLong(e.getKey().getLeastSignificantBits());
+            buf.putLong(e.getValue());
+        }
     }
 
     /**
@@ -432,22 +1648,37 @@ public class StreamLogFiles implements StreamLog {
      * @param fh      The file handle to use.
      * @param address The address of the entry.
      * @param entry   The LogUnitEntry to append.
+     * @return The location of the written record in the file.
      */
-    private void writeRecord(FileHandle fh, long address, LogData entry) throws IOException {
-        LogEntry logEntry = getLogEntry(address, entry);
+    private AddressMetaData writeRecord(FileHandle fh, long address, LogData entry) throws IOException {
+        ByteBuffer recordBuf;
 
-        ByteBuffer record = getByteBufferWithMetaData(logEntry);
+        if (fh.getVersion() == 1) {
+            LogEntry logEntry = getLogEntry(address, entry);
 
-        ByteBuffer recordBuf = ByteBuffer.allocate(Short.BYTES // Delimiter
-                + record.capacity());
+            ByteBuffer record = getByteBufferWithMetaData(logEntry);
 
-        recordBuf.putShort(RECORD_DELIMITER);
-        recordBuf.put(record.array());
-        recordBuf.flip();
+            recordBuf = ByteBuffer.allocate(Short.BYTES // Delimiter
+                    + record.capacity());
+
+            recordBuf.putShort(RECORD_DELIMITER);
+            recordBuf.put(record.array());
+            recordBuf.flip();
+        } else {
+            recordBuf = getRecord(address, entry);
+        }
 
         synchronized (fh.lock) {
-            fh.channel.write(recordBuf);
+            AddressMetaData metaData = new AddressMetaData(fh.getTail(), recordBuf.remaining());
+            preallocate(fh, metaData.getOffset() + metaData.getLength());
+            writeFully(fh.channel, recordBuf, metaData.getOffset());
+            fh.setTail(metaData.getOffset() + metaData.getLength());
             channelsToSync.add(fh.channel);
+            fh.indexChannel.write(getIndexEntry(address, metaData));
+            if (fh.addressIndex != null) {
+                fh.addressIndex.put(address, metaData);
+            }
+            return metaData;
         }
     }
 
@@ -457,13 +1688,44 @@ public class StreamLogFiles implements StreamLog {
         try {
             // make sure the entry doesn't currently exist...
             // (probably need a faster way to do this - high watermark?)
-            FileHandle fh = getFileHandleForAddress(logAddress);
-            if (!fh.getKnownAddresses().contains(logAddress.address)) {
-                writeRecord(fh, logAddress.address, entry);
-                fh.getKnownAddresses().add(logAddress.address);
-            } else {
+            if (isTrimmed(logAddress)) {
+                throw new TrimmedException();
+            }
+
+            // Only full segments are compressed.
+            if (getCompressedSegment(logAddress) != null) {
                 throw new OverwriteException();
             }
+
+            FileHandle fh;
+            try {
+                fh = acquireFileHandle(logAddress);
+            } catch (TrimmedException e) {
+                if (getCompressedSegment(logAddress) != null) {
+                    // The segment was compressed after it was checked.
+                    throw new OverwriteException();
+                }
+                throw e;
+            }
+
+            try {
+                if (logAddress.getStream() == null) {
+                    globalTailSegment.accumulateAndGet(fh.getSegment(), Math::max);
+                }
+
+                if (fh.getKnownAddresses().testAndSet(logAddress.address)) {
+                    try {
+                        writeRecord(fh, logAddress.address, entry);
+                    } catch (IOException e) {
+                        fh.getKnownAddresses().clear(logAddress.address);
+                        throw e;
+                    }
+                } else {
+                    throw new OverwriteException();
+                }
+            } finally {
+                releaseFileHandle(fh);
+            }
             log.trace("Disk_write[{}]: Written to disk.", logAddress);
         } catch (IOException e) {
             log.error("Disk_write[{}]: Exception", logAddress, e);
@@ -473,38 +1735,363 @@ public class StreamLogFiles implements StreamLog {
 
     @Override
     public LogData read(LogAddress logAddress) {
+        if (isTrimmed(logAddress)) {
+            return LogData.TRIMMED;
+        }
+
         try {
-            return readRecord(getFileHandleForAddress(logAddress), logAddress.address);
+            CompressedSegment cs = getCompressedSegment(logAddress);
+            if (cs != null) {
+                return readCompressedRecord(cs, logAddress.address);
+            }
+            FileHandle fh = acquireFileHandle(logAddress);
+            try {
+                return readRecord(fh, logAddress.address);
+            } finally {
+                releaseFileHandle(fh);
+            }
         } catch (Exception e) {
+            if (isTrimmed(logAddress)) {
+                // The file was deleted by a compaction while it was being read.
+                return LogData.TRIMMED;
+            }
+            CompressedSegment cs = getCompressedSegment(logAddress);
+            if (cs != null && !(e instanceof DataCorruptionException)) {
+                // The file was compressed while it was being read.
+                return readCompressedRecord(cs, logAddress.address);
+            }
+            throw new RuntimeException(e);
+        }
+    }
+
+    @Override
+    public Map<LogAddress, LogData> readAll(Collection<LogAddress> logAddresses) {
+        Map<LogAddress, LogData> entries = new HashMap<>();
+        Map<String, List<LogAddress>> segments = new LinkedHashMap<>();
+
+        for (LogAddress logAddress : logAddresses) {
+            if (isTrimmed(logAddress)) {
+                entries.put(logAddress, LogData.TRIMMED);
+            } else if (getCompressedSegment(logAddress) != null) {
+                // Neighbouring addresses share the cached decompressed block.
+                LogData entry = readCompressedRecord(getCompressedSegment(logAddress), logAddress.address);
+                if (entry != null) {
+                    entries.put(logAddress, entry);
+                }
+            } else {
+                segments.computeIfAbsent(getLogFileName(logAddress.address / RECORDS_PER_LOG_FILE,
+                        logAddress.getStream()), f -> new ArrayList<>()).add(logAddress);
+            }
+        }
+
+        for (List<LogAddress> segmentAddresses : segments.values()) {
+            try {
+                FileHandle fh = acquireFileHandle(segmentAddresses.get(0));
+                try {
+                    readRecords(fh, segmentAddresses, entries);
+                } finally {
+                    releaseFileHandle(fh);
+                }
+            } catch (Exception e) {
+                if (isTrimmed(segmentAddresses.get(0))) {
+                    // The file was deleted by a compaction while it was being read.
+                    segmentAddresses.forEach(a -> entries.put(a, LogData.TRIMMED));
+                } else if (getCompressedSegment(segmentAddresses.get(0)) != null
+                        && !(e instanceof DataCorruptionException)) {
+                    // The file was compressed while it was being read.
+                    CompressedSegment cs = getCompressedSegment(segmentAddresses.get(0));
+                    for (LogAddress a : segmentAddresses) {
+                        LogData entry = readCompressedRecord(cs, a.address);
+                        if (entry != null) {
+                            entries.put(a, entry);
+                        }
+                    }
+                } else {
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+
+        return entries;
+    }
+
+    private boolean isTrimmed(LogAddress logAddress) {
+        return logAddress.getStream() == null && logAddress.address < trimMark.get();
+    }
+
+    private CompressedSegment getCompressedSegment(LogAddress logAddress) {
+        return logAddress.getStream() == null
+                ? compressedSegments.get(logAddress.address / RECORDS_PER_LOG_FILE) : null;
+    }
+
+    @Override
+    public void prefixTrim(long address) {
+        long mark = trimMark.accumulateAndGet(address, Math::max);
+        log.debug("Prefix trim mark is {}", mark);
+    }
+
+    @Override
+    public long getTrimMark() {
+        return trimMark.get();
+    }
+
+    @Override
+    public int compact(int maxSegments) {
+        int compacted = deleteTrimmedSegments(maxSegments);
+
+        if (compressSegments && compacted < maxSegments) {
+            compacted += compressSealedSegments(maxSegments - compacted);
+        }
+        return compacted;
+    }
+
+    /**
+     * Get the global segments which have files with an extension, in ascending order.
+     *
+     * @param extensionRegex A regular expression matching the extensions of the files.
+     */
+    private SortedSet<Long> getGlobalSegments(String extensionRegex) {
+        SortedSet<Long> segments = new TreeSet<>();
+        File[] files = new File(logDir).listFiles((dir, name) -> name.matches("[0-9]+\\." + extensionRegex));
+
+        if (files != null) {
+            for (File file : files) {
+                segments.add(Long.parseLong(file.getName().substring(0, file.getName().indexOf('.'))));
+            }
+        }
+        return segments;
+    }
+
+    private int deleteTrimmedSegments(int maxSegments) {
+        // Only the global segments which are entirely below the trim mark can be deleted.
+        long firstLiveSegment = trimMark.get() / RECORDS_PER_LOG_FILE;
+
+        int deleted = 0;
+        for (long segment : getGlobalSegments("(log|zlog)")) {
+            if (deleted >= maxSegments || segment >= firstLiveSegment) {
+                break;
+            }
+
+            deleteSegment(segment);
+            deleted++;
+        }
+
+        if (deleted > 0) {
+            log.info("Compaction deleted {} segments below trim mark {}", deleted, trimMark.get());
+        }
+        return deleted;
+    }
+
+    private int compressSealedSegments(int maxSegments) {
+        long tailSegment = globalTailSegment.get();
+        long firstLiveSegment = trimMark.get() / RECORDS_PER_LOG_FILE;
+
+        int compressed = 0;
+        for (long segment : getGlobalSegments("log")) {
+            if (compressed >= maxSegments || segment >= tailSegment) {
+                break;
+            }
+
+            if (segment >= firstLiveSegment && !compressedSegments.containsKey(segment)) {
+                try {
+                    if (compressSegment(segment)) {
+                        compressed++;
+                    }
+                } catch (TrimmedException e) {
+                    log.debug("Segment {} was trimmed while it was compressed", segment);
+                } catch (IOException e) {
+                    log.error("Error compressing segment {}", segment, e);
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+        return compressed;
+    }
+
+    /**
+     * Rewrite a global segment into a compressed segment, if all of its addresses are written,
+     * and delete its log, index and bitmap files.
+     *
+     * @param segment The segment to compress.
+     * @return True, if the segment was compressed.
+     */
+    private boolean compressSegment(long segment) throws IOException {
+        // The start of the segment may be trimmed, but not its end.
+        FileHandle fh = acquireFileHandle(new LogAddress((segment + 1) * RECORDS_PER_LOG_FILE - 1, null));
+        String fileName = fh.getFileName();
+        String compressedFileName = getCompressedFileName(fileName);
+        long logSize;
+
+        try {
+            Map<Long, AddressMetaData> index = getAddressIndex(fh);
+
+            // Only a full segment can't be appended to anymore.
+            if (index.size() < RECORDS_PER_LOG_FILE) {
+                return false;
+            }
+
+            logSize = fh.getTail();
+            CompressedSegment.write(compressedFileName, fh.getChannel(), new HashMap<>(index), fh.getVersion());
+        } finally {
+            releaseFileHandle(fh);
+        }
+
+        CompressedSegment cs = CompressedSegment.open(compressedFileName);
+        compressedSegments.put(segment, cs);
+        deleteLogFiles(fileName);
+
+        log.info("Compressed segment {} from {} to {} bytes", segment, logSize, cs.size());
+        return true;
+    }
+
+    /**
+     * Load the compressed segments, and clean up after compressions which were interrupted.
+     */
+    private void loadCompressedSegments() {
+        File[] tmpFiles = new File(logDir).listFiles((dir, name) ->
+                name.endsWith(CompressedSegment.COMPRESSED_FILE_EXTENSION + ".tmp"));
+        if (tmpFiles != null) {
+            for (File tmpFile : tmpFiles) {
+                tmpFile.delete();
+            }
+        }
+
+        for (long segment : getGlobalSegments("zlog")) {
+            String fileName = getLogFileName(segment, null);
+            try {
+                CompressedSegment cs = CompressedSegment.open(getCompressedFileName(fileName));
+                compressedSegments.put(segment, cs);
+                globalTailSegment.accumulateAndGet(segment, Math::max);
+                // The log files are left over if a compression was interrupted before deleting them.
+                deleteLogFiles(fileName);
+            } catch (IOException e) {
+                log.error("Error opening compressed segment {}", segment, e);
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * Delete all the files of a trimmed global segment.
+     *
+     * @param segment The segment to delete.
+     */
+    private void deleteSegment(long segment) {
+        String fileName = getLogFileName(segment, null);
+        deleteLogFiles(fileName);
+
+        CompressedSegment cs = compressedSegments.remove(segment);
+        if (cs != null) {
+            cs.close();
+            blockCache.asMap().keySet().removeIf(k -> k.getFileName().equals(cs.getFileName()));
+        }
+
+        try {
+            Files.deleteIfExists(Paths.get(getCompressedFileName(fileName)));
+        } catch (IOException e) {
+            log.error("Error deleting compressed segment {}", fileName, e);
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * Close and delete the log, index and bitmap files of a segment. The files are closed
+     * once the operations using them release them, and new operations get a {@link TrimmedException}.
+     *
+     * @param fileName The name of the log file of the segment.
+     */
+    private void deleteLogFiles(String fileName) {
+        FileHandle fh = writeChannels.get(fileName);
+
+        if (fh != null) {
+            synchronized (fh.lock) {
+                fh.deleted = true;
+                if (fh.refCount == 0 && !fh.isClosed()) {
+                    closeFileHandle(fh, false);
+                }
+            }
+        }
+
+        if (mappedSegments != null) {
+            mappedSegments.invalidate(fileName);
+        }
+
+        try {
+            Files.deleteIfExists(Paths.get(fileName));
+            Files.deleteIfExists(Paths.get(getIndexFileName(fileName)));
+            Files.deleteIfExists(Paths.get(getBitmapFileName(fileName)));
+            log.trace("Deleted log files of {}", fileName);
+        } catch (IOException e) {
+            log.error("Error deleting log files of {}", fileName, e);
+            throw new RuntimeException(e);
+        }
+    }
 
     @Data
     class FileHandle {
         @NonNull
         private FileChannel channel;
         @NonNull
+        private FileChannel indexChannel;
+        @NonNull
         private String fileName;
-        private Set<Long> knownAddresses = Collections.newSetFromMap(new ConcurrentHashMap<>());
+        private final long segment;
+        private final UUID stream;
+        private final int version;
+        @NonNull
+        private AddressBitmap knownAddresses;
+        private volatile Map<Long, AddressMetaData> addressIndex;
         private final Lock lock = new ReentrantLock();
+
+        /**
+         * The end of the last record of the file, or -1 until it is known.
+         */
+        private volatile long tail = -1L;
+
+        /**
+         * The size of the file, including the space preallocated after the tail.
+         */
+        private long allocated;
+
+        /**
+         * The number of operations using the handle, it can't be closed while it is in use.
+         */
+        private volatile int refCount;
+        private volatile long lastAccess;
+        private volatile boolean closed;
+
+        /**
+         * Whether the files were deleted, they are closed when the handle is released.
+         */
+        private volatile boolean deleted;
     }
 
     @Override
     public void close() {
         for (FileHandle fh : writeChannels.values()) {
-            try {
-                fh.getChannel().force(true);
-                fh.getChannel().close();
+            synchronized (fh.lock) {
+                if (!fh.isClosed()) {
+                    // Don't write the bitmap of a deleted segment again.
+                    closeFileHandle(fh, !fh.isDeleted());
+                }
                 fh.channel = null;
+                fh.indexChannel = null;
                 fh.knownAddresses = null;
-            } catch (IOException e) {
-                log.warn("Error closing fh {}: {}", fh.toString(), e.toString());
+                fh.addressIndex = null;
             }
         }
 
-        writeChannels = new HashMap<>();
+        writeChannels = new ConcurrentHashMap<>();
+
+        for (CompressedSegment cs : compressedSegments.values()) {
+            cs.close();
+        }
+        compressedSegments.clear();
+        blockCache.invalidateAll();
+
+        if (mappedSegments != null) {
+            mappedSegments.invalidateAll();
+        }
     }
 
     @Override
@@ -0,0 +1,36 @@
+package org.corfudb.protocols.wireprotocol;
+
+import io.netty.buffer.ByteBuf;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+/**
+ * A request of a block of global addresses from the primary sequencer, which allocates the
+ * global log when the streams are sharded across several sequencers.
+ * <p>
+ * The primary sequencer answers with a {@link TokenResponse} holding the first address of the
+ * block. A block is outstanding until it is reported applied, by a later request, once the
+ * tails it advanced are published: queries of the global tail wait for the blocks which were
+ * outstanding when they arrived, so the tail they return is never ahead of the stream tails.
+ */
+@Data
+@AllArgsConstructor
+public class AddressBlockRequest implements ICorfuPayload<AddressBlockRequest> {
+
+    /** The number of addresses requested, 0 to only report a block applied. */
+    final long numTokens;
+
+    /** The first address of the block applied since the last request, -1L if none. */
+    final long appliedBlock;
+
+    public AddressBlockRequest(ByteBuf buf) {
+        numTokens = buf.readLong();
+        appliedBlock = buf.readLong();
+    }
+
+    @Override
+    public void doSerialize(ByteBuf buf) {
+        buf.writeLong(numTokens);
+        buf.writeLong(appliedBlock);
+    }
+}
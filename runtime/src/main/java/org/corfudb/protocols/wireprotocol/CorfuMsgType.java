@@ -43,6 +43,14 @@ public enum CorfuMsgType {
     // Sequencer Messages
     TOKEN_REQ(20, new TypeToken<CorfuPayloadMsg<TokenRequest>>(){}),
     TOKEN_RES(21, new TypeToken<CorfuPayloadMsg<TokenResponse>>(){}),
+    TOKEN_BATCH_REQ(22, new TypeToken<CorfuPayloadMsg<TokenBatchRequest>>(){}),
+    STREAM_TAIL_SUBSCRIBE(23, new TypeToken<CorfuPayloadMsg<StreamTailSubscription>>(){}),
+    STREAM_TAILS(24, new TypeToken<CorfuPayloadMsg<StreamTailNotification>>(){}),
+    STREAM_TAIL_NOTIFICATION(25, new TypeToken<CorfuPayloadMsg<StreamTailNotification>>(){}),
+    ADDRESS_BLOCK_REQ(26, new TypeToken<CorfuPayloadMsg<AddressBlockRequest>>(){}),
+    SHARD_REQ(27, new TypeToken<CorfuPayloadMsg<ShardRequest>>(){}),
+    SEQUENCER_STATS_REQUEST(28, TypeToken.of(CorfuMsg.class)),
+    SEQUENCER_STATS_RESPONSE(29, new TypeToken<JSONPayloadMsg<SequencerStats>>(){}),
 
     // Logging Unit Messages
     WRITE(30, new TypeToken<CorfuPayloadMsg<WriteRequest>>() {}),
@@ -53,8 +61,11 @@ public enum CorfuMsgType {
     FORCE_GC(35, TypeToken.of(CorfuMsg.class)),
     GC_INTERVAL(36, new TypeToken<CorfuPayloadMsg<Long>>() {}),
     FORCE_COMPACT(37, TypeToken.of(CorfuMsg.class)),
+    PREFIX_TRIM(38, new TypeToken<CorfuPayloadMsg<Long>>() {}),
     COMMIT(40, new TypeToken<CorfuPayloadMsg<CommitRequest>>() {}),
     FLUSH_LOGUNIT(41, TypeToken.of(CorfuMsg.class)),
+    STREAM_ADDRESS_REQUEST(42, new TypeToken<CorfuPayloadMsg<StreamAddressRequest>>() {}),
+    STREAM_ADDRESS_RESPONSE(43, new TypeToken<CorfuPayloadMsg<StreamAddressResponse>>() {}),
 
     WRITE_OK(50, TypeToken.of(CorfuMsg.class)),
     ERROR_TRIMMED(51, TypeToken.of(CorfuMsg.class)),
@@ -68,6 +79,7 @@ public enum CorfuMsgType {
     // EXTRA CODES
     LAYOUT_ALREADY_BOOTSTRAP(60, TypeToken.of(CorfuMsg.class), true),
     LAYOUT_PREPARE_ACK(61, new TypeToken<CorfuPayloadMsg<LayoutPrepareResponse>>(){}, true),
+    SEQUENCER_UNAVAILABLE(62, TypeToken.of(CorfuMsg.class)),
 
     // Management Messages
     MANAGEMENT_BOOTSTRAP_REQUEST(70, new TypeToken<CorfuPayloadMsg<Layout>>(){}, true),
@@ -62,4 +62,11 @@ public interface ILogData extends IMetadata {
     default boolean isHole() {
         return getType() == DataType.HOLE;
     }
+
+    /**
+     * Return whether this address was trimmed (it is below the prefix trim mark of the log unit).
+     */
+    default boolean isTrimmed() {
+        return getType() == DataType.TRIMMED;
+    }
 }
@@ -19,6 +19,9 @@ public class InMemoryLogData implements ILogData {
     /** The metadata map for this entry. */
     final EnumMap<LogUnitMetadataType, Object> metadataMap;
 
+    /** The serialized size of the data, 1 if unknown. */
+    int sizeEstimate = 1;
+
     /** Create a LogData without a payload.
      * @param dataType  The type this log data entry holds.
      */
@@ -56,4 +59,17 @@ public class InMemoryLogData implements ILogData {
     public EnumMap<LogUnitMetadataType, Object> getMetadataMap() {
         return metadataMap;
     }
+
+    /** {@inheritDoc} */
+    @Override
+    public int getSizeEstimate() {
+        return sizeEstimate;
+    }
+
+    /** Set the serialized size of the data, once known.
+     * @param sizeEstimate  The size of the data when serialized, in bytes.
+     */
+    public void setSizeEstimate(int sizeEstimate) {
+        this.sizeEstimate = sizeEstimate;
+    }
 }
@@ -0,0 +1,151 @@
+package org.corfudb.protocols.wireprotocol;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * The statistics of a sequencer, sent as a JSON payload in response to a
+ * SEQUENCER_STATS_REQUEST.
+ * <p>
+ * The latencies of each type of request are counted in power-of-two buckets of
+ * microseconds: bucket 0 counts the requests answered in less than a microsecond, and
+ * bucket i the requests answered in [2^(i-1), 2^i) microseconds. The last bucket counts
+ * every longer request.
+ * <p>
+ * The hot streams and conflict keys are approximate: they are tracked in a bounded table,
+ * so a count may include the count of the entries it replaced.
+ */
+@Data
+public class SequencerStats {
+
+    /**
+     * The number of latency buckets of each type of request.
+     */
+    public static final int LATENCY_BUCKETS = 32;
+
+    /**
+     * The types of the requests handled by a sequencer.
+     */
+    public enum RequestType {
+        /** A query of the tails of the log or of streams, {@link TokenRequest#TK_QUERY}. */
+        QUERY,
+        /** A raw token request, {@link TokenRequest#TK_RAW}. */
+        RAW,
+        /** A stream token request, {@link TokenRequest#TK_MULTI_STREAM}. */
+        MULTI_STREAM,
+        /** A transaction commit, {@link TokenRequest#TK_TX}. */
+        TX,
+        /** A batch of stream token requests coalesced by a client. */
+        BATCH,
+        /** A request of a block of addresses by a sequencer shard. */
+        ADDRESS_BLOCK,
+        /** A lock of the streams of a request spanning several shards. */
+        SHARD_LOCK,
+        /** A commit of the streams of a request spanning several shards. */
+        SHARD_COMMIT
+    }
+
+    /**
+     * The reasons a transaction is aborted for.
+     */
+    public enum AbortReason {
+        /** A stream of the conflict set, without conflict keys, was updated after the snapshot. */
+        STREAM_TAIL,
+        /** A conflict key of the conflict set was updated after the snapshot. */
+        CONFLICT_KEY,
+        /** A conflict key of the conflict set was evicted from the conflict table, after the
+         * snapshot or with a later key of its stream. */
+        WILDCARD
+    }
+
+    /**
+     * The statistics of a type of request.
+     */
+    @Data
+    public static class RequestStats {
+        /** The number of requests answered. */
+        long count;
+        /** The sum of the latencies of the requests answered, in nanoseconds. */
+        long totalLatencyNs;
+        /** The number of requests answered within each latency bucket. */
+        long[] latencyBuckets = new long[LATENCY_BUCKETS];
+
+        /**
+         * Get the mean latency of the requests, in microseconds.
+         */
+        public double getMeanLatencyUs() {
+            return count == 0 ? 0.0 : totalLatencyNs / 1000.0 / count;
+        }
+
+        /**
+         * Get an upper bound of a percentile of the latencies of the requests.
+         *
+         * @param percentile The percentile, between 0 and 100.
+         * @return The upper bound, in microseconds, of the bucket holding the percentile.
+         */
+        public long getLatencyPercentileUs(double percentile) {
+            long rank = (long) Math.ceil(count * percentile / 100.0);
+            long seen = 0L;
+            for (int i = 0; i < latencyBuckets.length; i++) {
+                seen += latencyBuckets[i];
+                if (seen >= rank) {
+                    return 1L << i;
+                }
+            }
+            return 1L << (latencyBuckets.length - 1);
+        }
+    }
+
+    /**
+     * A stream, and the number of tokens issued to it.
+     */
+    @Data
+    @AllArgsConstructor
+    public static class HotStream {
+        UUID streamID;
+        long tokens;
+    }
+
+    /**
+     * A conflict key, and the number of transactions it aborted.
+     */
+    @Data
+    @AllArgsConstructor
+    public static class HotConflictKey {
+        UUID streamID;
+        int conflictParam;
+        long aborts;
+    }
+
+    /** The last address issued, below the blocks of addresses outstanding on shards. */
+    long globalTail;
+
+    /** The number of addresses issued since the sequencer started. */
+    long tokensIssued;
+
+    /** The number of batches of requests allocated by the writer. */
+    long tokenBatches;
+
+    /** The statistics of each type of request. */
+    Map<RequestType, RequestStats> requests;
+
+    /** The number of transactions aborted, by reason. */
+    Map<AbortReason, Long> aborts;
+
+    /** The streams issued the most tokens, in decreasing order. */
+    List<HotStream> hotStreams;
+
+    /** The conflict keys which aborted the most transactions, in decreasing order. */
+    List<HotConflictKey> hotConflictKeys;
+
+    /** The number of keys in the conflict table, and the number it holds. */
+    int conflictTableSize;
+    int conflictTableCapacity;
+
+    /** The number of keys evicted from the conflict table. */
+    long conflictTableEvictions;
+}
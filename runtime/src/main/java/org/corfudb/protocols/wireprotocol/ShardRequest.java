@@ -0,0 +1,63 @@
+package org.corfudb.protocols.wireprotocol;
+
+import io.netty.buffer.ByteBuf;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.util.UUID;
+
+/**
+ * A step of a token request spanning the streams of several sequencer shards.
+ * <p>
+ * The client first sends a {@link #SHARD_LOCK} to each shard, in shard order, with the part of
+ * the request on the streams of the shard. The shard resolves the part of a transaction it
+ * owns, and holds back every other request on these streams until the lock is committed or
+ * expires. It answers with the last global and local addresses issued to each stream of the
+ * request (-1L if none), or a token of -1L if the transaction aborts.
+ * <p>
+ * Once every shard is locked, the client takes an address block from the primary sequencer, and
+ * sends a {@link #SHARD_COMMIT} of it to each shard, which answers like a token request, or
+ * with a token of -1L if its lock expired. A commit of address -1L releases the lock.
+ */
+@Data
+@AllArgsConstructor
+public class ShardRequest implements ICorfuPayload<ShardRequest> {
+
+    public static final byte SHARD_LOCK = 0;
+    public static final byte SHARD_COMMIT = 1;
+
+    /** The step of the request, one of the above. */
+    final byte type;
+
+    /** The ID of the lock, chosen by the client. */
+    final UUID lockId;
+
+    /** The part of the token request on the streams of the shard, for a lock. */
+    final TokenRequest request;
+
+    /** The first address committed, or -1L to release the lock, for a commit. */
+    final long address;
+
+    public ShardRequest(ByteBuf buf) {
+        type = buf.readByte();
+        lockId = ICorfuPayload.fromBuffer(buf, UUID.class);
+        if (type == SHARD_LOCK) {
+            request = ICorfuPayload.fromBuffer(buf, TokenRequest.class);
+            address = -1L;
+        } else {
+            request = null;
+            address = buf.readLong();
+        }
+    }
+
+    @Override
+    public void doSerialize(ByteBuf buf) {
+        buf.writeByte(type);
+        ICorfuPayload.serialize(buf, lockId);
+        if (type == SHARD_LOCK) {
+            ICorfuPayload.serialize(buf, request);
+        } else {
+            buf.writeLong(address);
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package org.corfudb.protocols.wireprotocol;
+
+import com.google.common.collect.Range;
+import io.netty.buffer.ByteBuf;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.util.UUID;
+
+/**
+ * A request for the global addresses of the entries of a stream, within a range of the global log.
+ */
+@Data
+@AllArgsConstructor
+public class StreamAddressRequest implements ICorfuPayload<StreamAddressRequest> {
+
+    final UUID streamID;
+    final Range<Long> range;
+
+    public StreamAddressRequest(ByteBuf buf) {
+        streamID = ICorfuPayload.fromBuffer(buf, UUID.class);
+        range = ICorfuPayload.rangeFromBuffer(buf, Long.class);
+    }
+
+    @Override
+    public void doSerialize(ByteBuf buf) {
+        ICorfuPayload.serialize(buf, streamID);
+        ICorfuPayload.serialize(buf, range);
+    }
+}
@@ -0,0 +1,39 @@
+package org.corfudb.protocols.wireprotocol;
+
+import io.netty.buffer.ByteBuf;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.util.Map;
+
+/**
+ * The global addresses of the entries of a stream known to a log unit, each mapped
+ * to the backpointer of the entry for the stream.
+ * <p>
+ * A log unit returns a bounded number of addresses, in ascending order: all the addresses
+ * it knows up to, and including, the end of the response were returned, and the addresses
+ * after it should be requested again.
+ */
+@Data
+@AllArgsConstructor
+public class StreamAddressResponse implements ICorfuPayload<StreamAddressResponse> {
+
+    /**
+     * The backpointer of an entry written without a backpointer for the stream.
+     */
+    public static final long NO_BACKPOINTER = Long.MIN_VALUE;
+
+    final Map<Long, Long> addresses;
+    final long end;
+
+    public StreamAddressResponse(ByteBuf buf) {
+        addresses = ICorfuPayload.mapFromBuffer(buf, Long.class, Long.class);
+        end = ICorfuPayload.fromBuffer(buf, Long.class);
+    }
+
+    @Override
+    public void doSerialize(ByteBuf buf) {
+        ICorfuPayload.serialize(buf, addresses);
+        ICorfuPayload.serialize(buf, end);
+    }
+}
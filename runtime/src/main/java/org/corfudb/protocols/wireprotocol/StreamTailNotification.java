@@ -0,0 +1,36 @@
+package org.corfudb.protocols.wireprotocol;
+
+import io.netty.buffer.ByteBuf;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * The tails of a set of streams, sent by the sequencer to the clients subscribed to them.
+ * <p>
+ * For each stream, the last global address and the last local address issued to the stream,
+ * as in the response to a {@link TokenRequest#TK_QUERY} (-1L if none).
+ */
+@Data
+@AllArgsConstructor
+public class StreamTailNotification implements ICorfuPayload<StreamTailNotification> {
+
+    /** The last global address issued to each stream. */
+    final Map<UUID, Long> globalTails;
+
+    /** The last local address issued to each stream. */
+    final Map<UUID, Long> streamTails;
+
+    public StreamTailNotification(ByteBuf buf) {
+        globalTails = ICorfuPayload.mapFromBuffer(buf, UUID.class, Long.class);
+        streamTails = ICorfuPayload.mapFromBuffer(buf, UUID.class, Long.class);
+    }
+
+    @Override
+    public void doSerialize(ByteBuf buf) {
+        ICorfuPayload.serialize(buf, globalTails);
+        ICorfuPayload.serialize(buf, streamTails);
+    }
+}
@@ -0,0 +1,33 @@
+package org.corfudb.protocols.wireprotocol;
+
+import io.netty.buffer.ByteBuf;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * A subscription of a client to the tails of a set of streams.
+ * <p>
+ * The sequencer answers with the current tails of the streams, then pushes a
+ * {@link StreamTailNotification} whenever a batch of tokens advances some of them. A new
+ * subscription replaces the previous subscription of the client, an empty set of streams
+ * cancels it.
+ */
+@Data
+@AllArgsConstructor
+public class StreamTailSubscription implements ICorfuPayload<StreamTailSubscription> {
+
+    /** The streams subscribed to. */
+    final Set<UUID> streams;
+
+    public StreamTailSubscription(ByteBuf buf) {
+        streams = ICorfuPayload.setFromBuffer(buf, UUID.class);
+    }
+
+    @Override
+    public void doSerialize(ByteBuf buf) {
+        ICorfuPayload.serialize(buf, streams);
+    }
+}
@@ -0,0 +1,33 @@
+package org.corfudb.protocols.wireprotocol;
+
+import io.netty.buffer.ByteBuf;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+
+import java.util.List;
+
+/**
+ * A batch of {@link TokenRequest#TK_MULTI_STREAM} token requests, coalesced by a client.
+ * <p>
+ * The sequencer allocates the requests, in order, one contiguous block of the global log,
+ * and answers with a {@link TokenResponse} holding the first address of the block, and, for
+ * every stream of the batch, the last global address and the last local address issued to
+ * the stream before the batch (-1L if none). The client splits the block into the tokens,
+ * backpointers and stream addresses of each request.
+ */
+@Data
+@AllArgsConstructor
+public class TokenBatchRequest implements ICorfuPayload<TokenBatchRequest> {
+
+    /** The coalesced requests, in the order they are allocated. */
+    final List<TokenRequest> requests;
+
+    public TokenBatchRequest(ByteBuf buf) {
+        requests = ICorfuPayload.listFromBuffer(buf, TokenRequest.class);
+    }
+
+    @Override
+    public void doSerialize(ByteBuf buf) {
+        ICorfuPayload.serialize(buf, requests);
+    }
+}
@@ -91,6 +91,23 @@ public class CorfuRuntime {
     @Getter
     public boolean backpointersDisabled = false;
 
+    /**
+     * Whether the tails of streams are learned from the notifications of the sequencer,
+     * instead of querying it. Reads may then miss the latest writes of other clients,
+     * for up to the delay of a notification.
+     */
+    @Getter
+    public boolean streamTailNotificationsEnabled = false;
+
+    /**
+     * The maximum staleness, in milliseconds, of the timestamps of non-transactional reads of
+     * objects. If zero, reads are linearizable and query the sequencer every time. Otherwise,
+     * reads use stream tails cached by the runtime, which may miss the writes of the last
+     * milliseconds.
+     */
+    @Getter
+    public long maxReadStalenessMs = 0L;
+
     /**
      * If hole filling is disabled.
      */
@@ -253,6 +270,28 @@ public class CorfuRuntime {
         return this;
     }
 
+    /**
+     * Whether or not to learn the tails of streams from the notifications of the sequencer
+     *
+     * @param enable True, if stream tail notifications should be enabled, false otherwise.
+     * @return A CorfuRuntime to support chaining.
+     */
+    public CorfuRuntime setStreamTailNotificationsEnabled(boolean enable) {
+        this.streamTailNotificationsEnabled = enable;
+        return this;
+    }
+
+    /**
+     * Set the maximum staleness of non-transactional reads of objects.
+     *
+     * @param millis The maximum staleness of a read, in milliseconds, or 0 for linearizable reads.
+     * @return A CorfuRuntime to support chaining.
+     */
+    public CorfuRuntime setMaxReadStaleness(long millis) {
+        this.maxReadStalenessMs = millis;
+        return this;
+    }
+
     /**
      * Whether or not to disable the cache
      *
@@ -12,6 +12,7 @@ import org.corfudb.runtime.exceptions.DataCorruptionException;
 import org.corfudb.runtime.exceptions.OutOfSpaceException;
 import org.corfudb.runtime.exceptions.OverwriteException;
 import org.corfudb.runtime.exceptions.ReplexOverwriteException;
+import org.corfudb.runtime.exceptions.TrimmedException;
 import org.corfudb.util.serializer.Serializers;
 
 import java.lang.invoke.MethodHandles;
@@ -55,13 +56,13 @@ public class LogUnitClient implements IClient {
      * @param msg   Incoming Message
      * @param ctx   Context
      * @param r     Router
-     * @throws  Exception
+     * @throws  TrimmedException
      */
     @ClientHandler(type=CorfuMsgType.ERROR_TRIMMED)
     private static Object handleTrimmed(CorfuMsg msg, ChannelHandlerContext ctx, IClientRouter r)
     throws Exception
     {
-        throw new Exception("Trimmed");
+        throw new TrimmedException();
     }
 
     /** Handle an ERROR_OVERWRITE message.
@@ -146,6 +147,18 @@ public class LogUnitClient implements IClient {
         return msg.getPayload();
     }
 
+    /** Handle a STREAM_ADDRESS_RESPONSE message.
+     *
+     * @param msg   Incoming Message
+     * @param ctx   Context
+     * @param r     Router
+     */
+    @ClientHandler(type=CorfuMsgType.STREAM_ADDRESS_RESPONSE)
+    private static Object handleStreamAddressResponse(CorfuPayloadMsg<StreamAddressResponse> msg,
+                                                      ChannelHandlerContext ctx, IClientRouter r) {
+        return msg.getPayload();
+    }
+
     /**
      * Handle a ERROR_DATA_CORRUPTION message
      * @param msg   Incoming Message
@@ -242,6 +255,20 @@ public class LogUnitClient implements IClient {
                 CorfuMsgType.READ_REQUEST.payloadMsg(new ReadRequest(offsetRange, stream)));
     }
 
+    /**
+     * Asynchronously get the global addresses of the entries of a stream known to the logging unit.
+     *
+     * @param stream The stream.
+     * @param range  The closed range of global addresses to look up.
+     * @return A CompletableFuture which will complete with the addresses of the entries, each mapped
+     * to its backpointer for the stream. The response may end before the range does, in which case
+     * the rest of the range should be requested again.
+     */
+    public CompletableFuture<StreamAddressResponse> getStreamAddresses(UUID stream, Range<Long> range) {
+        return router.sendMessageAndGetCompletable(
+                CorfuMsgType.STREAM_ADDRESS_REQUEST.payloadMsg(new StreamAddressRequest(stream, range)));
+    }
+
     /**
      * Send a hint to the logging unit that a stream can be trimmed.
      *
@@ -252,6 +279,18 @@ public class LogUnitClient implements IClient {
         router.sendMessage(CorfuMsgType.TRIM.payloadMsg(new TrimRequest(stream, prefix)));
     }
 
+    /**
+     * Trim the global log of the logging unit, up to (but not including) an address.
+     * Reads below the prefix are answered as trimmed, and the space they use is
+     * reclaimed in the background.
+     *
+     * @param prefix The global address to trim the log up to.
+     * @return A completable future which will complete once the trim mark is persisted.
+     */
+    public CompletableFuture<Boolean> prefixTrim(long prefix) {
+        return router.sendMessageAndGetCompletable(CorfuMsgType.PREFIX_TRIM.payloadMsg(prefix));
+    }
+
     /**
      * Fill a hole at a given address.
      *
@@ -1,28 +1,95 @@
 package org.corfudb.runtime.clients;
 
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import io.netty.channel.ChannelHandlerContext;
 import lombok.Data;
 import lombok.Getter;
 import lombok.Setter;
 import org.corfudb.protocols.wireprotocol.*;
+import org.corfudb.runtime.exceptions.SequencerRejectedException;
 
 import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * A sequencer client.
  * <p>
  * This client allows the client to obtain sequence numbers from a sequencer.
  * <p>
+ * Stream token requests are coalesced: while a request is in flight to the sequencer, the
+ * stream token requests issued in the meantime are queued, and sent together as a single
+ * {@link TokenBatchRequest} once it completes. The sequencer allocates the batch one
+ * contiguous block, which this client splits into the response of each request.
+ * <p>
+ * The client may also track the tails of streams without querying the sequencer: it
+ * subscribes to the streams it is asked about, and the sequencer pushes their tails as
+ * they advance. The tails of the streams the client writes to are also updated from its own
+ * token responses, so they include its own writes. The subscription is renewed every
+ * {@link #SUBSCRIPTION_RENEWAL_MS} milliseconds, and the tails are only used while it is
+ * current, so a lost subscription delays the notifications at most that long.
+ * <p>
  * Created by mwei on 12/10/15.
  */
 public class SequencerClient implements IClient {
 
+    /**
+     * The maximum number of token requests coalesced in a single batch.
+     */
+    static public int MAX_COALESCED_REQUESTS = 64;
+
+    /**
+     * A stream token request waiting to be sent in a batch.
+     */
+    @Data
+    static class CoalescedRequest {
+        final TokenRequest request;
+        final CompletableFuture<TokenResponse> future = new CompletableFuture<>();
+    }
+
+    private final Queue<CoalescedRequest> coalescedRequests = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean inFlight = new AtomicBoolean();
+
+    /**
+     * The interval in milliseconds at which the subscription to stream tails is renewed.
+     */
+    static public long SUBSCRIPTION_RENEWAL_MS = 1_000L;
+
+    /**
+     * The maximum number of streams subscribed to.
+     */
+    static public int MAX_SUBSCRIBED_STREAMS = 10_000;
+
+    /**
+     * The streams subscribed to, or to be subscribed to with the next subscription.
+     */
+    private final Set<UUID> subscribedStreams = ConcurrentHashMap.newKeySet();
+
+    /**
+     * The last global and local addresses issued to each subscribed stream, once known.
+     */
+    private final Map<UUID, Long> globalTails = new ConcurrentHashMap<>();
+    private final Map<UUID, Long> localTails = new ConcurrentHashMap<>();
+
+    /**
+     * Whether the sequencer answered a subscription, and the time, in nanoseconds, at which
+     * the last subscription it answered was sent.
+     */
+    private volatile boolean subscribed;
+    private volatile long subscriptionTime;
+    private final AtomicBoolean subscribing = new AtomicBoolean();
 
     @Setter
     @Getter
@@ -39,25 +106,274 @@ public class SequencerClient implements IClient {
         return msg.getPayload();
     }
 
+    /** Handle a SEQUENCER_UNAVAILABLE message, sent by a sequencer which can't issue tokens.
+     *
+     * @param msg   Incoming Message
+     * @param ctx   Context
+     * @param r     Router
+     * @throws  SequencerRejectedException
+     */
+    @ClientHandler(type=CorfuMsgType.SEQUENCER_UNAVAILABLE)
+    private static Object handleSequencerUnavailable(CorfuMsg msg, ChannelHandlerContext ctx, IClientRouter r) {
+        throw new SequencerRejectedException();
+    }
+
+    @ClientHandler(type=CorfuMsgType.STREAM_TAILS)
+    private static Object handleStreamTails(CorfuPayloadMsg<StreamTailNotification> msg,
+                                            ChannelHandlerContext ctx, IClientRouter r) {
+        return msg.getPayload();
+    }
+
+    @ClientHandler(type=CorfuMsgType.SEQUENCER_STATS_RESPONSE)
+    private static Object handleStatsResponse(JSONPayloadMsg<SequencerStats> msg,
+                                              ChannelHandlerContext ctx, IClientRouter r) {
+        return msg.getPayload();
+    }
+
+    @ClientHandler(type=CorfuMsgType.STREAM_TAIL_NOTIFICATION)
+    private static Object handleStreamTailNotification(CorfuPayloadMsg<StreamTailNotification> msg,
+                                                       ChannelHandlerContext ctx, IClientRouter r) {
+        // Pushed by the sequencer, there is no request to complete.
+        r.getClient(SequencerClient.class).updateTails(msg.getPayload());
+        return null;
+    }
+
     public CompletableFuture<TokenResponse> nextToken(Set<UUID> streamIDs, long numTokens) {
-        return router.sendMessageAndGetCompletable(
-                CorfuMsgType.TOKEN_REQ.payloadMsg(new TokenRequest(numTokens, streamIDs, false, false)));
+        TokenRequest request = new TokenRequest(numTokens, streamIDs, false, false);
+        if (request.getReqType() != TokenRequest.TK_MULTI_STREAM) {
+            return router.sendMessageAndGetCompletable(CorfuMsgType.TOKEN_REQ.payloadMsg(request));
+        }
+
+        CoalescedRequest coalesced = new CoalescedRequest(request);
+        coalescedRequests.add(coalesced);
+        sendCoalescedRequests();
+        return coalesced.getFuture().thenApply(r -> recordTokens(request, r));
+    }
+
+    /**
+     * Get the tail of a stream from the notifications of the sequencer, subscribing to the
+     * stream if it isn't yet.
+     *
+     * @param streamID The stream.
+     * @return A response like the response to a query of the stream, or null if the tail of
+     * the stream isn't known from a current subscription, and the sequencer should be queried.
+     */
+    public TokenResponse getStreamTail(UUID streamID) {
+        Long globalTail = globalTails.get(streamID);
+        Long localTail = localTails.get(streamID);
+        boolean current = subscribed && System.nanoTime() - subscriptionTime
+                < TimeUnit.MILLISECONDS.toNanos(SUBSCRIPTION_RENEWAL_MS);
+        if (globalTail != null && localTail != null && current) {
+            return new TokenResponse(globalTail, Collections.emptyMap(),
+                    Collections.singletonMap(streamID, localTail));
+        }
+
+        if (globalTail == null && subscribedStreams.size() < MAX_SUBSCRIBED_STREAMS) {
+            subscribedStreams.add(streamID);
+        }
+        if (subscribedStreams.contains(streamID)) {
+            subscribe();
+        }
+        return null;
+    }
+
+    /**
+     * Send a subscription to the tails of the subscribed streams, unless one is in flight.
+     */
+    private void subscribe() {
+        if (!subscribing.compareAndSet(false, true)) {
+            return;
+        }
+
+        long sent = System.nanoTime();
+        CompletableFuture<StreamTailNotification> response;
+        try {
+            response = router.sendMessageAndGetCompletable(CorfuMsgType.STREAM_TAIL_SUBSCRIBE
+                    .payloadMsg(new StreamTailSubscription(ImmutableSet.copyOf(subscribedStreams))));
+        } catch (RuntimeException e) {
+            subscribing.set(false);
+            throw e;
+        }
+        response.whenComplete((tails, ex) -> {
+            if (ex == null) {
+                updateTails(tails);
+                subscriptionTime = sent;
+                subscribed = true;
+            }
+            subscribing.set(false);
+        });
+    }
+
+    /**
+     * Update the tails of the subscribed streams, which only advance.
+     *
+     * @param tails The tails of some of the subscribed streams.
+     */
+    private void updateTails(StreamTailNotification tails) {
+        tails.getGlobalTails().forEach((id, tail) -> globalTails.merge(id, tail, Math::max));
+        tails.getStreamTails().forEach((id, tail) -> localTails.merge(id, tail, Math::max));
+    }
+
+    /**
+     * Update the tails of the subscribed streams with the tokens issued to this client.
+     *
+     * @param request  The token request.
+     * @param response The response of the sequencer.
+     * @return The response.
+     */
+    private TokenResponse recordTokens(TokenRequest request, TokenResponse response) {
+        if (response.getToken() >= 0 && request.getStreams() != null && !globalTails.isEmpty()) {
+            long lastToken = response.getToken() + request.getNumTokens() - 1;
+            for (UUID id : request.getStreams()) {
+                globalTails.computeIfPresent(id, (k, tail) -> Math.max(tail, lastToken));
+                Long localTail = response.getStreamAddresses().get(id);
+                if (localTail != null) {
+                    localTails.computeIfPresent(id, (k, tail) -> Math.max(tail, localTail));
+                }
+            }
+        }
+        return response;
+    }
+
+    /**
+     * Send the queued stream token requests, unless a batch is already in flight. The queue
+     * is checked again once the batch in flight completes, so no request is left behind.
+     */
+    private void sendCoalescedRequests() {
+        while (!coalescedRequests.isEmpty() && inFlight.compareAndSet(false, true)) {
+            List<CoalescedRequest> batch = new ArrayList<>();
+            CoalescedRequest coalesced;
+            while (batch.size() < MAX_COALESCED_REQUESTS && (coalesced = coalescedRequests.poll()) != null) {
+                batch.add(coalesced);
+            }
+            if (batch.isEmpty()) {
+                inFlight.set(false);
+                continue;
+            }
+
+            CompletableFuture<TokenResponse> response;
+            try {
+                if (batch.size() == 1) {
+                    response = router.sendMessageAndGetCompletable(
+                            CorfuMsgType.TOKEN_REQ.payloadMsg(batch.get(0).getRequest()));
+                } else {
+                    List<TokenRequest> requests = new ArrayList<>(batch.size());
+                    batch.forEach(c -> requests.add(c.getRequest()));
+                    response = router.sendMessageAndGetCompletable(
+                            CorfuMsgType.TOKEN_BATCH_REQ.payloadMsg(new TokenBatchRequest(requests)));
+                }
+            } catch (RuntimeException e) {
+                response = new CompletableFuture<>();
+                response.completeExceptionally(e);
+            }
+
+            response.whenComplete((r, ex) -> {
+                try {
+                    if (ex != null) {
+                        batch.forEach(c -> c.getFuture().completeExceptionally(ex));
+                    } else if (batch.size() == 1) {
+                        batch.get(0).getFuture().complete(r);
+                    } else {
+                        completeBatch(batch, r);
+                    }
+                } finally {
+                    inFlight.set(false);
+                    sendCoalescedRequests();
+                }
+            });
+            return;
+        }
+    }
+
+    /**
+     * Split the block of tokens allocated to a batch into the response of each request.
+     *
+     * @param batch    The requests of the batch, in the order they were sent.
+     * @param response The response of the sequencer to the batch.
+     */
+    private static void completeBatch(List<CoalescedRequest> batch, TokenResponse response) {
+        long token = response.getToken();
+        Map<UUID, Long> backpointers = new HashMap<>(response.getBackpointerMap());
+        Map<UUID, Long> streamTails = new HashMap<>(response.getStreamAddresses());
+        for (CoalescedRequest coalesced : batch) {
+            long numTokens = coalesced.getRequest().getNumTokens();
+            ImmutableMap.Builder<UUID, Long> backpointerMap = ImmutableMap.builder();
+            ImmutableMap.Builder<UUID, Long> streamAddresses = ImmutableMap.builder();
+            for (UUID id : coalesced.getRequest().getStreams()) {
+                backpointerMap.put(id, backpointers.get(id));
+                backpointers.put(id, token + numTokens - 1);
+                long streamTail = streamTails.get(id) + numTokens;
+                streamAddresses.put(id, streamTail);
+                streamTails.put(id, streamTail);
+            }
+            coalesced.getFuture().complete(new TokenResponse(token, backpointerMap.build(), streamAddresses.build()));
+            token += numTokens;
+        }
     }
 
     public CompletableFuture<TokenResponse> nextToken(Set<UUID> streamIDs, long numTokens,
                                                       boolean overwrite,
                                                       boolean replexOverwrite) {
-        return router.sendMessageAndGetCompletable(
-                CorfuMsgType.TOKEN_REQ.payloadMsg(new TokenRequest(numTokens, streamIDs, overwrite, replexOverwrite)));
+        TokenRequest request = new TokenRequest(numTokens, streamIDs, overwrite, replexOverwrite);
+        return router.<TokenResponse>sendMessageAndGetCompletable(CorfuMsgType.TOKEN_REQ.payloadMsg(request))
+                .thenApply(r -> recordTokens(request, r));
     }
 
     public CompletableFuture<TokenResponse> nextToken(Set<UUID> streamIDs, long numTokens,
                                                       boolean overwrite,
                                                       boolean replexOverwrite,
                                                       TxResolutionInfo conflictInfo) {
+        TokenRequest request = new TokenRequest(numTokens, streamIDs, overwrite, replexOverwrite, conflictInfo);
+        return router.<TokenResponse>sendMessageAndGetCompletable(CorfuMsgType.TOKEN_REQ.payloadMsg(request))
+                .thenApply(r -> recordTokens(request, r));
+    }
+
+    /**
+     * Request a block of global addresses from the primary sequencer.
+     *
+     * @param numTokens    The number of addresses, 0 to only report a block applied.
+     * @param appliedBlock The first address of the block applied since the last request,
+     *                     -1L if none.
+     * @return A future completed with the first address of the block.
+     */
+    public CompletableFuture<TokenResponse> allocateAddressBlock(long numTokens, long appliedBlock) {
         return router.sendMessageAndGetCompletable(
-                CorfuMsgType.TOKEN_REQ.payloadMsg(new TokenRequest(numTokens, streamIDs,
-                        overwrite, replexOverwrite,
-                        conflictInfo)));
+                CorfuMsgType.ADDRESS_BLOCK_REQ.payloadMsg(new AddressBlockRequest(numTokens, appliedBlock)));
+    }
+
+    /**
+     * Lock the streams of a part of a token request spanning several sequencer shards.
+     *
+     * @param lockId  The ID of the lock.
+     * @param request The part of the request on the streams of this sequencer.
+     * @return A future completed with the last addresses issued to the streams, or a token
+     * of -1L if the transaction of the request aborts.
+     */
+    public CompletableFuture<TokenResponse> lockShard(UUID lockId, TokenRequest request) {
+        return router.sendMessageAndGetCompletable(CorfuMsgType.SHARD_REQ.payloadMsg(
+                new ShardRequest(ShardRequest.SHARD_LOCK, lockId, request, -1L)));
+    }
+
+    /**
+     * Commit the address of a token request to the streams locked by {@link #lockShard}.
+     *
+     * @param lockId  The ID of the lock.
+     * @param address The first address of the request, or -1L to release the lock.
+     * @return A future completed with the token response of the part of the request, or a
+     * token of -1L if the lock was released.
+     */
+    public CompletableFuture<TokenResponse> commitShard(UUID lockId, long address) {
+        return router.sendMessageAndGetCompletable(CorfuMsgType.SHARD_REQ.payloadMsg(
+                new ShardRequest(ShardRequest.SHARD_COMMIT, lockId, null, address)));
+    }
+
+    /**
+     * Get the counters of the sequencer: the number and latency of the requests of each
+     * type, the transactions aborted by reason, and the hottest streams and conflict keys.
+     *
+     * @return A future completed with the statistics of the sequencer.
+     */
+    public CompletableFuture<SequencerStats> getStats() {
+        return router.sendMessageAndGetCompletable(new CorfuMsg(CorfuMsgType.SEQUENCER_STATS_REQUEST));
     }
 }
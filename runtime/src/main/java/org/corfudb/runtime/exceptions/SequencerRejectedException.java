@@ -1,7 +1,10 @@
 package org.corfudb.runtime.exceptions;
 
 /**
+ * Thrown when a sequencer can't issue tokens, for example a sequencer shard which can't
+ * reach the primary sequencer. The request may be retried.
+ *
  * Created by mwei on 9/20/16.
  */
-public class SequencerRejectedException extends Exception {
+public class SequencerRejectedException extends RuntimeException {
 }
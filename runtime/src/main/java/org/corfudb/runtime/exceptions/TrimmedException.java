@@ -0,0 +1,7 @@
+package org.corfudb.runtime.exceptions;
+
+/**
+ * Thrown when an address below the prefix trim mark of a log unit is accessed.
+ */
+public class TrimmedException extends LogUnitException {
+}
@@ -125,10 +125,11 @@ public class CorfuCompileProxy<T> implements ICorfuSMRProxyInternal<T> {
                     .access(this, accessMethod, conflictObject);
         }
 
-        // Linearize this read against a timestamp
+        // Linearize this read against a timestamp, or, if the runtime allows
+        // stale reads, against a recent one.
         final long timestamp =
                 rt.getSequencerView()
-                .nextToken(Collections.singleton(streamID), 0).getToken();
+                .getStreamTail(streamID, rt.getMaxReadStalenessMs()).getToken();
         log.debug("access [{}] at ts {}", getStreamID(), timestamp);
 
         // Acquire locks and perform read.
@@ -3,6 +3,7 @@ package org.corfudb.runtime.view;
 
 import lombok.extern.slf4j.Slf4j;
 import org.corfudb.runtime.CorfuRuntime;
+import org.corfudb.runtime.exceptions.SequencerRejectedException;
 import org.corfudb.runtime.exceptions.WrongEpochException;
 
 import java.util.concurrent.ExecutionException;
@@ -14,8 +15,8 @@ import java.util.concurrent.TimeoutException;
  * AbstractView requires a runtime, and provides a layoutHelper function.
  * <p>
  * The layoutHelper function is called whenever a view tries to access a layout.
- * If the layoutHelper catches an exception which is due to connection issues
- * or an incorrect epoch, it asks the runtime to invalidate that layout
+ * If the layoutHelper catches an exception which is due to connection issues,
+ * a sequencer which can't issue tokens, or an incorrect epoch, it asks the runtime to invalidate that layout
  * by reporting it to a layout server, and retries the function.
  * <p>
  * Created by mwei on 12/10/15.
@@ -76,6 +77,13 @@ public abstract class AbstractView {
                         Thread.sleep(runtime.retryRate * 1000);
                     } catch (InterruptedException ie) {
                     }
+                } else if (re instanceof SequencerRejectedException) {
+                    log.warn("Sequencer rejected the request, invalidating view and retrying in {}s", runtime.retryRate);
+                    runtime.invalidateLayout();
+                    try {
+                        Thread.sleep(runtime.retryRate * 1000);
+                    } catch (InterruptedException ie) {
+                    }
                 } else if (re instanceof WrongEpochException){
                     WrongEpochException we = (WrongEpochException) re;
                     log.warn("Got a wrong epoch exception, updating epoch to {} and invalidate view",
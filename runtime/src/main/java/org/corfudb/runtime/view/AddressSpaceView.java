@@ -3,6 +3,7 @@ package org.corfudb.runtime.view;
 import com.github.benmanes.caffeine.cache.CacheLoader;
 import com.github.benmanes.caffeine.cache.Caffeine;
 import com.github.benmanes.caffeine.cache.LoadingCache;
+import com.github.benmanes.caffeine.cache.stats.CacheStats;
 import com.google.common.collect.Range;
 import com.google.common.collect.RangeSet;
 import com.google.common.collect.TreeRangeSet;
@@ -14,9 +15,9 @@ import lombok.extern.slf4j.Slf4j;
 import org.corfudb.protocols.logprotocol.LogEntry;
 import org.corfudb.protocols.wireprotocol.DataType;
 import org.corfudb.protocols.wireprotocol.ILogData;
-import org.corfudb.protocols.wireprotocol.ILogUnitEntry;
 import org.corfudb.protocols.wireprotocol.InMemoryLogData;
 import org.corfudb.protocols.wireprotocol.LogData;
+import org.corfudb.protocols.wireprotocol.StreamAddressResponse;
 import org.corfudb.runtime.CorfuRuntime;
 import org.corfudb.runtime.clients.LogUnitClient;
 import org.corfudb.runtime.exceptions.OverwriteException;
@@ -25,8 +26,11 @@ import org.corfudb.util.Utils;
 import org.corfudb.util.serializer.Serializers;
 
 import java.time.Duration;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.NavigableSet;
 import java.util.Set;
+import java.util.TreeSet;
 import java.util.UUID;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
@@ -36,15 +40,27 @@ import java.util.function.Function;
 /**
  * A view of the address space implemented by Corfu.
  * <p>
+ * Reads are cached by each runtime, in a cache weighted by the serialized size of its entries
+ * plus {@link #CACHE_ENTRY_OVERHEAD}, bounded by {@link CorfuRuntime#getMaxCacheSize()}. The
+ * cache evicts with the W-TinyLFU policy of Caffeine: a new entry only enters the segmented
+ * LRU holding most of the cache if it was used more often than the entry it would evict, so
+ * the entries read once by a long scan of a stream don't flush the working set.
+ * <p>
  * Created by mwei on 12/10/15.
  */
 @Slf4j
 public class AddressSpaceView extends AbstractView {
 
     /**
-     * A cache for read results.
+     * The weight of a cache entry besides its serialized payload, in bytes: the node of the
+     * cache, its key, and the log data object with its maps.
+     */
+    static public int CACHE_ENTRY_OVERHEAD = 256;
+
+    /**
+     * A cache for read results, replaced when the caches are reset.
      */
-    static LoadingCache<Long, ILogData> readCache;
+    private volatile LoadingCache<Long, ILogData> readCache;
 
     /**
      * Duration before retrying an empty read.
@@ -55,22 +71,18 @@ public class AddressSpaceView extends AbstractView {
 
     public AddressSpaceView(CorfuRuntime runtime) {
         super(runtime);
-        // We don't lock readCache, this should be ok in the rare
-        // case we generate a second readCache as it won't be pointed to.
-        if (readCache == null) {
-            resetCaches();
-        } else {
-            log.debug("Read cache already built, re-using existing read cache.");
-        }
+        resetCaches();
     }
 
     /**
-     * Reset all in-memory caches.
+     * Reset all in-memory caches of this runtime, and their statistics.
      */
     public void resetCaches() {
         readCache = Caffeine.<Long, ILogData>newBuilder()
-                .<Long, ILogData>weigher((k, v) -> v.getSizeEstimate())
+                .<Long, ILogData>weigher((k, v) ->
+                        (int) Math.min(Integer.MAX_VALUE, (long) CACHE_ENTRY_OVERHEAD + v.getSizeEstimate()))
                 .maximumWeight(runtime.getMaxCacheSize())
+                .recordStats()
                 .build(new CacheLoader<Long, ILogData>() {
                     @Override
                     public ILogData load(Long aLong) throws Exception {
@@ -86,27 +98,103 @@ public class AddressSpaceView extends AbstractView {
     }
 
     /**
-     * Learn about a stream for the first time.
-     * This method will dump all learned stream entries into the stream.
+     * Get the statistics of the read cache since the caches were last reset: the hits and
+     * misses, the time spent loading the missed entries, and the evictions.
+     */
+    public CacheStats getReadCacheStats() {
+        return readCache.stats();
+    }
+
+    /**
+     * Get the weight of the entries of the read cache, in bytes.
+     */
+    public long getReadCacheWeight() {
+        LoadingCache<Long, ILogData> cache = readCache;
+        // Apply the pending writes first, the weight is only updated by the maintenance of the cache.
+        cache.cleanUp();
+        return cache.policy().eviction()
+                .map(e -> e.weightedSize().orElse(0L))
+                .orElse(0L);
+    }
+
+    /**
+     * Check whether an address is in the read cache, without loading it or counting a hit or a miss.
+     *
+     * @param address An address to check.
+     * @return True, if the entry at the address is cached.
+     */
+    public boolean isCached(long address) {
+        return readCache.asMap().containsKey(address);
+    }
+
+    /**
+     * Learn about a stream for the first time, from the stream address indexes of the log units.
+     * The indexes only hold the entries written since their log unit started, and at most
+     * {@code --max-stream-index} of them, so older entries of the stream may be missing. Callers
+     * must check the backpointers, as {@link #getStreamAddresses(UUID, long, long)} allows, before
+     * relying on the result.
      *
      * @param streamID The ID of a stream.
-     * @return The long
+     * @return The global addresses of the entries of the stream, in ascending order.
      */
-    private Set<Long> getStream(UUID streamID) {
-        /* TODO : implement in both backpointer and Replex cases */
-        throw new UnsupportedOperationException("unsupported");
+    private NavigableSet<Long> getStream(UUID streamID) {
+        return new TreeSet<>(getStreamAddresses(streamID, 0L, Address.MAX).keySet());
     }
 
     /**
      * Learn about a stream for the first time, bypassing the cache.
-     * This method will dump all learned stream entries into the stream.
+     * Like {@link #getStream(UUID)}, only the entries known to the log units' indexes are read.
+     *
+     * @param streamID The ID of a stream.
+     * @return The entries of the stream, by global address.
+     */
+    private Map<Long, ILogData> fetchStream(UUID streamID) {
+        return cacheFetch(getStream(streamID));
+    }
+
+    /**
+     * Get the addresses of the entries of a stream in a range of the global log, from the stream
+     * address indexes of the log units, with one request per stripe for every
+     * {@code LogUnitServer.MAX_STREAM_ADDRESSES} entries.
+     * <p>
+     * Each address is mapped to the backpointer of its entry for the stream, or to
+     * {@link StreamAddressResponse#NO_BACKPOINTER}, so callers can check that the addresses form
+     * an unbroken chain of backpointers before relying on them: entries which are not written yet,
+     * or which were not indexed, are missing from the result.
      *
      * @param streamID The ID of a stream.
-     * @return The long
+     * @param start    The first global address of the range.
+     * @param end      The last global address of the range, inclusive.
+     * @return The addresses of the entries of the stream, mapped to their backpointers.
      */
-    private Map<Long, ILogUnitEntry> fetchStream(UUID streamID) {
-        /* TODO : implement in both backpointer and Replex cases */
-        throw new UnsupportedOperationException("unsupported");
+    public Map<Long, Long> getStreamAddresses(UUID streamID, long start, long end) {
+        return layoutHelper(l -> {
+            Map<Long, Long> addresses = new HashMap<>();
+            for (Layout.LayoutSegment s : l.getSegments()) {
+                long segmentStart = Math.max(start, s.getStart());
+                long segmentEnd = s.getEnd() == -1 ? end : Math.min(end, s.getEnd() - 1);
+                if (segmentStart > segmentEnd) {
+                    continue;
+                }
+
+                for (Layout.LayoutStripe stripe : s.getStripes()) {
+                    // As for reads, the last unit of the chain is asked.
+                    LogUnitClient client = runtime.getRouter(stripe.getLogServers()
+                            .get(stripe.getLogServers().size() - 1)).getClient(LogUnitClient.class);
+                    long next = segmentStart;
+                    while (true) {
+                        StreamAddressResponse response = CFUtils.getUninterruptibly(
+                                client.getStreamAddresses(streamID, Range.closed(next, segmentEnd)));
+                        addresses.putAll(response.getAddresses());
+                        if (response.getEnd() >= segmentEnd) {
+                            break;
+                        }
+                        next = response.getEnd() + 1;
+                    }
+                }
+            }
+            return addresses;
+        });
     }
 
     /**
@@ -133,6 +221,7 @@ public class AddressSpaceView extends AbstractView {
         // Insert this append to our local cache.
         if (!runtime.isCacheDisabled()) {
             InMemoryLogData ld = new InMemoryLogData(DataType.DATA, data);
+            ld.setSizeEstimate(numBytes);
             ld.setGlobalAddress(address);
             ld.setBackpointerMap(backpointerMap);
             ld.setStreams(stream);
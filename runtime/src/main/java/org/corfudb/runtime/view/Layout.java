@@ -40,6 +40,13 @@ public class Layout implements Cloneable {
      */
     @Getter
     List<String> sequencers;
+    /**
+     * The number of sequencers, from the first, the streams are sharded across by hash.
+     * 0 or 1 if the primary sequencer serves every stream.
+     */
+    @Getter
+    @Setter
+    int sequencerShards;
     /**
      * A list of the segments in the layout.
      */
@@ -171,6 +178,25 @@ public class Layout implements Cloneable {
         }
     }
 
+    /**
+     * Get the number of sequencer shards, which is at least 1, and at most the number of sequencers.
+     */
+    public int getNumSequencerShards() {
+        return Math.max(1, Math.min(sequencerShards, sequencers.size()));
+    }
+
+    /**
+     * Get the sequencer shard which serves a stream. Shard 0, the primary sequencer, also
+     * allocates the global log, and serves queries of its tail.
+     *
+     * @param streamID The stream ID.
+     * @return The index of the sequencer of the stream.
+     */
+    public int getSequencerShard(UUID streamID) {
+        int shards = getNumSequencerShards();
+        return shards == 1 ? 0 : Math.floorMod(streamID.hashCode(), shards);
+    }
+
     public long getLocalAddress(long globalAddress) {
         for (LayoutSegment ls : segments) {
             if (ls.start <= globalAddress && (ls.end > globalAddress || ls.end == -1)) {
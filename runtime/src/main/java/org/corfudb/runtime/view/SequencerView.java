@@ -1,20 +1,43 @@
 package org.corfudb.runtime.view;
 
+import lombok.extern.slf4j.Slf4j;
+import org.corfudb.protocols.wireprotocol.TokenRequest;
 import org.corfudb.protocols.wireprotocol.TokenResponse;
 import org.corfudb.protocols.wireprotocol.TxResolutionInfo;
 import org.corfudb.runtime.CorfuRuntime;
 import org.corfudb.runtime.clients.SequencerClient;
+import org.corfudb.runtime.exceptions.OverwriteException;
 import org.corfudb.util.CFUtils;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 
 /**
+ * A view of the sequencers of the layout.
+ *
+ * When the layout shards the streams across several sequencers, each request is sent to the
+ * sequencer of its streams, and requests without streams to the primary sequencer. A request
+ * spanning the streams of several shards locks them on each shard, in shard order, takes its
+ * addresses from the primary sequencer, then commits them to each shard.
+ *
  * Created by mwei on 12/10/15.
  */
+@Slf4j
 public class SequencerView extends AbstractView {
 
+    /**
+     * The tails of the streams read with a bounded staleness.
+     */
+    private final StreamTailCache streamTailCache = new StreamTailCache(this);
+
     public SequencerView(CorfuRuntime runtime) {
         super(runtime);
     }
@@ -31,17 +54,242 @@ public class SequencerView extends AbstractView {
      * @return The first token retrieved.
      */
     public TokenResponse nextToken(Set<UUID> streamIDs, int numTokens) {
-        return layoutHelper(l -> CFUtils.getUninterruptibly(l.getSequencer(0).nextToken(streamIDs, numTokens)));
+        return layoutHelper(l -> {
+            Map<Integer, Set<UUID>> shards = getShards(l, streamIDs, null);
+            if (shards.size() > 1) {
+                return coordinate(l, shards, new TokenRequest((long) numTokens, streamIDs, false, false));
+            }
+            return CFUtils.getUninterruptibly(getSequencer(l, shards).nextToken(streamIDs, numTokens));
+        });
+    }
+
+    /**
+     * Return the tail of a stream, like a query of the stream with {@link #nextToken(Set, int)}.
+     *
+     * If stream tail notifications are enabled, the tail is answered from the notifications
+     * of the sequencer when they are current, without querying it.
+     *
+     * @param streamID The stream ID.
+     * @return The last global address issued to the stream, and its last stream address.
+     */
+    public TokenResponse getStreamTail(UUID streamID) {
+        if (runtime.isStreamTailNotificationsEnabled()) {
+            TokenResponse tail = layoutHelper(l -> l.getSequencer(l.getSequencerShard(streamID))
+                    .getStreamTail(streamID));
+            if (tail != null) {
+                return tail;
+            }
+        }
+        return nextToken(Collections.singleton(streamID), 0);
+    }
+
+    /**
+     * Return the tail of a stream, for a read of the stream up to an address.
+     *
+     * The tail from the notifications of the sequencer is only used if it is at least the
+     * address, since it may be older than the snapshot of the read, and the entries written
+     * between them would be missed. Otherwise, the sequencer is queried.
+     *
+     * @param streamID   The stream ID.
+     * @param maxAddress The last global address the stream is read up to.
+     * @return The last global address issued to the stream, and its last stream address.
+     */
+    public TokenResponse getStreamTailUpTo(UUID streamID, long maxAddress) {
+        if (runtime.isStreamTailNotificationsEnabled()) {
+            TokenResponse tail = layoutHelper(l -> l.getSequencer(l.getSequencerShard(streamID))
+                    .getStreamTail(streamID));
+            if (tail != null && tail.getToken() >= maxAddress) {
+                return tail;
+            }
+        }
+        return nextToken(Collections.singleton(streamID), 0);
+    }
+
+    /**
+     * Return the tail of a stream, as it was at most a bounded time ago.
+     *
+     * The tails of all the streams read with a bounded staleness are cached and refreshed
+     * together, so that reads within the bound don't query the sequencer.
+     *
+     * @param streamID       The stream ID.
+     * @param maxStalenessMs The maximum staleness of the tail in milliseconds, or 0 for the
+     *                       current tail, as returned by {@link #getStreamTail(UUID)}.
+     * @return The last global address issued to the stream, and its last stream address.
+     */
+    public TokenResponse getStreamTail(UUID streamID, long maxStalenessMs) {
+        if (maxStalenessMs <= 0) {
+            return getStreamTail(streamID);
+        }
+        return streamTailCache.get(streamID, maxStalenessMs);
     }
 
     public TokenResponse nextToken(Set<UUID> streamIDs, int numTokens, boolean overwrite, boolean replexOverwrite) {
-        return layoutHelper(l -> CFUtils.getUninterruptibly(l.getSequencer(0).nextToken(
-                streamIDs, numTokens, overwrite, replexOverwrite)));
+        return layoutHelper(l -> {
+            Map<Integer, Set<UUID>> shards = getShards(l, streamIDs, null);
+            if (shards.size() > 1) {
+                return coordinate(l, shards, new TokenRequest((long) numTokens, streamIDs, overwrite,
+                        replexOverwrite));
+            }
+            return CFUtils.getUninterruptibly(getSequencer(l, shards).nextToken(
+                    streamIDs, numTokens, overwrite, replexOverwrite));
+        });
     }
 
     public TokenResponse nextToken(Set<UUID> streamIDs, int numTokens, boolean overwrite, boolean replexOverwrite,
                                    TxResolutionInfo conflictInfo) {
-        return layoutHelper(l -> CFUtils.getUninterruptibly(l.getSequencer(0).nextToken(
-                streamIDs, numTokens, overwrite, replexOverwrite, conflictInfo)));
+        return layoutHelper(l -> {
+            Map<Integer, Set<UUID>> shards = getShards(l, streamIDs, conflictInfo);
+            if (shards.size() > 1) {
+                return coordinate(l, shards, new TokenRequest((long) numTokens, streamIDs, overwrite,
+                        replexOverwrite, conflictInfo));
+            }
+            return CFUtils.getUninterruptibly(getSequencer(l, shards).nextToken(
+                    streamIDs, numTokens, overwrite, replexOverwrite, conflictInfo));
+        });
+    }
+
+    /**
+     * Get the streams of a request on each sequencer shard, in shard order.
+     *
+     * @param l            The layout.
+     * @param streamIDs    The streams of the request.
+     * @param conflictInfo The conflict information of a transaction, or null.
+     * @return The streams of each shard the request spans, empty if the layout isn't sharded.
+     */
+    private static Map<Integer, Set<UUID>> getShards(Layout l, Set<UUID> streamIDs, TxResolutionInfo conflictInfo) {
+        Map<Integer, Set<UUID>> shards = new TreeMap<>();
+        if (l.getNumSequencerShards() == 1) {
+            return shards;
+        }
+
+        Set<UUID> streams = new HashSet<>();
+        if (streamIDs != null) {
+            streams.addAll(streamIDs);
+        }
+        if (conflictInfo != null) {
+            streams.addAll(conflictInfo.getConflictSet().keySet());
+            streams.addAll(conflictInfo.getWriteConflictParams().keySet());
+        }
+        streams.forEach(id -> shards.computeIfAbsent(l.getSequencerShard(id), k -> new HashSet<>()).add(id));
+        return shards;
+    }
+
+    /**
+     * Get the sequencer of a request spanning at most one shard.
+     */
+    private static SequencerClient getSequencer(Layout l, Map<Integer, Set<UUID>> shards) {
+        return l.getSequencer(shards.isEmpty() ? 0 : shards.keySet().iterator().next());
+    }
+
+    /**
+     * Issue a token request spanning several sequencer shards.
+     *
+     * A query is sent to each shard. Otherwise, the streams of each shard are locked, in shard
+     * order so that requests locking the same shards don't wait on each other, the addresses
+     * are taken from the primary sequencer, and committed to each shard. If a lock expired
+     * before its commit, the addresses are hole filled, and the request is retried.
+     *
+     * @param l       The layout.
+     * @param shards  The streams of each shard the request spans.
+     * @param request The token request.
+     * @return The token response, as a single sequencer would have answered it.
+     */
+    private TokenResponse coordinate(Layout l, Map<Integer, Set<UUID>> shards, TokenRequest request) {
+        if (request.getReqType() == TokenRequest.TK_QUERY) {
+            return queryShards(l, shards);
+        }
+
+        while (true) {
+            UUID lockId = UUID.randomUUID();
+            List<Integer> locked = new ArrayList<>();
+            boolean abort = false;
+            for (Map.Entry<Integer, Set<UUID>> shard : shards.entrySet()) {
+                TokenResponse lock = CFUtils.getUninterruptibly(l.getSequencer(shard.getKey())
+                        .lockShard(lockId, getShardRequest(request, shard.getValue())));
+                if (lock.getToken() < 0) {
+                    // The transaction aborts on this shard.
+                    abort = true;
+                    break;
+                }
+                locked.add(shard.getKey());
+            }
+
+            long address = abort ? -1L : CFUtils.getUninterruptibly(l.getSequencer(0)
+                    .allocateAddressBlock(request.getNumTokens(), -1L)).getToken();
+
+            boolean committed = true;
+            Map<UUID, Long> backpointers = new HashMap<>();
+            Map<UUID, Long> streamAddresses = new HashMap<>();
+            for (int shard : locked) {
+                TokenResponse commit = CFUtils.getUninterruptibly(l.getSequencer(shard).commitShard(lockId, address));
+                committed &= commit.getToken() >= 0;
+                backpointers.putAll(commit.getBackpointerMap());
+                streamAddresses.putAll(commit.getStreamAddresses());
+            }
+
+            if (abort) {
+                return new TokenResponse(-1L, Collections.emptyMap(), Collections.emptyMap());
+            }
+
+            // Report the block applied, so that queries of the global tail may pass it.
+            l.getSequencer(0).allocateAddressBlock(0L, address);
+            if (committed) {
+                return new TokenResponse(address, backpointers, streamAddresses);
+            }
+
+            // The streams of the shards which committed point to the block, which won't be written.
+            log.debug("coordinate: lock {} expired before commit, filling {} and retrying", lockId, address);
+            for (long hole = address; hole < address + request.getNumTokens(); hole++) {
+                try {
+                    runtime.getAddressSpaceView().fillHole(hole);
+                } catch (OverwriteException oe) {
+                    // Filled by a reader already.
+                }
+            }
+        }
+    }
+
+    /**
+     * Query the tails of the streams of several shards.
+     */
+    private static TokenResponse queryShards(Layout l, Map<Integer, Set<UUID>> shards) {
+        List<CompletableFuture<TokenResponse>> queries = new ArrayList<>();
+        shards.forEach((shard, streams) -> queries.add(l.getSequencer(shard).nextToken(streams, 0)));
+
+        long token = -1L;
+        Map<UUID, Long> streamAddresses = new HashMap<>();
+        for (CompletableFuture<TokenResponse> query : queries) {
+            TokenResponse tails = CFUtils.getUninterruptibly(query);
+            token = Math.max(token, tails.getToken());
+            streamAddresses.putAll(tails.getStreamAddresses());
+        }
+        return new TokenResponse(token, Collections.emptyMap(), streamAddresses);
+    }
+
+    /**
+     * Get the part of a token request on the streams of a shard.
+     */
+    private static TokenRequest getShardRequest(TokenRequest request, Set<UUID> shardStreams) {
+        Set<UUID> streams = new HashSet<>(request.getStreams());
+        streams.retainAll(shardStreams);
+        if (request.getReqType() != TokenRequest.TK_TX) {
+            return new TokenRequest(request.getNumTokens(), streams, false, false);
+        }
+
+        TxResolutionInfo txInfo = request.getTxnResolution();
+        return new TokenRequest(request.getNumTokens(), streams, false, false,
+                new TxResolutionInfo(txInfo.getSnapshotTimestamp(),
+                        getShardParams(txInfo.getConflictSet(), shardStreams),
+                        getShardParams(txInfo.getWriteConflictParams(), shardStreams)));
+    }
+
+    private static Map<UUID, Set<Integer>> getShardParams(Map<UUID, Set<Integer>> params, Set<UUID> shardStreams) {
+        Map<UUID, Set<Integer>> shardParams = new HashMap<>();
+        params.forEach((id, streamParams) -> {
+            if (shardStreams.contains(id)) {
+                shardParams.put(id, streamParams);
+            }
+        });
+        return shardParams;
     }
 }
@@ -0,0 +1,165 @@
+package org.corfudb.runtime.view;
+
+import lombok.Data;
+import lombok.extern.slf4j.Slf4j;
+import org.corfudb.protocols.wireprotocol.TokenResponse;
+import org.corfudb.runtime.clients.SequencerClient;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * A cache of the tails of the streams read by a runtime, for reads which may be up to a bounded
+ * time behind the log.
+ * <p>
+ * The tails of all the streams read recently are refreshed together: a refresh sends the
+ * queries of every stream to the sequencer without waiting for each answer in turn, and is
+ * shared by every read waiting for it. A read finding its tail older than half the staleness
+ * bound starts a refresh in the background, so reads only wait for the sequencer when the tail
+ * of their stream is older than the bound, or was never fetched.
+ * <p>
+ * Streams which are not read for {@link #IDLE_BOUNDS} staleness bounds are dropped from the cache.
+ */
+@Slf4j
+class StreamTailCache {
+
+    /**
+     * The number of staleness bounds a stream is refreshed for without being read.
+     */
+    static public int IDLE_BOUNDS = 16;
+
+    /**
+     * A tail fetched from the sequencer.
+     */
+    @Data
+    private static class FetchedTail {
+        /** The response of the sequencer to the query of the stream. */
+        final TokenResponse tail;
+        /** The time the refresh which fetched the tail was started, in nanoseconds. */
+        final long fetchTime;
+    }
+
+    /**
+     * A stream of the cache.
+     */
+    private static class CachedStream {
+        /** The latest tail fetched, null if none yet. */
+        volatile FetchedTail fetched;
+        /** The time the stream was last read, in nanoseconds. */
+        volatile long lastRead;
+    }
+
+    private final SequencerView sequencerView;
+
+    private final Map<UUID, CachedStream> streams = new ConcurrentHashMap<>();
+
+    /**
+     * The refresh in progress, null if none.
+     */
+    private final AtomicReference<CompletableFuture<Void>> refreshing = new AtomicReference<>();
+
+    StreamTailCache(SequencerView sequencerView) {
+        this.sequencerView = sequencerView;
+    }
+
+    /**
+     * Get the tail of a stream, fetched at most a bounded time ago.
+     *
+     * @param streamID       The stream ID.
+     * @param maxStalenessMs The maximum time since the tail was fetched, in milliseconds.
+     * @return The last global address issued to the stream, and its last stream address.
+     */
+    TokenResponse get(UUID streamID, long maxStalenessMs) {
+        final long bound = TimeUnit.MILLISECONDS.toNanos(maxStalenessMs);
+        final long readStart = System.nanoTime();
+        while (true) {
+            CachedStream stream = streams.computeIfAbsent(streamID, k -> new CachedStream());
+            stream.lastRead = System.nanoTime();
+
+            FetchedTail fetched = stream.fetched;
+            if (fetched != null) {
+                long age = System.nanoTime() - fetched.getFetchTime();
+                if (age < bound) {
+                    if (age >= bound / 2) {
+                        refresh(bound);
+                    }
+                    return fetched.getTail();
+                }
+            }
+
+            try {
+                refresh(bound).join();
+            } catch (CompletionException ce) {
+                log.debug("get: refresh of stream tails failed, querying {}: {}", streamID, ce.getCause());
+                return sequencerView.nextToken(Collections.singleton(streamID), 0);
+            }
+
+            // A tail fetched by a refresh started after this read is fresh enough, however long
+            // the refresh took: checking its age again would refresh forever on a slow sequencer.
+            fetched = stream.fetched;
+            if (fetched != null && fetched.getFetchTime() - readStart >= 0) {
+                return fetched.getTail();
+            }
+        }
+    }
+
+    /**
+     * Refresh the tails of the cache, unless a refresh is already in progress.
+     *
+     * @param bound The staleness bound of the caller, in nanoseconds.
+     * @return A future completed once the refresh in progress is done.
+     */
+    private CompletableFuture<Void> refresh(long bound) {
+        while (true) {
+            CompletableFuture<Void> current = refreshing.get();
+            if (current != null) {
+                return current;
+            }
+
+            CompletableFuture<Void> refresh = new CompletableFuture<>();
+            if (refreshing.compareAndSet(null, refresh)) {
+                startRefresh(refresh, bound);
+                return refresh;
+            }
+        }
+    }
+
+    private void startRefresh(CompletableFuture<Void> refresh, long bound) {
+        final long start = System.nanoTime();
+        final List<CompletableFuture<Void>> queries = new ArrayList<>();
+        try {
+            Layout layout = sequencerView.getCurrentLayout();
+            streams.forEach((id, stream) -> {
+                if (start - stream.lastRead > bound * IDLE_BOUNDS) {
+                    streams.remove(id, stream);
+                    return;
+                }
+                SequencerClient sequencer = layout.getSequencer(layout.getSequencerShard(id));
+                queries.add(sequencer.nextToken(Collections.singleton(id), 0)
+                        .thenAccept(tail -> stream.fetched = new FetchedTail(tail, start)));
+            });
+        } catch (Exception e) {
+            refreshing.set(null);
+            refresh.completeExceptionally(e);
+            return;
+        }
+
+        CompletableFuture.allOf(queries.toArray(new CompletableFuture[queries.size()]))
+                .whenComplete((r, e) -> {
+                    refreshing.set(null);
+                    if (e != null) {
+                        refresh.completeExceptionally(e);
+                    } else {
+                        refresh.complete(null);
+                    }
+                });
+    }
+}
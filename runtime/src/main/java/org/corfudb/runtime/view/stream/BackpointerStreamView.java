@@ -26,6 +26,19 @@ public class BackpointerStreamView extends AbstractQueuedStreamView {
      */
     final int NUM_RETRIES = 3;
 
+    /**
+     * The number of global addresses between the log pointer and the tail of a stream
+     * from which the stream address indexes of the log units are asked for the backpointers,
+     * instead of reading the entries one by one.
+     */
+    static public long INDEXED_GAP = 256L;
+
+    /**
+     * The number of entries missing from the cache, while following the backpointers of
+     * a shorter gap, after which the indexes are asked for the rest of the backpointers.
+     */
+    static public int INDEXED_CACHE_MISSES = 2;
+
     /** Create a new backpointer stream view.
      *
      * @param runtime   The runtime to use for accessing the log.
@@ -122,7 +135,7 @@ public class BackpointerStreamView extends AbstractQueuedStreamView {
     public boolean getHasNext(QueuedStreamContext context) {
         return  context.readQueue.isEmpty() ||
                 runtime.getSequencerView()
-                .nextToken(Collections.singleton(context.id), 0).getToken()
+                .getStreamTail(context.id).getToken()
                         > context.globalPointer;
     }
 
@@ -150,8 +163,10 @@ public class BackpointerStreamView extends AbstractQueuedStreamView {
         }
 
         // First, we fetch the current token (backpointer) from the sequencer.
+        // A notified tail older than maxAddress would skip the entries
+        // between them, so it is only used if it covers maxAddress.
         final long latestToken = runtime.getSequencerView()
-                .nextToken(Collections.singleton(context.id), 0)
+                .getStreamTailUpTo(context.id, maxAddress)
                 .getToken();
 
         // If the backpointer was unwritten, return, there is nothing to do
@@ -165,8 +180,27 @@ public class BackpointerStreamView extends AbstractQueuedStreamView {
         // maxGlobalAddress, we insert it into the read queue.
         long currentRead = latestToken;
 
+        // A long gap would take a read per entry, so we first follow the
+        // backpointers the log units indexed. A short gap is usually in the
+        // cache, and is only resolved with the indexes if its entries miss it.
+        boolean indexed = false;
+        int cacheMisses = 0;
+        if (!runtime.backpointersDisabled &&
+                latestToken - context.globalPointer >= INDEXED_GAP) {
+            currentRead = followIndexedBackpointers(currentRead, maxAddress, context);
+            indexed = true;
+        }
+
         while (currentRead > context.globalPointer &&
                 currentRead != Address.NEVER_READ) {
+            if (!indexed && !runtime.backpointersDisabled &&
+                    !runtime.getAddressSpaceView().isCached(currentRead) &&
+                    ++cacheMisses >= INDEXED_CACHE_MISSES) {
+                currentRead = followIndexedBackpointers(currentRead, maxAddress, context);
+                indexed = true;
+                continue;
+            }
+
             // Read the entry in question.
             ILogData currentEntry =
                     runtime.getAddressSpaceView().read(currentRead);
@@ -246,4 +280,32 @@ public class BackpointerStreamView extends AbstractQueuedStreamView {
 
         return !context.readQueue.isEmpty();
     }
+
+    /**
+     * Follow the backpointers of a stream indexed by the log units, which
+     * resolves the written part of the stream without reading it. We stop at
+     * the first address the index doesn't know, which may not be written yet,
+     * and the rest of the chain is read by the caller.
+     *
+     * @param currentRead   The address to start from.
+     * @param maxAddress    The maximum address to insert into the read queue.
+     * @param context       The context of the stream.
+     * @return The address to read next.
+     */
+    private long followIndexedBackpointers(long currentRead, final long maxAddress,
+                                           final QueuedStreamContext context) {
+        Map<Long, Long> streamAddresses = runtime.getAddressSpaceView()
+                .getStreamAddresses(context.id, context.globalPointer + 1,
+                        currentRead);
+        Long backpointer;
+        while (currentRead > context.globalPointer &&
+                (backpointer = streamAddresses.get(currentRead)) != null &&
+                backpointer != StreamAddressResponse.NO_BACKPOINTER) {
+            if (currentRead <= maxAddress) {
+                context.readQueue.add(currentRead);
+            }
+            currentRead = backpointer;
+        }
+        return currentRead;
+    }
 }
@@ -119,7 +119,7 @@ public class ReplexStreamView extends
      */
     private void updateKnownMax(final ReplexStreamContext context) {
         context.knownStreamMax = runtime.getSequencerView()
-                .nextToken(Collections.singleton(context.id), 0)
+                .getStreamTail(context.id)
                 .getStreamAddresses().get(context.id);
     }
 
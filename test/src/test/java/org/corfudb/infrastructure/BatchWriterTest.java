@@ -0,0 +1,238 @@
+package org.corfudb.infrastructure;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import org.corfudb.AbstractCorfuTest;
+import org.corfudb.infrastructure.log.InMemoryStreamLog;
+import org.corfudb.infrastructure.log.LogAddress;
+import org.corfudb.infrastructure.log.StreamLog;
+import org.corfudb.infrastructure.log.StreamLogFiles;
+import org.corfudb.protocols.wireprotocol.DataType;
+import org.corfudb.protocols.wireprotocol.LogData;
+import org.corfudb.runtime.exceptions.OverwriteException;
+import org.corfudb.util.serializer.Serializers;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Tests for the BatchWriter: how batches are closed and acknowledged, and with several
+ * write pipelines.
+ */
+public class BatchWriterTest extends AbstractCorfuTest {
+
+    private String getDirPath() {
+        return PARAMETERS.TEST_TEMP_DIR + File.separator;
+    }
+
+    @Test
+    public void parallelWritersWriteAllSegments() throws Exception {
+        StreamLog log = new StreamLogFiles(getDirPath(), false);
+        final int writers = PARAMETERS.CONCURRENCY_SOME;
+        BatchWriter<LogAddress, LogData> batchWriter = new BatchWriter<>(log, BatchWriter.BATCH_SIZE,
+                BatchWriter.BATCH_BYTES, BatchWriter.BATCH_WAIT_MICROS, writers);
+
+        ByteBuf b = ByteBufAllocator.DEFAULT.buffer();
+        byte[] streamEntry = "Payload".getBytes();
+        Serializers.CORFU.serialize(streamEntry, b);
+
+        final int numThreads = PARAMETERS.CONCURRENCY_SOME;
+        final int numEntries = PARAMETERS.NUM_ITERATIONS_LOW;
+
+        // Each thread writes a few entries in every segment
+        scheduleConcurrently(numThreads, threadNumber -> {
+            for (int i = 0; i < numEntries; i++) {
+                long address = (long) i * StreamLogFiles.RECORDS_PER_LOG_FILE + threadNumber;
+                batchWriter.write(new LogAddress(address, null), new LogData(DataType.DATA, b));
+            }
+        });
+
+        executeScheduled(numThreads, PARAMETERS.TIMEOUT_LONG);
+
+        assertThat(batchWriter.getSyncedOps().get()).isEqualTo((long) numThreads * numEntries);
+
+        // Overwrites are still detected by the pipeline owning the segment
+        assertThatThrownBy(() -> batchWriter.write(new LogAddress(0L, null), new LogData(DataType.DATA, b)))
+                .isInstanceOf(OverwriteException.class);
+
+        batchWriter.flushPendingWrites();
+        batchWriter.close();
+
+        for (int t = 0; t < numThreads; t++) {
+            for (int i = 0; i < numEntries; i++) {
+                long address = (long) i * StreamLogFiles.RECORDS_PER_LOG_FILE + t;
+                assertThat(log.read(new LogAddress(address, null)).getPayload(null))
+                        .isEqualTo(streamEntry);
+            }
+        }
+        log.close();
+    }
+
+    /**
+     * An in-memory stream log whose syncs record the addresses they sync, then wait for
+     * the test to release them.
+     */
+    private static class GatedStreamLog extends InMemoryStreamLog {
+        final BlockingQueue<List<LogAddress>> syncs = new LinkedBlockingQueue<>();
+        final Semaphore releases = new Semaphore(0);
+
+        GatedStreamLog() {
+            super(InMemoryStreamLog.CHUNK_SIZE * 2L);
+        }
+
+        @Override
+        public void sync(Collection<LogAddress> addresses) {
+            syncs.add(new ArrayList<>(addresses));
+            releases.acquireUninterruptibly();
+        }
+
+        /**
+         * Wait for the next sync, and return the addresses it syncs.
+         */
+        List<LogAddress> nextSync() throws InterruptedException {
+            List<LogAddress> addresses = syncs.poll(PARAMETERS.TIMEOUT_NORMAL.toMillis(), TimeUnit.MILLISECONDS);
+            assertThat(addresses).isNotNull();
+            return addresses;
+        }
+    }
+
+    private static LogData newEntry() {
+        ByteBuf b = ByteBufAllocator.DEFAULT.buffer();
+        Serializers.CORFU.serialize("Payload".getBytes(), b);
+        return new LogData(DataType.DATA, b);
+    }
+
+    private static List<LogAddress> addresses(long start, long end) {
+        List<LogAddress> addresses = new ArrayList<>();
+        for (long address = start; address < end; address++) {
+            addresses.add(new LogAddress(address, null));
+        }
+        return addresses;
+    }
+
+    @Test
+    public void batchesCloseAtMaxOps() throws Exception {
+        GatedStreamLog log = new GatedStreamLog();
+        final int maxBatchOps = 3;
+        final int numWrites = 8;
+        BatchWriter<LogAddress, LogData> batchWriter = new BatchWriter<>(log, maxBatchOps,
+                BatchWriter.BATCH_BYTES, 0L, 1);
+
+        // The first write is synced alone, the next ones queue up behind its sync
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        futures.add(batchWriter.submitWrite(new LogAddress(0L, null), newEntry()));
+        assertThat(log.nextSync()).isEqualTo(addresses(0L, 1L));
+        for (long address = 1; address < numWrites; address++) {
+            futures.add(batchWriter.submitWrite(new LogAddress(address, null), newEntry()));
+        }
+
+        log.releases.release();
+        assertThat(log.nextSync()).isEqualTo(addresses(1L, 4L));
+        log.releases.release();
+        assertThat(log.nextSync()).isEqualTo(addresses(4L, 7L));
+        log.releases.release();
+        assertThat(log.nextSync()).isEqualTo(addresses(7L, 8L));
+        log.releases.release();
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[futures.size()])).get();
+
+        assertThat(batchWriter.getSyncCount().get()).isEqualTo(4L);
+        assertThat(batchWriter.getSyncedOps().get()).isEqualTo((long) numWrites);
+        assertThat(batchWriter.getSyncedBytes().get()).isEqualTo(numWrites * (long) newEntry().getSizeEstimate());
+        assertThat(batchWriter.getMaxSyncedBatchOps().get()).isEqualTo((long) maxBatchOps);
+        assertThat(batchWriter.getAverageBatchOps()).isEqualTo((double) numWrites / 4);
+        batchWriter.close();
+        log.close();
+    }
+
+    @Test
+    public void batchesCloseAtMaxBytes() throws Exception {
+        GatedStreamLog log = new GatedStreamLog();
+        final long entryBytes = newEntry().getSizeEstimate();
+        final int numWrites = 5;
+        BatchWriter<LogAddress, LogData> batchWriter = new BatchWriter<>(log, BatchWriter.BATCH_SIZE,
+                2 * entryBytes, 0L, 1);
+
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        futures.add(batchWriter.submitWrite(new LogAddress(0L, null), newEntry()));
+        assertThat(log.nextSync()).isEqualTo(addresses(0L, 1L));
+        for (long address = 1; address < numWrites; address++) {
+            futures.add(batchWriter.submitWrite(new LogAddress(address, null), newEntry()));
+        }
+
+        log.releases.release();
+        assertThat(log.nextSync()).isEqualTo(addresses(1L, 3L));
+        log.releases.release();
+        assertThat(log.nextSync()).isEqualTo(addresses(3L, 5L));
+        log.releases.release();
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[futures.size()])).get();
+
+        assertThat(batchWriter.getSyncCount().get()).isEqualTo(3L);
+        assertThat(batchWriter.getSyncedOps().get()).isEqualTo((long) numWrites);
+        assertThat(batchWriter.getSyncedBytes().get()).isEqualTo(numWrites * entryBytes);
+        assertThat(batchWriter.getMaxSyncedBatchOps().get()).isEqualTo(2L);
+        batchWriter.close();
+        log.close();
+    }
+
+    @Test
+    public void batchesCloseAfterMaxWait() throws Exception {
+        GatedStreamLog log = new GatedStreamLog();
+        final long maxBatchWaitMicros = TimeUnit.MILLISECONDS.toMicros(PARAMETERS.TIMEOUT_VERY_SHORT.toMillis());
+        BatchWriter<LogAddress, LogData> batchWriter = new BatchWriter<>(log, BatchWriter.BATCH_SIZE,
+                BatchWriter.BATCH_BYTES, maxBatchWaitMicros, 1);
+        log.releases.release(Integer.MAX_VALUE);
+
+        // Writes arriving within the wait join the batch, which is synced once the wait is over
+        long start = System.nanoTime();
+        CompletableFuture<Void> first = batchWriter.submitWrite(new LogAddress(0L, null), newEntry());
+        CompletableFuture<Void> second = batchWriter.submitWrite(new LogAddress(1L, null), newEntry());
+        assertThat(log.nextSync()).isEqualTo(addresses(0L, 2L));
+        assertThat(System.nanoTime() - start).isGreaterThanOrEqualTo(TimeUnit.MICROSECONDS.toNanos(maxBatchWaitMicros));
+        first.get();
+        second.get();
+
+        assertThat(batchWriter.getSyncCount().get()).isEqualTo(1L);
+        assertThat(batchWriter.getMaxSyncedBatchOps().get()).isEqualTo(2L);
+        batchWriter.close();
+        log.close();
+    }
+
+    @Test
+    public void writesAreAcknowledgedAfterTheirSync() throws Exception {
+        GatedStreamLog log = new GatedStreamLog();
+        BatchWriter<LogAddress, LogData> batchWriter = new BatchWriter<>(log);
+
+        CompletableFuture<Void> write = batchWriter.submitWrite(new LogAddress(0L, null), newEntry());
+        assertThat(log.nextSync()).isEqualTo(addresses(0L, 1L));
+
+        // The entry is appended, but not acknowledged until the sync returns
+        assertThat(log.read(new LogAddress(0L, null)).getPayload(null)).isEqualTo("Payload".getBytes());
+        assertThat(write).isNotDone();
+        assertThat(batchWriter.getSyncCount().get()).isEqualTo(0L);
+
+        log.releases.release();
+        write.get();
+        assertThat(batchWriter.getSyncCount().get()).isEqualTo(1L);
+        assertThat(batchWriter.getSyncedOps().get()).isEqualTo(1L);
+
+        // An overwrite is only reported once the batch it was part of is synced
+        CompletableFuture<Void> overwrite = batchWriter.submitWrite(new LogAddress(0L, null), newEntry());
+        assertThat(log.nextSync()).isEmpty();
+        assertThat(overwrite).isNotDone();
+        log.releases.release();
+        assertThatThrownBy(overwrite::get).hasCauseInstanceOf(OverwriteException.class);
+        batchWriter.close();
+        log.close();
+    }
+}
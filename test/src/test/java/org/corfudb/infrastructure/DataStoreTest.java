@@ -4,6 +4,8 @@ import com.google.common.collect.ImmutableMap;
 import org.corfudb.AbstractCorfuTest;
 import org.junit.Test;
 
+import java.io.File;
+import java.nio.file.Files;
 import java.util.UUID;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -46,6 +48,32 @@ public class DataStoreTest extends AbstractCorfuTest {
         assertThat(dataStore.get(String.class, "test", "key")).isEqualTo("NEW_VALUE");
     }
 
+    @Test
+    public void testInterruptedPutKeepsOldValue() throws Exception {
+        String serviceDir = PARAMETERS.TEST_TEMP_DIR;
+        DataStore dataStore = new DataStore(new ImmutableMap.Builder<String, Object>()
+                .put("--log-path", serviceDir)
+                .build());
+        String value = UUID.randomUUID().toString();
+        dataStore.put(String.class, "test", "key", value);
+        File tmpFile = new File(serviceDir + File.separator + "test_key.tmp");
+        assertThat(tmpFile).doesNotExist();
+
+        // Simulate a crash in the middle of the next put, which left a truncated temporary file
+        Files.write(tmpFile.toPath(), "{\"trunc".getBytes());
+        dataStore = new DataStore(new ImmutableMap.Builder<String, Object>()
+                .put("--log-path", serviceDir)
+                .build());
+        assertThat(dataStore.get(String.class, "test", "key")).isEqualTo(value);
+
+        dataStore.put(String.class, "test", "key", "NEW_VALUE");
+        assertThat(tmpFile).doesNotExist();
+        dataStore = new DataStore(new ImmutableMap.Builder<String, Object>()
+                .put("--log-path", serviceDir)
+                .build());
+        assertThat(dataStore.get(String.class, "test", "key")).isEqualTo("NEW_VALUE");
+    }
+
     @Test
     public void testDatastoreEviction() {
         String serviceDir = PARAMETERS.TEST_TEMP_DIR;
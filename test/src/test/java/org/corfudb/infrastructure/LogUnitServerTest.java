@@ -3,6 +3,7 @@ package org.corfudb.infrastructure;
 import com.github.benmanes.caffeine.cache.LoadingCache;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufAllocator;
+import com.google.common.collect.Range;
 import org.assertj.core.api.Assertions;
 import org.corfudb.infrastructure.log.LogAddress;
 import org.corfudb.infrastructure.log.StreamLogFiles;
@@ -17,6 +18,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.util.Collections;
+import java.util.UUID;
 import java.util.concurrent.atomic.AtomicLong;
 
 import static org.corfudb.infrastructure.LogUnitServerAssertions.assertThat;
@@ -163,6 +165,138 @@ public class LogUnitServerTest extends AbstractServerTest {
                 .matchesDataAtAddress(HIGH_ADDRESS, "10000000".getBytes());
     }
 
+    private void writeData(long address, String data) {
+        ByteBuf b = ByteBufAllocator.DEFAULT.buffer();
+        Serializers.CORFU.serialize(data.getBytes(), b);
+        WriteRequest m = WriteRequest.builder()
+                .writeMode(WriteMode.NORMAL)
+                .data(new LogData(DataType.DATA, b))
+                .build();
+        m.setGlobalAddress(address);
+        m.setStreams(Collections.EMPTY_SET);
+        m.setRank(0L);
+        m.setBackpointerMap(Collections.emptyMap());
+        sendMessage(CorfuMsgType.WRITE.payloadMsg(m));
+    }
+
+    @Test
+    public void prefixTrimReclaimsSegmentsAndIsPersisted() throws Exception {
+        String serviceDir = PARAMETERS.TEST_TEMP_DIR;
+        File logDir = new File(serviceDir + File.separator + "log");
+
+        LogUnitServer s1 = new LogUnitServer(new ServerContextBuilder()
+                .setLogPath(serviceDir)
+                .setMemory(false)
+                .build());
+        this.router.reset();
+        this.router.addServer(s1);
+
+        final long SEGMENT_0 = 0L;
+        final long SEGMENT_1 = StreamLogFiles.RECORDS_PER_LOG_FILE;
+        final long SEGMENT_2 = StreamLogFiles.RECORDS_PER_LOG_FILE * 2;
+        writeData(SEGMENT_0, "0");
+        writeData(SEGMENT_1, "1");
+        writeData(SEGMENT_2, "2");
+
+        // Trim the first two segments, and the first address of the third one
+        final long TRIM_MARK = SEGMENT_2 + 1;
+        sendMessage(CorfuMsgType.PREFIX_TRIM.payloadMsg(TRIM_MARK));
+        Assertions.assertThat(getLastMessage().getMsgType())
+                .isEqualTo(CorfuMsgType.ACK);
+
+        sendMessage(CorfuMsgType.READ_REQUEST.payloadMsg(new ReadRequest(SEGMENT_1)));
+        Assertions.assertThat(getLastPayloadMessageAs(ReadResponse.class).getReadSet().get(SEGMENT_1).isTrimmed())
+                .isTrue();
+
+        writeData(SEGMENT_1 + 1, "1");
+        Assertions.assertThat(getLastMessage().getMsgType())
+                .isEqualTo(CorfuMsgType.ERROR_TRIMMED);
+
+        // Only the segments entirely below the trim mark are reclaimed
+        Assertions.assertThat(s1.handleGC()).isEqualTo(2);
+        Assertions.assertThat(new File(logDir, "0.log")).doesNotExist();
+        Assertions.assertThat(new File(logDir, "1.log")).doesNotExist();
+        Assertions.assertThat(new File(logDir, "2.log")).exists();
+        Assertions.assertThat(s1.handleGC()).isEqualTo(0);
+
+        s1.shutdown();
+
+        LogUnitServer s2 = new LogUnitServer(new ServerContextBuilder()
+                .setLogPath(serviceDir)
+                .setMemory(false)
+                .build());
+        this.router.reset();
+        this.router.addServer(s2);
+
+        sendMessage(CorfuMsgType.READ_REQUEST.payloadMsg(new ReadRequest(SEGMENT_2)));
+        Assertions.assertThat(getLastPayloadMessageAs(ReadResponse.class).getReadSet().get(SEGMENT_2).isTrimmed())
+                .isTrue();
+        Assertions.assertThat(new File(logDir, "0.log")).doesNotExist();
+        s2.shutdown();
+    }
+
+    private void writeStreamData(long address, UUID stream, long backpointer) {
+        ByteBuf b = ByteBufAllocator.DEFAULT.buffer();
+        Serializers.CORFU.serialize(Long.toString(address).getBytes(), b);
+        WriteRequest m = WriteRequest.builder()
+                .writeMode(WriteMode.NORMAL)
+                .data(new LogData(DataType.DATA, b))
+                .build();
+        m.setGlobalAddress(address);
+        m.setStreams(Collections.singleton(stream));
+        m.setRank(0L);
+        m.setBackpointerMap(Collections.singletonMap(stream, backpointer));
+        sendMessage(CorfuMsgType.WRITE.payloadMsg(m));
+    }
+
+    @Test
+    public void streamAddressesAreIndexedOnWrite() throws Exception {
+        LogUnitServer s1 = (LogUnitServer) getDefaultServer();
+        this.router.reset();
+        this.router.addServer(s1);
+
+        UUID streamA = CorfuRuntime.getStreamID("a");
+        UUID streamB = CorfuRuntime.getStreamID("b");
+        final long numEntries = PARAMETERS.NUM_ITERATIONS_LOW;
+
+        // Interleave the entries of two streams
+        for (long address = 0; address < numEntries; address++) {
+            writeStreamData(address, address % 2 == 0 ? streamA : streamB, address - 2);
+        }
+
+        sendMessage(CorfuMsgType.STREAM_ADDRESS_REQUEST.payloadMsg(
+                new StreamAddressRequest(streamA, Range.closed(0L, numEntries))));
+        StreamAddressResponse response = getLastPayloadMessageAs(StreamAddressResponse.class);
+        Assertions.assertThat(response.getEnd()).isEqualTo(numEntries);
+        Assertions.assertThat(response.getAddresses()).hasSize((int) numEntries / 2);
+        for (long address = 0; address < numEntries; address += 2) {
+            Assertions.assertThat(response.getAddresses()).containsEntry(address, address - 2);
+        }
+
+        // Long scans are returned a page at a time
+        final int pageSize = 3;
+        int maxStreamAddresses = LogUnitServer.MAX_STREAM_ADDRESSES;
+        try {
+            LogUnitServer.MAX_STREAM_ADDRESSES = pageSize;
+            sendMessage(CorfuMsgType.STREAM_ADDRESS_REQUEST.payloadMsg(
+                    new StreamAddressRequest(streamB, Range.closed(0L, numEntries))));
+            response = getLastPayloadMessageAs(StreamAddressResponse.class);
+            Assertions.assertThat(response.getAddresses().keySet()).containsOnly(1L, 3L, 5L);
+            Assertions.assertThat(response.getEnd()).isEqualTo(5L);
+        } finally {
+            LogUnitServer.MAX_STREAM_ADDRESSES = maxStreamAddresses;
+        }
+
+        // Trimmed addresses are dropped from the index
+        sendMessage(CorfuMsgType.PREFIX_TRIM.payloadMsg(numEntries / 2));
+        s1.handleGC();
+        sendMessage(CorfuMsgType.STREAM_ADDRESS_REQUEST.payloadMsg(
+                new StreamAddressRequest(streamA, Range.closed(0L, numEntries))));
+        Assertions.assertThat(Collections.min(getLastPayloadMessageAs(StreamAddressResponse.class)
+                .getAddresses().keySet())).isGreaterThanOrEqualTo(numEntries / 2);
+        Assertions.assertThat(s1.getStreamIndex().getSize().get()).isEqualTo(numEntries / 2);
+    }
+
     private String createLogFile(String path, int version, boolean noVerify) throws IOException {
         // Generate a log file and manually change the version
         File logDir = new File(path + File.separator + "log");
@@ -0,0 +1,81 @@
+package org.corfudb.infrastructure;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import org.corfudb.AbstractCorfuTest;
+import org.corfudb.infrastructure.log.LogAddress;
+import org.corfudb.protocols.wireprotocol.DataType;
+import org.corfudb.protocols.wireprotocol.LogData;
+import org.corfudb.runtime.CorfuRuntime;
+import org.corfudb.util.serializer.Serializers;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests for the off-heap cache tier of the log unit.
+ */
+public class OffHeapDataCacheTest extends AbstractCorfuTest {
+
+    private static final int SLAB_SIZE = 1024;
+    private static final int SLABS = 4;
+
+    private LogData getEntry(String payload) {
+        ByteBuf b = ByteBufAllocator.DEFAULT.buffer();
+        Serializers.CORFU.serialize(payload.getBytes(), b);
+        LogData entry = new LogData(DataType.DATA, b);
+        entry.setBackpointerMap(Collections.singletonMap(CorfuRuntime.getStreamID("a"), 1L));
+        return entry;
+    }
+
+    @Test
+    public void entriesRoundTrip() {
+        OffHeapDataCache cache = new OffHeapDataCache(SLAB_SIZE * SLABS, SLAB_SIZE);
+        LogAddress address = new LogAddress(0L, null);
+        LogData entry = getEntry("Payload");
+
+        assertThat(cache.get(address)).isNull();
+        cache.put(address, entry);
+        LogData cached = cache.get(address);
+
+        assertThat(cached.getType()).isEqualTo(DataType.DATA);
+        assertThat(cached.getData()).isEqualTo(entry.getData());
+        assertThat(cached.getBackpointerMap()).isEqualTo(entry.getBackpointerMap());
+        assertThat(cache.getHits().get()).isEqualTo(1L);
+        assertThat(cache.getMisses().get()).isEqualTo(1L);
+
+        cache.put(new LogAddress(1L, null), LogData.HOLE);
+        assertThat(cache.get(new LogAddress(1L, null)).isHole()).isTrue();
+    }
+
+    @Test
+    public void oldestSlabIsEvicted() {
+        OffHeapDataCache cache = new OffHeapDataCache(SLAB_SIZE * SLABS, SLAB_SIZE);
+        // Many more entries than fit in the slabs
+        final int numEntries = SLAB_SIZE;
+
+        for (long address = 0; address < numEntries; address++) {
+            cache.put(new LogAddress(address, null), getEntry("Payload " + address));
+        }
+
+        // The latest entries are cached, and the cache never grows beyond its slabs
+        assertThat(cache.get(new LogAddress(numEntries - 1L, null)).getData())
+                .isEqualTo(getEntry("Payload " + (numEntries - 1)).getData());
+        assertThat(cache.get(new LogAddress(0L, null))).isNull();
+        assertThat(cache.getEvictions().get()).isEqualTo((long) numEntries - cache.size());
+
+        cache.invalidateIf(address -> address.getAddress() < numEntries);
+        assertThat(cache.size()).isEqualTo(0);
+    }
+
+    @Test
+    public void largeEntriesAreNotCached() {
+        OffHeapDataCache cache = new OffHeapDataCache(SLAB_SIZE * SLABS, SLAB_SIZE);
+        LogAddress address = new LogAddress(0L, null);
+        cache.put(address, getEntry(new String(new char[SLAB_SIZE])));
+
+        assertThat(cache.get(address)).isNull();
+    }
+}
@@ -0,0 +1,110 @@
+package org.corfudb.infrastructure;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import org.corfudb.AbstractCorfuTest;
+import org.corfudb.infrastructure.log.LogAddress;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+/**
+ * Tests for the detection of scans and the adaptive window of the read-ahead prefetcher.
+ */
+public class ReadAheadPrefetcherTest extends AbstractCorfuTest {
+
+    private final Map<LogAddress, Boolean> cache = new HashMap<>();
+
+    private ReadAheadPrefetcher getPrefetcher(int maxWindow) {
+        // Load synchronously, as if every address was written
+        return new ReadAheadPrefetcher(cache::containsKey, addresses -> {
+            Map<LogAddress, Boolean> loaded = new HashMap<>();
+            for (LogAddress address : addresses) {
+                loaded.put(address, true);
+            }
+            cache.putAll(loaded);
+            return loaded;
+        }, Runnable::run, maxWindow);
+    }
+
+    private boolean isCached(long address) {
+        return cache.containsKey(new LogAddress(address, null));
+    }
+
+    @Test
+    public void sequentialScanIsPrefetched() {
+        ReadAheadPrefetcher prefetcher = getPrefetcher(ReadAheadPrefetcher.MAX_WINDOW);
+        UUID client = UUID.randomUUID();
+
+        prefetcher.onRead(client, null, 0L, 0L);
+        prefetcher.onRead(client, null, 1L, 1L);
+        assertThat(prefetcher.getPrefetches().get()).isEqualTo(0L);
+
+        // The third read in a row confirms the scan
+        prefetcher.onRead(client, null, 2L, 2L);
+        assertThat(prefetcher.getPrefetches().get()).isEqualTo(ReadAheadPrefetcher.MIN_WINDOW);
+        assertThat(isCached(2L + ReadAheadPrefetcher.MIN_WINDOW)).isTrue();
+        assertThat(isCached(3L + ReadAheadPrefetcher.MIN_WINDOW)).isFalse();
+
+        // Reading the prefetched addresses grows the window
+        final long numReads = PARAMETERS.NUM_ITERATIONS_LOW;
+        for (long address = 3L; address < 3L + numReads; address++) {
+            prefetcher.onRead(client, null, address, address);
+        }
+        assertThat(prefetcher.getPrefetchHits().get()).isEqualTo(numReads);
+        assertThat(isCached(2L + numReads + ReadAheadPrefetcher.MIN_WINDOW * 2)).isTrue();
+        assertThat(prefetcher.getWastedPrefetches().get()).isEqualTo(0L);
+    }
+
+    @Test
+    public void stridedScanIsPrefetched() {
+        ReadAheadPrefetcher prefetcher = getPrefetcher(ReadAheadPrefetcher.MAX_WINDOW);
+        UUID client = UUID.randomUUID();
+        final long stride = 10L;
+
+        // Read pairs of addresses every ten addresses
+        for (long start = 0L; start <= stride * 2; start += stride) {
+            prefetcher.onRead(client, null, start, start + 1);
+        }
+
+        assertThat(isCached(stride * 3)).isTrue();
+        assertThat(isCached(stride * 3 + 1)).isTrue();
+        assertThat(isCached(stride * 3 + 2)).isFalse();
+        assertThat(prefetcher.getPrefetches().get()).isEqualTo(ReadAheadPrefetcher.MIN_WINDOW);
+    }
+
+    @Test
+    public void randomReadsAndOtherClientsAreNotPrefetched() {
+        ReadAheadPrefetcher prefetcher = getPrefetcher(ReadAheadPrefetcher.MAX_WINDOW);
+        final long[] addresses = {5L, 1L, 9L, 2L, 20L, 3L};
+
+        for (long address : addresses) {
+            prefetcher.onRead(UUID.randomUUID(), null, address, address);
+        }
+        UUID client = UUID.randomUUID();
+        for (long address : addresses) {
+            prefetcher.onRead(client, null, address, address);
+        }
+
+        assertThat(prefetcher.getPrefetches().get()).isEqualTo(0L);
+        assertThat(cache).isEmpty();
+    }
+
+    @Test
+    public void windowIsBounded() {
+        ReadAheadPrefetcher prefetcher = getPrefetcher(1);
+        UUID client = UUID.randomUUID();
+        final long numReads = PARAMETERS.NUM_ITERATIONS_LOW;
+
+        for (long address = 0L; address < numReads; address++) {
+            prefetcher.onRead(client, null, address, address);
+        }
+
+        // The scan never gets more than one address ahead
+        assertThat(isCached(numReads)).isTrue();
+        assertThat(isCached(numReads + 1)).isFalse();
+        assertThat(prefetcher.getPrefetchHits().get()).isEqualTo(numReads - 3);
+    }
+}
@@ -1,11 +1,20 @@
 package org.corfudb.infrastructure;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import io.netty.channel.ChannelHandlerContext;
 import org.corfudb.protocols.wireprotocol.*;
 import org.corfudb.runtime.CorfuRuntime;
 import org.junit.Test;
 
 import java.util.Collections;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.corfudb.infrastructure.SequencerServerAssertions.assertThat;
@@ -193,4 +202,389 @@ public class SequencerServerTest extends AbstractServerTest {
                     .isEqualTo(Alocal);
         }
     }
+
+    @Test
+    public void batchRequestsAreAllocatedContiguously() {
+        UUID streamA = UUID.nameUUIDFromBytes("streamA".getBytes());
+        UUID streamB = UUID.nameUUIDFromBytes("streamB".getBytes());
+
+        sendMessage(new CorfuPayloadMsg<>(CorfuMsgType.TOKEN_REQ,
+                new TokenRequest(1L, Collections.singleton(streamA), false, false)));
+
+        // A gets 1, A and B get 2-3, B gets 4.
+        sendMessage(new CorfuPayloadMsg<>(CorfuMsgType.TOKEN_BATCH_REQ, new TokenBatchRequest(ImmutableList.of(
+                new TokenRequest(1L, Collections.singleton(streamA), false, false),
+                new TokenRequest(2L, ImmutableSet.of(streamA, streamB), false, false),
+                new TokenRequest(1L, Collections.singleton(streamB), false, false)))));
+        TokenResponse batch = getLastPayloadMessageAs(TokenResponse.class);
+        assertThat(batch.getToken())
+                .isEqualTo(1L);
+        assertThat(batch.getBackpointerMap())
+                .containsEntry(streamA, 0L)
+                .containsEntry(streamB, -1L);
+        assertThat(batch.getStreamAddresses())
+                .containsEntry(streamA, 0L)
+                .containsEntry(streamB, -1L);
+
+        sendMessage(new CorfuPayloadMsg<>(CorfuMsgType.TOKEN_REQ,
+                new TokenRequest(0L, Collections.singleton(streamA), false, false)));
+        TokenResponse queryA = getLastPayloadMessageAs(TokenResponse.class);
+        assertThat(queryA.getToken())
+                .isEqualTo(3L);
+        assertThat(queryA.getStreamAddresses())
+                .containsEntry(streamA, 3L);
+
+        sendMessage(new CorfuPayloadMsg<>(CorfuMsgType.TOKEN_REQ,
+                new TokenRequest(0L, Collections.singleton(streamB), false, false)));
+        TokenResponse queryB = getLastPayloadMessageAs(TokenResponse.class);
+        assertThat(queryB.getToken())
+                .isEqualTo(4L);
+        assertThat(queryB.getStreamAddresses())
+                .containsEntry(streamB, 2L);
+
+        sendMessage(new CorfuPayloadMsg<>(CorfuMsgType.TOKEN_REQ,
+                new TokenRequest(1L, Collections.singleton(streamA), false, false)));
+        TokenResponse next = getLastPayloadMessageAs(TokenResponse.class);
+        assertThat(next.getToken())
+                .isEqualTo(5L);
+        assertThat(next.getBackpointerMap())
+                .containsEntry(streamA, 3L);
+    }
+
+    @Test
+    public void stateIsRestoredFromCheckpoint() {
+        ServerContext serverContext = new ServerContextBuilder()
+                .setInitialToken(NON_LOG_ADDR_MAGIC)
+                .build();
+        UUID streamA = UUID.nameUUIDFromBytes("streamA".getBytes());
+        UUID streamB = UUID.nameUUIDFromBytes("streamB".getBytes());
+
+        SequencerServer server = new SequencerServer(serverContext);
+        setServer(server);
+        for (int i = 0; i < PARAMETERS.NUM_ITERATIONS_LOW; i++) {
+            sendMessage(new CorfuPayloadMsg<>(CorfuMsgType.TOKEN_REQ,
+                    new TokenRequest(1L, Collections.singleton(streamA), false, false)));
+            sendMessage(new CorfuPayloadMsg<>(CorfuMsgType.TOKEN_REQ,
+                    new TokenRequest(1L, Collections.singleton(streamB), false, false)));
+        }
+        sendMessage(new CorfuPayloadMsg<>(CorfuMsgType.TOKEN_REQ,
+                new TokenRequest(0L, Collections.singleton(streamA), false, false)));
+        TokenResponse lastA = getLastPayloadMessageAs(TokenResponse.class);
+        server.shutdown();
+
+        // A clean shutdown reserves no addresses, so the state is restored without reading the log.
+        SequencerServer restarted = new SequencerServer(serverContext);
+        setServer(restarted);
+        assertThat(restarted.getGlobalLogTail().get())
+                .isEqualTo(PARAMETERS.NUM_ITERATIONS_LOW * 2L);
+
+        sendMessage(new CorfuPayloadMsg<>(CorfuMsgType.TOKEN_REQ,
+                new TokenRequest(0L, Collections.singleton(streamA), false, false)));
+        assertThat(getLastPayloadMessageAs(TokenResponse.class))
+                .isEqualTo(lastA);
+
+        sendMessage(new CorfuPayloadMsg<>(CorfuMsgType.TOKEN_REQ,
+                new TokenRequest(1L, Collections.singleton(streamA), false, false)));
+        TokenResponse next = getLastPayloadMessageAs(TokenResponse.class);
+        assertThat(next.getToken())
+                .isEqualTo(PARAMETERS.NUM_ITERATIONS_LOW * 2L);
+        assertThat(next.getBackpointerMap())
+                .containsEntry(streamA, lastA.getToken());
+        assertThat(next.getStreamAddresses())
+                .containsEntry(streamA, (long) PARAMETERS.NUM_ITERATIONS_LOW);
+        restarted.shutdown();
+    }
+
+    @Test
+    public void batchesPastTheReservationAreCheckpointedFirst() {
+        final long reservation = SequencerServer.CHECKPOINT_RESERVATION;
+        SequencerServer.CHECKPOINT_RESERVATION = 1L;
+        try {
+            ServerContext serverContext = new ServerContextBuilder()
+                    .setInitialToken(NON_LOG_ADDR_MAGIC)
+                    .build();
+            UUID streamA = UUID.nameUUIDFromBytes("streamA".getBytes());
+            SequencerServer server = new SequencerServer(serverContext);
+            setServer(server);
+
+            sendMessage(new CorfuPayloadMsg<>(CorfuMsgType.TOKEN_REQ,
+                    new TokenRequest((long) PARAMETERS.NUM_ITERATIONS_LOW, Collections.singleton(streamA),
+                            false, false)));
+            assertThat(getLastPayloadMessageAs(TokenResponse.class).getToken())
+                    .isEqualTo(0L);
+
+            // The checkpoint reserved the tokens of the batch before they were issued.
+            SequencerCheckpoint checkpoint = serverContext.getDataStore()
+                    .get(SequencerCheckpoint.class, "SEQUENCER", "CHECKPOINT");
+            assertThat(checkpoint.getReservedTail())
+                    .isGreaterThanOrEqualTo(server.getGlobalLogTail().get())
+                    .isEqualTo(PARAMETERS.NUM_ITERATIONS_LOW + 1L);
+            server.shutdown();
+        } finally {
+            SequencerServer.CHECKPOINT_RESERVATION = reservation;
+        }
+    }
+
+    @Test
+    public void subscribersAreNotifiedOfTheirStreams() {
+        UUID streamA = UUID.nameUUIDFromBytes("streamA".getBytes());
+        UUID streamB = UUID.nameUUIDFromBytes("streamB".getBytes());
+        UUID subscriberId = UUID.nameUUIDFromBytes("subscriber".getBytes());
+
+        sendMessage(new CorfuPayloadMsg<>(CorfuMsgType.TOKEN_REQ,
+                new TokenRequest(1L, Collections.singleton(streamA), false, false)));
+        sendMessage(subscriberId, new CorfuPayloadMsg<>(CorfuMsgType.STREAM_TAIL_SUBSCRIBE,
+                new StreamTailSubscription(ImmutableSet.of(streamA))));
+        assertThat(getLastMessage().getMsgType())
+                .isEqualTo(CorfuMsgType.STREAM_TAILS);
+        assertThat(getLastPayloadMessageAs(StreamTailNotification.class).getGlobalTails())
+                .containsEntry(streamA, 0L);
+
+        // A token on another stream is not pushed to the subscriber.
+        sendMessage(new CorfuPayloadMsg<>(CorfuMsgType.TOKEN_REQ,
+                new TokenRequest(1L, Collections.singleton(streamB), false, false)));
+        assertThat(getLastMessage().getMsgType())
+                .isEqualTo(CorfuMsgType.TOKEN_RES);
+
+        sendMessage(new CorfuPayloadMsg<>(CorfuMsgType.TOKEN_REQ,
+                new TokenRequest(2L, ImmutableSet.of(streamA, streamB), false, false)));
+        assertThat(getLastMessage().getMsgType())
+                .isEqualTo(CorfuMsgType.STREAM_TAIL_NOTIFICATION);
+        assertThat(getLastMessage().getClientID())
+                .isEqualTo(subscriberId);
+        StreamTailNotification notification = getLastPayloadMessageAs(StreamTailNotification.class);
+        assertThat(notification.getGlobalTails())
+                .containsEntry(streamA, 3L)
+                .doesNotContainKey(streamB);
+        assertThat(notification.getStreamTails())
+                .containsEntry(streamA, 2L);
+
+        // An empty subscription cancels it.
+        sendMessage(subscriberId, new CorfuPayloadMsg<>(CorfuMsgType.STREAM_TAIL_SUBSCRIBE,
+                new StreamTailSubscription(Collections.emptySet())));
+        sendMessage(new CorfuPayloadMsg<>(CorfuMsgType.TOKEN_REQ,
+                new TokenRequest(1L, Collections.singleton(streamA), false, false)));
+        assertThat(getLastMessage().getMsgType())
+                .isEqualTo(CorfuMsgType.TOKEN_RES);
+    }
+
+    private long txToken(UUID stream, int conflictParam, long snapshot) {
+        sendMessage(new CorfuPayloadMsg<>(CorfuMsgType.TOKEN_REQ,
+                new TokenRequest(1L, Collections.singleton(stream), false, false,
+                        new TxResolutionInfo(snapshot,
+                                ImmutableMap.of(stream, ImmutableSet.of(conflictParam)),
+                                ImmutableMap.of(stream, ImmutableSet.of(conflictParam))))));
+        return getLastPayloadMessageAs(TokenResponse.class).getToken();
+    }
+
+    @Test
+    public void conflictEvictionsOnlyAbortTheirStream() {
+        UUID streamA = UUID.nameUUIDFromBytes("streamA".getBytes());
+        UUID streamB = UUID.nameUUIDFromBytes("streamB".getBytes());
+
+        int tableSize = SequencerServer.CONFLICT_TABLE_SIZE;
+        SequencerServer.CONFLICT_TABLE_SIZE = ConflictTable.PROBE_WINDOW;
+        try {
+            SequencerServer server = new SequencerServer(ServerContextBuilder.emptyContext());
+            setServer(server);
+
+            long tokenB = txToken(streamB, 0, -1L);
+            assertThat(tokenB)
+                    .isEqualTo(0L);
+
+            // Churn the table with the keys of stream A, which evicts every older key.
+            for (int i = 1; i <= ConflictTable.PROBE_WINDOW * 2; i++) {
+                assertThat(txToken(streamA, i, i - 1))
+                        .isEqualTo(i);
+            }
+            assertThat(server.getConflictTable().getEvictions().get())
+                    .isGreaterThan(0L);
+            assertThat(server.getConflictTable().getOccupancy())
+                    .isEqualTo(1.0);
+
+            // The evicted key of stream A aborts a transaction which read before its update...
+            assertThat(txToken(streamA, 1, 0L))
+                    .isEqualTo(-1L);
+            // ...but the evictions of stream A don't abort transactions on stream B.
+            assertThat(txToken(streamB, 0, tokenB))
+                    .isNotEqualTo(-1L);
+        } finally {
+            SequencerServer.CONFLICT_TABLE_SIZE = tableSize;
+        }
+    }
+
+    @Test
+    public void abortsAreCountedByReason() {
+        UUID streamA = UUID.nameUUIDFromBytes("streamA".getBytes());
+        SequencerServer server = new SequencerServer(ServerContextBuilder.emptyContext());
+        setServer(server);
+
+        assertThat(txToken(streamA, 1, -1L))
+                .isEqualTo(0L);
+        assertThat(txToken(streamA, 1, -1L))
+                .isEqualTo(-1L);
+        sendMessage(new CorfuPayloadMsg<>(CorfuMsgType.TOKEN_REQ,
+                new TokenRequest(1L, Collections.singleton(streamA), false, false,
+                        new TxResolutionInfo(-1L, Collections.singleton(streamA), Collections.emptyMap()))));
+        assertThat(getLastPayloadMessageAs(TokenResponse.class).getToken())
+                .isEqualTo(-1L);
+
+        // A key missing from the table conflicts with the wildcard.
+        server.getConflictTable().raiseGlobalWildcard(0L);
+        assertThat(txToken(streamA, 2, -1L))
+                .isEqualTo(-1L);
+
+        SequencerStats stats = server.getMetrics().fill(new SequencerStats());
+        assertThat(stats.getAborts())
+                .containsEntry(SequencerStats.AbortReason.CONFLICT_KEY, 1L)
+                .containsEntry(SequencerStats.AbortReason.STREAM_TAIL, 1L)
+                .containsEntry(SequencerStats.AbortReason.WILDCARD, 1L);
+        assertThat(stats.getRequests().get(SequencerStats.RequestType.TX).getCount())
+                .isEqualTo(4L);
+        assertThat(stats.getTokensIssued())
+                .isEqualTo(1L);
+        assertThat(stats.getHotStreams())
+                .containsExactly(new SequencerStats.HotStream(streamA, 1L));
+        assertThat(stats.getHotConflictKeys())
+                .containsOnly(new SequencerStats.HotConflictKey(streamA, 1, 1L),
+                        new SequencerStats.HotConflictKey(streamA, 2, 1L));
+
+        sendMessage(new CorfuMsg(CorfuMsgType.SEQUENCER_STATS_REQUEST));
+        assertThat(getLastMessage().getMsgType())
+                .isEqualTo(CorfuMsgType.SEQUENCER_STATS_RESPONSE);
+    }
+
+    @Test
+    public void globalTailQueriesWaitForOutstandingBlocks() {
+        sendMessage(new CorfuPayloadMsg<>(CorfuMsgType.ADDRESS_BLOCK_REQ, new AddressBlockRequest(10L, -1L)));
+        assertThat(getLastPayloadMessageAs(TokenResponse.class).getToken())
+                .isEqualTo(0L);
+        sendMessage(new CorfuPayloadMsg<>(CorfuMsgType.TOKEN_REQ,
+                new TokenRequest(1L, Collections.<UUID>emptySet(), false, false)));
+        assertThat(getLastPayloadMessageAs(TokenResponse.class).getToken())
+                .isEqualTo(10L);
+
+        // The query waits until the block is reported applied.
+        int responses = getResponseMessages().size();
+        sendMessage(new CorfuPayloadMsg<>(CorfuMsgType.TOKEN_REQ,
+                new TokenRequest(0L, Collections.<UUID>emptySet(), false, false)));
+        assertThat(getResponseMessages())
+                .hasSize(responses);
+
+        sendMessage(new CorfuPayloadMsg<>(CorfuMsgType.ADDRESS_BLOCK_REQ, new AddressBlockRequest(0L, 0L)));
+        assertThat(getResponseMessages())
+                .hasSize(responses + 2);
+        assertThat(getLastPayloadMessageAs(TokenResponse.class).getToken())
+                .isEqualTo(10L);
+    }
+
+    @Test
+    public void shardLocksHoldBackRequestsOnTheirStreams() {
+        UUID streamA = UUID.nameUUIDFromBytes("streamA".getBytes());
+        UUID streamB = UUID.nameUUIDFromBytes("streamB".getBytes());
+        UUID lockId = UUID.randomUUID();
+        final long committedAddress = 100L;
+
+        sendMessage(new CorfuPayloadMsg<>(CorfuMsgType.TOKEN_REQ,
+                new TokenRequest(1L, Collections.singleton(streamA), false, false)));
+        sendMessage(new CorfuPayloadMsg<>(CorfuMsgType.SHARD_REQ, new ShardRequest(ShardRequest.SHARD_LOCK, lockId,
+                new TokenRequest(1L, Collections.singleton(streamA), false, false), -1L)));
+        TokenResponse lock = getLastPayloadMessageAs(TokenResponse.class);
+        assertThat(lock.getToken())
+                .isEqualTo(0L);
+        assertThat(lock.getBackpointerMap())
+                .containsEntry(streamA, 0L);
+
+        // A request on the locked stream is held back, others are not.
+        int responses = getResponseMessages().size();
+        sendMessage(new CorfuPayloadMsg<>(CorfuMsgType.TOKEN_REQ,
+                new TokenRequest(1L, Collections.singleton(streamA), false, false)));
+        assertThat(getResponseMessages())
+                .hasSize(responses);
+        sendMessage(new CorfuPayloadMsg<>(CorfuMsgType.TOKEN_REQ,
+                new TokenRequest(1L, Collections.singleton(streamB), false, false)));
+        assertThat(getLastPayloadMessageAs(TokenResponse.class).getToken())
+                .isEqualTo(1L);
+
+        sendMessage(new CorfuPayloadMsg<>(CorfuMsgType.SHARD_REQ, new ShardRequest(ShardRequest.SHARD_COMMIT, lockId,
+                null, committedAddress)));
+        assertThat(getResponseMessages())
+                .hasSize(responses + 3);
+        TokenResponse commit = (TokenResponse) ((CorfuPayloadMsg<?>) getResponseMessages()
+                .get(responses + 1)).getPayload();
+        assertThat(commit.getToken())
+                .isEqualTo(committedAddress);
+        assertThat(commit.getBackpointerMap())
+                .containsEntry(streamA, 0L);
+        assertThat(commit.getStreamAddresses())
+                .containsEntry(streamA, 1L);
+
+        TokenResponse held = getLastPayloadMessageAs(TokenResponse.class);
+        assertThat(held.getToken())
+                .isEqualTo(committedAddress + 1);
+        assertThat(held.getBackpointerMap())
+                .containsEntry(streamA, committedAddress);
+    }
+
+    /**
+     * A router which queues the token responses of one client, which may be sent by another thread.
+     */
+    private static class ClientRouter implements IServerRouter {
+        final BlockingQueue<TokenResponse> responses = new LinkedBlockingQueue<>();
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void sendResponse(ChannelHandlerContext ctx, CorfuMsg inMsg, CorfuMsg outMsg) {
+            responses.add(((CorfuPayloadMsg<TokenResponse>) outMsg).getPayload());
+        }
+
+        @Override
+        public long getServerEpoch() {
+            return 0L;
+        }
+
+        @Override
+        public void setServerEpoch(long newEpoch) {
+        }
+
+        @Override
+        public void addServer(AbstractServer server) {
+        }
+
+        TokenResponse take() throws InterruptedException {
+            TokenResponse response = responses.poll(PARAMETERS.TIMEOUT_NORMAL.toMillis(), TimeUnit.MILLISECONDS);
+            assertThat(response).isNotNull();
+            return response;
+        }
+    }
+
+    @Test
+    public void concurrentTokenRequestsAreUniqueAndLinearizable() throws Exception {
+        SequencerServer server = (SequencerServer) getDefaultServer();
+        UUID streamA = UUID.nameUUIDFromBytes("streamA".getBytes());
+        Set<Long> tokens = ConcurrentHashMap.newKeySet();
+
+        final int numThreads = PARAMETERS.CONCURRENCY_SOME;
+        final int numRequests = PARAMETERS.NUM_ITERATIONS_LOW;
+
+        scheduleConcurrently(numThreads, threadNumber -> {
+            ClientRouter router = new ClientRouter();
+            for (int i = 0; i < numRequests; i++) {
+                server.tokenRequest(new CorfuPayloadMsg<>(CorfuMsgType.TOKEN_REQ,
+                        new TokenRequest(1L, Collections.singleton(streamA), false, false)), null, router);
+                long token = router.take().getToken();
+                assertThat(tokens.add(token)).isTrue();
+
+                // A query issued after a token was received observes it
+                server.tokenRequest(new CorfuPayloadMsg<>(CorfuMsgType.TOKEN_REQ,
+                        new TokenRequest(0L, Collections.singleton(streamA), false, false)), null, router);
+                assertThat(router.take().getToken()).isGreaterThanOrEqualTo(token);
+            }
+        });
+
+        executeScheduled(numThreads, PARAMETERS.TIMEOUT_LONG);
+
+        assertThat(tokens).hasSize(numThreads * numRequests);
+        assertThat(server.getGlobalLogTail().get()).isEqualTo((long) numThreads * numRequests);
+    }
 }
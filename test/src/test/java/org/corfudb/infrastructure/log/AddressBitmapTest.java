@@ -0,0 +1,70 @@
+package org.corfudb.infrastructure.log;
+
+import org.corfudb.AbstractCorfuTest;
+import org.junit.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+/**
+ * Tests for the AddressBitmap of a log segment.
+ */
+public class AddressBitmapTest extends AbstractCorfuTest {
+
+    private static final long FIRST_ADDRESS = 1000L;
+    private static final int CAPACITY = 100;
+
+    @Test
+    public void testAndSetDetectsOverwrites() {
+        AddressBitmap bitmap = new AddressBitmap(FIRST_ADDRESS, CAPACITY);
+
+        assertThat(bitmap.testAndSet(FIRST_ADDRESS)).isTrue();
+        assertThat(bitmap.testAndSet(FIRST_ADDRESS)).isFalse();
+        assertThat(bitmap.testAndSet(FIRST_ADDRESS + CAPACITY - 1)).isTrue();
+        assertThat(bitmap.contains(FIRST_ADDRESS + 1)).isFalse();
+        assertThat(bitmap.size()).isEqualTo(2);
+
+        bitmap.clear(FIRST_ADDRESS);
+        assertThat(bitmap.contains(FIRST_ADDRESS)).isFalse();
+        assertThat(bitmap.size()).isEqualTo(1);
+
+        assertThatThrownBy(() -> bitmap.testAndSet(FIRST_ADDRESS + CAPACITY))
+                .isInstanceOf(IllegalArgumentException.class);
+        assertThat(bitmap.contains(FIRST_ADDRESS - 1)).isFalse();
+    }
+
+    @Test
+    public void wordsRoundTrip() {
+        AddressBitmap bitmap = new AddressBitmap(FIRST_ADDRESS, CAPACITY);
+        for (long address = FIRST_ADDRESS; address < FIRST_ADDRESS + CAPACITY; address += 3) {
+            bitmap.testAndSet(address);
+        }
+
+        AddressBitmap copy = new AddressBitmap(FIRST_ADDRESS, CAPACITY);
+        long[] words = bitmap.getWords();
+        assertThat(words).hasSize(AddressBitmap.getWordCount(CAPACITY));
+        for (int i = 0; i < words.length; i++) {
+            copy.setWord(i, words[i]);
+        }
+
+        assertThat(copy.size()).isEqualTo(bitmap.size());
+        for (long address = FIRST_ADDRESS; address < FIRST_ADDRESS + CAPACITY; address++) {
+            assertThat(copy.contains(address)).isEqualTo(bitmap.contains(address));
+        }
+    }
+
+    @Test
+    public void concurrentTestAndSetHasOneWinner() throws Exception {
+        AddressBitmap bitmap = new AddressBitmap(0L, CAPACITY);
+        final int numThreads = PARAMETERS.CONCURRENCY_SOME;
+
+        scheduleConcurrently(numThreads, threadNumber -> {
+            for (long address = 0; address < CAPACITY; address++) {
+                bitmap.testAndSet(address);
+            }
+        });
+        executeScheduled(numThreads, PARAMETERS.TIMEOUT_NORMAL);
+
+        assertThat(bitmap.size()).isEqualTo(CAPACITY);
+    }
+}
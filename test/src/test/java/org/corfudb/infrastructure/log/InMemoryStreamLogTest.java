@@ -0,0 +1,124 @@
+package org.corfudb.infrastructure.log;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+
+import org.corfudb.AbstractCorfuTest;
+import org.corfudb.protocols.wireprotocol.DataType;
+import org.corfudb.protocols.wireprotocol.LogData;
+import org.corfudb.runtime.exceptions.OutOfSpaceException;
+import org.corfudb.runtime.exceptions.OverwriteException;
+import org.corfudb.runtime.exceptions.TrimmedException;
+import org.corfudb.util.serializer.Serializers;
+import org.junit.Test;
+
+/**
+ * Tests for the ring-buffer backed in-memory stream log.
+ */
+public class InMemoryStreamLogTest extends AbstractCorfuTest {
+
+    private ByteBuf getPayload(byte[] streamEntry) {
+        ByteBuf b = ByteBufAllocator.DEFAULT.buffer();
+        Serializers.CORFU.serialize(streamEntry, b);
+        return b;
+    }
+
+    @Test
+    public void oldestEntriesAreAutoTrimmed() {
+        final int entriesPerChunk = 8;
+        final int numChunks = 2;
+        final int numEntries = entriesPerChunk * numChunks * 2;
+
+        InMemoryStreamLog log = new InMemoryStreamLog(numChunks * InMemoryStreamLog.CHUNK_SIZE);
+        byte[] streamEntry = new byte[InMemoryStreamLog.CHUNK_SIZE / (entriesPerChunk + 1)];
+        ByteBuf b = getPayload(streamEntry);
+
+        for (long address = 0; address < numEntries; address++) {
+            log.append(new LogAddress(address, null), new LogData(DataType.DATA, b));
+        }
+
+        // The ring wrapped around, so the oldest entries were evicted and trimmed
+        assertThat(log.getEvictions().get()).isGreaterThan(0L);
+        assertThat(log.getTrimMark()).isEqualTo(log.getEvictions().get());
+        assertThat(log.read(new LogAddress(0L, null)).isTrimmed()).isTrue();
+        assertThat(log.read(new LogAddress(log.getTrimMark() - 1, null)).isTrimmed()).isTrue();
+
+        for (long address = log.getTrimMark(); address < numEntries; address++) {
+            assertThat(log.read(new LogAddress(address, null)).getPayload(null))
+                    .isEqualTo(streamEntry);
+        }
+
+        assertThatThrownBy(() -> log.append(new LogAddress(0L, null), new LogData(DataType.DATA, b)))
+                .isInstanceOf(TrimmedException.class);
+        assertThatThrownBy(() -> log.append(new LogAddress((long) numEntries - 1, null),
+                new LogData(DataType.DATA, b)))
+                .isInstanceOf(OverwriteException.class);
+    }
+
+    @Test
+    public void entriesLargerThanAChunkAreServed() {
+        final int numChunks = 4;
+        InMemoryStreamLog log = new InMemoryStreamLog(numChunks * InMemoryStreamLog.CHUNK_SIZE);
+        byte[] streamEntry = new byte[InMemoryStreamLog.CHUNK_SIZE * 2];
+        LogAddress address = new LogAddress(0L, null);
+
+        log.append(address, new LogData(DataType.DATA, getPayload(streamEntry)));
+        assertThat(log.read(address).getPayload(null)).isEqualTo(streamEntry);
+    }
+
+    @Test
+    public void entriesLargerThanAChunkAreChargedToTheRing() {
+        final int numChunks = 2;
+        final int numEntries = 4;
+        InMemoryStreamLog log = new InMemoryStreamLog(numChunks * InMemoryStreamLog.CHUNK_SIZE);
+        byte[] streamEntry = "Payload".getBytes();
+        ByteBuf b = getPayload(streamEntry);
+
+        for (long address = 0; address < numEntries; address++) {
+            log.append(new LogAddress(address, null), new LogData(DataType.DATA, b));
+        }
+
+        // The large entry takes the next chunk and the one after, so the ring wraps around.
+        byte[] largeEntry = new byte[InMemoryStreamLog.CHUNK_SIZE];
+        LogAddress largeAddress = new LogAddress((long) numEntries, null);
+        log.append(largeAddress, new LogData(DataType.DATA, getPayload(largeEntry)));
+
+        assertThat(log.getEvictions().get()).isEqualTo(numEntries);
+        assertThat(log.getTrimMark()).isEqualTo(numEntries);
+        assertThat(log.read(new LogAddress(0L, null)).isTrimmed()).isTrue();
+        assertThat(log.read(largeAddress).getPayload(null)).isEqualTo(largeEntry);
+
+        byte[] tooLarge = new byte[numChunks * InMemoryStreamLog.CHUNK_SIZE];
+        assertThatThrownBy(() -> log.append(new LogAddress(numEntries + 1L, null),
+                new LogData(DataType.DATA, getPayload(tooLarge))))
+                .isInstanceOf(OutOfSpaceException.class);
+    }
+
+    @Test
+    public void concurrentAppendsAreAllReadable() throws Exception {
+        InMemoryStreamLog log = new InMemoryStreamLog(InMemoryStreamLog.DEFAULT_CAPACITY);
+        byte[] streamEntry = "Payload".getBytes();
+        ByteBuf b = getPayload(streamEntry);
+
+        final int numThreads = PARAMETERS.CONCURRENCY_SOME;
+        final int numEntries = PARAMETERS.NUM_ITERATIONS_LOW;
+
+        scheduleConcurrently(numThreads, threadNumber -> {
+            for (int i = 0; i < numEntries; i++) {
+                long address = (long) i * numThreads + threadNumber;
+                log.append(new LogAddress(address, null), new LogData(DataType.DATA, b));
+            }
+        });
+
+        executeScheduled(numThreads, PARAMETERS.TIMEOUT_NORMAL);
+
+        for (long address = 0; address < (long) numThreads * numEntries; address++) {
+            assertThat(log.read(new LogAddress(address, null)).getPayload(null))
+                    .isEqualTo(streamEntry);
+        }
+        assertThat(log.getTrimMark()).isEqualTo(0L);
+    }
+}
@@ -4,18 +4,27 @@ import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.corfudb.infrastructure.log.StreamLogFiles.METADATA_SIZE;
 
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufAllocator;
 import java.io.File;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
 
 import org.corfudb.AbstractCorfuTest;
 import org.corfudb.format.Types.Metadata;
 import org.corfudb.protocols.wireprotocol.DataType;
+import org.corfudb.protocols.wireprotocol.IMetadata;
 import org.corfudb.protocols.wireprotocol.LogData;
 import org.corfudb.runtime.exceptions.DataCorruptionException;
 import org.corfudb.runtime.exceptions.OverwriteException;
+import org.corfudb.runtime.exceptions.TrimmedException;
 import org.corfudb.util.serializer.Serializers;
 import org.junit.Test;
 
@@ -195,4 +204,455 @@ public class StreamLogFilesTest extends AbstractCorfuTest {
 
         assertThat(log.getChannelsToSync().size()).isEqualTo(0);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testIndexRebuild() throws Exception {
+        // This test removes and corrupts the index file of a segment
+        // and verifies that the index is rebuilt from the log file
+        String logDir = getDirPath();
+        StreamLog log = new StreamLogFiles(logDir, false);
+        ByteBuf b = ByteBufAllocator.DEFAULT.buffer();
+        byte[] streamEntry = "Payload".getBytes();
+        Serializers.CORFU.serialize(streamEntry, b);
+        final int numEntries = 10;
+
+        for (long x = 0; x < numEntries; x++) {
+            log.append(new LogAddress(x, null), new LogData(DataType.DATA, b));
+        }
+        log.close();
+
+        String indexFilePath = logDir + 0 + StreamLogFiles.INDEX_FILE_EXTENSION;
+        assertThat(new File(indexFilePath)).exists();
+        assertThat(new File(indexFilePath).length())
+                .isEqualTo((long) numEntries * StreamLogFiles.INDEX_ENTRY_SIZE);
+
+        // Remove the index, it should be rebuilt on the next open
+        assertThat(new File(indexFilePath).delete()).isTrue();
+
+        StreamLog log2 = new StreamLogFiles(logDir, false);
+        for (long x = 0; x < numEntries; x++) {
+            assertThat(log2.read(new LogAddress(x, null)).getPayload(null)).isEqualTo(streamEntry);
+        }
+        assertThat(log2.read(new LogAddress((long) numEntries, null))).isNull();
+        log2.close();
+        assertThat(new File(indexFilePath).length())
+                .isEqualTo((long) numEntries * StreamLogFiles.INDEX_ENTRY_SIZE);
+
+        // Corrupt the checksum of the last index entry
+        RandomAccessFile file = new RandomAccessFile(indexFilePath, "rw");
+        file.seek(file.length() - Integer.BYTES);
+        file.writeInt(0);
+        file.close();
+
+        StreamLog log3 = new StreamLogFiles(logDir, false);
+        for (long x = 0; x < numEntries; x++) {
+            assertThat(log3.read(new LogAddress(x, null)).getPayload(null)).isEqualTo(streamEntry);
+        }
+        assertThatThrownBy(() -> log3.append(new LogAddress(0L, null), new LogData(DataType.DATA, b)))
+                .isInstanceOf(OverwriteException.class);
+        log3.close();
+    }
+
+    @Test
+    public void testMappedReadsOfSealedSegments() throws Exception {
+        String logDir = getDirPath();
+        StreamLog log = new StreamLogFiles(logDir, false, 1);
+        ByteBuf b = ByteBufAllocator.DEFAULT.buffer();
+        byte[] streamEntry = "Payload".getBytes();
+        Serializers.CORFU.serialize(streamEntry, b);
+
+        long seg1 = 0;
+        long seg2 = StreamLogFiles.RECORDS_PER_LOG_FILE;
+        long seg3 = StreamLogFiles.RECORDS_PER_LOG_FILE * 2;
+
+        log.append(new LogAddress(seg1, null), new LogData(DataType.DATA, b));
+        log.append(new LogAddress(seg2, null), new LogData(DataType.DATA, b));
+        log.append(new LogAddress(seg3, null), new LogData(DataType.DATA, b));
+
+        // The first two segments are sealed and served from mappings, which evict each other
+        assertThat(log.read(new LogAddress(seg1, null)).getPayload(null)).isEqualTo(streamEntry);
+        assertThat(log.read(new LogAddress(seg2, null)).getPayload(null)).isEqualTo(streamEntry);
+        assertThat(log.read(new LogAddress(seg1, null)).getPayload(null)).isEqualTo(streamEntry);
+
+        // Filling a hole in a mapped segment should remap it
+        log.append(new LogAddress(seg1 + 1, null), new LogData(DataType.DATA, b));
+        assertThat(log.read(new LogAddress(seg1 + 1, null)).getPayload(null)).isEqualTo(streamEntry);
+        assertThat(log.read(new LogAddress(seg1 + 2, null))).isNull();
+
+        // The tail segment is not sealed and is read through its channel
+        assertThat(log.read(new LogAddress(seg3, null)).getPayload(null)).isEqualTo(streamEntry);
+        log.close();
+    }
+
+    @Test
+    public void testRecordMetadataRoundTrip() {
+        StreamLog log = new StreamLogFiles(getDirPath(), false);
+        ByteBuf b = ByteBufAllocator.DEFAULT.buffer();
+        byte[] streamEntry = "Payload".getBytes();
+        Serializers.CORFU.serialize(streamEntry, b);
+        final long address = 5L;
+        final long backpointer = 3L;
+        UUID streamA = UUID.randomUUID();
+        UUID streamB = UUID.randomUUID();
+
+        LogData data = new LogData(DataType.DATA, b);
+        data.setStreams(ImmutableSet.of(streamA, streamB));
+        data.setBackpointerMap(ImmutableMap.of(streamA, backpointer));
+        data.setRank(address);
+        data.setCommit();
+        log.append(new LogAddress(address, null), data);
+        log.close();
+
+        LogData read = new StreamLogFiles(getDirPath(), false).read(new LogAddress(address, null));
+        assertThat(read.getPayload(null)).isEqualTo(streamEntry);
+        assertThat(read.getGlobalAddress()).isEqualTo(address);
+        assertThat(read.getStreams()).containsOnly(streamA, streamB);
+        assertThat(read.getBackpointerMap()).containsEntry(streamA, backpointer).hasSize(1);
+        assertThat(read.getRank()).isEqualTo(address);
+        assertThat(read.getMetadataMap().get(IMetadata.LogUnitMetadataType.COMMIT)).isEqualTo(true);
+    }
+
+    @Test
+    public void testReadVersion1LogFiles() {
+        // Generate a log file with the version 1 record format, then verify
+        // that it can still be read, and appended to, by the current version
+        String logDir = getDirPath();
+        ByteBuf b = ByteBufAllocator.DEFAULT.buffer();
+        byte[] streamEntry = "Payload".getBytes();
+        Serializers.CORFU.serialize(streamEntry, b);
+        LogAddress address0 = new LogAddress(0L, null);
+        LogAddress address1 = new LogAddress(1L, null);
+
+        final int currentVersion = StreamLogFiles.VERSION;
+        StreamLogFiles.VERSION = 1;
+        try {
+            StreamLog log = new StreamLogFiles(logDir, false);
+            log.append(address0, new LogData(DataType.DATA, b));
+            log.close();
+        } finally {
+            StreamLogFiles.VERSION = currentVersion;
+        }
+
+        StreamLog log = new StreamLogFiles(logDir, false);
+        assertThat(log.read(address0).getPayload(null)).isEqualTo(streamEntry);
+        log.append(address1, new LogData(DataType.DATA, b));
+        log.close();
+
+        // Remove the index so that the version 1 file has to be scanned
+        assertThat(new File(logDir + 0 + StreamLogFiles.INDEX_FILE_EXTENSION).delete()).isTrue();
+
+        StreamLog log2 = new StreamLogFiles(logDir, false);
+        assertThat(log2.read(address0).getPayload(null)).isEqualTo(streamEntry);
+        assertThat(log2.read(address1).getPayload(null)).isEqualTo(streamEntry);
+        log2.close();
+    }
+
+    @Test
+    public void testKnownAddressesLoadedFromBitmap() throws Exception {
+        String logDir = getDirPath();
+        StreamLog log = new StreamLogFiles(logDir, false);
+        ByteBuf b = ByteBufAllocator.DEFAULT.buffer();
+        byte[] streamEntry = "Payload".getBytes();
+        Serializers.CORFU.serialize(streamEntry, b);
+        final int numEntries = 10;
+
+        for (long x = 0; x < numEntries; x++) {
+            log.append(new LogAddress(x, null), new LogData(DataType.DATA, b));
+        }
+        log.close();
+
+        String indexFilePath = logDir + 0 + StreamLogFiles.INDEX_FILE_EXTENSION;
+        String bitmapFilePath = logDir + 0 + StreamLogFiles.BITMAP_FILE_EXTENSION;
+        assertThat(new File(bitmapFilePath)).exists();
+        assertThat(new File(indexFilePath).delete()).isTrue();
+
+        // The known addresses come from the bitmap, the index is not needed for overwrite checks
+        StreamLog log2 = new StreamLogFiles(logDir, false);
+        assertThatThrownBy(() -> log2.append(new LogAddress(0L, null), new LogData(DataType.DATA, b)))
+                .isInstanceOf(OverwriteException.class);
+        assertThat(new File(indexFilePath).length()).isEqualTo(0L);
+
+        // The index is rebuilt on the first read
+        assertThat(log2.read(new LogAddress(0L, null)).getPayload(null)).isEqualTo(streamEntry);
+        assertThat(new File(indexFilePath).length())
+                .isEqualTo((long) numEntries * StreamLogFiles.INDEX_ENTRY_SIZE);
+        log2.close();
+
+        // A corrupt bitmap is ignored
+        RandomAccessFile file = new RandomAccessFile(bitmapFilePath, "rw");
+        file.seek(file.length() - Integer.BYTES);
+        file.writeInt(0);
+        file.close();
+
+        StreamLog log3 = new StreamLogFiles(logDir, false);
+        assertThatThrownBy(() -> log3.append(new LogAddress(1L, null), new LogData(DataType.DATA, b)))
+                .isInstanceOf(OverwriteException.class);
+        log3.append(new LogAddress((long) numEntries, null), new LogData(DataType.DATA, b));
+        assertThat(log3.read(new LogAddress((long) numEntries, null)).getPayload(null)).isEqualTo(streamEntry);
+        log3.close();
+    }
+
+    @Test
+    public void testReadAll() {
+        StreamLog log = new StreamLogFiles(getDirPath(), false);
+        final int numEntries = 10;
+        final long secondSegment = StreamLogFiles.RECORDS_PER_LOG_FILE;
+        List<LogAddress> addresses = new ArrayList<>();
+
+        // Write every other address, in two segments
+        for (long x = 0; x < numEntries; x++) {
+            for (long segmentStart : new long[]{0L, secondSegment}) {
+                LogAddress address = new LogAddress(segmentStart + x, null);
+                addresses.add(address);
+                if (x % 2 == 0) {
+                    ByteBuf b = ByteBufAllocator.DEFAULT.buffer();
+                    Serializers.CORFU.serialize(("Payload" + address.getAddress()).getBytes(), b);
+                    log.append(address, new LogData(DataType.DATA, b));
+                }
+            }
+        }
+
+        Map<LogAddress, LogData> entries = log.readAll(addresses);
+
+        assertThat(entries).hasSize(numEntries);
+        for (LogAddress address : addresses) {
+            if (address.getAddress() % 2 == 0) {
+                assertThat(entries.get(address).getPayload(null))
+                        .isEqualTo(("Payload" + address.getAddress()).getBytes());
+            } else {
+                assertThat(entries).doesNotContainKey(address);
+            }
+        }
+        log.close();
+    }
+
+    @Test
+    public void testCompressedSegments() throws Exception {
+        String logDir = getDirPath();
+        StreamLog log = new StreamLogFiles(logDir, false, 0, true);
+        final long seg2 = StreamLogFiles.RECORDS_PER_LOG_FILE;
+
+        // Fill the first segment, and start the second one
+        for (long x = 0; x <= seg2; x++) {
+            ByteBuf b = ByteBufAllocator.DEFAULT.buffer();
+            Serializers.CORFU.serialize(("Payload" + x).getBytes(), b);
+            log.append(new LogAddress(x, null), new LogData(DataType.DATA, b));
+        }
+
+        File logFile = new File(logDir + 0 + ".log");
+        File compressedFile = new File(logDir + 0 + CompressedSegment.COMPRESSED_FILE_EXTENSION);
+        long logSize = logFile.length();
+
+        // Only the full segment older than the tail is compressed
+        assertThat(log.compact(Integer.MAX_VALUE)).isEqualTo(1);
+        assertThat(log.compact(Integer.MAX_VALUE)).isEqualTo(0);
+        assertThat(logFile).doesNotExist();
+        assertThat(compressedFile.length()).isLessThan(logSize);
+        assertThat(new File(logDir + 1 + ".log")).exists();
+
+        final long address = 42L;
+        assertThat(log.read(new LogAddress(address, null)).getPayload(null))
+                .isEqualTo(("Payload" + address).getBytes());
+        assertThat(log.readAll(Collections.singletonList(new LogAddress(seg2 - 1, null)))
+                .get(new LogAddress(seg2 - 1, null)).getPayload(null))
+                .isEqualTo(("Payload" + (seg2 - 1)).getBytes());
+        ByteBuf b = ByteBufAllocator.DEFAULT.buffer();
+        Serializers.CORFU.serialize("Payload".getBytes(), b);
+        assertThatThrownBy(() -> log.append(new LogAddress(address, null), new LogData(DataType.DATA, b)))
+                .isInstanceOf(OverwriteException.class);
+        log.close();
+
+        // Compressed segments are read even if compression is disabled
+        StreamLog log2 = new StreamLogFiles(logDir, false);
+        assertThat(log2.read(new LogAddress(0L, null)).getPayload(null))
+                .isEqualTo("Payload0".getBytes());
+        assertThat(log2.read(new LogAddress(seg2, null)).getPayload(null))
+                .isEqualTo(("Payload" + seg2).getBytes());
+        log2.close();
+    }
+
+    @Test
+    public void testOpenFileHandlesAreBounded() {
+        final int maxOpenSegments = 2;
+        final int numSegments = 5;
+        final int defaultMaxOpenSegments = StreamLogFiles.MAX_OPEN_SEGMENTS;
+        StreamLogFiles.MAX_OPEN_SEGMENTS = maxOpenSegments;
+
+        try {
+            StreamLogFiles log = new StreamLogFiles(getDirPath(), false);
+
+            // Write an address in each segment, and a stream segment
+            for (long segment = 0; segment < numSegments; segment++) {
+                long address = segment * StreamLogFiles.RECORDS_PER_LOG_FILE;
+                ByteBuf b = ByteBufAllocator.DEFAULT.buffer();
+                Serializers.CORFU.serialize(("Payload" + segment).getBytes(), b);
+                log.append(new LogAddress(address, null), new LogData(DataType.DATA, b));
+                log.append(new LogAddress(address, UUID.randomUUID()), new LogData(DataType.DATA, b));
+                assertThat(log.getOpenHandles()).isLessThanOrEqualTo(maxOpenSegments);
+            }
+            assertThat(log.getHandleEvictions().get()).isEqualTo((long) numSegments * 2 - maxOpenSegments);
+
+            // Evicted segments are reopened, with their written addresses
+            for (long segment = 0; segment < numSegments; segment++) {
+                long address = segment * StreamLogFiles.RECORDS_PER_LOG_FILE;
+                assertThat(log.read(new LogAddress(address, null)).getPayload(null))
+                        .isEqualTo(("Payload" + segment).getBytes());
+            }
+            assertThat(log.getHandleReopens().get()).isGreaterThanOrEqualTo(numSegments - maxOpenSegments);
+            assertThat(log.getOpenHandles()).isLessThanOrEqualTo(maxOpenSegments);
+
+            ByteBuf b = ByteBufAllocator.DEFAULT.buffer();
+            Serializers.CORFU.serialize("Payload".getBytes(), b);
+            assertThatThrownBy(() -> log.append(new LogAddress(0L, null), new LogData(DataType.DATA, b)))
+                    .isInstanceOf(OverwriteException.class);
+            log.close();
+        } finally {
+            StreamLogFiles.MAX_OPEN_SEGMENTS = defaultMaxOpenSegments;
+        }
+    }
+
+    @Test
+    public void testTailRecoveryOfPreallocatedSegment() throws Exception {
+        String logDir = getDirPath();
+        StreamLog log = new StreamLogFiles(logDir, false);
+        ByteBuf b = ByteBufAllocator.DEFAULT.buffer();
+        byte[] streamEntry = "Payload".getBytes();
+        Serializers.CORFU.serialize(streamEntry, b);
+        final int numEntries = 10;
+
+        for (long x = 0; x < numEntries; x++) {
+            log.append(new LogAddress(x, null), new LogData(DataType.DATA, b));
+        }
+        log.sync();
+
+        // The log file is preallocated past its last record
+        String logFilePath = logDir + 0 + ".log";
+        assertThat(new File(logFilePath).length()).isGreaterThanOrEqualTo(StreamLogFiles.MIN_PREALLOCATION_SIZE);
+
+        // Find the tail from the index, and simulate a crash in the middle of the next append
+        long tail = 0;
+        RandomAccessFile index = new RandomAccessFile(logDir + 0 + StreamLogFiles.INDEX_FILE_EXTENSION, "r");
+        for (long entry = 0; entry < index.length(); entry += StreamLogFiles.INDEX_ENTRY_SIZE) {
+            index.seek(entry + Long.BYTES);
+            tail = Math.max(tail, index.readLong() + index.readInt());
+        }
+        index.close();
+
+        final int partialLength = 100;
+        RandomAccessFile file = new RandomAccessFile(logFilePath, "rw");
+        file.seek(tail);
+        file.writeShort(StreamLogFiles.RECORD_DELIMITER);
+        file.writeInt(0);
+        file.writeInt(partialLength);
+        file.writeLong(-1L);
+        file.close();
+
+        // The log is reopened without a bitmap, the partial record is cleared
+        StreamLog log2 = new StreamLogFiles(logDir, false);
+        for (long x = 0; x < numEntries; x++) {
+            assertThat(log2.read(new LogAddress(x, null)).getPayload(null)).isEqualTo(streamEntry);
+        }
+        assertThat(log2.read(new LogAddress((long) numEntries, null))).isNull();
+        assertThatThrownBy(() -> log2.append(new LogAddress(0L, null), new LogData(DataType.DATA, b)))
+                .isInstanceOf(OverwriteException.class);
+
+        log2.append(new LogAddress((long) numEntries, null), new LogData(DataType.DATA, b));
+        log2.close();
+        log.close();
+
+        StreamLog log3 = new StreamLogFiles(logDir, false);
+        for (long x = 0; x <= numEntries; x++) {
+            assertThat(log3.read(new LogAddress(x, null)).getPayload(null)).isEqualTo(streamEntry);
+        }
+        log3.close();
+    }
+
+    @Test
+    public void testTailRecoveryDropsIndexedRecordsNeverWritten() throws Exception {
+        String logDir = getDirPath();
+        StreamLog log = new StreamLogFiles(logDir, false);
+        ByteBuf b = ByteBufAllocator.DEFAULT.buffer();
+        byte[] streamEntry = "Payload".getBytes();
+        Serializers.CORFU.serialize(streamEntry, b);
+        final int numEntries = 10;
+
+        for (long x = 0; x < numEntries; x++) {
+            log.append(new LogAddress(x, null), new LogData(DataType.DATA, b));
+        }
+        log.sync();
+
+        // Simulate a crash after the index entry of the last record reached the disk, but not
+        // the record itself: its region of the preallocated log file is still zeroed.
+        long offset = -1;
+        int length = 0;
+        RandomAccessFile index = new RandomAccessFile(logDir + 0 + StreamLogFiles.INDEX_FILE_EXTENSION, "r");
+        for (long entry = 0; entry < index.length(); entry += StreamLogFiles.INDEX_ENTRY_SIZE) {
+            index.seek(entry);
+            long address = index.readLong();
+            if (address == numEntries - 1) {
+                offset = index.readLong();
+                length = index.readInt();
+            }
+        }
+        index.close();
+        assertThat(offset).isGreaterThan(0L);
+
+        RandomAccessFile file = new RandomAccessFile(logDir + 0 + ".log", "rw");
+        file.seek(offset);
+        file.write(new byte[length]);
+        file.close();
+
+        // The index is dropped, and the tail recovered from the records actually written
+        StreamLog log2 = new StreamLogFiles(logDir, false);
+        for (long x = 0; x < numEntries - 1; x++) {
+            assertThat(log2.read(new LogAddress(x, null)).getPayload(null)).isEqualTo(streamEntry);
+        }
+        assertThat(log2.read(new LogAddress((long) numEntries - 1, null))).isNull();
+        log2.append(new LogAddress((long) numEntries - 1, null), new LogData(DataType.DATA, b));
+        assertThat(log2.read(new LogAddress((long) numEntries - 1, null)).getPayload(null))
+                .isEqualTo(streamEntry);
+        log2.close();
+        log.close();
+    }
+
+    @Test
+    public void testDeletedSegmentsAreClosedWhenReleased() throws Exception {
+        String logDir = getDirPath();
+        StreamLogFiles log = new StreamLogFiles(logDir, false);
+        final long seg2 = StreamLogFiles.RECORDS_PER_LOG_FILE;
+
+        for (long x : new long[]{0L, 1L, seg2}) {
+            ByteBuf b = ByteBufAllocator.DEFAULT.buffer();
+            Serializers.CORFU.serialize(("Payload" + x).getBytes(), b);
+            log.append(new LogAddress(x, null), new LogData(DataType.DATA, b));
+        }
+
+        // Pin the first segment, as an operation in progress would, then delete it
+        StreamLogFiles.FileHandle fh = log.acquireFileHandle(new LogAddress(0L, null));
+        log.prefixTrim(seg2);
+        assertThat(log.compact(Integer.MAX_VALUE)).isEqualTo(1);
+        File logFile = new File(logDir + 0 + ".log");
+        assertThat(logFile).doesNotExist();
+
+        // The pinned handle is still usable, new operations see the segment trimmed
+        assertThat(fh.isClosed()).isFalse();
+        assertThat(fh.getChannel().isOpen()).isTrue();
+        assertThat(log.read(new LogAddress(1L, null))).isEqualTo(LogData.TRIMMED);
+        assertThatThrownBy(() -> log.acquireFileHandle(new LogAddress(1L, null)))
+                .isInstanceOf(TrimmedException.class);
+        ByteBuf b = ByteBufAllocator.DEFAULT.buffer();
+        Serializers.CORFU.serialize("Payload".getBytes(), b);
+        assertThatThrownBy(() -> log.append(new LogAddress(2L, null), new LogData(DataType.DATA, b)))
+                .isInstanceOf(TrimmedException.class);
+
+        // The last release closes the files, without creating them again
+        log.releaseFileHandle(fh);
+        assertThat(fh.isClosed()).isTrue();
+        assertThat(fh.getChannel().isOpen()).isFalse();
+        log.sync(Collections.singletonList(new LogAddress(1L, null)));
+        log.close();
+        assertThat(logFile).doesNotExist();
+        assertThat(new File(StreamLogFiles.getIndexFileName(logFile.getPath()))).doesNotExist();
+        assertThat(new File(logDir + 1 + ".log")).exists();
+    }
+}
@@ -11,6 +11,7 @@ import org.corfudb.infrastructure.ServerContextBuilder;
 import org.corfudb.protocols.wireprotocol.DataType;
 import org.corfudb.protocols.wireprotocol.IMetadata;
 import org.corfudb.protocols.wireprotocol.LogData;
+import org.corfudb.protocols.wireprotocol.StreamAddressResponse;
 import org.corfudb.runtime.CorfuRuntime;
 import org.corfudb.runtime.exceptions.DataCorruptionException;
 import org.corfudb.runtime.exceptions.OverwriteException;
@@ -138,6 +139,29 @@ public class LogUnitClientTest extends AbstractClientTest {
                 .containsEntry(CorfuRuntime.getStreamID("hello2"), ADDRESS_1);
     }
 
+    @Test
+    public void streamAddressesCanBeLookedUp()
+            throws Exception {
+        final long ADDRESS_0 = 0L;
+        final long ADDRESS_1 = 3L;
+        UUID stream = CorfuRuntime.getStreamID("hello");
+
+        byte[] testString = "hello world".getBytes();
+        client.write(ADDRESS_0, Collections.singleton(stream), 0, testString,
+                Collections.singletonMap(stream, -1L)).get();
+        client.write(ADDRESS_1, Collections.singleton(stream), 0, testString,
+                Collections.singletonMap(stream, ADDRESS_0)).get();
+
+        StreamAddressResponse r = client.getStreamAddresses(stream, Range.closed(ADDRESS_0, ADDRESS_1)).get();
+        assertThat(r.getAddresses())
+                .containsEntry(ADDRESS_0, -1L)
+                .containsEntry(ADDRESS_1, ADDRESS_0)
+                .hasSize(2);
+        assertThat(client.getStreamAddresses(CorfuRuntime.getStreamID("hello2"),
+                Range.closed(ADDRESS_0, ADDRESS_1)).get().getAddresses())
+                .isEmpty();
+    }
+
     @Test
     public void canCommitWrite()
             throws Exception {
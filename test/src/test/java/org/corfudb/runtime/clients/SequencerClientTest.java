@@ -3,13 +3,21 @@ package org.corfudb.runtime.clients;
 import com.google.common.collect.ImmutableSet;
 import org.corfudb.infrastructure.AbstractServer;
 import org.corfudb.infrastructure.SequencerServer;
+import org.corfudb.protocols.wireprotocol.CorfuMsgType;
+import org.corfudb.protocols.wireprotocol.SequencerStats;
+import org.corfudb.protocols.wireprotocol.TokenResponse;
+import org.corfudb.runtime.exceptions.SequencerRejectedException;
 import org.junit.Test;
 
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
 /**
  * Created by mwei on 12/14/15.
@@ -57,6 +65,36 @@ public class SequencerClientTest extends AbstractClientTest {
                 .isEqualTo(token2);
     }
 
+    @Test
+    public void canGetStats()
+            throws Exception {
+        UUID streamA = UUID.nameUUIDFromBytes("streamA".getBytes());
+        client.nextToken(Collections.singleton(streamA), 1).get();
+        client.nextToken(Collections.<UUID>emptySet(), 0).get();
+
+        SequencerStats stats = client.getStats().get();
+        assertThat(stats.getRequests().get(SequencerStats.RequestType.MULTI_STREAM).getCount())
+                .isEqualTo(1L);
+        assertThat(stats.getRequests().get(SequencerStats.RequestType.QUERY).getCount())
+                .isEqualTo(1L);
+        assertThat(stats.getGlobalTail())
+                .isEqualTo(0L);
+        assertThat(stats.getHotStreams())
+                .containsExactly(new SequencerStats.HotStream(streamA, 1L));
+    }
+
+    @Test
+    public void unavailableSequencerRejectsRequests()
+            throws Exception {
+        // As a shard which can't reach the primary sequencer answers.
+        serverRouter.rules.add(new TestRule()
+                .matches(m -> m.getMsgType() == CorfuMsgType.TOKEN_RES)
+                .transform(m -> m.setMsgType(CorfuMsgType.SEQUENCER_UNAVAILABLE)));
+
+        assertThatThrownBy(() -> client.nextToken(Collections.<UUID>emptySet(), 1).get())
+                .hasCauseInstanceOf(SequencerRejectedException.class);
+    }
+
     @Test
     public void perStreamTokensWork()
             throws Exception {
@@ -78,4 +116,62 @@ public class SequencerClientTest extends AbstractClientTest {
         assertThat(tokenA3)
                 .isEqualTo(tokenA2);
     }
+
+    @Test
+    public void coalescedTokensChainBackpointers()
+            throws Exception {
+        UUID streamA = UUID.nameUUIDFromBytes("streamA".getBytes());
+        UUID streamB = UUID.nameUUIDFromBytes("streamB".getBytes());
+        client.nextToken(Collections.singleton(streamA), 1).get();
+
+        List<CompletableFuture<TokenResponse>> futures = new ArrayList<>();
+        for (int i = 0; i < PARAMETERS.NUM_ITERATIONS_LOW; i++) {
+            futures.add(client.nextToken(Collections.singleton(i % 2 == 0 ? streamA : streamB), 1));
+        }
+
+        long lastA = 0L;
+        long lastB = -1L;
+        long localA = 0L;
+        long localB = -1L;
+        for (int i = 0; i < PARAMETERS.NUM_ITERATIONS_LOW; i++) {
+            TokenResponse response = futures.get(i).get();
+            assertThat(response.getToken())
+                    .isEqualTo(i + 1L);
+            if (i % 2 == 0) {
+                assertThat(response.getBackpointerMap())
+                        .containsEntry(streamA, lastA);
+                assertThat(response.getStreamAddresses())
+                        .containsEntry(streamA, ++localA);
+                lastA = response.getToken();
+            } else {
+                assertThat(response.getBackpointerMap())
+                        .containsEntry(streamB, lastB);
+                assertThat(response.getStreamAddresses())
+                        .containsEntry(streamB, ++localB);
+                lastB = response.getToken();
+            }
+        }
+
+        assertThat(client.nextToken(Collections.singleton(streamA), 0).get().getToken())
+                .isEqualTo(lastA);
+    }
+
+    @Test
+    public void streamTailsAreLearnedFromSubscription()
+            throws Exception {
+        UUID streamA = UUID.nameUUIDFromBytes("streamA".getBytes());
+
+        // The first lookup subscribes to the stream, and is left to a query.
+        assertThat(client.getStreamTail(streamA))
+                .isNull();
+        assertThat(client.getStreamTail(streamA).getToken())
+                .isEqualTo(-1L);
+
+        long token = client.nextToken(Collections.singleton(streamA), 1).get().getToken();
+        TokenResponse tail = client.getStreamTail(streamA);
+        assertThat(tail.getToken())
+                .isEqualTo(token);
+        assertThat(tail.getStreamAddresses())
+                .containsEntry(streamA, 0L);
+    }
 }
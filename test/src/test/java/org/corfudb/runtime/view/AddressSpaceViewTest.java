@@ -48,6 +48,43 @@ public class AddressSpaceViewTest extends AbstractViewTest {
                 .isEqualTo(DataType.HOLE);
     }
 
+    @Test
+    public void readCachesAreScopedToTheirRuntime() {
+        CorfuRuntime r = getDefaultRuntime().setCacheDisabled(false);
+        CorfuRuntime r2 = new CorfuRuntime(getDefaultEndpoint()).setCacheDisabled(false).connect();
+        UUID streamA = UUID.nameUUIDFromBytes("stream A".getBytes());
+        byte[] testPayload = "hello world".getBytes();
+
+        // The write is cached by the runtime which wrote it, weighted by its serialized size.
+        r.getAddressSpaceView().write(0, Collections.singleton(streamA),
+                testPayload, Collections.emptyMap(), Collections.emptyMap());
+        assertThat(r.getAddressSpaceView().read(0).getPayload(r))
+                .isEqualTo(testPayload);
+        assertThat(r.getAddressSpaceView().getReadCacheStats().hitCount())
+                .isEqualTo(1L);
+        assertThat(r.getAddressSpaceView().getReadCacheWeight())
+                .isGreaterThan(AddressSpaceView.CACHE_ENTRY_OVERHEAD);
+
+        // The other runtime misses, and loads the entry.
+        assertThat(r2.getAddressSpaceView().read(0).getType())
+                .isEqualTo(DataType.DATA);
+        assertThat(r2.getAddressSpaceView().getReadCacheStats().missCount())
+                .isEqualTo(1L);
+        assertThat(r2.getAddressSpaceView().getReadCacheStats().loadSuccessCount())
+                .isEqualTo(1L);
+
+        // Resetting the caches of a runtime doesn't reset the others.
+        r2.getAddressSpaceView().resetCaches();
+        assertThat(r2.getAddressSpaceView().getReadCacheStats().missCount())
+                .isEqualTo(0L);
+        assertThat(r.getAddressSpaceView().getReadCacheStats().hitCount())
+                .isEqualTo(1L);
+        assertThat(r.getAddressSpaceView().read(0).getPayload(r))
+                .isEqualTo(testPayload);
+        assertThat(r.getAddressSpaceView().getReadCacheStats().hitCount())
+                .isEqualTo(2L);
+    }
+
     @Test
     @SuppressWarnings("unchecked")
     public void ensureStripingWorks()
@@ -1,13 +1,36 @@
 package org.corfudb.runtime.view;
 
+import com.google.common.collect.ImmutableSet;
 import lombok.Getter;
+import org.corfudb.infrastructure.SequencerServer;
+import org.corfudb.infrastructure.ServerContext;
+import org.corfudb.infrastructure.ServerContextBuilder;
+import org.corfudb.infrastructure.TestLayoutBuilder;
+import org.corfudb.infrastructure.TestServerRouter;
+import org.corfudb.protocols.wireprotocol.CorfuMsgType;
+import org.corfudb.protocols.wireprotocol.CorfuPayloadMsg;
+import org.corfudb.protocols.wireprotocol.DataType;
+import org.corfudb.protocols.wireprotocol.ShardRequest;
+import org.corfudb.protocols.wireprotocol.TokenResponse;
+import org.corfudb.protocols.wireprotocol.TxResolutionInfo;
 import org.corfudb.runtime.CorfuRuntime;
+import org.corfudb.runtime.clients.TestRule;
+import org.corfudb.runtime.exceptions.OverwriteException;
+import org.corfudb.runtime.view.stream.IStreamView;
 import org.junit.Test;
 
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+import static org.corfudb.infrastructure.ServerContext.NON_LOG_ADDR_MAGIC;
 
 /**
  * Created by mwei on 12/23/15.
@@ -79,4 +102,286 @@ public class SequencerViewTest extends AbstractViewTest {
         assertThat(r.getSequencerView().nextToken(Collections.singleton(streamB), 1).getBackpointerMap())
                 .containsEntry(streamB, 1L);
     }
+
+    @Test
+    public void staleTailsAreBoundedByStaleness()
+            throws Exception {
+        CorfuRuntime r = getDefaultRuntime();
+        UUID streamA = UUID.nameUUIDFromBytes("stream A".getBytes());
+        final long longStaleness = 60_000L;
+        final long shortStaleness = 1L;
+
+        r.getSequencerView().nextToken(Collections.singleton(streamA), 1);
+        assertThat(r.getSequencerView().getStreamTail(streamA, longStaleness).getToken())
+                .isEqualTo(0);
+
+        // Within the bound, the cached tail is returned.
+        r.getSequencerView().nextToken(Collections.singleton(streamA), 1);
+        assertThat(r.getSequencerView().getStreamTail(streamA, longStaleness).getToken())
+                .isEqualTo(0);
+        assertThat(r.getSequencerView().getStreamTail(streamA, 0).getToken())
+                .isEqualTo(1);
+
+        // Past the bound, the tail is fetched again.
+        Thread.sleep(shortStaleness + 1);
+        assertThat(r.getSequencerView().getStreamTail(streamA, shortStaleness).getToken())
+                .isEqualTo(1);
+    }
+
+    @Test
+    public void slowRefreshesReturnTheirTail() {
+        CorfuRuntime r = getDefaultRuntime();
+        UUID streamA = UUID.nameUUIDFromBytes("stream A".getBytes());
+        final long staleness = 1L;
+        final long queryTime = 10L;
+
+        r.getSequencerView().nextToken(Collections.singleton(streamA), 1);
+
+        // Every refresh takes longer than the staleness bound.
+        addServerRule(SERVERS.PORT_0, new TestRule()
+                .matches(m -> m.getMsgType() == CorfuMsgType.TOKEN_RES)
+                .transform(m -> LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(queryTime))));
+        assertThat(r.getSequencerView().getStreamTail(streamA, staleness).getToken())
+                .isEqualTo(0);
+        r.getSequencerView().nextToken(Collections.singleton(streamA), 1);
+        assertThat(r.getSequencerView().getStreamTail(streamA, staleness).getToken())
+                .isEqualTo(1);
+    }
+
+    @Test
+    public void uncleanRestartRecoversTheReservedSuffix()
+            throws Exception {
+        final long reservation = SequencerServer.CHECKPOINT_RESERVATION;
+        SequencerServer.CHECKPOINT_RESERVATION = PARAMETERS.NUM_ITERATIONS_LOW;
+        try {
+            // Only the checkpoint taken at startup is persisted.
+            Map<String, Object> opts = new HashMap<>(new ServerContextBuilder()
+                    .setInitialToken(NON_LOG_ADDR_MAGIC)
+                    .build()
+                    .getServerConfig());
+            opts.put("--checkpoint-interval", 0L);
+            ServerContext serverContext = new ServerContext(opts, new TestServerRouter(SERVERS.PORT_0));
+            addServer(SERVERS.PORT_0, serverContext);
+
+            CorfuRuntime r = getDefaultRuntime();
+            UUID streamA = UUID.nameUUIDFromBytes("stream A".getBytes());
+            IStreamView sv = r.getStreamsView().get(streamA);
+            sv.append("hello0".getBytes());
+            sv.append("hello1".getBytes());
+            TokenResponse late = r.getSequencerView().nextToken(Collections.singleton(streamA), 1);
+
+            // Restart the sequencer without shutting the old one down.
+            SequencerServer restarted = new SequencerServer(serverContext);
+            getServer(SERVERS.PORT_0).getServerRouter().addServer(restarted);
+
+            // The tails include the entries written past the checkpoint.
+            assertThat(r.getSequencerView().nextToken(Collections.singleton(streamA), 0).getToken())
+                    .isEqualTo(1L);
+            TokenResponse next = r.getSequencerView().nextToken(Collections.singleton(streamA), 1);
+            assertThat(next.getToken())
+                    .isEqualTo(PARAMETERS.NUM_ITERATIONS_LOW);
+            assertThat(next.getBackpointerMap())
+                    .containsEntry(streamA, 1L);
+
+            // The token issued before the restart was hole filled, so its writer retries.
+            assertThatThrownBy(() -> r.getAddressSpaceView().write(late.getToken(),
+                    Collections.singleton(streamA), "late".getBytes(),
+                    late.getBackpointerMap(), late.getStreamAddresses()))
+                    .isInstanceOf(OverwriteException.class);
+            restarted.shutdown();
+        } finally {
+            SequencerServer.CHECKPOINT_RESERVATION = reservation;
+        }
+    }
+
+    /**
+     * Start a primary sequencer on the first server and a shard on the second, and get a
+     * runtime whose layout shards the streams across them.
+     */
+    private CorfuRuntime getShardedRuntime() {
+        addServer(SERVERS.PORT_0);
+        Map<String, Object> shardOpts = new HashMap<>(new ServerContextBuilder()
+                .setSingle(false)
+                .setPort(SERVERS.PORT_1)
+                .build()
+                .getServerConfig());
+        shardOpts.put("--sequencer-shard", true);
+        addServer(SERVERS.PORT_1, shardOpts);
+
+        Layout l = new TestLayoutBuilder()
+                .addLayoutServer(SERVERS.PORT_0)
+                .addSequencer(SERVERS.PORT_0)
+                .addSequencer(SERVERS.PORT_1)
+                .buildSegment()
+                .buildStripe()
+                .addLogUnit(SERVERS.PORT_0)
+                .addToSegment()
+                .addToLayout()
+                .build();
+        l.setSequencerShards(2);
+        bootstrapAllServers(l);
+        return getRuntime(l).setCacheDisabled(true).connect();
+    }
+
+    /**
+     * Get a stream served by a sequencer shard.
+     */
+    private static UUID getStreamOfShard(CorfuRuntime r, int shard) {
+        Layout l = r.getLayoutView().getLayout();
+        for (int i = 0; ; i++) {
+            UUID id = UUID.nameUUIDFromBytes(("stream " + i).getBytes());
+            if (l.getSequencerShard(id) == shard) {
+                return id;
+            }
+        }
+    }
+
+    @Test
+    public void shardsTakeTheirAddressesFromThePrimary()
+            throws Exception {
+        CorfuRuntime r = getShardedRuntime();
+        UUID streamA = getStreamOfShard(r, 0);
+        UUID streamB = getStreamOfShard(r, 1);
+
+        assertThat(r.getSequencerView().nextToken(Collections.singleton(streamB), 1).getToken())
+                .isEqualTo(0L);
+        assertThat(r.getSequencerView().nextToken(Collections.singleton(streamA), 1).getToken())
+                .isEqualTo(1L);
+        TokenResponse next = r.getSequencerView().nextToken(Collections.singleton(streamB), 1);
+        assertThat(next.getToken())
+                .isEqualTo(2L);
+        assertThat(next.getBackpointerMap())
+                .containsEntry(streamB, 0L);
+        assertThat(r.getSequencerView().nextToken(Collections.singleton(streamB), 0).getToken())
+                .isEqualTo(2L);
+
+        // The shard reported its blocks applied, so the global tail doesn't wait for them to expire.
+        assertThat(r.getLayoutView().getLayout().getSequencer(0).nextToken(Collections.emptySet(), 0)
+                .get(SequencerServer.SHARD_LOCK_TIMEOUT_MS / 2, TimeUnit.MILLISECONDS).getToken())
+                .isEqualTo(2L);
+    }
+
+    @Test
+    public void slowAddressBlocksAreFilledAndRetried()
+            throws Exception {
+        final long lockTimeout = SequencerServer.SHARD_LOCK_TIMEOUT_MS;
+        SequencerServer.SHARD_LOCK_TIMEOUT_MS = PARAMETERS.TIMEOUT_VERY_SHORT.toMillis();
+        try {
+            CorfuRuntime r = getShardedRuntime();
+            UUID streamB = getStreamOfShard(r, 1);
+
+            // The first block the shard takes arrives after its lock timeout.
+            AtomicInteger blocks = new AtomicInteger();
+            addServerRule(SERVERS.PORT_0, new TestRule()
+                    .matches(m -> m.getMsgType() == CorfuMsgType.TOKEN_RES && blocks.getAndIncrement() == 0)
+                    .transform(m -> LockSupport.parkNanos(
+                            TimeUnit.MILLISECONDS.toNanos(SequencerServer.SHARD_LOCK_TIMEOUT_MS * 2))));
+            assertThat(r.getSequencerView().nextToken(Collections.singleton(streamB), 1).getToken())
+                    .isEqualTo(1L);
+
+            // The slow block is filled in the background.
+            for (int i = 0; i < PARAMETERS.NUM_ITERATIONS_LOW
+                    && r.getAddressSpaceView().read(0L).getType() != DataType.HOLE; i++) {
+                Thread.sleep(PARAMETERS.TIMEOUT_VERY_SHORT.toMillis() / PARAMETERS.NUM_ITERATIONS_LOW + 1);
+            }
+            assertThat(r.getAddressSpaceView().read(0L).getType())
+                    .isEqualTo(DataType.HOLE);
+        } finally {
+            SequencerServer.SHARD_LOCK_TIMEOUT_MS = lockTimeout;
+        }
+    }
+
+    @Test
+    public void requestsSpanningShardsAreCommittedToEach() {
+        CorfuRuntime r = getShardedRuntime();
+        UUID streamA = getStreamOfShard(r, 0);
+        UUID streamB = getStreamOfShard(r, 1);
+        Set<UUID> streams = ImmutableSet.of(streamA, streamB);
+
+        r.getSequencerView().nextToken(Collections.singleton(streamA), 1);
+        r.getSequencerView().nextToken(Collections.singleton(streamB), 1);
+        TokenResponse token = r.getSequencerView().nextToken(streams, 1);
+        assertThat(token.getToken())
+                .isEqualTo(2L);
+        assertThat(token.getBackpointerMap())
+                .containsEntry(streamA, 0L)
+                .containsEntry(streamB, 1L);
+        assertThat(token.getStreamAddresses())
+                .containsEntry(streamA, 1L)
+                .containsEntry(streamB, 1L);
+
+        assertThat(r.getSequencerView().nextToken(Collections.singleton(streamA), 0).getToken())
+                .isEqualTo(2L);
+        assertThat(r.getSequencerView().nextToken(Collections.singleton(streamB), 0).getToken())
+                .isEqualTo(2L);
+        assertThat(r.getSequencerView().nextToken(streams, 0).getToken())
+                .isEqualTo(2L);
+    }
+
+    @Test
+    public void transactionsSpanningShardsCommitOrAbort()
+            throws Exception {
+        CorfuRuntime r = getShardedRuntime();
+        UUID streamA = getStreamOfShard(r, 0);
+        UUID streamB = getStreamOfShard(r, 1);
+        Set<UUID> streams = ImmutableSet.of(streamA, streamB);
+
+        long snapshot = r.getSequencerView().nextToken(Collections.singleton(streamA), 1).getToken();
+        r.getSequencerView().nextToken(Collections.singleton(streamB), 1);
+
+        // The transaction aborts on the shard of the stream updated since its snapshot.
+        TokenResponse aborted = r.getSequencerView().nextToken(streams, 1, false, false,
+                new TxResolutionInfo(snapshot, streams, Collections.emptyMap()));
+        assertThat(aborted.getToken())
+                .isEqualTo(-1L);
+
+        // Its lock on the other shard was released, rather than left to expire.
+        assertThat(r.getLayoutView().getLayout().getSequencer(0).nextToken(Collections.singleton(streamA), 1)
+                .get(SequencerServer.SHARD_LOCK_TIMEOUT_MS / 2, TimeUnit.MILLISECONDS).getToken())
+                .isEqualTo(2L);
+
+        snapshot = r.getSequencerView().nextToken(Collections.emptySet(), 0).getToken();
+        TokenResponse committed = r.getSequencerView().nextToken(streams, 1, false, false,
+                new TxResolutionInfo(snapshot, streams, Collections.emptyMap()));
+        assertThat(committed.getToken())
+                .isEqualTo(3L);
+        assertThat(committed.getBackpointerMap())
+                .containsEntry(streamA, 2L)
+                .containsEntry(streamB, 1L);
+    }
+
+    @Test
+    public void expiredShardLocksAreFilledAndRetried() {
+        final long lockTimeout = SequencerServer.SHARD_LOCK_TIMEOUT_MS;
+        SequencerServer.SHARD_LOCK_TIMEOUT_MS = PARAMETERS.TIMEOUT_VERY_SHORT.toMillis();
+        try {
+            CorfuRuntime r = getShardedRuntime();
+            UUID streamA = getStreamOfShard(r, 0);
+            UUID streamB = getStreamOfShard(r, 1);
+            Set<UUID> streams = ImmutableSet.of(streamA, streamB);
+
+            // The first commit is sent after the locks expired.
+            AtomicInteger commits = new AtomicInteger();
+            addClientRule(r, new TestRule()
+                    .matches(m -> m.getMsgType() == CorfuMsgType.SHARD_REQ
+                            && ((ShardRequest) ((CorfuPayloadMsg<?>) m).getPayload()).getType()
+                            == ShardRequest.SHARD_COMMIT
+                            && commits.getAndIncrement() == 0)
+                    .transform(m -> LockSupport.parkNanos(
+                            TimeUnit.MILLISECONDS.toNanos(SequencerServer.SHARD_LOCK_TIMEOUT_MS * 2))));
+
+            // The addresses of the expired attempt are hole filled, and the request retried.
+            TokenResponse token = r.getSequencerView().nextToken(streams, 1);
+            assertThat(token.getToken())
+                    .isEqualTo(1L);
+            assertThat(r.getAddressSpaceView().read(0L).getType())
+                    .isEqualTo(DataType.HOLE);
+            assertThat(r.getSequencerView().nextToken(Collections.singleton(streamA), 0).getToken())
+                    .isEqualTo(1L);
+            assertThat(r.getSequencerView().nextToken(Collections.singleton(streamB), 0).getToken())
+                    .isEqualTo(1L);
+        } finally {
+            SequencerServer.SHARD_LOCK_TIMEOUT_MS = lockTimeout;
+        }
+    }
 }
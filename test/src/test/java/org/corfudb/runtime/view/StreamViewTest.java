@@ -1,14 +1,19 @@
 package org.corfudb.runtime.view;
 
 import lombok.Getter;
+import org.corfudb.protocols.wireprotocol.CorfuMsgType;
 import org.corfudb.protocols.wireprotocol.TokenResponse;
 import org.corfudb.runtime.CorfuRuntime;
+import org.corfudb.runtime.clients.SequencerClient;
+import org.corfudb.runtime.clients.TestRule;
+import org.corfudb.runtime.view.stream.BackpointerStreamView;
 import org.corfudb.runtime.view.stream.IStreamView;
 import org.junit.Before;
 import org.junit.Test;
 
 import java.util.Collections;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.assertj.core.api.Assertions.assertThat;
 
@@ -108,6 +113,139 @@ public class StreamViewTest extends AbstractViewTest {
                 .isEqualTo(null);
     }
 
+    /** Count the stream address requests sent by a runtime to the log units.
+     *
+     * @param r     The runtime.
+     * @return      The number of requests sent after the call.
+     */
+    private AtomicInteger countStreamAddressRequests(CorfuRuntime r) {
+        AtomicInteger requests = new AtomicInteger();
+        addClientRule(r, new TestRule()
+                .matches(m -> m.getMsgType() == CorfuMsgType.STREAM_ADDRESS_REQUEST)
+                .transform(m -> requests.incrementAndGet()));
+        return requests;
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void cachedStreamSuffixIsReadWithoutIndex()
+            throws Exception {
+        CorfuRuntime r = getDefaultRuntime().connect()
+                .setCacheDisabled(false);
+        UUID streamA = UUID.nameUUIDFromBytes("stream A".getBytes());
+        final int numEntries = 3;
+
+        IStreamView sv = r.getStreamsView().get(streamA);
+        for (int i = 0; i < numEntries; i++) {
+            sv.append(("hello" + i).getBytes());
+        }
+
+        // The entries were cached when they were written.
+        AtomicInteger requests = countStreamAddressRequests(r);
+        for (int i = 0; i < numEntries; i++) {
+            assertThat(sv.next().getPayload(r))
+                    .isEqualTo(("hello" + i).getBytes());
+        }
+        assertThat(sv.next())
+                .isEqualTo(null);
+        assertThat(requests.get())
+                .isEqualTo(0);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void uncachedStreamSuffixIsResolvedWithIndex()
+            throws Exception {
+        UUID streamA = UUID.nameUUIDFromBytes("stream A".getBytes());
+        final int numEntries = 3;
+
+        IStreamView sv = r.getStreamsView().get(streamA);
+        for (int i = 0; i < numEntries; i++) {
+            sv.append(("hello" + i).getBytes());
+        }
+
+        // Another runtime misses the cache, and asks the index once.
+        CorfuRuntime r2 = new CorfuRuntime(getDefaultEndpoint())
+                .setCacheDisabled(false).connect();
+        AtomicInteger requests = countStreamAddressRequests(r2);
+        IStreamView sv2 = r2.getStreamsView().get(streamA);
+        for (int i = 0; i < numEntries; i++) {
+            assertThat(sv2.next().getPayload(r2))
+                    .isEqualTo(("hello" + i).getBytes());
+        }
+        assertThat(sv2.next())
+                .isEqualTo(null);
+        assertThat(requests.get())
+                .isEqualTo(1);
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void longStreamGapIsResolvedWithIndex()
+            throws Exception {
+        final long defaultIndexedGap = BackpointerStreamView.INDEXED_GAP;
+        final int numEntries = PARAMETERS.NUM_ITERATIONS_LOW;
+        BackpointerStreamView.INDEXED_GAP = numEntries / 2;
+
+        try {
+            CorfuRuntime r = getDefaultRuntime().connect()
+                    .setCacheDisabled(false);
+            UUID streamA = UUID.nameUUIDFromBytes("stream A".getBytes());
+
+            IStreamView sv = r.getStreamsView().get(streamA);
+            for (int i = 0; i < numEntries; i++) {
+                sv.append(("hello" + i).getBytes());
+            }
+
+            // The gap is resolved with the index even if the entries are cached.
+            AtomicInteger requests = countStreamAddressRequests(r);
+            for (int i = 0; i < numEntries; i++) {
+                assertThat(sv.next().getPayload(r))
+                        .isEqualTo(("hello" + i).getBytes());
+            }
+            assertThat(requests.get())
+                    .isEqualTo(1);
+        } finally {
+            BackpointerStreamView.INDEXED_GAP = defaultIndexedGap;
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void syncPastStaleNotifiedTailReadsAllEntries()
+            throws Exception {
+        UUID streamA = UUID.nameUUIDFromBytes("stream A".getBytes());
+        IStreamView sv = r.getStreamsView().get(streamA);
+        sv.append("hello0".getBytes());
+
+        CorfuRuntime r2 = new CorfuRuntime(getDefaultEndpoint())
+                .setStreamTailNotificationsEnabled(true).connect();
+        IStreamView sv2 = r2.getStreamsView().get(streamA);
+        assertThat(sv2.next().getPayload(r2))
+                .isEqualTo("hello0".getBytes());
+        // Wait for the subscription to the stream to be answered.
+        SequencerClient sequencer = r2.getLayoutView().getLayout().getSequencer(0);
+        for (int i = 0; i < PARAMETERS.NUM_ITERATIONS_LOW && sequencer.getStreamTail(streamA) == null; i++) {
+            Thread.sleep(PARAMETERS.TIMEOUT_VERY_SHORT.toMillis() / PARAMETERS.NUM_ITERATIONS_LOW + 1);
+        }
+        assertThat(sequencer.getStreamTail(streamA).getToken())
+                .isEqualTo(0L);
+
+        // The tail notified to the second runtime becomes stale.
+        addServerRule(SERVERS.PORT_0, new TestRule()
+                .matches(m -> m.getMsgType() == CorfuMsgType.STREAM_TAIL_NOTIFICATION)
+                .drop());
+        sv.append("hello1".getBytes());
+        long snapshot = sv.append("hello2".getBytes());
+        assertThat(sequencer.getStreamTail(streamA).getToken())
+                .isEqualTo(0L);
+
+        // A sync to a snapshot past the notified tail still reads every entry.
+        assertThat(sv2.remainingUpTo(snapshot))
+                .extracting(e -> e.getPayload(r2))
+                .containsExactly("hello1".getBytes(), "hello2".getBytes());
+    }
+
     @Test
     @SuppressWarnings("unchecked")
     public void streamCanSurviveOverwriteException()